@@ -39,8 +39,9 @@ import org.apache.log4j.Logger;
 
 import contrail.sequences.Alphabet;
 import contrail.sequences.DNAAlphabetFactory;
-import contrail.sequences.DNAUtil;
-import contrail.sequences.Sequence;
+import contrail.sequences.DNAStrand;
+import contrail.sequences.Kmer;
+import contrail.sequences.Kmer32;
 import contrail.stages.ContrailParameters;
 import contrail.stages.MRStage;
 import contrail.stages.ParameterDefinition;
@@ -83,13 +84,12 @@ public class BuildBitVector extends MRStage {
 
   public static class FilterMapper extends AvroMapper<Pair<CharSequence, Long>, Pair<CharSequence, Long>> {
     private int cutOff;
-    Sequence dnaSequence;
+    private Kmer dnaKmer;
 
     public void configure(JobConf job){
       BuildBitVector stage = new BuildBitVector();
       Map<String, ParameterDefinition> definitions = stage.getParameterDefinitions();
       cutOff = (Integer)(definitions.get("cutoff").parseJobConf(job));
-      dnaSequence = new Sequence(DNAAlphabetFactory.create());
     }
 
     // incoming key,value pairs - (kmer, frequency)
@@ -97,9 +97,14 @@ public class BuildBitVector extends MRStage {
         AvroCollector<Pair<CharSequence, Long>> output, Reporter reporter) throws IOException {
       long kmerFrequency = countRecord.value().longValue();
       if(kmerFrequency >= cutOff) {
-        String kmer = countRecord.key().toString();
-        dnaSequence.readCharSequence(kmer);
-        String reverseComplement  = DNAUtil.reverseComplement(dnaSequence).toString();
+        CharSequence kmer = countRecord.key();
+        // The Kmer is created on the first record because K isn't a
+        // parameter of the mapper.
+        if (dnaKmer == null || dnaKmer.getK() != kmer.length()) {
+          dnaKmer = Kmer.create(kmer.length());
+        }
+        readKmer(kmer, dnaKmer);
+        String reverseComplement  = dnaKmer.toString(DNAStrand.REVERSE);
         Pair<CharSequence, Long> reverseComplementCountRecord = new Pair<CharSequence, Long>(reverseComplement, kmerFrequency);
         // We emit both the kmer and its reverse complement so that both of them are set
         // in the bitvector
@@ -109,6 +114,19 @@ public class BuildBitVector extends MRStage {
     }
   }
 
+  /**
+   * Read the letters of kmer into the Kmer.
+   */
+  private static void readKmer(CharSequence kmer, Kmer dnaKmer) {
+    dnaKmer.clear();
+    for (int i = 0; i < kmer.length(); i++) {
+      if (!dnaKmer.addLetter(kmer.charAt(i))) {
+        throw new RuntimeException(
+            "The letter '" + kmer.charAt(i) + "' is not a valid DNA base.");
+      }
+    }
+  }
+
   /**
    * A single instance of this reducer is launched. This creates the bitvector, one byte at a time.
    * Every Kmer has an index in this bitvector, and the index is governed by the sorted order
@@ -128,6 +146,7 @@ public class BuildBitVector extends MRStage {
     private long byteIndex = 0;
     private long offset = 0;
     private int correctionK;
+    private Kmer32 dnaKmer;
     private FSDataOutputStream out;
     private Path bitVectorPath;
 
@@ -139,6 +158,7 @@ public class BuildBitVector extends MRStage {
       String outPath = (String)(definitions.get("outputpath").parseJobConf(job));
       outputPair = new Pair<CharSequence,Long>("", 0);
       dnaAlphabet = DNAAlphabetFactory.create();
+      dnaKmer = new Kmer32(correctionK);
 
       // Open a file to write the bitVector to.
       bitVectorPath = new Path(FilenameUtils.concat(
@@ -229,13 +249,12 @@ public class BuildBitVector extends MRStage {
      * a kmer.
      */
     public long getKmerIndex(CharSequence kmer){
-      String kmerString = kmer.toString();
-      long kmerIndex = 0;
-      for(int i = 0 ; i <kmer.length(); i ++){
-        kmerIndex <<= dnaAlphabet.bitsPerLetter();
-        kmerIndex |=dnaAlphabet.letterToInt(kmerString.charAt(i));
+      if (kmer.length() != correctionK) {
+        throw new RuntimeException(
+            "The length of the kmer: " + kmer + " isn't K: " + correctionK);
       }
-      return kmerIndex;
+      readKmer(kmer, dnaKmer);
+      return dnaKmer.lexicographicIndex(DNAStrand.FORWARD);
     }
 
     public void close(){
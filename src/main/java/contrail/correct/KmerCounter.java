@@ -39,6 +39,7 @@ import org.apache.log4j.Logger;
 import contrail.sequences.DNAAlphabetFactory;
 import contrail.sequences.DNAUtil;
 import contrail.sequences.FastQRecord;
+import contrail.sequences.Kmer;
 import contrail.sequences.MatePair;
 import contrail.sequences.Sequence;
 import contrail.stages.ContrailParameters;
@@ -61,6 +62,9 @@ public class KmerCounter extends MRStage {
     private int K;
     private Sequence dnaSequence;
     private Sequence canonicalSeq;
+    // Kmer used to extract the KMers; null if K is too large for Kmer.
+    private Kmer window;
+    private char[] letters;
     private FastQRecord fqRecord = null;
     private MatePair mateRecord = null;
     private CharSequence kmer;
@@ -74,6 +78,10 @@ public class KmerCounter extends MRStage {
       Map<String, ParameterDefinition> definitions = stage.getParameterDefinitions();
       K = (Integer)(definitions.get("K").parseJobConf(job));
       dnaSequence = new Sequence(DNAAlphabetFactory.create());
+      if (Kmer.isSupported(K)) {
+        window = Kmer.create(K);
+        letters = new char[K];
+      }
     }
 
     /**
@@ -107,6 +115,10 @@ public class KmerCounter extends MRStage {
     private void collectKmers(
         CharSequence fullSequence,
         AvroCollector<Pair<CharSequence, Long>> collector) throws IOException {
+      if (window != null) {
+        collectKmersUsingWindow(fullSequence, collector);
+        return;
+      }
       // Chop Kmer string into list of strings whenever a non DNA base
       // characer occurs.
       // e.g. AATNAANNNGA is chopped into AAT, AA, GA
@@ -123,6 +135,26 @@ public class KmerCounter extends MRStage {
         }
       }
     }
+
+    /**
+     * Collect the kmers by sliding a Kmer along the read.
+     *
+     * Adding a non DNA base character clears the window so, as above,
+     * KMers never span such a character.
+     */
+    private void collectKmersUsingWindow(
+        CharSequence fullSequence,
+        AvroCollector<Pair<CharSequence, Long>> collector) throws IOException {
+      window.clear();
+      for (int i = 0; i < fullSequence.length(); i++) {
+        if (!window.addLetter(fullSequence.charAt(i)) || !window.isFull()) {
+          continue;
+        }
+        window.toChars(window.canonicalStrand(), letters);
+        String kmerCanonical = String.valueOf(letters);
+        collector.collect(new Pair<CharSequence,Long>(kmerCanonical, 1L));
+      }
+    }
   }
 
   public static class KmerCounterCombiner extends AvroReducer<CharSequence, Long, Pair<CharSequence, Long> > {
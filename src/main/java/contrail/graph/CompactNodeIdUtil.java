@@ -0,0 +1,67 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.graph;
+
+import org.apache.commons.codec.binary.Base64;
+
+import contrail.sequences.Sequence;
+
+/**
+ * Utilities for compact node ids.
+ *
+ * By default a node's id is the base64 encoding of its KMer, so the length
+ * of the id grows with K (e.g. 31 characters for K=91). A compact id is a 64
+ * or 128 bit hash of the canonical KMer encoded as a fixed width, URL safe
+ * base64 string (11 or 22 characters). Since the ids are hashes, distinct
+ * KMers could collide; BuildNodeIdDictionary checks for collisions and maps
+ * the ids back to the KMers.
+ */
+public class CompactNodeIdUtil {
+  // Seeds for the two halves of a 128 bit id.
+  private static final long SEED_LOW = 0x5DEECE66DL;
+  private static final long SEED_HIGH = 0x2545F4914F6CDD1DL;
+
+  /**
+   * Check whether the number of bits is a supported size for compact ids.
+   */
+  public static boolean isValidNumBits(int numBits) {
+    return numBits == 64 || numBits == 128;
+  }
+
+  /**
+   * Construct the compact id for a sequence.
+   *
+   * @param sequence: The canonical sequence of the node.
+   * @param numBits: The size of the id; either 64 or 128.
+   * @return: The id.
+   */
+  public static String nodeIdForSequence(Sequence sequence, int numBits) {
+    if (!isValidNumBits(numBits)) {
+      throw new RuntimeException(
+          "Compact node ids must use 64 or 128 bits not: " + numBits);
+    }
+    byte[] bytes = new byte[numBits / 8];
+    putLong(bytes, 0, sequence.hash64(SEED_LOW));
+    if (numBits == 128) {
+      putLong(bytes, 8, sequence.hash64(SEED_HIGH));
+    }
+    return Base64.encodeBase64URLSafeString(bytes);
+  }
+
+  private static void putLong(byte[] bytes, int offset, long value) {
+    for (int i = 0; i < 8; ++i) {
+      bytes[offset + i] = (byte) (value >>> (56 - 8 * i));
+    }
+  }
+}
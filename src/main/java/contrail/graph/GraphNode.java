@@ -38,86 +38,76 @@ public class GraphNode {
   /**
    * Class is a container for all the derived data for the node that
    * we want to avoid recomputing each time it is accessed.
+   *
+   * The edges are indexed in a single pass over the neighbors into
+   * parallel arrays; degrees, tails and edge lookups are answered from
+   * these arrays without building any collections. The lists and sets of
+   * terminals are only materialized when they are requested.
    */
   protected static class DerivedData {
-    private final GraphNodeData data;
+    private GraphNodeData data;
+
+    // Whether we have indexed the edges.
+    private boolean indexed;
+
+    // The outgoing edges in the order they appear in the neighbors.
+    // For the i'th edge, edgeNeighbor[i] is the position of the neighbor
+    // in data.getNeighbors() and edgeData[i] is the edge. The arrays are
+    // reused when the derived data is cleared so that indexing a node
+    // doesn't normally allocate anything.
+    private int numEdges;
+    private int[] edgeNeighbor = new int[0];
+    private EdgeData[] edgeData = new EdgeData[0];
 
+    // The number of outgoing edges for each value of StrandsForEdge indexed
+    // by its ordinal.
+    private final int[] strandsCounts = new int[StrandsForEdge.values().length];
 
-    // Whether we have created the edge lists.
-    private boolean lists_created;
+    // The ids of the neighbors as strings. The ids are converted when first
+    // used so that all terminals for a neighbor share the same string.
+    private String[] neighborIdStrings = new String[0];
 
     // Store list of edge terminals for the specified strand in the given
     // direction these lists are immutable so that we can safely return
-    // references to the caller.
-
-    // For each strand we store a list of outgoing and incoming edges.
-    // TODO(jlewi): We should consider using HashSet's so that lookups
-    // for a particular terminal will be fast.
-    // Lists, however, provide better guarantees for iterating over the
-    // elements.
-    private List<EdgeTerminal> f_outgoing_edges;
-    private List<EdgeTerminal> r_outgoing_edges;
-    private List<EdgeTerminal> f_incoming_edges;
-    private List<EdgeTerminal> r_incoming_edges;
-
-    private Set<EdgeTerminal> fOutgoingEdgeSet;
-    private Set<EdgeTerminal> rOutgoingEdgeSet;
-    private Set<EdgeTerminal> fIncomingEdgeSet;
-    private Set<EdgeTerminal> rIncomingEdgeSet;
-
-    // For each strand we store a hash map which maps an EdgeTerminal
-    // to a list of the read tags that gave rise to that edge.
-    private HashMap<EdgeTerminal, List<CharSequence>> f_edge_tags_map;
-    private HashMap<EdgeTerminal, List<CharSequence>> r_edge_tags_map;
+    // references to the caller. The lists and sets are indexed by
+    // terminalsIndex and are created on demand.
+    private final ArrayList<List<EdgeTerminal>> terminalLists;
+    private final ArrayList<Set<EdgeTerminal>> terminalSets;
 
     private HashSet<String> neighborIds;
 
-    private boolean isPalindrome;
-
     public DerivedData(GraphNodeData data) {
       this.data = data;
-      lists_created = false;
+      indexed = false;
+      terminalLists = new ArrayList<List<EdgeTerminal>>();
+      terminalSets = new ArrayList<Set<EdgeTerminal>>();
+      for (int i = 0; i < 4; ++i) {
+        terminalLists.add(null);
+        terminalSets.add(null);
+      }
     }
 
     /**
      * This hash map maps the enum StrandsForEdge to a list of strings
      * which are the node ids for the neighbors.
      * If there are no ids for this value of StrandsForEdge the list is
-     * empty (not null);
+     * empty (not null). Entries are added on demand.
      */
     private HashMap<StrandsForEdge, List<CharSequence>>
     strands_to_neighbors;
 
+    private void indexEdges() {
+      List<NeighborData> neighbors = data.getNeighbors();
+      int numNeighbors = neighbors.size();
+      if (neighborIdStrings.length < numNeighbors) {
+        neighborIdStrings = new String[numNeighbors];
+      }
+      Arrays.fill(strandsCounts, 0);
+      numEdges = 0;
 
-    // TODO(jlewi): Would it be better to use sorted sets for fast lookups?
-    private void createEdgeLists() {
-      lists_created = true;
-
-      strands_to_neighbors =
-          new HashMap<StrandsForEdge, List<CharSequence>> ();
-      // Initialize the lists.
-      strands_to_neighbors.put(
-          StrandsForEdge.FF, new ArrayList<CharSequence> ());
-      strands_to_neighbors.put(
-          StrandsForEdge.FR, new ArrayList<CharSequence> ());
-      strands_to_neighbors.put(
-          StrandsForEdge.RF, new ArrayList<CharSequence> ());
-      strands_to_neighbors.put(
-          StrandsForEdge.RR, new ArrayList<CharSequence> ());
-
-      f_outgoing_edges = new ArrayList<EdgeTerminal>();
-      r_outgoing_edges = new ArrayList<EdgeTerminal>();
-
-      f_edge_tags_map = new HashMap<EdgeTerminal, List<CharSequence>>();
-      r_edge_tags_map = new HashMap<EdgeTerminal, List<CharSequence>>();
-
-      NeighborData dest_node;
-      List<CharSequence> id_list;
-
-      // Loop over the destination nodes.
-      for (Iterator<NeighborData> it = data.getNeighbors().iterator();
-          it.hasNext();) {
-        dest_node = it.next();
+      int position = 0;
+      for (NeighborData dest_node : neighbors) {
+        neighborIdStrings[position] = null;
         List<EdgeData> list_link_dirs = dest_node.getEdges();
         if (list_link_dirs == null) {
           throw new RuntimeException(
@@ -125,83 +115,163 @@ public class GraphNode {
                   dest_node.getNodeId() +
               " this should not happen.");
         }
-        for (Iterator<EdgeData> edge_it =
-            dest_node.getEdges().iterator();
-            edge_it.hasNext();) {
-          EdgeData edge_data = edge_it.next();
-          StrandsForEdge strands = edge_data.getStrands();
-          id_list = strands_to_neighbors.get(strands);
-          id_list.add(dest_node.getNodeId());
-
-          EdgeTerminal terminal =
-              new EdgeTerminal(dest_node.getNodeId().toString(),
-                  StrandsUtil.dest(strands));
-
-          // Create an immutable list out of the read tags.
-          List<CharSequence> immutable_tags =
-              Collections.unmodifiableList(edge_data.getReadTags());
-          if (StrandsUtil.src(strands) == DNAStrand.FORWARD) {
-            f_outgoing_edges.add(terminal);
-            f_edge_tags_map.put(terminal, immutable_tags);
-          } else {
-            r_outgoing_edges.add(terminal);
-            r_edge_tags_map.put(terminal, immutable_tags);
+        for (EdgeData edge : list_link_dirs) {
+          if (numEdges == edgeData.length) {
+            int capacity = Math.max(4, 2 * numEdges);
+            edgeNeighbor = Arrays.copyOf(edgeNeighbor, capacity);
+            edgeData = Arrays.copyOf(edgeData, capacity);
           }
-
+          edgeNeighbor[numEdges] = position;
+          edgeData[numEdges] = edge;
+          ++strandsCounts[edge.getStrands().ordinal()];
+          ++numEdges;
         }
+        ++position;
       }
+      indexed = true;
+    }
 
-      // We can construct the incoming edges as follows,
-      // An edge x->y implies an edge RC(y)->RC(X) where RC is the reverse
-      // complement. Thus the edge  w->x implies an edge RC(X) -> RC(W)
-      // So to get the incoming edges for x we look at outgoing edges
-      // RC(x) and then flip the direction of the destination.
-      f_incoming_edges = new ArrayList<EdgeTerminal>();
-      for (Iterator<EdgeTerminal> it = r_outgoing_edges.iterator();
-          it.hasNext();) {
-        EdgeTerminal terminal = it.next();
-        f_incoming_edges.add(new EdgeTerminal(
-            terminal.nodeId, DNAStrandUtil.flip(terminal.strand)));
+    private String neighborId(int position) {
+      if (neighborIdStrings[position] == null) {
+        neighborIdStrings[position] =
+            data.getNeighbors().get(position).getNodeId().toString();
       }
+      return neighborIdStrings[position];
+    }
 
-      r_incoming_edges = new ArrayList<EdgeTerminal>();
-      for (Iterator<EdgeTerminal> it = f_outgoing_edges.iterator();
-          it.hasNext();) {
-        EdgeTerminal terminal = it.next();
-        r_incoming_edges.add(new EdgeTerminal(
-            terminal.nodeId, DNAStrandUtil.flip(terminal.strand)));
+    // Position of the list/set for a strand and direction.
+    private static int terminalsIndex(
+        DNAStrand strand, EdgeDirection direction) {
+      return 2 * strand.ordinal() + direction.ordinal();
+    }
+
+    // We can construct the incoming edges as follows,
+    // An edge x->y implies an edge RC(y)->RC(X) where RC is the reverse
+    // complement. Thus the edge  w->x implies an edge RC(X) -> RC(W)
+    // So the incoming edges for x are the outgoing edges of RC(x) with the
+    // direction of the destination flipped.
+    private static DNAStrand sourceStrand(
+        DNAStrand strand, EdgeDirection direction) {
+      if (direction == EdgeDirection.OUTGOING) {
+        return strand;
       }
+      return DNAStrandUtil.flip(strand);
+    }
 
-      // Convert the lists to immutable lists.
-      f_outgoing_edges = Collections.unmodifiableList(f_outgoing_edges);
-      r_outgoing_edges = Collections.unmodifiableList(r_outgoing_edges);
-      f_incoming_edges = Collections.unmodifiableList(f_incoming_edges);
-      r_incoming_edges = Collections.unmodifiableList(r_incoming_edges);
+    // Create the terminal for the i'th edge in the given direction.
+    private EdgeTerminal createTerminal(int i, EdgeDirection direction) {
+      DNAStrand dest = StrandsUtil.dest(edgeData[i].getStrands());
+      if (direction == EdgeDirection.INCOMING) {
+        dest = DNAStrandUtil.flip(dest);
+      }
+      return new EdgeTerminal(neighborId(edgeNeighbor[i]), dest);
+    }
 
-      for (StrandsForEdge strands : StrandsForEdge.values()) {
-        id_list = Collections.unmodifiableList(
-            strands_to_neighbors.get(strands));
+    // Find the last edge with the given strands to the node; returns -1
+    // if there is no such edge.
+    private int findEdge(StrandsForEdge strands, String nodeId) {
+      if (!indexed) {
+        indexEdges();
+      }
+      for (int i = numEdges - 1; i >= 0; --i) {
+        if (edgeData[i].getStrands() == strands &&
+            neighborId(edgeNeighbor[i]).equals(nodeId)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    public List<CharSequence> getNeighborsForStrands(StrandsForEdge strands) {
+      if (!indexed) {
+        indexEdges();
+      }
+      if (strands_to_neighbors == null) {
+        strands_to_neighbors =
+            new HashMap<StrandsForEdge, List<CharSequence>>();
+      }
+      List<CharSequence> id_list = strands_to_neighbors.get(strands);
+      if (id_list == null) {
+        ArrayList<CharSequence> ids =
+            new ArrayList<CharSequence>(strandsCounts[strands.ordinal()]);
+        for (int i = 0; i < numEdges; ++i) {
+          if (edgeData[i].getStrands() == strands) {
+            ids.add(data.getNeighbors().get(edgeNeighbor[i]).getNodeId());
+          }
+        }
+        id_list = Collections.unmodifiableList(ids);
         strands_to_neighbors.put(strands, id_list);
       }
+      return id_list;
+    }
 
-      // TODO(jlewi): Should we create a separate function for creating the
-      // hash sets so we don't have to create them if all we want is the
-      // list versions and vice versa.
-      fOutgoingEdgeSet = Collections.unmodifiableSet(f_edge_tags_map.keySet());
-      rOutgoingEdgeSet = Collections.unmodifiableSet(r_edge_tags_map.keySet());
-      fIncomingEdgeSet = new HashSet<EdgeTerminal>();
-      rIncomingEdgeSet = new HashSet<EdgeTerminal>();
-      fIncomingEdgeSet.addAll(f_incoming_edges);
-      rIncomingEdgeSet.addAll(r_incoming_edges);
-      fIncomingEdgeSet = Collections.unmodifiableSet(fIncomingEdgeSet);
-      rIncomingEdgeSet = Collections.unmodifiableSet(rIncomingEdgeSet);
+    /**
+     * Returns the number of edges for the strand in the given direction.
+     */
+    public int degree(DNAStrand strand, EdgeDirection direction) {
+      if (!indexed) {
+        indexEdges();
+      }
+      DNAStrand src = sourceStrand(strand, direction);
+      return
+          strandsCounts[StrandsUtil.form(src, DNAStrand.FORWARD).ordinal()] +
+          strandsCounts[StrandsUtil.form(src, DNAStrand.REVERSE).ordinal()];
     }
 
-    public List<CharSequence> getNeighborsForStrands(StrandsForEdge strands) {
-      if (!lists_created) {
-        createEdgeLists();
+    /**
+     * Returns the terminal if the strand has exactly one edge in the given
+     * direction and null otherwise.
+     */
+    public EdgeTerminal getOnlyTerminal(
+        DNAStrand strand, EdgeDirection direction) {
+      if (degree(strand, direction) != 1) {
+        return null;
+      }
+      DNAStrand src = sourceStrand(strand, direction);
+      for (int i = 0; i < numEdges; ++i) {
+        if (StrandsUtil.src(edgeData[i].getStrands()) == src) {
+          return createTerminal(i, direction);
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Returns true if the strand has an edge to the terminal in the given
+     * direction.
+     */
+    public boolean hasTerminal(
+        DNAStrand strand, EdgeDirection direction, EdgeTerminal terminal) {
+      StrandsForEdge strands;
+      if (direction == EdgeDirection.OUTGOING) {
+        strands = StrandsUtil.form(strand, terminal.strand);
+      } else {
+        strands = StrandsUtil.form(
+            DNAStrandUtil.flip(strand), DNAStrandUtil.flip(terminal.strand));
       }
-      return strands_to_neighbors.get(strands);
+      return findEdge(strands, terminal.nodeId) >= 0;
+    }
+
+    /**
+     * Returns the strands of the edges to the node in the given direction.
+     */
+    public Set<StrandsForEdge> findStrandsForEdge(
+        String nodeId, EdgeDirection direction) {
+      if (!indexed) {
+        indexEdges();
+      }
+      HashSet<StrandsForEdge> strands = new HashSet<StrandsForEdge>();
+      for (int i = 0; i < numEdges; ++i) {
+        if (neighborId(edgeNeighbor[i]).equals(nodeId)) {
+          // An incoming edge y->x is stored as the edge RC(x)->RC(y).
+          if (direction == EdgeDirection.OUTGOING) {
+            strands.add(edgeData[i].getStrands());
+          } else {
+            strands.add(StrandsUtil.complement(edgeData[i].getStrands()));
+          }
+        }
+      }
+      return strands;
     }
 
     /**
@@ -211,22 +281,19 @@ public class GraphNode {
      */
     public List<EdgeTerminal>  getEdgeTerminals(
         DNAStrand strand, EdgeDirection direction) {
-      if (!lists_created) {
-        createEdgeLists();
-      }
-      List<EdgeTerminal> terminals;
-      if (strand == DNAStrand.FORWARD) {
-        if (direction == EdgeDirection.OUTGOING) {
-          terminals = f_outgoing_edges;
-        } else {
-          terminals = f_incoming_edges;
-        }
-      } else {
-        if (direction == EdgeDirection.OUTGOING) {
-          terminals = r_outgoing_edges;
-        } else {
-          terminals = r_incoming_edges;
+      int index = terminalsIndex(strand, direction);
+      List<EdgeTerminal> terminals = terminalLists.get(index);
+      if (terminals == null) {
+        ArrayList<EdgeTerminal> list =
+            new ArrayList<EdgeTerminal>(degree(strand, direction));
+        DNAStrand src = sourceStrand(strand, direction);
+        for (int i = 0; i < numEdges; ++i) {
+          if (StrandsUtil.src(edgeData[i].getStrands()) == src) {
+            list.add(createTerminal(i, direction));
+          }
         }
+        terminals = Collections.unmodifiableList(list);
+        terminalLists.set(index, terminals);
       }
       return terminals;
     }
@@ -238,22 +305,12 @@ public class GraphNode {
      */
     public Set<EdgeTerminal>  getEdgeTerminalsSet(
         DNAStrand strand, EdgeDirection direction) {
-      if (!lists_created) {
-        createEdgeLists();
-      }
-      Set<EdgeTerminal> terminals;
-      if (strand == DNAStrand.FORWARD) {
-        if (direction == EdgeDirection.OUTGOING) {
-          terminals = fOutgoingEdgeSet;
-        } else {
-          terminals = fIncomingEdgeSet;
-        }
-      } else {
-        if (direction == EdgeDirection.OUTGOING) {
-          terminals = rOutgoingEdgeSet;
-        } else {
-          terminals = rIncomingEdgeSet;
-        }
+      int index = terminalsIndex(strand, direction);
+      Set<EdgeTerminal> terminals = terminalSets.get(index);
+      if (terminals == null) {
+        terminals = Collections.unmodifiableSet(
+            new HashSet<EdgeTerminal>(getEdgeTerminals(strand, direction)));
+        terminalSets.set(index, terminals);
       }
       return terminals;
     }
@@ -267,15 +324,12 @@ public class GraphNode {
      */
     public List<CharSequence> getTagsForEdge(
         DNAStrand strand, EdgeTerminal terminal) {
-      if (!lists_created) {
-        createEdgeLists();
-      }
-
-      if (strand == DNAStrand.FORWARD) {
-        return f_edge_tags_map.get(terminal);
-      } else {
-        return r_edge_tags_map.get(terminal);
+      int i = findEdge(
+          StrandsUtil.form(strand, terminal.strand), terminal.nodeId);
+      if (i < 0) {
+        return null;
       }
+      return Collections.unmodifiableList(edgeData[i].getReadTags());
     }
 
     /**
@@ -283,23 +337,30 @@ public class GraphNode {
      * whenever the graph changes so that we don't return stale data;
      */
     public void clear() {
-      // TODO(jlewi): We should probably just clear the lists rather than
-      // setting them to null so as to avoid the cost of recreating the objects.
-      lists_created = false;
-      f_outgoing_edges = null;
-      r_outgoing_edges = null;
-      f_incoming_edges = null;
-      r_incoming_edges = null;
+      // The index arrays are kept so they can be reused; we only drop the
+      // references to the edges.
+      if (indexed) {
+        Arrays.fill(edgeData, 0, numEdges, null);
+      }
+      indexed = false;
+      numEdges = 0;
+      for (int i = 0; i < 4; ++i) {
+        terminalLists.set(i, null);
+        terminalSets.set(i, null);
+      }
       strands_to_neighbors = null;
-      f_edge_tags_map = null;
-      r_edge_tags_map = null;
-      fOutgoingEdgeSet = null;
-      rOutgoingEdgeSet = null;
-      fIncomingEdgeSet = null;
-      rIncomingEdgeSet = null;
       neighborIds = null;
     }
 
+    /**
+     * Use the derived data for different node data. The index arrays are
+     * reused so that setData doesn't normally allocate anything.
+     */
+    public void reset(GraphNodeData data) {
+      this.data = data;
+      clear();
+    }
+
     /**
      * Return a modifiable set of the ids for the neighbors.
      *
@@ -619,7 +680,7 @@ public class GraphNode {
       EdgeTerminal terminal, EdgeDirection direction) {
     HashSet<DNAStrand> strands = new HashSet<DNAStrand>();
     for (DNAStrand strand : DNAStrand.values()) {
-      if (this.getEdgeTerminalsSet(strand, direction).contains(terminal)) {
+      if (derived_data.hasTerminal(strand, direction, terminal)) {
         strands.add(strand);
       }
     }
@@ -635,24 +696,7 @@ public class GraphNode {
    */
   public Set<StrandsForEdge> findStrandsForEdge(
       String otherNode, EdgeDirection direction) {
-    HashSet<StrandsForEdge> strands = new HashSet<StrandsForEdge>();
-
-    for (DNAStrand thisStrand : DNAStrand.values()) {
-      for (DNAStrand otherStrand : DNAStrand.values()) {
-        EdgeTerminal destTerminal = new EdgeTerminal(otherNode, otherStrand);
-
-        if (this.getEdgeTerminalsSet(thisStrand, direction).contains(destTerminal)) {
-          StrandsForEdge s = null;
-          if (direction == EdgeDirection.OUTGOING) {
-            s = StrandsUtil.form(thisStrand, otherStrand);
-          } else {
-            s = StrandsUtil.form(otherStrand, thisStrand);
-          }
-          strands.add(s);
-        }
-      }
-    }
-    return strands;
+    return derived_data.findStrandsForEdge(otherNode, direction);
   }
 
   /**
@@ -804,7 +848,7 @@ public class GraphNode {
   public void setData(GraphNodeData data) {
     this.data = data;
     // Clear the derived data
-    this.derived_data = new DerivedData(data);
+    this.derived_data.reset(data);
   }
 
   /**
@@ -812,7 +856,7 @@ public class GraphNode {
    * in a particular direction
    **/
   public int degree(DNAStrand strand, EdgeDirection direction)  {
-    return getEdgeTerminals(strand, direction).size();
+    return derived_data.degree(strand, direction);
   }
 
   /**
@@ -826,15 +870,7 @@ public class GraphNode {
    * TODO(jlewi): Add a unittest.
    */
   public int degree(DNAStrand strand) {
-    int retval = 0;
-
-    StrandsForEdge fd = StrandsUtil.form(strand, DNAStrand.FORWARD);
-    retval += this.derived_data.getNeighborsForStrands(fd).size();
-
-    StrandsForEdge rd = StrandsUtil.form(strand, DNAStrand.REVERSE);
-    retval += this.derived_data.getNeighborsForStrands(rd).size();
-
-    return retval;
+    return derived_data.degree(strand, EdgeDirection.OUTGOING);
   }
 
   /**
@@ -1001,12 +1037,12 @@ public class GraphNode {
     ti.direction = tail_dir;
 
 
-    List<EdgeTerminal> terminals = getEdgeTerminals(dir, tail_dir);
-    if (terminals.size() != 1) {
+    EdgeTerminal terminal = derived_data.getOnlyTerminal(dir, tail_dir);
+    if (terminal == null) {
       // No tail because degree isn't 1.
       return null;
     }
-    ti.terminal = terminals.get(0);
+    ti.terminal = terminal;
     return ti;
   }
 
@@ -1019,9 +1055,9 @@ public class GraphNode {
    * @return
    */
   public boolean hasSelfCycle() {
-    Set<EdgeTerminal> terminals = getEdgeTerminalsSet(
-        DNAStrand.FORWARD, EdgeDirection.OUTGOING);
-    return terminals.contains(new EdgeTerminal(getNodeId(), DNAStrand.FORWARD));
+    return derived_data.hasTerminal(
+        DNAStrand.FORWARD, EdgeDirection.OUTGOING,
+        new EdgeTerminal(getNodeId(), DNAStrand.FORWARD));
   }
 
   /**
@@ -1033,11 +1069,9 @@ public class GraphNode {
   public boolean hasConnectedStrands() {
     // We need to check both strands.
     for (DNAStrand strand : DNAStrand.values()) {
-      Set<EdgeTerminal> terminals = getEdgeTerminalsSet(
-          strand, EdgeDirection.OUTGOING);
       EdgeTerminal other = new EdgeTerminal(
           getNodeId(), DNAStrandUtil.flip(strand));
-      if (terminals.contains(other)) {
+      if (derived_data.hasTerminal(strand, EdgeDirection.OUTGOING, other)) {
         return true;
       }
     }
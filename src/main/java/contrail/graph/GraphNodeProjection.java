@@ -0,0 +1,153 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.graph;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.apache.avro.Schema;
+import org.codehaus.jackson.node.NullNode;
+
+import contrail.sequences.CompressedSequence;
+
+/**
+ * Create reader schemas which project GraphNodeData onto the fields a
+ * stage actually uses.
+ *
+ * A stage which only needs, e.g, the length, coverage and degree of the
+ * nodes can pass a projected schema to AvroJob.setInputSchema. Avro then
+ * skips the other fields when decoding the records instead of
+ * materializing them; the skipped fields are null in the GraphNodeData.
+ * In particular, the read tags on the edges usually account for most of
+ * the bytes in a graph.
+ *
+ * The specific records set their fields by position in the reader schema.
+ * Therefore, we don't remove a skipped field; we replace it with a field of
+ * type null which doesn't exist in the writer's schema, so Avro uses the
+ * default value, null, and the positions of the other fields don't change.
+ *
+ * Stages reading a projection must not write the nodes back out as the
+ * skipped fields would be lost.
+ */
+public class GraphNodeProjection {
+  /**
+   * The parts of the node which can be skipped.
+   */
+  public enum Field {
+    // The mertag of the node.
+    MERTAG,
+    // The bases of the sequence; the length of the sequence is kept.
+    SEQUENCE_BASES,
+    // All of the neighbors and edges.
+    NEIGHBORS,
+    // The read tags for the edges; the strands of the edges are kept.
+    EDGE_READ_TAGS,
+    // The R5Tags.
+    R5_TAGS,
+  }
+
+  // Suffix for the names of the fields replacing skipped fields. The names
+  // must not exist in the writer's schema.
+  private static final String SKIPPED_SUFFIX = "_skipped";
+
+  private static Schema.Field copyField(Schema.Field field, Schema schema) {
+    return new Schema.Field(
+        field.name(), schema, field.doc(), field.defaultValue());
+  }
+
+  /**
+   * Create a copy of a record schema in which some fields are replaced.
+   *
+   * @param record: The schema for the record.
+   * @param skipped: The names of the fields to skip.
+   * @param replacements: The names and schemas of fields whose schema
+   *   should be replaced, e.g. by a projection of a nested record.
+   */
+  private static Schema projectRecord(
+      Schema record, List<String> skipped, List<Schema.Field> replacements) {
+    Schema projection = Schema.createRecord(
+        record.getName(), record.getDoc(), record.getNamespace(),
+        record.isError());
+    ArrayList<Schema.Field> fields = new ArrayList<Schema.Field>();
+    for (Schema.Field field : record.getFields()) {
+      if (skipped.contains(field.name())) {
+        fields.add(new Schema.Field(
+            field.name() + SKIPPED_SUFFIX, Schema.create(Schema.Type.NULL),
+            "Skipped field.", NullNode.getInstance()));
+        continue;
+      }
+      Schema.Field newField = null;
+      for (Schema.Field replacement : replacements) {
+        if (replacement.name().equals(field.name())) {
+          newField = copyField(field, replacement.schema());
+        }
+      }
+      if (newField == null) {
+        newField = copyField(field, field.schema());
+      }
+      fields.add(newField);
+    }
+    projection.setFields(fields);
+    return projection;
+  }
+
+  /**
+   * Create the reader schema for GraphNodeData.
+   *
+   * @param skip: The parts of the node to skip.
+   * @return: The schema. If skip is empty this is the schema of
+   *   GraphNodeData.
+   */
+  public static Schema createSchema(EnumSet<Field> skip) {
+    if (skip.isEmpty()) {
+      return GraphNodeData.SCHEMA$;
+    }
+    List<String> skipped = new ArrayList<String>();
+    List<Schema.Field> replacements = new ArrayList<Schema.Field>();
+
+    if (skip.contains(Field.MERTAG)) {
+      skipped.add("mertag");
+    }
+    if (skip.contains(Field.R5_TAGS)) {
+      skipped.add("r5_tags");
+    }
+    if (skip.contains(Field.SEQUENCE_BASES)) {
+      List<String> sequenceSkipped = new ArrayList<String>();
+      sequenceSkipped.add("dna");
+      Schema sequence = projectRecord(
+          CompressedSequence.SCHEMA$, sequenceSkipped,
+          new ArrayList<Schema.Field>());
+      replacements.add(new Schema.Field("sequence", sequence, null, null));
+    }
+    if (skip.contains(Field.NEIGHBORS)) {
+      skipped.add("neighbors");
+    } else if (skip.contains(Field.EDGE_READ_TAGS)) {
+      List<String> edgeSkipped = new ArrayList<String>();
+      edgeSkipped.add("read_tags");
+      Schema edge = projectRecord(
+          EdgeData.SCHEMA$, edgeSkipped, new ArrayList<Schema.Field>());
+
+      List<Schema.Field> neighborReplacements = new ArrayList<Schema.Field>();
+      neighborReplacements.add(
+          new Schema.Field("edges", Schema.createArray(edge), null, null));
+      Schema neighbor = projectRecord(
+          NeighborData.SCHEMA$, new ArrayList<String>(), neighborReplacements);
+
+      replacements.add(new Schema.Field(
+          "neighbors", Schema.createArray(neighbor), null, null));
+    }
+    return projectRecord(GraphNodeData.SCHEMA$, skipped, replacements);
+  }
+}
@@ -40,6 +40,7 @@ import org.apache.hadoop.fs.Path;
 import contrail.sequences.DNAStrand;
 import contrail.sequences.DNAUtil;
 import contrail.sequences.Sequence;
+import contrail.sequences.SequenceView;
 import contrail.tools.CreateGraphIndex;
 import contrail.util.ContrailLogger;
 
@@ -59,8 +60,12 @@ public class GraphUtil {
    */
   public static boolean checkOverlap(
       Sequence src, Sequence dest, int overlap) {
-    Sequence srcSuffix = src.subSequence(src.size() - overlap, src.size());
-    Sequence destPrefix = dest.subSequence(0, overlap);
+    if (src.size() < overlap || dest.size() < overlap) {
+      return false;
+    }
+    SequenceView srcSuffix = new SequenceView(
+        src, src.size() - overlap, src.size());
+    SequenceView destPrefix = new SequenceView(dest, 0, overlap);
     return srcSuffix.equals(destPrefix);
   }
 
@@ -270,8 +275,8 @@ public class GraphUtil {
       // Iterate over all the edges
       for (DNAStrand strand: DNAStrand.values()) {
         Sequence sequence = DNAUtil.sequenceToDir(node.getSequence(), strand);
-        Sequence srcOverlap = sequence.subSequence(
-            sequence.size() - K + 1, sequence.size());
+        SequenceView srcOverlap = new SequenceView(
+            sequence, sequence.size() - K + 1, sequence.size());
         for (EdgeTerminal terminal:
              node.getEdgeTerminals(strand, EdgeDirection.OUTGOING)) {
           if (!nodes.containsKey(terminal.nodeId)) {
@@ -290,7 +295,8 @@ public class GraphUtil {
           GraphNode otherNode = nodes.get(terminal.nodeId);
           Sequence otherSequence = DNAUtil.sequenceToDir(
               otherNode.getSequence(), terminal.strand);
-          Sequence otherOverlap = otherSequence.subSequence(0, K - 1);
+          SequenceView otherOverlap = new SequenceView(
+              otherSequence, 0, K - 1);
           // Check the overlap.
           if (!srcOverlap.equals(otherOverlap)) {
             GraphError error = new GraphError();
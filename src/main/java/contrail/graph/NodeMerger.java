@@ -31,6 +31,7 @@ import contrail.sequences.DNAStrand;
 import contrail.sequences.DNAStrandUtil;
 import contrail.sequences.DNAUtil;
 import contrail.sequences.Sequence;
+import contrail.sequences.SequenceView;
 
 /**
  * A class for merging chains of nodes.
@@ -145,9 +146,11 @@ public class NodeMerger {
 
         // For all but the first node we truncate the first overlap bases
         // because these bases overlap with the suffix of mergedSequence.
-        nonOverlap = nonOverlap.subSequence(overlap, nonOverlap.size());
+        mergedSequence.add(
+            new SequenceView(nonOverlap, overlap, nonOverlap.size()));
+      } else {
+        mergedSequence.add(nonOverlap);
       }
-      mergedSequence.add(nonOverlap);
 
       // Align the R5Tags.
       List<R5Tag> tags = node.getData().getR5Tags();
@@ -0,0 +1,58 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.graph.engine;
+
+import org.apache.avro.mapred.AvroKey;
+import org.apache.avro.mapred.AvroValue;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Partitioner;
+
+/**
+ * Partition the graph by hashing the node ids.
+ *
+ * A graph which is partitioned and sorted by PartitionGraph can be joined
+ * with messages which are partitioned the same way without shuffling the
+ * graph. The number of partitions must be the same for the graph and the
+ * messages.
+ */
+public class GraphPartitioner<V>
+    implements Partitioner<AvroKey<CharSequence>, AvroValue<V>> {
+  /**
+   * Returns the partition for the node.
+   */
+  public static int getPartition(CharSequence nodeId, int numPartitions) {
+    return (nodeId.toString().hashCode() & Integer.MAX_VALUE) % numPartitions;
+  }
+
+  /**
+   * Compare node ids in the order the keys are sorted by the shuffle.
+   *
+   * Avro sorts strings by comparing their utf8 bytes. Node ids are ascii so
+   * this is the same as comparing the strings.
+   */
+  public static int compareNodeIds(CharSequence left, CharSequence right) {
+    return left.toString().compareTo(right.toString());
+  }
+
+  @Override
+  public void configure(JobConf job) {
+    // Nothing to configure.
+  }
+
+  @Override
+  public int getPartition(
+      AvroKey<CharSequence> key, AvroValue<V> value, int numPartitions) {
+    return getPartition(key.datum(), numPartitions);
+  }
+}
@@ -0,0 +1,311 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.graph.engine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.avro.Schema;
+import org.apache.avro.specific.SpecificData;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.log4j.Logger;
+
+import contrail.graph.GraphNodeData;
+
+/**
+ * Run a vertex program on a graph which fits in memory.
+ *
+ * The nodes are split into numThreads partitions by hashing the node id.
+ * In each superstep a thread runs compute for the nodes in one partition.
+ * The messages are buffered by the thread which sent them and combined if
+ * the program has a combiner, then delivered to the partitions before the
+ * next superstep.
+ */
+public class InMemoryVertexEngine<M> {
+  private static final Logger sLogger =
+      Logger.getLogger(InMemoryVertexEngine.class);
+
+  private final VertexProgram<M> program;
+  private final JobConf job;
+  private final int numThreads;
+
+  // The counters keyed by group and then tag.
+  private final HashMap<String, HashMap<String, Long>> counters;
+
+  /**
+   * @param program: The program to run. Each thread uses a new instance of
+   *   the same class.
+   * @param job: The configuration containing the parameters for the
+   *   program.
+   * @param numThreads: The number of threads to use.
+   */
+  public InMemoryVertexEngine(
+      VertexProgram<M> program, JobConf job, int numThreads) {
+    if (numThreads <= 0) {
+      throw new IllegalArgumentException(
+          "The number of threads must be positive.");
+    }
+    this.program = program;
+    this.job = job;
+    this.numThreads = numThreads;
+    counters = new HashMap<String, HashMap<String, Long>>();
+  }
+
+  /**
+   * Returns the value of the counter or 0 if it was never incremented.
+   */
+  public long getCounter(String group, String tag) {
+    HashMap<String, Long> groupCounters = counters.get(group);
+    if (groupCounters == null || !groupCounters.containsKey(tag)) {
+      return 0;
+    }
+    return groupCounters.get(tag);
+  }
+
+  private static void incrCounter(
+      HashMap<String, HashMap<String, Long>> counters, String group,
+      String tag, long amount) {
+    HashMap<String, Long> groupCounters = counters.get(group);
+    if (groupCounters == null) {
+      groupCounters = new HashMap<String, Long>();
+      counters.put(group, groupCounters);
+    }
+    Long value = groupCounters.get(tag);
+    groupCounters.put(tag, (value == null ? 0 : value) + amount);
+  }
+
+  @SuppressWarnings("unchecked")
+  private VertexProgram<M> newProgram() {
+    VertexProgram<M> instance;
+    try {
+      instance = program.getClass().newInstance();
+    } catch (InstantiationException e) {
+      throw new RuntimeException(
+          "Couldn't create the program: " + program.getClass().getName(), e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(
+          "Couldn't create the program: " + program.getClass().getName(), e);
+    }
+    instance.configure(job);
+    return instance;
+  }
+
+  private int getPartition(String nodeId) {
+    return GraphPartitioner.getPartition(nodeId, numThreads);
+  }
+
+  /**
+   * Add the message to the messages for the node, combining it with the
+   * existing message if there is a combiner.
+   */
+  private static <M> void addMessage(
+      Map<String, List<M>> messages, MessageCombiner<M> combiner,
+      String nodeId, M message) {
+    List<M> nodeMessages = messages.get(nodeId);
+    if (nodeMessages == null) {
+      nodeMessages = new ArrayList<M>(1);
+      messages.put(nodeId, nodeMessages);
+    }
+    if (combiner != null && nodeMessages.size() == 1) {
+      nodeMessages.set(0, combiner.combine(nodeMessages.get(0), message));
+    } else {
+      nodeMessages.add(message);
+    }
+  }
+
+  /**
+   * Computes a superstep for one partition.
+   */
+  private class PartitionComputation extends VertexComputation<M>
+      implements Callable<Long> {
+    private final Map<String, GraphNodeData> nodes;
+    private final Schema messageSchema;
+    private final MessageCombiner<M> combiner;
+
+    // The messages sent by this partition for each partition.
+    private final ArrayList<HashMap<String, List<M>>> outbox;
+    private final HashMap<String, HashMap<String, Long>> partitionCounters;
+
+    private int superstep;
+    private Map<String, List<M>> inbox;
+    private long numSent;
+
+    public PartitionComputation(Map<String, GraphNodeData> nodes) {
+      super(newProgram());
+      this.nodes = nodes;
+      messageSchema = getProgram().getMessageSchema();
+      combiner = getProgram().getCombiner();
+      outbox = new ArrayList<HashMap<String, List<M>>>();
+      for (int i = 0; i < numThreads; ++i) {
+        outbox.add(new HashMap<String, List<M>>());
+      }
+      partitionCounters = new HashMap<String, HashMap<String, Long>>();
+    }
+
+    public void setSuperstep(int superstep, Map<String, List<M>> inbox) {
+      this.superstep = superstep;
+      this.inbox = inbox;
+      for (HashMap<String, List<M>> messages : outbox) {
+        messages.clear();
+      }
+      numSent = 0;
+    }
+
+    public Map<String, List<M>> getOutbox(int partition) {
+      return outbox.get(partition);
+    }
+
+    public HashMap<String, HashMap<String, Long>> getCounters() {
+      return partitionCounters;
+    }
+
+    private void computeNode(String nodeId, List<M> messages)
+        throws IOException {
+      GraphNodeData node = compute(
+          superstep, nodeId, nodes.get(nodeId), messages);
+      if (node == null) {
+        nodes.remove(nodeId);
+      } else {
+        nodes.put(nodeId, node);
+      }
+    }
+
+    /**
+     * Returns the number of messages sent.
+     */
+    @Override
+    public Long call() throws IOException {
+      if (superstep == 0) {
+        List<M> noMessages = Collections.emptyList();
+        // Copy the ids because compute can remove nodes.
+        for (String nodeId : new ArrayList<String>(nodes.keySet())) {
+          computeNode(nodeId, noMessages);
+        }
+      } else {
+        for (Map.Entry<String, List<M>> entry : inbox.entrySet()) {
+          computeNode(entry.getKey(), entry.getValue());
+        }
+      }
+      return numSent;
+    }
+
+    @Override
+    public void sendMessage(CharSequence nodeId, M message) {
+      String targetId = nodeId.toString();
+      M copy = SpecificData.get().deepCopy(messageSchema, message);
+      addMessage(
+          outbox.get(getPartition(targetId)), combiner, targetId, copy);
+      ++numSent;
+    }
+
+    @Override
+    public void incrCounter(String group, String tag, long amount) {
+      InMemoryVertexEngine.incrCounter(
+          partitionCounters, group, tag, amount);
+    }
+  }
+
+  /**
+   * Run the program.
+   *
+   * @param nodes: The graph keyed by node id. The program may modify the
+   *   nodes.
+   * @return: The graph after running the program.
+   */
+  public Map<String, GraphNodeData> run(Map<String, GraphNodeData> nodes) {
+    counters.clear();
+    ArrayList<PartitionComputation> partitions =
+        new ArrayList<PartitionComputation>();
+    for (int i = 0; i < numThreads; ++i) {
+      partitions.add(
+          new PartitionComputation(new HashMap<String, GraphNodeData>()));
+    }
+    for (Map.Entry<String, GraphNodeData> entry : nodes.entrySet()) {
+      partitions.get(getPartition(entry.getKey())).nodes.put(
+          entry.getKey(), entry.getValue());
+    }
+
+    MessageCombiner<M> combiner = program.getCombiner();
+    ArrayList<HashMap<String, List<M>>> inboxes =
+        new ArrayList<HashMap<String, List<M>>>();
+    for (int i = 0; i < numThreads; ++i) {
+      inboxes.add(new HashMap<String, List<M>>());
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      for (int superstep = 0; superstep < program.getMaxSupersteps();
+           ++superstep) {
+        ArrayList<Future<Long>> futures = new ArrayList<Future<Long>>();
+        for (int i = 0; i < numThreads; ++i) {
+          partitions.get(i).setSuperstep(superstep, inboxes.get(i));
+          futures.add(executor.submit(partitions.get(i)));
+        }
+        long numSent = 0;
+        for (Future<Long> future : futures) {
+          numSent += future.get();
+        }
+        sLogger.info(String.format(
+            "Superstep %d: number of messages sent %d", superstep, numSent));
+
+        // Deliver the messages.
+        for (int target = 0; target < numThreads; ++target) {
+          HashMap<String, List<M>> inbox = inboxes.get(target);
+          inbox.clear();
+          for (PartitionComputation source : partitions) {
+            for (Map.Entry<String, List<M>> entry :
+                 source.getOutbox(target).entrySet()) {
+              for (M message : entry.getValue()) {
+                addMessage(inbox, combiner, entry.getKey(), message);
+              }
+            }
+          }
+        }
+        if (numSent == 0) {
+          break;
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException("The vertex program was interrupted.", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(
+          "The vertex program failed.", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+
+    HashMap<String, GraphNodeData> output =
+        new HashMap<String, GraphNodeData>();
+    for (PartitionComputation partition : partitions) {
+      output.putAll(partition.nodes);
+      for (Map.Entry<String, HashMap<String, Long>> group :
+           partition.getCounters().entrySet()) {
+        for (Map.Entry<String, Long> counter : group.getValue().entrySet()) {
+          incrCounter(
+              counters, group.getKey(), counter.getKey(), counter.getValue());
+        }
+      }
+    }
+    return output;
+  }
+}
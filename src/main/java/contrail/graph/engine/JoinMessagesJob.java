@@ -0,0 +1,321 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.graph.engine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.mapred.AvroMapper;
+import org.apache.avro.mapred.Pair;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+
+import contrail.graph.GraphNodeData;
+import contrail.stages.ContrailParameters;
+import contrail.stages.GraphCounters.CounterName;
+import contrail.stages.MRStage;
+import contrail.stages.ParameterDefinition;
+
+/**
+ * Join the messages output by SendMessagesJob with a partitioned graph and
+ * compute superstep 1 of a vertex program.
+ *
+ * This is a map only job. The graph must be partitioned and sorted by
+ * PartitionGraph with the same number of partitions as the messages. Each
+ * mapper reads one partition of the graph and streams through the file of
+ * messages for that partition, so neither the graph nor the messages are
+ * shuffled. The mapper computes superstep 0 again for each node to get the
+ * changes to the node; the messages and counters from superstep 0 were
+ * already output by SendMessagesJob. So the program must be deterministic
+ * and have two supersteps.
+ *
+ * Messages sent to nodes which aren't in the graph are delivered with a
+ * null node, the same as the other engines. The messages are sorted, so
+ * these nodes are computed as the mapper streams past them and the output
+ * stays sorted.
+ *
+ * The output is partitioned and sorted the same way as the input graph so
+ * it can be the input of the next stage without partitioning it again.
+ *
+ * A mapper gets its partition from its first node, so a partition of the
+ * graph with no nodes is never joined with its messages. Those messages can
+ * only be for nodes which aren't in the graph; they are lost.
+ */
+public class JoinMessagesJob extends MRStage {
+  public final static CounterName NUM_MISSING_NODES =
+      new CounterName("Contrail", "vertex-program-missing-nodes");
+
+  // The definitions for the program's parameters.
+  private final Map<String, ParameterDefinition> programDefinitions;
+
+  /**
+   * @param program: The program to run. This is used to get the definitions
+   *   of the program's parameters.
+   */
+  public JoinMessagesJob(VertexProgram<?> program) {
+    programDefinitions = program.getParameterDefinitions();
+  }
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+    defs.putAll(super.createParameterDefinitions());
+    defs.putAll(programDefinitions);
+    for (ParameterDefinition def:
+      ContrailParameters.getInputOutputPathOptions()) {
+      defs.put(def.getName(), def);
+    }
+    for (ParameterDefinition def : getJobDefinitions()) {
+      defs.put(def.getName(), def);
+    }
+    return Collections.unmodifiableMap(defs);
+  }
+
+  private static List<ParameterDefinition> getJobDefinitions() {
+    ArrayList<ParameterDefinition> defs = new ArrayList<ParameterDefinition>();
+    defs.add(new ParameterDefinition(
+        "vertex_program", "The name of the VertexProgram class.",
+        String.class, null));
+    defs.add(new ParameterDefinition(
+        "messages_path", "The directory containing the output of " +
+        "SendMessagesJob.", String.class, null));
+    defs.add(PartitionGraph.getNumPartitionsDefinition());
+    return defs;
+  }
+
+  private static Object parseJobConf(JobConf job, String name) {
+    for (ParameterDefinition def : getJobDefinitions()) {
+      if (def.getName().equals(name)) {
+        return def.parseJobConf(job);
+      }
+    }
+    throw new IllegalArgumentException("Unknown parameter: " + name);
+  }
+
+  /**
+   * A computation which drops the messages because they are sent in the
+   * last superstep.
+   */
+  private static class JoinComputation<M> extends VertexComputation<M> {
+    private Reporter reporter;
+
+    public JoinComputation(VertexProgram<M> program) {
+      super(program);
+    }
+
+    /**
+     * Set the reporter for the counters. If reporter is null the counters
+     * are dropped.
+     */
+    public void setReporter(Reporter reporter) {
+      this.reporter = reporter;
+    }
+
+    @Override
+    public void sendMessage(CharSequence nodeId, M message) {
+      // The messages sent in the last superstep are dropped.
+    }
+
+    @Override
+    public void incrCounter(String group, String tag, long amount) {
+      if (reporter != null) {
+        reporter.incrCounter(group, tag, amount);
+      }
+    }
+  }
+
+  public static class JoinMapper
+      extends AvroMapper<GraphNodeData, GraphNodeData> {
+    private JobConf job;
+    private JoinComputation<Object> computation;
+    private int numPartitions;
+    private ArrayList<Object> nodeMessages;
+    private List<Object> noMessages;
+
+    // The partition of the graph read by this mapper. This is set when we
+    // see the first node.
+    private int partition;
+    private Iterator<Pair<CharSequence, Object>> messages;
+    private Pair<CharSequence, Object> nextMessage;
+    private String lastNodeId;
+    private AvroCollector<GraphNodeData> lastCollector;
+    private Reporter lastReporter;
+
+    @Override
+    public void configure(JobConf job) {
+      this.job = job;
+      computation = new JoinComputation<Object>(
+          VertexProgramJob.createProgram(job));
+      numPartitions = (Integer) parseJobConf(job, "num_partitions");
+      nodeMessages = new ArrayList<Object>();
+      noMessages = Collections.emptyList();
+      partition = -1;
+      messages = null;
+      nextMessage = null;
+      lastNodeId = null;
+    }
+
+    /**
+     * Open the messages for the partition. The messages must be sorted by
+     * the id of the node they are sent to.
+     */
+    protected Iterator<Pair<CharSequence, Object>> openMessages(
+        JobConf job, int partition) throws IOException {
+      String messagesPath = (String) parseJobConf(job, "messages_path");
+      Path path = new Path(
+          messagesPath, String.format("part-%05d.avro", partition));
+      FileSystem fs = path.getFileSystem(job);
+      Schema schema = SendMessagesJob.createMessagesSchema(
+          computation.getProgram().getMessageSchema());
+      return new DataFileStream<Pair<CharSequence, Object>>(
+          fs.open(path),
+          new SpecificDatumReader<Pair<CharSequence, Object>>(schema));
+    }
+
+    private void advanceMessages() {
+      nextMessage = messages.hasNext() ? messages.next() : null;
+    }
+
+    /**
+     * Compute superstep 1 for the nodes which have messages but aren't in
+     * the graph. This handles the messages to ids before endId; if endId is
+     * null all the remaining messages are handled.
+     */
+    private void computeMissingNodes(
+        String endId, AvroCollector<GraphNodeData> collector,
+        Reporter reporter) throws IOException {
+      computation.setReporter(reporter);
+      while (nextMessage != null && (endId == null ||
+             GraphPartitioner.compareNodeIds(nextMessage.key(), endId) < 0)) {
+        String nodeId = nextMessage.key().toString();
+        nodeMessages.clear();
+        while (nextMessage != null &&
+               nextMessage.key().toString().equals(nodeId)) {
+          nodeMessages.add(nextMessage.value());
+          advanceMessages();
+        }
+        reporter.incrCounter(
+            NUM_MISSING_NODES.group, NUM_MISSING_NODES.tag, 1);
+        GraphNodeData node = computation.compute(
+            1, nodeId, null, nodeMessages);
+        if (node != null) {
+          collector.collect(node);
+        }
+      }
+    }
+
+    /**
+     * Check the node is in the right partition and order.
+     */
+    private void checkNodeId(String nodeId) throws IOException {
+      if (GraphPartitioner.getPartition(nodeId, numPartitions) != partition) {
+        throw new IOException(String.format(
+            "Node %s isn't in partition %d. The graph must be partitioned " +
+            "by PartitionGraph with %d partitions.", nodeId, partition,
+            numPartitions));
+      }
+      if (lastNodeId != null &&
+          GraphPartitioner.compareNodeIds(lastNodeId, nodeId) >= 0) {
+        throw new IOException(String.format(
+            "The graph isn't sorted by node id. Node %s came after node %s.",
+            nodeId, lastNodeId));
+      }
+      lastNodeId = nodeId;
+    }
+
+    @Override
+    public void map(GraphNodeData input,
+        AvroCollector<GraphNodeData> collector, Reporter reporter)
+            throws IOException {
+      lastCollector = collector;
+      lastReporter = reporter;
+      String nodeId = input.getNodeId().toString();
+      if (partition < 0) {
+        partition = GraphPartitioner.getPartition(nodeId, numPartitions);
+        messages = openMessages(job, partition);
+        advanceMessages();
+      }
+      checkNodeId(nodeId);
+
+      // Merge the messages with the graph. Both are sorted by node id.
+      computeMissingNodes(nodeId, collector, reporter);
+      nodeMessages.clear();
+      while (nextMessage != null &&
+             GraphPartitioner.compareNodeIds(nextMessage.key(), nodeId) == 0) {
+        nodeMessages.add(nextMessage.value());
+        advanceMessages();
+      }
+
+      // Compute superstep 0 again to get the changes to the node. The
+      // messages and counters were output by SendMessagesJob.
+      computation.setReporter(null);
+      GraphNodeData node = computation.compute(0, nodeId, input, noMessages);
+      if (nodeMessages.size() > 0) {
+        computation.setReporter(reporter);
+        node = computation.compute(1, nodeId, node, nodeMessages);
+      }
+      if (node != null) {
+        collector.collect(node);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (messages == null) {
+        return;
+      }
+      // The remaining messages are for nodes after the last node in the
+      // partition.
+      computeMissingNodes(null, lastCollector, lastReporter);
+      if (messages instanceof Closeable) {
+        ((Closeable) messages).close();
+      }
+    }
+  }
+
+  @Override
+  protected void setupConfHook() {
+    JobConf conf = (JobConf) getConf();
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    FileInputFormat.addInputPath(conf, new Path(inputPath));
+    FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+    Schema graphSchema = new GraphNodeData().getSchema();
+    AvroJob.setInputSchema(conf, graphSchema);
+    AvroJob.setOutputSchema(conf, graphSchema);
+    AvroJob.setMapperClass(conf, JoinMapper.class);
+    // Each mapper must read a whole partition.
+    conf.setInputFormat(SortedGraphInputFormat.class);
+
+    // This is a mapper only job.
+    conf.setNumReduceTasks(0);
+  }
+}
@@ -0,0 +1,30 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.graph.engine;
+
+/**
+ * Combine the messages sent to the same node.
+ *
+ * The engine may combine the messages in any order and any number of times
+ * so combine should be commutative and associative. With MapReduce the
+ * combiner runs on the map side so fewer messages are shuffled.
+ *
+ * @param <M>: The type of the messages.
+ */
+public interface MessageCombiner<M> {
+  /**
+   * Combine two messages into one. The result can be one of the inputs.
+   */
+  M combine(M left, M right);
+}
@@ -0,0 +1,151 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.graph.engine;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.mapred.AvroMapper;
+import org.apache.avro.mapred.AvroReducer;
+import org.apache.avro.mapred.Pair;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ToolRunner;
+
+import contrail.graph.GraphNodeData;
+import contrail.stages.ContrailParameters;
+import contrail.stages.MRStage;
+import contrail.stages.ParameterDefinition;
+
+/**
+ * Partition the graph by node id and sort each partition.
+ *
+ * The output has one file per partition and the nodes in each file are
+ * sorted by node id. Stages which send messages can then join the messages
+ * with the graph without shuffling the graph; see JoinMessagesJob.
+ */
+public class PartitionGraph extends MRStage {
+  /**
+   * Returns the definition of the number of partitions. This is shared with
+   * the jobs which use the partitioned graph.
+   */
+  public static ParameterDefinition getNumPartitionsDefinition() {
+    return new ParameterDefinition(
+        "num_partitions", "The number of partitions of the graph. Jobs " +
+        "which join messages with a partitioned graph must use the same " +
+        "number of partitions.", Integer.class, null);
+  }
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+    defs.putAll(super.createParameterDefinitions());
+    for (ParameterDefinition def:
+      ContrailParameters.getInputOutputPathOptions()) {
+      defs.put(def.getName(), def);
+    }
+    ParameterDefinition numPartitions = getNumPartitionsDefinition();
+    defs.put(numPartitions.getName(), numPartitions);
+    return Collections.unmodifiableMap(defs);
+  }
+
+  @Override
+  public List<InvalidParameter> validateParameters() {
+    List<InvalidParameter> items = super.validateParameters();
+    Integer numPartitions = (Integer) stage_options.get("num_partitions");
+    if (numPartitions == null || numPartitions <= 0) {
+      items.add(new InvalidParameter(
+          "num_partitions", "num_partitions must be positive."));
+    }
+    return items;
+  }
+
+  /**
+   * Key the nodes by their id.
+   */
+  public static class PartitionMapper extends
+      AvroMapper<GraphNodeData, Pair<CharSequence, GraphNodeData>> {
+    private Pair<CharSequence, GraphNodeData> outPair;
+
+    @Override
+    public void configure(JobConf job) {
+      outPair = new Pair<CharSequence, GraphNodeData>(
+          "", new GraphNodeData());
+    }
+
+    @Override
+    public void map(GraphNodeData input,
+        AvroCollector<Pair<CharSequence, GraphNodeData>> collector,
+        Reporter reporter) throws IOException {
+      outPair.key(input.getNodeId());
+      outPair.value(input);
+      collector.collect(outPair);
+    }
+  }
+
+  /**
+   * Output the nodes. The reducer gets the nodes sorted by id.
+   */
+  public static class PartitionReducer extends
+      AvroReducer<CharSequence, GraphNodeData, GraphNodeData> {
+    @Override
+    public void reduce(CharSequence nodeId, Iterable<GraphNodeData> nodes,
+        AvroCollector<GraphNodeData> collector, Reporter reporter)
+            throws IOException {
+      Iterator<GraphNodeData> it = nodes.iterator();
+      collector.collect(it.next());
+      if (it.hasNext()) {
+        throw new IOException(
+            "ERROR: Saw multiple nodes for nodeId: " + nodeId);
+      }
+    }
+  }
+
+  @Override
+  protected void setupConfHook() {
+    JobConf conf = (JobConf) getConf();
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    FileInputFormat.addInputPath(conf, new Path(inputPath));
+    FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+    Schema graphSchema = new GraphNodeData().getSchema();
+    AvroJob.setInputSchema(conf, graphSchema);
+    AvroJob.setMapOutputSchema(conf, Pair.getPairSchema(
+        Schema.create(Schema.Type.STRING), graphSchema));
+    AvroJob.setOutputSchema(conf, graphSchema);
+    AvroJob.setMapperClass(conf, PartitionMapper.class);
+    AvroJob.setReducerClass(conf, PartitionReducer.class);
+
+    conf.setPartitionerClass(GraphPartitioner.class);
+    conf.setNumReduceTasks((Integer) stage_options.get("num_partitions"));
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(), new PartitionGraph(), args);
+    System.exit(res);
+  }
+}
@@ -0,0 +1,222 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.graph.engine;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.mapred.AvroMapper;
+import org.apache.avro.mapred.AvroReducer;
+import org.apache.avro.mapred.Pair;
+import org.apache.avro.specific.SpecificData;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+
+import contrail.graph.GraphNodeData;
+import contrail.stages.ContrailParameters;
+import contrail.stages.MRStage;
+import contrail.stages.ParameterDefinition;
+
+/**
+ * Compute superstep 0 of a vertex program and output only the messages.
+ *
+ * The nodes aren't output so only the messages are shuffled. The messages
+ * are partitioned the same way as PartitionGraph partitions the graph so
+ * the file for each partition holds the messages for the same partition of
+ * the graph, sorted by the id of the node they are sent to. The changes to
+ * the nodes are computed again when JoinMessagesJob joins the messages with
+ * the graph.
+ */
+public class SendMessagesJob extends MRStage {
+  // The definitions for the program's parameters.
+  private final Map<String, ParameterDefinition> programDefinitions;
+
+  /**
+   * @param program: The program to run. This is used to get the definitions
+   *   of the program's parameters.
+   */
+  public SendMessagesJob(VertexProgram<?> program) {
+    programDefinitions = program.getParameterDefinitions();
+  }
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+    defs.putAll(super.createParameterDefinitions());
+    defs.putAll(programDefinitions);
+    for (ParameterDefinition def:
+      ContrailParameters.getInputOutputPathOptions()) {
+      defs.put(def.getName(), def);
+    }
+    ParameterDefinition program = new ParameterDefinition(
+        "vertex_program", "The name of the VertexProgram class.",
+        String.class, null);
+    ParameterDefinition numPartitions =
+        PartitionGraph.getNumPartitionsDefinition();
+    for (ParameterDefinition def :
+         new ParameterDefinition[] {program, numPartitions}) {
+      defs.put(def.getName(), def);
+    }
+    return Collections.unmodifiableMap(defs);
+  }
+
+  /**
+   * Returns the schema of the messages output by the job.
+   */
+  public static Schema createMessagesSchema(Schema messageSchema) {
+    return Pair.getPairSchema(
+        Schema.create(Schema.Type.STRING), messageSchema);
+  }
+
+  /**
+   * A computation which outputs the messages and drops the node.
+   */
+  private static class MessageComputation<M> extends VertexComputation<M> {
+    private final Pair<CharSequence, Object> outPair;
+    private AvroCollector<Pair<CharSequence, Object>> collector;
+    private Reporter reporter;
+
+    public MessageComputation(VertexProgram<M> program) {
+      super(program);
+      outPair = new Pair<CharSequence, Object>(
+          createMessagesSchema(program.getMessageSchema()));
+    }
+
+    public void setOutput(
+        AvroCollector<Pair<CharSequence, Object>> collector,
+        Reporter reporter) {
+      this.collector = collector;
+      this.reporter = reporter;
+    }
+
+    @Override
+    public void sendMessage(CharSequence nodeId, M message)
+        throws IOException {
+      reporter.incrCounter(
+          VertexProgramJob.NUM_MAP_MESSAGES.group,
+          VertexProgramJob.NUM_MAP_MESSAGES.tag, 1);
+      outPair.key(nodeId);
+      outPair.value(message);
+      collector.collect(outPair);
+    }
+
+    @Override
+    public void incrCounter(String group, String tag, long amount) {
+      reporter.incrCounter(group, tag, amount);
+    }
+  }
+
+  /**
+   * Compute superstep 0 for each node and output the messages.
+   */
+  public static class MessageMapper extends
+      AvroMapper<GraphNodeData, Pair<CharSequence, Object>> {
+    private MessageComputation<Object> computation;
+    private List<Object> noMessages;
+
+    @Override
+    public void configure(JobConf job) {
+      computation = new MessageComputation<Object>(
+          VertexProgramJob.createProgram(job));
+      noMessages = Collections.emptyList();
+    }
+
+    @Override
+    public void map(GraphNodeData input,
+        AvroCollector<Pair<CharSequence, Object>> collector,
+        Reporter reporter) throws IOException {
+      computation.setOutput(collector, reporter);
+      computation.compute(
+          0, input.getNodeId().toString(), input, noMessages);
+    }
+  }
+
+  /**
+   * Output the messages. The reducer gets the messages sorted by the id of
+   * the node they are sent to. If the program has a combiner the messages
+   * for each node are combined. This is also used as the combiner.
+   */
+  public static class MessageReducer extends
+      AvroReducer<CharSequence, Object, Pair<CharSequence, Object>> {
+    private MessageCombiner<Object> combiner;
+    private Schema messageSchema;
+    private Pair<CharSequence, Object> outPair;
+
+    @Override
+    public void configure(JobConf job) {
+      VertexProgram<Object> program = VertexProgramJob.createProgram(job);
+      combiner = program.getCombiner();
+      messageSchema = program.getMessageSchema();
+      outPair = new Pair<CharSequence, Object>(
+          createMessagesSchema(messageSchema));
+    }
+
+    @Override
+    public void reduce(CharSequence nodeId, Iterable<Object> messages,
+        AvroCollector<Pair<CharSequence, Object>> collector,
+        Reporter reporter) throws IOException {
+      outPair.key(nodeId);
+      if (combiner == null) {
+        for (Object message : messages) {
+          outPair.value(message);
+          collector.collect(outPair);
+        }
+        return;
+      }
+      Object combined = null;
+      for (Object message : messages) {
+        // Copy the message because avro reuses it.
+        message = SpecificData.get().deepCopy(messageSchema, message);
+        combined = (combined == null) ?
+            message : combiner.combine(combined, message);
+      }
+      outPair.value(combined);
+      collector.collect(outPair);
+    }
+  }
+
+  @Override
+  protected void setupConfHook() {
+    JobConf conf = (JobConf) getConf();
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    FileInputFormat.addInputPath(conf, new Path(inputPath));
+    FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+    VertexProgram<Object> program = VertexProgramJob.createProgram(conf);
+    Schema messagesSchema = createMessagesSchema(program.getMessageSchema());
+    AvroJob.setInputSchema(conf, new GraphNodeData().getSchema());
+    AvroJob.setMapOutputSchema(conf, messagesSchema);
+    AvroJob.setOutputSchema(conf, messagesSchema);
+    AvroJob.setMapperClass(conf, MessageMapper.class);
+    if (program.getCombiner() != null) {
+      AvroJob.setCombinerClass(conf, MessageReducer.class);
+    }
+    AvroJob.setReducerClass(conf, MessageReducer.class);
+
+    // Partition the messages the same way as the graph.
+    conf.setPartitionerClass(GraphPartitioner.class);
+    conf.setNumReduceTasks((Integer) stage_options.get("num_partitions"));
+  }
+}
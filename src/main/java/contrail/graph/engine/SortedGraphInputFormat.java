@@ -0,0 +1,32 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.graph.engine;
+
+import org.apache.avro.mapred.AvroInputFormat;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Read each file of a sorted graph in a single split.
+ *
+ * Each file output by PartitionGraph is one sorted partition of the graph.
+ * Not splitting the files means each mapper processes a whole partition so
+ * the output has the same number of files and is still sorted.
+ */
+public class SortedGraphInputFormat<T> extends AvroInputFormat<T> {
+  @Override
+  protected boolean isSplitable(FileSystem fs, Path filename) {
+    return false;
+  }
+}
@@ -0,0 +1,84 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.graph.engine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import contrail.graph.GraphNodeData;
+
+/**
+ * The logic shared by the engines for running compute on a single node.
+ *
+ * The engines subclass this to deliver the messages and counters.
+ */
+abstract class VertexComputation<M> implements VertexContext<M> {
+  private final VertexProgram<M> program;
+  private final MessageCombiner<M> combiner;
+  private final ArrayList<M> combined;
+  private GraphNodeData node;
+
+  public VertexComputation(VertexProgram<M> program) {
+    this.program = program;
+    combiner = program.getCombiner();
+    combined = new ArrayList<M>(1);
+  }
+
+  public VertexProgram<M> getProgram() {
+    return program;
+  }
+
+  /**
+   * Combine the messages into a single message using the combiner.
+   * Returns null if there are no messages.
+   */
+  public static <M> M combineAll(
+      MessageCombiner<M> combiner, Iterable<M> messages) {
+    M result = null;
+    for (M message : messages) {
+      result = (result == null) ? message : combiner.combine(result, message);
+    }
+    return result;
+  }
+
+  /**
+   * Run compute for the node.
+   *
+   * @return: The new value of the node or null if it was removed.
+   */
+  public GraphNodeData compute(
+      int superstep, String nodeId, GraphNodeData node, List<M> messages)
+          throws IOException {
+    this.node = node;
+    List<M> input = messages;
+    if (combiner != null && messages.size() > 1) {
+      combined.clear();
+      combined.add(combineAll(combiner, messages));
+      input = combined;
+    }
+    program.compute(superstep, nodeId, node, input, this);
+    return this.node;
+  }
+
+  @Override
+  public void setNode(GraphNodeData node) {
+    this.node = node;
+  }
+
+  @Override
+  public void removeNode() {
+    node = null;
+  }
+}
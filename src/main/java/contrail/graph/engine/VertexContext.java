@@ -0,0 +1,46 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.graph.engine;
+
+import java.io.IOException;
+
+import contrail.graph.GraphNodeData;
+
+/**
+ * The context passed to VertexProgram.compute.
+ *
+ * @param <M>: The type of the messages.
+ */
+public interface VertexContext<M> {
+  /**
+   * Send a message to a node. The message is delivered in the next
+   * superstep. The engine copies the message so it can be reused.
+   */
+  void sendMessage(CharSequence nodeId, M message) throws IOException;
+
+  /**
+   * Replace the node with this node.
+   */
+  void setNode(GraphNodeData node);
+
+  /**
+   * Remove the node from the graph.
+   */
+  void removeNode();
+
+  /**
+   * Increment a counter.
+   */
+  void incrCounter(String group, String tag, long amount);
+}
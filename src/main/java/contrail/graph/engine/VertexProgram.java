@@ -0,0 +1,112 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.graph.engine;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.hadoop.mapred.JobConf;
+
+import contrail.graph.GraphNodeData;
+import contrail.stages.ParameterDefinition;
+import contrail.stages.StageBase;
+
+/**
+ * A vertex centric program which runs on the graph in supersteps.
+ *
+ * Many of our stages follow the same pattern; the mapper looks at each node
+ * and sends messages to its neighbors and the reducer joins each node with
+ * the messages sent to it. A vertex program just implements compute and the
+ * engine takes care of routing the messages. The same program can be run
+ * with MapReduce (VertexProgramJob) or in memory (InMemoryVertexEngine).
+ *
+ * In superstep 0, compute is called for every node with no messages. In
+ * later supersteps, compute is only called for the nodes which were sent
+ * messages in the previous superstep; all other nodes are unchanged. The
+ * program stops after getMaxSupersteps supersteps or when no messages are
+ * sent. Messages sent in the last superstep are dropped.
+ *
+ * Programs are created using the no argument constructor and configured
+ * by calling configure. The in memory engine uses a separate instance for
+ * each thread so a program can reuse objects between calls to compute.
+ *
+ * @param <M>: The type of the messages. This should be an avro record.
+ */
+public abstract class VertexProgram<M> {
+  /**
+   * Returns the definitions for the parameters the program takes.
+   */
+  public Map<String, ParameterDefinition> getParameterDefinitions() {
+    return new HashMap<String, ParameterDefinition>();
+  }
+
+  /**
+   * Returns a stage whose validateParameters checks the parameters of the
+   * program or null if the parameters don't need to be checked. This lets
+   * a program reuse the validation of the stage it replaces.
+   */
+  public StageBase createValidationStage() {
+    return null;
+  }
+
+  /**
+   * Configure the program. The parameters are stored in the job.
+   */
+  public void configure(JobConf job) {
+    // Do nothing by default.
+  }
+
+  /**
+   * Returns the avro schema for the messages.
+   */
+  public abstract Schema getMessageSchema();
+
+  /**
+   * Returns the combiner for the messages or null if the messages can't
+   * be combined.
+   */
+  public MessageCombiner<M> getCombiner() {
+    return null;
+  }
+
+  /**
+   * Returns the maximum number of supersteps. The default is two supersteps
+   * which is the same as a single MapReduce job.
+   */
+  public int getMaxSupersteps() {
+    return 2;
+  }
+
+  /**
+   * Compute the new value of a node.
+   *
+   * The node is unchanged unless context.setNode or context.removeNode is
+   * called. The node and messages belong to the engine and may be reused
+   * after compute returns, but compute can modify the node and pass it
+   * to context.setNode.
+   *
+   * @param superstep: The superstep starting at 0.
+   * @param nodeId: The id of the node.
+   * @param node: The node or null if the node doesn't exist, i.e. messages
+   *   were sent to a node which was removed.
+   * @param messages: The messages sent to the node. If there is a combiner
+   *   the messages are combined into a single message.
+   * @param context: The context used to update the node and send messages.
+   */
+  public abstract void compute(
+      int superstep, String nodeId, GraphNodeData node, Iterable<M> messages,
+      VertexContext<M> context) throws IOException;
+}
@@ -0,0 +1,448 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.graph.engine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.mapred.AvroMapper;
+import org.apache.avro.mapred.AvroReducer;
+import org.apache.avro.mapred.Pair;
+import org.apache.avro.specific.SpecificData;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+
+import contrail.graph.GraphNodeData;
+import contrail.stages.ContrailParameters;
+import contrail.stages.GraphCounters.CounterName;
+import contrail.stages.MRStage;
+import contrail.stages.ParameterDefinition;
+
+/**
+ * Run supersteps of a vertex program using MapReduce.
+ *
+ * The first job reads the graph. The mapper computes superstep 0 and outputs
+ * the nodes and messages keyed by the id of the node they belong to. The
+ * reducer joins each node with its messages and computes superstep 1. This
+ * is the same as the hand coded stages.
+ *
+ * If the program has more supersteps, the reducer outputs the nodes and
+ * messages instead of the graph and the next job's mapper just passes them
+ * to the reducer which computes the next superstep. When the last job
+ * outputs records instead of the graph, extract_graph runs a map only job
+ * to convert them to the graph.
+ *
+ * The job is run by VertexProgramStage which sets the parameters.
+ */
+public class VertexProgramJob extends MRStage {
+  // The messages sent in superstep 0 by the mapper of the first job.
+  public final static CounterName NUM_MAP_MESSAGES =
+      new CounterName("Contrail", "vertex-program-map-messages");
+
+  // The messages sent by the reducer.
+  public final static CounterName NUM_MESSAGES =
+      new CounterName("Contrail", "vertex-program-messages");
+
+  // The definitions for the program's parameters.
+  private final Map<String, ParameterDefinition> programDefinitions;
+
+  /**
+   * @param program: The program to run. This is used to get the definitions
+   *   of the program's parameters.
+   */
+  public VertexProgramJob(VertexProgram<?> program) {
+    programDefinitions = program.getParameterDefinitions();
+  }
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+    defs.putAll(super.createParameterDefinitions());
+    defs.putAll(programDefinitions);
+    for (ParameterDefinition def:
+      ContrailParameters.getInputOutputPathOptions()) {
+      defs.put(def.getName(), def);
+    }
+    for (ParameterDefinition def : getJobDefinitions()) {
+      defs.put(def.getName(), def);
+    }
+    return Collections.unmodifiableMap(defs);
+  }
+
+  /**
+   * The definitions used by the mapper and reducer to decide what to do.
+   */
+  private static List<ParameterDefinition> getJobDefinitions() {
+    ArrayList<ParameterDefinition> defs = new ArrayList<ParameterDefinition>();
+    defs.add(new ParameterDefinition(
+        "vertex_program", "The name of the VertexProgram class.",
+        String.class, null));
+    defs.add(new ParameterDefinition(
+        "superstep", "The superstep computed by the reducer. If this is 1 " +
+        "the input is the graph and the mapper computes superstep 0.",
+        Integer.class, new Integer(1)));
+    defs.add(new ParameterDefinition(
+        "output_graph", "If true the reducer outputs the graph and drops " +
+        "the messages, otherwise it outputs the nodes and messages.",
+        Boolean.class, true));
+    defs.add(new ParameterDefinition(
+        "extract_graph", "If true run a map only job which extracts the " +
+        "graph from the nodes and messages.", Boolean.class, false));
+    return defs;
+  }
+
+  private static Object parseJobConf(JobConf job, String name) {
+    for (ParameterDefinition def : getJobDefinitions()) {
+      if (def.getName().equals(name)) {
+        return def.parseJobConf(job);
+      }
+    }
+    throw new IllegalArgumentException("Unknown parameter: " + name);
+  }
+
+  /**
+   * Create and configure the program named in the job.
+   */
+  @SuppressWarnings("unchecked")
+  protected static <M> VertexProgram<M> createProgram(JobConf job) {
+    String className = (String) parseJobConf(job, "vertex_program");
+    VertexProgram<M> program;
+    try {
+      program = (VertexProgram<M>) Class.forName(className).newInstance();
+    } catch (ClassNotFoundException e) {
+      throw new RuntimeException("Couldn't find the program: " + className, e);
+    } catch (InstantiationException e) {
+      throw new RuntimeException(
+          "Couldn't create the program: " + className, e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(
+          "Couldn't create the program: " + className, e);
+    }
+    program.configure(job);
+    return program;
+  }
+
+  /**
+   * A computation which outputs the messages as pairs.
+   */
+  private static class CollectorComputation<M> extends VertexComputation<M> {
+    private final Pair<CharSequence, GenericRecord> outPair;
+    private final CounterName messageCounter;
+    private AvroCollector<Pair<CharSequence, GenericRecord>> collector;
+    private Reporter reporter;
+
+    public CollectorComputation(
+        VertexProgram<M> program, CounterName messageCounter) {
+      super(program);
+      this.messageCounter = messageCounter;
+      outPair = VertexRecordUtil.newPair(program.getMessageSchema());
+    }
+
+    /**
+     * Set where to send the messages. If collector is null the messages
+     * are dropped.
+     */
+    public void setOutput(
+        AvroCollector<Pair<CharSequence, GenericRecord>> collector,
+        Reporter reporter) {
+      this.collector = collector;
+      this.reporter = reporter;
+    }
+
+    /**
+     * Output a node.
+     */
+    public void collectNode(CharSequence nodeId, GraphNodeData node)
+        throws IOException {
+      outPair.key(nodeId);
+      VertexRecordUtil.setNode(outPair.value(), node);
+      collector.collect(outPair);
+    }
+
+    @Override
+    public void sendMessage(CharSequence nodeId, M message)
+        throws IOException {
+      reporter.incrCounter(messageCounter.group, messageCounter.tag, 1);
+      if (collector == null) {
+        return;
+      }
+      outPair.key(nodeId);
+      VertexRecordUtil.setMessage(outPair.value(), message);
+      collector.collect(outPair);
+    }
+
+    @Override
+    public void incrCounter(String group, String tag, long amount) {
+      reporter.incrCounter(group, tag, amount);
+    }
+  }
+
+  /**
+   * Compute superstep 0 for each node in the graph.
+   */
+  public static class GraphMapper extends
+      AvroMapper<GraphNodeData, Pair<CharSequence, GenericRecord>> {
+    private CollectorComputation<Object> computation;
+    private List<Object> noMessages;
+
+    @Override
+    public void configure(JobConf job) {
+      computation = new CollectorComputation<Object>(
+          VertexProgramJob.createProgram(job), NUM_MAP_MESSAGES);
+      noMessages = Collections.emptyList();
+    }
+
+    @Override
+    public void map(GraphNodeData input,
+        AvroCollector<Pair<CharSequence, GenericRecord>> collector,
+        Reporter reporter) throws IOException {
+      computation.setOutput(collector, reporter);
+      String nodeId = input.getNodeId().toString();
+      GraphNodeData node = computation.compute(0, nodeId, input, noMessages);
+      if (node != null) {
+        computation.collectNode(nodeId, node);
+      }
+    }
+  }
+
+  /**
+   * Pass the nodes and messages output by the previous job to the reducer.
+   */
+  public static class RecordMapper extends
+      AvroMapper<Pair<CharSequence, GenericRecord>,
+                 Pair<CharSequence, GenericRecord>> {
+    @Override
+    public void map(Pair<CharSequence, GenericRecord> input,
+        AvroCollector<Pair<CharSequence, GenericRecord>> collector,
+        Reporter reporter) throws IOException {
+      collector.collect(input);
+    }
+  }
+
+  /**
+   * Output the nodes in the records output by the previous job.
+   */
+  public static class ExtractGraphMapper extends
+      AvroMapper<Pair<CharSequence, GenericRecord>, GraphNodeData> {
+    @Override
+    public void map(Pair<CharSequence, GenericRecord> input,
+        AvroCollector<GraphNodeData> collector, Reporter reporter)
+            throws IOException {
+      GraphNodeData node = VertexRecordUtil.getNode(input.value());
+      if (node != null) {
+        collector.collect(node);
+      }
+    }
+  }
+
+  /**
+   * Combine the messages sent to a node on the map side.
+   */
+  public static class VertexCombiner extends
+      AvroReducer<CharSequence, GenericRecord,
+                  Pair<CharSequence, GenericRecord>> {
+    private MessageCombiner<Object> combiner;
+    private Schema messageSchema;
+    private Pair<CharSequence, GenericRecord> outPair;
+    private GenericRecord combinedRecord;
+
+    @Override
+    public void configure(JobConf job) {
+      VertexProgram<Object> program = VertexProgramJob.createProgram(job);
+      combiner = program.getCombiner();
+      messageSchema = program.getMessageSchema();
+      outPair = VertexRecordUtil.newPair(messageSchema);
+      combinedRecord = VertexRecordUtil.newRecord(
+          VertexRecordUtil.createSchema(messageSchema));
+    }
+
+    @Override
+    public void reduce(CharSequence nodeId, Iterable<GenericRecord> records,
+        AvroCollector<Pair<CharSequence, GenericRecord>> collector,
+        Reporter reporter) throws IOException {
+      outPair.key(nodeId);
+      Object combined = null;
+      for (GenericRecord record : records) {
+        Object message = VertexRecordUtil.getMessage(record);
+        if (message == null) {
+          outPair.value(record);
+          collector.collect(outPair);
+          continue;
+        }
+        // Copy the message because avro reuses the record.
+        message = SpecificData.get().deepCopy(messageSchema, message);
+        combined = (combined == null) ?
+            message : combiner.combine(combined, message);
+      }
+      if (combined != null) {
+        VertexRecordUtil.setMessage(combinedRecord, combined);
+        outPair.value(combinedRecord);
+        collector.collect(outPair);
+      }
+    }
+  }
+
+  /**
+   * Join each node with its messages and compute the next superstep.
+   */
+  public static class VertexReducer extends
+      AvroReducer<CharSequence, GenericRecord, Object> {
+    private CollectorComputation<Object> computation;
+    private Schema messageSchema;
+    private int superstep;
+    private boolean compute;
+    private boolean outputGraph;
+    private ArrayList<Object> messages;
+
+    // Adapts the reducer's collector to the collector for pairs.
+    private AvroCollector<Object> output;
+    private AvroCollector<Pair<CharSequence, GenericRecord>> pairCollector;
+
+    @Override
+    public void configure(JobConf job) {
+      VertexProgram<Object> program = VertexProgramJob.createProgram(job);
+      computation = new CollectorComputation<Object>(program, NUM_MESSAGES);
+      messageSchema = program.getMessageSchema();
+      superstep = (Integer) parseJobConf(job, "superstep");
+      compute = superstep < program.getMaxSupersteps();
+      outputGraph = (Boolean) parseJobConf(job, "output_graph");
+      messages = new ArrayList<Object>();
+      pairCollector =
+          new AvroCollector<Pair<CharSequence, GenericRecord>>() {
+        @Override
+        public void collect(Pair<CharSequence, GenericRecord> pair)
+            throws IOException {
+          output.collect(pair);
+        }
+      };
+    }
+
+    @Override
+    public void reduce(CharSequence nodeId, Iterable<GenericRecord> records,
+        AvroCollector<Object> collector, Reporter reporter)
+            throws IOException {
+      output = collector;
+      messages.clear();
+      GraphNodeData node = null;
+      for (GenericRecord record : records) {
+        // Make copies because avro reuses the records.
+        GraphNodeData recordNode = VertexRecordUtil.getNode(record);
+        if (recordNode != null) {
+          if (node != null) {
+            throw new IOException(
+                "ERROR: Saw multiple nodes for nodeId: " + nodeId);
+          }
+          node = SpecificData.get().deepCopy(
+              recordNode.getSchema(), recordNode);
+        } else {
+          messages.add(SpecificData.get().deepCopy(
+              messageSchema, VertexRecordUtil.getMessage(record)));
+        }
+      }
+
+      String id = nodeId.toString();
+      if (compute && messages.size() > 0) {
+        // The messages sent in the last superstep are dropped.
+        computation.setOutput(outputGraph ? null : pairCollector, reporter);
+        node = computation.compute(superstep, id, node, messages);
+      }
+      if (node == null) {
+        return;
+      }
+      if (outputGraph) {
+        collector.collect(node);
+      } else {
+        computation.setOutput(pairCollector, reporter);
+        computation.collectNode(id, node);
+      }
+    }
+  }
+
+  @Override
+  protected void setupConfHook() {
+    JobConf conf = (JobConf) getConf();
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    FileInputFormat.addInputPath(conf, new Path(inputPath));
+    FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+    VertexProgram<Object> program = createProgram(conf);
+    Schema pairSchema = VertexRecordUtil.createPairSchema(
+        program.getMessageSchema());
+    Schema graphSchema = new GraphNodeData().getSchema();
+
+    if ((Boolean) stage_options.get("extract_graph")) {
+      AvroJob.setInputSchema(conf, pairSchema);
+      AvroJob.setOutputSchema(conf, graphSchema);
+      AvroJob.setMapperClass(conf, ExtractGraphMapper.class);
+      // This is a mapper only job.
+      conf.setNumReduceTasks(0);
+      return;
+    }
+
+    int superstep = (Integer) stage_options.get("superstep");
+    if (superstep == 1) {
+      AvroJob.setInputSchema(conf, graphSchema);
+      AvroJob.setMapperClass(conf, GraphMapper.class);
+    } else {
+      AvroJob.setInputSchema(conf, pairSchema);
+      AvroJob.setMapperClass(conf, RecordMapper.class);
+    }
+    AvroJob.setMapOutputSchema(conf, pairSchema);
+    if (program.getCombiner() != null) {
+      AvroJob.setCombinerClass(conf, VertexCombiner.class);
+    }
+    AvroJob.setReducerClass(conf, VertexReducer.class);
+    if ((Boolean) stage_options.get("output_graph")) {
+      AvroJob.setOutputSchema(conf, graphSchema);
+    } else {
+      AvroJob.setOutputSchema(conf, pairSchema);
+    }
+  }
+
+  /**
+   * Returns the number of messages sent by the reducer.
+   */
+  public long getNumMessages() {
+    try {
+      return job.getCounters().findCounter(
+          NUM_MESSAGES.group, NUM_MESSAGES.tag).getValue();
+    } catch (IOException e) {
+      throw new RuntimeException("Couldn't get counters.", e);
+    }
+  }
+
+  /**
+   * Returns the value of a counter.
+   */
+  public long getCounter(String group, String tag) {
+    try {
+      return job.getCounters().findCounter(group, tag).getValue();
+    } catch (IOException e) {
+      throw new RuntimeException("Couldn't get counters.", e);
+    }
+  }
+}
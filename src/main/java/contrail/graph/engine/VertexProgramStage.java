@@ -0,0 +1,339 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.graph.engine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.log4j.Logger;
+
+import contrail.graph.GraphNode;
+import contrail.graph.GraphNodeData;
+import contrail.graph.GraphNodeFilesIterator;
+import contrail.stages.ContrailParameters;
+import contrail.stages.GraphCounters.CounterName;
+import contrail.stages.MRStage;
+import contrail.stages.ParameterDefinition;
+import contrail.stages.PipelineStage;
+import contrail.stages.StageBase;
+import contrail.util.FileHelper;
+
+/**
+ * Base class for stages implemented as a vertex program.
+ *
+ * Subclasses just create the program. The engine parameter chooses whether
+ * to run the program with MapReduce (VertexProgramJob) or to load the graph
+ * into memory and run it with InMemoryVertexEngine. The output is the same
+ * either way.
+ *
+ * Programs with two supersteps can also use the partitioned engine. The
+ * graph is partitioned and sorted by PartitionGraph, unless the input
+ * already is, and only the messages are shuffled (SendMessagesJob). The
+ * messages are then joined with the graph on the map side
+ * (JoinMessagesJob). The output is partitioned and sorted too so the next
+ * stage can set partitioned_input and skip PartitionGraph. The output is
+ * the same as for the other engines unless a partition of the graph has no
+ * nodes; JoinMessagesJob can't find the messages for such a partition.
+ */
+public abstract class VertexProgramStage extends PipelineStage {
+  private static final Logger sLogger =
+      Logger.getLogger(VertexProgramStage.class);
+
+  public static final String MAPREDUCE_ENGINE = "mapreduce";
+  public static final String MEMORY_ENGINE = "memory";
+  public static final String PARTITIONED_ENGINE = "partitioned";
+
+  // The jobs which were run with MapReduce.
+  private final ArrayList<MRStage> jobs;
+
+  // The engine if the program was run in memory.
+  private InMemoryVertexEngine<?> memoryEngine;
+
+  public VertexProgramStage() {
+    jobs = new ArrayList<MRStage>();
+  }
+
+  /**
+   * Create the program to run.
+   */
+  protected abstract VertexProgram<?> createProgram();
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+    defs.putAll(super.createParameterDefinitions());
+    defs.putAll(createProgram().getParameterDefinitions());
+    for (ParameterDefinition def:
+      ContrailParameters.getInputOutputPathOptions()) {
+      defs.put(def.getName(), def);
+    }
+
+    ParameterDefinition engine = new ParameterDefinition(
+        "engine", "How to run the program. One of " + MAPREDUCE_ENGINE +
+        ", " + MEMORY_ENGINE + " or " + PARTITIONED_ENGINE + ". The " +
+        "memory engine loads the graph into memory so it should only be " +
+        "used for small graphs. The partitioned engine only shuffles the " +
+        "messages but requires a program with two supersteps.",
+        String.class, MAPREDUCE_ENGINE);
+    ParameterDefinition numThreads = new ParameterDefinition(
+        "num_threads", "The number of threads used by the memory engine.",
+        Integer.class, new Integer(1));
+    ParameterDefinition numPartitions =
+        PartitionGraph.getNumPartitionsDefinition();
+    ParameterDefinition partitionedInput = new ParameterDefinition(
+        "partitioned_input", "For the partitioned engine, whether the " +
+        "input is already partitioned and sorted with num_partitions " +
+        "partitions, e.g. because it is the output of the partitioned " +
+        "engine.", Boolean.class, false);
+    for (ParameterDefinition def : new ParameterDefinition[] {
+             engine, numThreads, numPartitions, partitionedInput}) {
+      defs.put(def.getName(), def);
+    }
+    return Collections.unmodifiableMap(defs);
+  }
+
+  @Override
+  public List<InvalidParameter> validateParameters() {
+    List<InvalidParameter> items = super.validateParameters();
+    String engine = (String) stage_options.get("engine");
+    if (!engine.equals(MAPREDUCE_ENGINE) && !engine.equals(MEMORY_ENGINE) &&
+        !engine.equals(PARTITIONED_ENGINE)) {
+      items.add(new InvalidParameter(
+          "engine", "engine must be " + MAPREDUCE_ENGINE + ", " +
+          MEMORY_ENGINE + " or " + PARTITIONED_ENGINE + "."));
+    }
+    if (engine.equals(PARTITIONED_ENGINE)) {
+      Integer numPartitions = (Integer) stage_options.get("num_partitions");
+      if (numPartitions == null || numPartitions <= 0) {
+        items.add(new InvalidParameter(
+            "num_partitions",
+            "num_partitions must be positive for the partitioned engine."));
+      }
+      if (createProgram().getMaxSupersteps() != 2) {
+        items.add(new InvalidParameter(
+            "engine", "The partitioned engine only supports programs with " +
+            "two supersteps."));
+      }
+    }
+    if ((Integer) stage_options.get("num_threads") <= 0) {
+      items.add(new InvalidParameter(
+          "num_threads", "num_threads must be positive."));
+    }
+
+    StageBase validator = createProgram().createValidationStage();
+    if (validator != null) {
+      validator.setParameters(ContrailParameters.extractParameters(
+          stage_options, validator.getParameterDefinitions().values()));
+      items.addAll(validator.validateParameters());
+    }
+    return items;
+  }
+
+  /**
+   * Returns the value of the counter summed over all the jobs.
+   */
+  public long getCounter(CounterName counter) {
+    if (memoryEngine != null) {
+      return memoryEngine.getCounter(counter.group, counter.tag);
+    }
+    long total = 0;
+    for (MRStage job : jobs) {
+      total += job.getCounter(counter.group, counter.tag);
+    }
+    return total;
+  }
+
+  private <T extends MRStage> T runJob(
+      T job, VertexProgram<?> program, Map<String, Object> jobOptions) {
+    job.initializeAsChild(this);
+    Map<String, ParameterDefinition> definitions =
+        job.getParameterDefinitions();
+    Map<String, Object> options =
+        ContrailParameters.extractParameters(
+            stage_options, definitions.values());
+    if (definitions.containsKey("vertex_program")) {
+      options.put("vertex_program", program.getClass().getName());
+    }
+    options.putAll(jobOptions);
+    job.setParameters(options);
+    executeChild(job);
+    jobs.add(job);
+    return job;
+  }
+
+  private void runMapReduce(VertexProgram<?> program) throws IOException {
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    int maxSupersteps = program.getMaxSupersteps();
+
+    ArrayList<String> tempPaths = new ArrayList<String>();
+    String jobInput = inputPath;
+    int superstep = 1;
+    while (true) {
+      String jobOutput = FilenameUtils.concat(
+          outputPath, "superstep_" + superstep);
+      tempPaths.add(jobOutput);
+
+      boolean lastSuperstep = superstep >= maxSupersteps - 1;
+      HashMap<String, Object> options = new HashMap<String, Object>();
+      options.put("inputpath", jobInput);
+      options.put("outputpath", jobOutput);
+      options.put("superstep", superstep);
+      options.put("output_graph", lastSuperstep);
+      VertexProgramJob job =
+          runJob(new VertexProgramJob(program), program, options);
+      if (lastSuperstep) {
+        break;
+      }
+
+      if (job.getNumMessages() == 0) {
+        sLogger.info(String.format(
+            "No messages were sent in superstep %d.", superstep));
+        String graphPath = FilenameUtils.concat(outputPath, "graph");
+        tempPaths.add(graphPath);
+        options.put("inputpath", jobOutput);
+        options.put("outputpath", graphPath);
+        options.put("extract_graph", true);
+        runJob(new VertexProgramJob(program), program, options);
+        break;
+      }
+      jobInput = jobOutput;
+      ++superstep;
+    }
+
+    String graphPath = tempPaths.get(tempPaths.size() - 1);
+    FileHelper.moveDirectoryContents(getConf(), graphPath, outputPath);
+    for (String path : tempPaths) {
+      Path toDelete = new Path(path);
+      toDelete.getFileSystem(getConf()).delete(toDelete, true);
+    }
+  }
+
+  private void runPartitioned(VertexProgram<?> program) throws IOException {
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+
+    ArrayList<String> tempPaths = new ArrayList<String>();
+    String graphPath = inputPath;
+    if (!(Boolean) stage_options.get("partitioned_input")) {
+      graphPath = FilenameUtils.concat(outputPath, "partitioned");
+      tempPaths.add(graphPath);
+      HashMap<String, Object> options = new HashMap<String, Object>();
+      options.put("inputpath", inputPath);
+      options.put("outputpath", graphPath);
+      runJob(new PartitionGraph(), program, options);
+    }
+
+    String messagesPath = FilenameUtils.concat(outputPath, "messages");
+    tempPaths.add(messagesPath);
+    HashMap<String, Object> sendOptions = new HashMap<String, Object>();
+    sendOptions.put("inputpath", graphPath);
+    sendOptions.put("outputpath", messagesPath);
+    runJob(new SendMessagesJob(program), program, sendOptions);
+
+    String joinPath = FilenameUtils.concat(outputPath, "graph");
+    tempPaths.add(joinPath);
+    HashMap<String, Object> joinOptions = new HashMap<String, Object>();
+    joinOptions.put("inputpath", graphPath);
+    joinOptions.put("outputpath", joinPath);
+    joinOptions.put("messages_path", messagesPath);
+    runJob(new JoinMessagesJob(program), program, joinOptions);
+
+    FileHelper.moveDirectoryContents(getConf(), joinPath, outputPath);
+    for (String path : tempPaths) {
+      Path toDelete = new Path(path);
+      toDelete.getFileSystem(getConf()).delete(toDelete, true);
+    }
+  }
+
+  private <M> void runInMemory(VertexProgram<M> program) throws IOException {
+    String inputPath = (String) stage_options.get("inputpath");
+    Path outDir = new Path((String) stage_options.get("outputpath"));
+    int numThreads = (Integer) stage_options.get("num_threads");
+
+    // Pass the parameters to the program the same way as for MapReduce.
+    JobConf job = new JobConf(getConf());
+    Map<String, ParameterDefinition> definitions =
+        program.getParameterDefinitions();
+    for (ParameterDefinition def : definitions.values()) {
+      Object value = stage_options.get(def.getName());
+      if (value != null) {
+        def.addToJobConf(job, value);
+      }
+    }
+
+    HashMap<String, GraphNodeData> nodes =
+        new HashMap<String, GraphNodeData>();
+    GraphNodeFilesIterator input = GraphNodeFilesIterator.fromGlob(
+        getConf(), new Path(inputPath, "*.avro").toString());
+    for (GraphNode node : input) {
+      // We need to make a copy because the iterator reuses the node.
+      nodes.put(node.getNodeId(), node.clone().getData());
+    }
+    sLogger.info("Number of nodes loaded into memory: " + nodes.size());
+
+    InMemoryVertexEngine<M> engine =
+        new InMemoryVertexEngine<M>(program, job, numThreads);
+    memoryEngine = engine;
+    Map<String, GraphNodeData> output = engine.run(nodes);
+
+    Schema schema = new GraphNodeData().getSchema();
+    DataFileWriter<GraphNodeData> writer = new DataFileWriter<GraphNodeData>(
+        new SpecificDatumWriter<GraphNodeData>(schema));
+    FileSystem fs = outDir.getFileSystem(getConf());
+    fs.mkdirs(outDir, FsPermission.getDefault());
+    FSDataOutputStream outStream =
+        fs.create(new Path(outDir, "part-00000.avro"), true);
+    writer.create(schema, outStream);
+    for (GraphNodeData node : output.values()) {
+      writer.append(node);
+    }
+    writer.close();
+    sLogger.info("Number of nodes outputted: " + output.size());
+  }
+
+  @Override
+  protected void stageMain() {
+    jobs.clear();
+    memoryEngine = null;
+    VertexProgram<?> program = createProgram();
+    String engine = (String) stage_options.get("engine");
+    try {
+      if (engine.equals(MEMORY_ENGINE)) {
+        runInMemory(program);
+      } else if (engine.equals(PARTITIONED_ENGINE)) {
+        runPartitioned(program);
+      } else {
+        runMapReduce(program);
+      }
+    } catch (IOException e) {
+      sLogger.fatal("Running the vertex program failed.", e);
+      System.exit(-1);
+    }
+  }
+}
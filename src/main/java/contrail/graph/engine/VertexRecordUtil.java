@@ -0,0 +1,116 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.graph.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.mapred.Pair;
+
+import contrail.graph.GraphNodeData;
+
+/**
+ * Utilities for the records used by VertexProgramJob.
+ *
+ * Each stage used to define its own union of the node and its messages.
+ * Since the message type depends on the program, the schema of the union is
+ * created at runtime. A record contains either a node or a message. There
+ * is no java class for the record so avro reads it as a generic record; the
+ * node and message are still read as specific records.
+ */
+public class VertexRecordUtil {
+  public static final String NODE_FIELD = "node";
+  public static final String MESSAGE_FIELD = "message";
+
+  private static Schema optional(Schema schema) {
+    return Schema.createUnion(
+        Arrays.asList(Schema.create(Schema.Type.NULL), schema));
+  }
+
+  /**
+   * Create the schema for the records of a program with the given message
+   * schema.
+   */
+  public static Schema createSchema(Schema messageSchema) {
+    ArrayList<Schema.Field> fields = new ArrayList<Schema.Field>();
+    fields.add(new Schema.Field(
+        NODE_FIELD, optional(new GraphNodeData().getSchema()),
+        "The node or null if this record is a message.", null));
+    fields.add(new Schema.Field(
+        MESSAGE_FIELD, optional(messageSchema),
+        "The message or null if this record is a node.", null));
+    Schema schema = Schema.createRecord(
+        "VertexRecord", "A node or a message sent to a node.",
+        "contrail.graph.engine", false);
+    schema.setFields(fields);
+    return schema;
+  }
+
+  /**
+   * Create the schema for the pairs keyed by the id of the node.
+   */
+  public static Schema createPairSchema(Schema messageSchema) {
+    return Pair.getPairSchema(
+        Schema.create(Schema.Type.STRING), createSchema(messageSchema));
+  }
+
+  public static GraphNodeData getNode(GenericRecord record) {
+    return (GraphNodeData) record.get(NODE_FIELD);
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <M> M getMessage(GenericRecord record) {
+    return (M) record.get(MESSAGE_FIELD);
+  }
+
+  /**
+   * Set the record to hold the node.
+   */
+  public static void setNode(GenericRecord record, GraphNodeData node) {
+    record.put(NODE_FIELD, node);
+    record.put(MESSAGE_FIELD, null);
+  }
+
+  /**
+   * Set the record to hold the message.
+   */
+  public static void setMessage(GenericRecord record, Object message) {
+    record.put(NODE_FIELD, null);
+    record.put(MESSAGE_FIELD, message);
+  }
+
+  /**
+   * Create an empty record.
+   */
+  public static GenericRecord newRecord(Schema schema) {
+    return new GenericData.Record(schema);
+  }
+
+  /**
+   * Create a pair for outputting the records. Avro can't infer the schema
+   * of the pair from a generic record so we set it explicitly.
+   */
+  public static Pair<CharSequence, GenericRecord> newPair(
+      Schema messageSchema) {
+    Pair<CharSequence, GenericRecord> pair =
+        new Pair<CharSequence, GenericRecord>(
+            createPairSchema(messageSchema));
+    pair.key("");
+    pair.value(newRecord(createSchema(messageSchema)));
+    return pair;
+  }
+}
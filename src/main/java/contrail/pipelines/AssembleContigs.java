@@ -29,7 +29,10 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Logger;
 
+import contrail.stages.AssignReadIds;
 import contrail.stages.BuildGraphAvro;
+import contrail.stages.BuildKmerFilter;
+import contrail.stages.BuildNodeIdDictionary;
 import contrail.stages.CompressAndCorrect;
 import contrail.stages.FastqPreprocessorAvroCompressed;
 import contrail.stages.GraphStats;
@@ -37,6 +40,7 @@ import contrail.stages.GraphToFasta;
 import contrail.stages.ParameterDefinition;
 import contrail.stages.PipelineStage;
 import contrail.stages.QuickMergeAvro;
+import contrail.stages.SlimGraph;
 import contrail.stages.StageBase;
 
 /**
@@ -62,8 +66,9 @@ public class AssembleContigs extends PipelineStage {
     definitions.putAll(super.createParameterDefinitions());
     // We add all the options for the stages we depend on.
     StageBase[] substages =
-      {new FastqPreprocessorAvroCompressed(), new BuildGraphAvro(),
-       new QuickMergeAvro(), new CompressAndCorrect(), new GraphStats()};
+      {new FastqPreprocessorAvroCompressed(), new BuildKmerFilter(),
+       new BuildGraphAvro(), new QuickMergeAvro(), new SlimGraph(),
+       new CompressAndCorrect(), new GraphStats()};
 
     for (StageBase stage: substages) {
       definitions.putAll(stage.getParameterDefinitions());
@@ -75,6 +80,19 @@ public class AssembleContigs extends PipelineStage {
         String.class, "fastq");
 
     definitions.put(inFormat.getName(), inFormat);
+
+    ParameterDefinition slimGraph = new ParameterDefinition(
+        "slim_graph",
+        "Slim the graph after QuickMerge; see SlimGraph.",
+        Boolean.class, new Boolean(false));
+    definitions.put(slimGraph.getName(), slimGraph);
+
+    ParameterDefinition compactReadIds = new ParameterDefinition(
+        "compact_read_ids",
+        "Replace the ids of the reads with short ids before building the " +
+        "graph; see AssignReadIds.",
+        Boolean.class, new Boolean(false));
+    definitions.put(compactReadIds.getName(), compactReadIds);
     return Collections.unmodifiableMap(definitions);
   }
 
@@ -97,8 +115,15 @@ public class AssembleContigs extends PipelineStage {
       subStages.add(new FastqPreprocessorAvroCompressed());
     }
 
+    if ((Boolean) stage_options.get("compact_read_ids")) {
+      subStages.add(new AssignReadIds());
+    }
+
     subStages.add(new BuildGraphAvro());
     subStages.add(new QuickMergeAvro());
+    if ((Boolean) stage_options.get("slim_graph")) {
+      subStages.add(new SlimGraph());
+    }
     subStages.add(new CompressAndCorrect());
     subStages.add(new GraphToFasta());
 
@@ -113,6 +138,26 @@ public class AssembleContigs extends PipelineStage {
       stage.setParameter("inputpath", latestPath);
       stage.setParameter("outputpath", stageOutput);
 
+      // Build the filter of trusted KMers so that KMers which are likely
+      // errors don't get added to the graph.
+      if (BuildGraphAvro.class.isInstance(stage) &&
+          (Integer) stage_options.get("min_kmer_count") > 1) {
+        BuildKmerFilter filterStage = new BuildKmerFilter();
+        filterStage.initializeAsChild(this);
+        filterStage.setParameter("inputpath", latestPath);
+        filterStage.setParameter(
+            "outputpath",
+            new Path(outputPath, BuildKmerFilter.class.getName()).toString());
+        if (!executeChild(filterStage)) {
+          sLogger.fatal(
+              "Building the KMer filter had a problem.",
+              new RuntimeException("KMer filter failure"));
+          System.exit(-1);
+        }
+        stage.setParameter(
+            "kmer_filter", filterStage.getFilterPath().toString());
+      }
+
       if (!executeChild(stage)) {
         sLogger.fatal(String.format(
             "Stage %s had a problem", stage.getClass().getName()),
@@ -121,6 +166,25 @@ public class AssembleContigs extends PipelineStage {
       }
 
       latestPath = stageOutput;
+
+      // With compact node ids we build the dictionary for the ids; this
+      // also checks that no two KMers were assigned the same id.
+      if (BuildGraphAvro.class.isInstance(stage) &&
+          (Integer) stage_options.get("node_id_bits") != 0) {
+        BuildNodeIdDictionary dictionaryStage = new BuildNodeIdDictionary();
+        dictionaryStage.initializeAsChild(this);
+        dictionaryStage.setParameter("inputpath", stageOutput);
+        dictionaryStage.setParameter(
+            "outputpath",
+            new Path(outputPath, BuildNodeIdDictionary.class.getName())
+                .toString());
+        if (!executeChild(dictionaryStage)) {
+          sLogger.fatal(
+              "Building the node id dictionary had a problem.",
+              new RuntimeException("Dictionary failure"));
+          System.exit(-1);
+        }
+      }
       // We compute graph stats only after the CompressAndCorrectStage
       if (CompressAndCorrect.class.isInstance(stage)){
         // TODO(jlewi): It would probably be better to continue running the
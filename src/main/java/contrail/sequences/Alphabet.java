@@ -7,6 +7,48 @@ package contrail.sequences;
  *
  */
 public abstract class Alphabet {
+  // Table mapping a character in [0, 256) to its int value or -1 if the
+  // character isn't in the alphabet. The table lets us encode letters
+  // without boxing or hashing.
+  private final byte[] letter_codes = new byte[256];
+
+  /**
+   * Initialize the table used to encode letters. Subclasses must call this
+   * at the end of their constructor once intToLetter can be called.
+   */
+  protected void initLetterCodes() {
+    if (size() > Byte.MAX_VALUE) {
+      throw new RuntimeException("Alphabet has too many letters.");
+    }
+    java.util.Arrays.fill(letter_codes, (byte) -1);
+    for (int val = 0; val < size(); val++) {
+      char letter = intToLetter(val);
+      if (letter >= letter_codes.length) {
+        throw new RuntimeException(
+            "Letters must be single byte characters in UTF-8.");
+      }
+      letter_codes[letter] = (byte) val;
+    }
+  }
+
+  /**
+   * Return the int value of the letter or -1 if the letter isn't in the
+   * alphabet. Unlike letterToInt this never throws.
+   */
+  public final int letterCode(char letter) {
+    if (letter >= letter_codes.length) {
+      return -1;
+    }
+    return letter_codes[letter];
+  }
+
+  /**
+   * Return the int value of the character encoded by a byte in UTF-8 or -1
+   * if the character isn't in the alphabet.
+   */
+  public final int letterCode(byte bval) {
+    return letter_codes[bval & 0xFF];
+  }
 
   public abstract int bitsPerLetter ();
 
@@ -124,5 +166,103 @@ public abstract class Alphabet {
 
     return otherType.isInstance(this);
   }
-}
 
+  /**
+   * Encode letters stored as UTF-8 bytes and pack them into an array of
+   * ints. The letters are packed the same way as Sequence; i.e. the i'th
+   * letter occupies bits [i * bitsPerLetter(), (i + 1) * bitsPerLetter()).
+   * Like utf8ToInt, bytes which aren't in the alphabet are encoded as
+   * the end of sequence character.
+   *
+   * @param letters: Buffer containing the letters.
+   * @param offset: Position in letters of the first letter to encode.
+   * @param length: The number of letters to encode.
+   * @param packed: Buffer to write to. It must have room for at least
+   *   length letters. Bits after the last letter in the last int written
+   *   are set to zero.
+   * @return: The number of ints written.
+   */
+  public int encode(byte[] letters, int offset, int length, int[] packed) {
+    final int bits_per_letter = bitsPerLetter();
+    final int eos = intEOS();
+    int num_written = 0;
+    long buffer = 0;
+    int num_bits = 0;
+    for (int pos = offset; pos < offset + length; pos++) {
+      int code = letter_codes[letters[pos] & 0xFF];
+      if (code < 0) {
+        code = eos;
+      }
+      buffer |= ((long) code) << num_bits;
+      num_bits += bits_per_letter;
+      if (num_bits >= 32) {
+        packed[num_written++] = (int) buffer;
+        buffer >>>= 32;
+        num_bits -= 32;
+      }
+    }
+    if (num_bits > 0) {
+      packed[num_written++] = (int) buffer;
+    }
+    return num_written;
+  }
+
+  /**
+   * Encode letters and pack them into an array of ints. The packing is
+   * the same as for encode(byte[], int, int, int[]).
+   *
+   * @throws RuntimeException if a letter isn't in the alphabet.
+   * @return: The number of ints written.
+   */
+  public int encode(
+      CharSequence letters, int offset, int length, int[] packed) {
+    final int bits_per_letter = bitsPerLetter();
+    int num_written = 0;
+    long buffer = 0;
+    int num_bits = 0;
+    for (int pos = offset; pos < offset + length; pos++) {
+      char letter = letters.charAt(pos);
+      int code = letterCode(letter);
+      if (code < 0) {
+        throw new RuntimeException(
+            "The letter '" + letter + "' is not in the alphabet.");
+      }
+      buffer |= ((long) code) << num_bits;
+      num_bits += bits_per_letter;
+      if (num_bits >= 32) {
+        packed[num_written++] = (int) buffer;
+        buffer >>>= 32;
+        num_bits -= 32;
+      }
+    }
+    if (num_bits > 0) {
+      packed[num_written++] = (int) buffer;
+    }
+    return num_written;
+  }
+
+  /**
+   * Decode letters packed into an array of ints.
+   *
+   * @param packed: The packed letters.
+   * @param start: Position of the first letter to decode.
+   * @param length: The number of letters to decode.
+   * @param letters: Buffer to write the letters to. Must have
+   *   length >= length.
+   */
+  public void decode(int[] packed, int start, int length, char[] letters) {
+    final int bits_per_letter = bitsPerLetter();
+    final int mask = letterMask();
+    long bit = (long) start * bits_per_letter;
+    for (int pos = 0; pos < length; pos++) {
+      int index = (int) (bit >>> 5);
+      int shift = (int) (bit & 31);
+      int val = packed[index] >>> shift;
+      if (shift + bits_per_letter > 32) {
+        val |= packed[index + 1] << (32 - shift);
+      }
+      letters[pos] = intToLetter(val & mask);
+      bit += bits_per_letter;
+    }
+  }
+}
@@ -49,7 +49,6 @@ public class DNAAlphabetFactory {
 		 * in a int encoding the values we are interested in.
 		 */
 		private int letter_mask;
-		private java.util.HashMap<java.lang.Character, java.lang.Integer> letters_to_num;
 
 		// A an array such that ut8_map[b] = the int value
 		// assigned to character b where b is the utf8 value
@@ -60,12 +59,7 @@ public class DNAAlphabetFactory {
 			if (ALPHABET.length > MAXUINT) {
 				throw new RuntimeException("Alphabet length exceeds maximum length");
 			}
-			letters_to_num = new java.util.HashMap<Character, java.lang.Integer>();
-			for (int pos = 0; pos < ALPHABET.length; pos++) {
-				// pos is guaranteed to be less than MAXUINT so the unisgned representation
-				// is the same as for signed integer.
-				letters_to_num.put(ALPHABET[pos], pos);
-			}
+			initLetterCodes();
 
 			bits_per_letter = (int)Math.ceil(Math.log(ALPHABET.length)/Math.log(2));
 
@@ -130,14 +124,12 @@ public class DNAAlphabetFactory {
 		 */
 		@Override
     public int letterToInt(char letter){
-		  Integer output = null;
-		  output = letters_to_num.get(letter);
-		  if (output == null) {
-		    throw new RuntimeException(
-		        "The letter '" + letter + "' is not a valid DNA base.");
-		  }
-
-		  return output;
+      int output = letterCode(letter);
+      if (output < 0) {
+        throw new RuntimeException(
+            "The letter '" + letter + "' is not a valid DNA base.");
+      }
+      return output;
 		}
 
 		/**
@@ -31,28 +31,182 @@ public class DNAUtil {
     }
   }
 
+  // Number of bases packed into each int by the DNA alphabet.
+  private static final int BASES_PER_INT = 16;
+
+  // Mask selecting the low bit of each base in an int.
+  private static final int LOW_BITS = 0x55555555;
+
+  /**
+   * Whether the sequence uses the DNA alphabet. For the DNA alphabet we
+   * can operate on the packed ints directly because each base uses 2 bits
+   * and the complement of a base is just its value XOR 3.
+   */
+  private static boolean isDNA(Sequence seq) {
+    return seq.getAlphabet() == DNAAlphabetFactory.create();
+  }
+
+  /**
+   * Return an array mapping the value of each letter in the alphabet to the
+   * value of its complement.
+   */
+  private static int[] complementValues(Alphabet alphabet) {
+    int[] values = new int[alphabet.size()];
+    for (int val = 0; val < values.length; val++) {
+      values[val] = alphabet.letterToInt(
+          complementBase(alphabet.intToLetter(val)));
+    }
+    return values;
+  }
+
+  /**
+   * Reverse the order of the 16 bases packed into an int.
+   */
+  private static int reverseBases(int word) {
+    // Reverse the bits and then swap the two bits of each base.
+    word = Integer.reverse(word);
+    return ((word >>> 1) & LOW_BITS) | ((word & LOW_BITS) << 1);
+  }
+
+  /**
+   * Return a mask selecting the first num_bases bases of an int.
+   */
+  private static int baseMask(int num_bases) {
+    return num_bases >= BASES_PER_INT ? -1 : (1 << (2 * num_bases)) - 1;
+  }
+
+  /**
+   * Extract num_bases <= 16 bases starting at position start from the packed
+   * DNA sequence. The bases are returned in the least significant bits.
+   */
+  private static int extractBases(int[] data, int start, int num_bases) {
+    int index = start / BASES_PER_INT;
+    int shift = 2 * (start % BASES_PER_INT);
+    int word = data[index] >>> shift;
+    if (shift > 0 && shift + 2 * num_bases > 32) {
+      word |= data[index + 1] << (32 - shift);
+    }
+    return word & baseMask(num_bases);
+  }
+
+  /**
+   * Return the k'th int of the reverse complement of a packed DNA sequence
+   * without computing the rest of the reverse complement.
+   */
+  private static int reverseComplementWord(int[] data, int length, int k) {
+    int num_bases = Math.min(BASES_PER_INT, length - k * BASES_PER_INT);
+    int start = length - k * BASES_PER_INT - num_bases;
+    int word = reverseBases(extractBases(data, start, num_bases));
+    word = word >>> (2 * (BASES_PER_INT - num_bases));
+    return ~word & baseMask(num_bases);
+  }
+
+  /**
+   * Compare the bases in two ints packed using the DNA alphabet.
+   */
+  private static int compareWords(int left, int right) {
+    int diff = left ^ right;
+    if (diff == 0) {
+      return 0;
+    }
+    int shift = Integer.numberOfTrailingZeros(diff) & ~1;
+    return ((left >>> shift) & 0x3) < ((right >>> shift) & 0x3) ? -1 : 1;
+  }
+
   /**
    * Compute the reverse complement of the DNA sequence.
    *
-   * TODO(jlewi): Add a unittest.
-   * TODO(jlewi): We could probably speed this up by precomputing the integer
-   *     values for the complement so that we don't have to convert the characters
-   *     to from the integer values.
+   * For the DNA alphabet we operate on the packed ints; we complement
+   * the bases by inverting the bits and reverse the order of the bases
+   * 16 bases at a time.
+   *
    * @param seq
    * @return
    */
   public static Sequence reverseComplement(Sequence seq) {
+    if (!isDNA(seq)) {
+      return reverseComplementLetters(seq);
+    }
+    final int length = seq.size();
+    final int[] data = seq.bytes();
+    final int num_ints = seq.numItemsForSize(length);
+    int[] rc = new int[Math.max(num_ints, 1)];
+    if (length > 0) {
+      // Reversing the ints yields the reverse complement preceded by
+      // pad bases; the bases from the unused part of the last int.
+      int pad = num_ints * BASES_PER_INT - length;
+      int shift = 2 * pad;
+      for (int k = 0; k < num_ints; k++) {
+        int word = ~reverseBases(data[num_ints - 1 - k]);
+        if (shift == 0) {
+          rc[k] = word;
+        } else {
+          if (k > 0) {
+            rc[k - 1] |= word << (32 - shift);
+          }
+          rc[k] = word >>> shift;
+        }
+      }
+      int num_last = length - (num_ints - 1) * BASES_PER_INT;
+      rc[num_ints - 1] &= baseMask(num_last);
+    }
+    return new Sequence(rc, length, seq.getAlphabet());
+  }
+
+  /**
+   * Compute the reverse complement one letter at a time. This is used for
+   * alphabets other than the DNA alphabet.
+   */
+  private static Sequence reverseComplementLetters(Sequence seq) {
+    int[] complement_values = complementValues(seq.getAlphabet());
     Sequence complement = new Sequence(seq.getAlphabet(), seq.capacity());
     for (int i = seq.size() - 1; i >= 0; i--) {
       int write = seq.size() - 1 - i;
-      char letter = seq.at(i);
-      complement.setAt(write, complementBase(letter));
+      complement.setAt(write, complement_values[seq.valAt(i)]);
     }
 
     complement.setSize(seq.size());
     return complement;
   }
 
+  /**
+   * Compare a sequence to its reverse complement without constructing the
+   * reverse complement. For the DNA alphabet we compare 16 bases at a time
+   * and stop at the first int which differs.
+   *
+   * @return: -1, 0, 1 if the sequence is lexicographically less than,
+   *   equal to or greater than its reverse complement.
+   */
+  public static int compareToReverseComplement(Sequence seq) {
+    final int length = seq.size();
+    if (isDNA(seq)) {
+      final int[] data = seq.bytes();
+      final int num_ints = seq.numItemsForSize(length);
+      for (int k = 0; k < num_ints; k++) {
+        int num_bases = Math.min(BASES_PER_INT, length - k * BASES_PER_INT);
+        int forward = data[k] & baseMask(num_bases);
+        int result = compareWords(
+            forward, reverseComplementWord(data, length, k));
+        if (result != 0) {
+          return result;
+        }
+      }
+      return 0;
+    }
+
+    int[] complement_values = complementValues(seq.getAlphabet());
+    for (int i = 0; i < length; i++) {
+      int forward = seq.valAt(i);
+      int reverse = complement_values[seq.valAt(length - 1 - i)];
+      if (forward < reverse) {
+        return -1;
+      } else if (forward > reverse) {
+        return 1;
+      }
+    }
+    return 0;
+  }
+
   /**
    * Compare a string to its reverse complement.
    *
@@ -62,8 +216,7 @@ public class DNAUtil {
    */
   public static DNAStrand canonicaldir(Sequence seq)
   {
-    Sequence complement = reverseComplement(seq);
-    if (seq.compareTo(complement) <= 0)
+    if (compareToReverseComplement(seq) <= 0)
     {
       return DNAStrand.FORWARD;
     }
@@ -76,19 +229,20 @@ public class DNAUtil {
    * The canonical version of a sequence is the result
    * of comparing a DNA sequence to its reverse complement
    * and returning the one which comes first when ordered lexicographically.
+   * The reverse complement is only constructed if it is the canonical
+   * version.
    *
    * @param seq
    * @return - The canonical version of the DNA sequence.
    */
   public static Sequence canonicalseq(Sequence seq)
   {
-    Sequence rc = reverseComplement(seq);
-    if (seq.compareTo(rc) < 0)
+    if (compareToReverseComplement(seq) < 0)
     {
       return seq;
     }
 
-    return rc;
+    return reverseComplement(seq);
   }
 
   /**
@@ -106,21 +260,18 @@ public class DNAUtil {
   }
 
   /**
-   * Merge two overlapping sequences. The inputs are modified.
-   * @param src: This sequence is potentially modified by the merge.
+   * Merge two overlapping sequences. The inputs aren't modified.
+   * @param src: The first overlapping sequence.
    * @param dest: The second overlapping sequence
    * @param overlap: The amount of overlap
-   * @return: A reference to the merged sequence.
+   * @return: A new sequence containing the merged sequence.
    */
   public static Sequence mergeSequences(
       Sequence src, Sequence dest, int overlap) {
-    // TODO(jlewi): Add a unittest.
     // TODO(jlewi): Might be more efficient not to check the overlap.
-
-    Sequence src_overlap = new Sequence(src);
-    src = src.subSequence(src.size() - overlap, src.size());
-    Sequence dest_overlap = new Sequence(dest);
-    dest = dest.subSequence(0, overlap);
+    SequenceView src_overlap = new SequenceView(
+        src, src.size() - overlap, src.size());
+    SequenceView dest_overlap = new SequenceView(dest, 0, overlap);
 
     if (!src_overlap.equals(dest_overlap)) {
       throw new RuntimeException(
@@ -128,9 +279,9 @@ public class DNAUtil {
           dest_overlap.toString() + ")");
     }
 
-    dest.subSequence(overlap, dest.size());
-    src.add(dest);
-    return src;
+    Sequence merged = new Sequence(src);
+    merged.add(new SequenceView(dest, overlap, dest.size()));
+    return merged;
   }
 
   /**
@@ -146,9 +297,6 @@ public class DNAUtil {
         return false;
       }
     }
-    if (seq.equals(reverseComplement(seq))) {
-      return true;
-    }
-    return false;
+    return compareToReverseComplement(seq) == 0;
   }
 }
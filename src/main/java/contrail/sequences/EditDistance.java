@@ -0,0 +1,236 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.sequences;
+
+import java.util.Arrays;
+
+/**
+ * Compute the edit distance (Levenshtein distance) between two sequences
+ * using the bit-parallel algorithm of Myers extended to multiple words by
+ * Hyyro.
+ *
+ * The shorter sequence is the pattern. Each column of the dynamic
+ * programming matrix is stored as bit vectors of the vertical deltas,
+ * 64 rows per word, so computing a column costs O(pattern length / 64)
+ * word operations. The letters of both sequences are read directly from the
+ * packed ints of the sequences.
+ *
+ * When a maximum distance k is given only the band of the matrix within k
+ * of the diagonal, i.e. a band of width 2k+1, is computed (Ukkonen). Any
+ * alignment with at most k edits stays inside the band. Only the blocks
+ * which overlap the band are updated, so a column costs
+ * O(min(k, pattern length) / 64) word operations. The computation also
+ * stops as soon as every value in the band exceeds the maximum.
+ *
+ * The buffers are reused between calls, so an instance should be reused
+ * (e.g. one per mapper or reducer) to avoid allocating objects for each
+ * comparison. Instances aren't thread safe.
+ *
+ * References:
+ * G. Myers. A fast bit-vector algorithm for approximate string matching
+ * based on dynamic programming. J. ACM, 1999.
+ * H. Hyyro. A bit-vector algorithm for computing Levenshtein and Damerau
+ * edit distances. Nordic Journal of Computing, 2003.
+ */
+public class EditDistance {
+  private static final int BITSPERITEM = 32;
+  private static final int BITSPERWORD = 64;
+
+  // For each letter value and block of the pattern, a bit vector with
+  // bit i set if the letter at position i of the pattern is that letter.
+  // Indexed as [letter * num_blocks + block].
+  private long[] peq = new long[0];
+
+  // The positive and negative vertical deltas for each block.
+  private long[] pv = new long[0];
+  private long[] mv = new long[0];
+
+  // The value in the last row of each block for the current column.
+  private int[] block_scores = new int[0];
+
+  /**
+   * Compute the edit distance between two sequences.
+   */
+  public int compute(Sequence first, Sequence second) {
+    return compute(first, second, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Compute the edit distance between two sequences but stop as soon as the
+   * distance is known to be larger than max_distance.
+   *
+   * @param max_distance: The largest distance we are interested in.
+   * @return: The edit distance if it is <= max_distance otherwise some value
+   *   larger than max_distance.
+   */
+  public int compute(Sequence first, Sequence second, int max_distance) {
+    if (!first.getAlphabet().equals(second.getAlphabet())) {
+      throw new RuntimeException(
+          "The sequences must use the same alphabet to compute the edit " +
+          "distance.");
+    }
+    // Use the shorter sequence as the pattern to minimize the number of
+    // blocks.
+    Sequence pattern = first;
+    Sequence text = second;
+    if (pattern.size() > text.size()) {
+      pattern = second;
+      text = first;
+    }
+    final int m = pattern.size();
+    final int n = text.size();
+
+    // Every difference in length requires an insertion or deletion.
+    if (n - m > max_distance) {
+      return n - m;
+    }
+    if (m == 0) {
+      return n;
+    }
+
+    final int bits_per_letter = pattern.getAlphabet().bitsPerLetter();
+    final int letter_mask = pattern.getAlphabet().letterMask();
+    final int num_blocks = (m + BITSPERWORD - 1) / BITSPERWORD;
+
+    initializePattern(pattern, num_blocks);
+
+    // The distance is at most n so a larger band doesn't change anything.
+    final int band = Math.min(max_distance, n);
+
+    // The bit in the last block corresponding to the last row.
+    final long last_bit = 1L << ((m - 1) % BITSPERWORD);
+    final int[] text_data = text.bytes();
+
+    // The blocks are added to the band as it moves down. A new block starts
+    // with the vertical deltas all +1, i.e. each value is one more than the
+    // one above it. The values outside the band are upper bounds, which
+    // can't affect the values inside the band which are <= band.
+    int last_block = -1;
+    for (int j = 1; j <= n; ++j) {
+      // The rows of the band for column j are j - band to j + band.
+      int first_block =
+          j - band - 1 < 0 ? 0 : (j - band - 1) / BITSPERWORD;
+      int band_end = Math.min(num_blocks - 1, (j + band - 1) / BITSPERWORD);
+      while (last_block < band_end) {
+        ++last_block;
+        int rows = Math.min(BITSPERWORD, m - last_block * BITSPERWORD);
+        block_scores[last_block] =
+            (last_block == 0 ? 0 : block_scores[last_block - 1]) + rows;
+      }
+
+      int letter = letterAt(text_data, (long) (j - 1) * bits_per_letter) &
+          letter_mask;
+      int peq_offset = letter * num_blocks;
+
+      // The first row of the matrix is the distance from the empty
+      // pattern so it always increases by one. The row above a later block
+      // is outside the band so we use the upper bound of +1.
+      int hin = 1;
+      for (int block = first_block; block <= last_block; ++block) {
+        long high_bit =
+            block == num_blocks - 1 ? last_bit : 1L << (BITSPERWORD - 1);
+        long eq = peq[peq_offset + block];
+        long pv_block = pv[block];
+        long mv_block = mv[block];
+
+        long xv = eq | mv_block;
+        if (hin < 0) {
+          eq |= 1L;
+        }
+        long xh = (((eq & pv_block) + pv_block) ^ pv_block) | eq;
+        long ph = mv_block | ~(xh | pv_block);
+        long mh = pv_block & xh;
+
+        int hout = 0;
+        if ((ph & high_bit) != 0) {
+          hout = 1;
+        } else if ((mh & high_bit) != 0) {
+          hout = -1;
+        }
+
+        ph <<= 1;
+        mh <<= 1;
+        if (hin < 0) {
+          mh |= 1L;
+        } else if (hin > 0) {
+          ph |= 1L;
+        }
+        pv[block] = mh | ~(xv | ph);
+        mv[block] = ph & xv;
+        block_scores[block] += hout;
+        hin = hout;
+      }
+
+      // Every alignment passes through the band in each column, so we can
+      // stop once all the values in the band are larger than max_distance.
+      // The values in a block differ by at most one per row from the value
+      // in its last row. Row 0 is in the band until j > max_distance.
+      if (j > max_distance) {
+        int min_score = Integer.MAX_VALUE;
+        for (int block = first_block; block <= last_block; ++block) {
+          int rows = Math.min(BITSPERWORD, m - block * BITSPERWORD);
+          min_score = Math.min(min_score, block_scores[block] - rows + 1);
+        }
+        if (min_score > max_distance) {
+          return min_score;
+        }
+      }
+    }
+    // The score in the last row; i.e the distance between the pattern and
+    // the text.
+    return block_scores[num_blocks - 1];
+  }
+
+  /**
+   * Build the match vectors for the pattern and reset the vertical deltas.
+   */
+  private void initializePattern(Sequence pattern, int num_blocks) {
+    final int bits_per_letter = pattern.getAlphabet().bitsPerLetter();
+    final int letter_mask = pattern.getAlphabet().letterMask();
+    final int num_letters = 1 << bits_per_letter;
+    if (peq.length < num_letters * num_blocks) {
+      peq = new long[num_letters * num_blocks];
+    }
+    if (pv.length < num_blocks) {
+      pv = new long[num_blocks];
+      mv = new long[num_blocks];
+      block_scores = new int[num_blocks];
+    }
+    Arrays.fill(peq, 0, num_letters * num_blocks, 0L);
+    // Initially the vertical deltas are all +1 because the first column is
+    // the distance from the empty text.
+    Arrays.fill(pv, 0, num_blocks, -1L);
+    Arrays.fill(mv, 0, num_blocks, 0L);
+
+    final int[] data = pattern.bytes();
+    for (int i = 0; i < pattern.size(); ++i) {
+      int letter = letterAt(data, (long) i * bits_per_letter) & letter_mask;
+      peq[letter * num_blocks + i / BITSPERWORD] |= 1L << (i % BITSPERWORD);
+    }
+  }
+
+  /**
+   * Return the bits of the packed data starting at bit. Letters can
+   * span two ints. The caller must mask the result.
+   */
+  private static int letterAt(int[] data, long bit) {
+    int pos = (int) (bit / BITSPERITEM);
+    int offset = (int) (bit % BITSPERITEM);
+    int value = data[pos] >>> offset;
+    if (offset > 0 && pos + 1 < data.length) {
+      value |= data[pos + 1] << (BITSPERITEM - offset);
+    }
+    return value;
+  }
+}
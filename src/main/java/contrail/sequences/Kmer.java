@@ -0,0 +1,336 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.sequences;
+
+/**
+ * A KMer over the DNA alphabet packed into primitive longs.
+ *
+ * A Kmer is a sliding window over a sequence. Each time a base is added
+ * the window shifts by one base. We maintain the packed words for both the
+ * forward strand and its reverse complement and update both incrementally,
+ * so adding a base, determining the canonical strand and comparing
+ * KMers are all O(1) and don't allocate any objects.
+ *
+ * The bases are encoded using the same values as DNAAlphabetFactory
+ * (A=0, C=1, G=2, T=3) and are packed the same way as Sequence; i.e. base i
+ * occupies bits [2i, 2i + 2) of the word. Consequently, the little endian
+ * bytes of the words are exactly what Sequence.toPackedBytes() would
+ * produce for the same KMer.
+ *
+ * Use Kmer.create to get an implementation suitable for a given K.
+ */
+public abstract class Kmer {
+  /**
+   * Number of bits used to encode each base.
+   */
+  public static final int BITS_PER_BASE = 2;
+
+  /**
+   * Number of bases packed into each word.
+   */
+  public static final int BASES_PER_WORD = 64 / BITS_PER_BASE;
+
+  /**
+   * Mask to select a single base.
+   */
+  public static final int BASE_MASK = 0x3;
+
+  // The DNA alphabet; used to encode letters.
+  private static final Alphabet ALPHABET = DNAAlphabetFactory.create();
+
+  private static final char[] LETTER_FOR_BASE = {'A', 'C', 'G', 'T'};
+
+  protected final int K;
+
+  // Number of bases added since the last call to clear, capped at K.
+  protected int numBases;
+
+  protected Kmer(int K) {
+    this.K = K;
+    this.numBases = 0;
+  }
+
+  /**
+   * Create a KMer suitable for the given K.
+   *
+   * @param K: The length of the KMers.
+   * @return: A Kmer32 if K <= 32 or a Kmer64 if K <= 64.
+   */
+  public static Kmer create(int K) {
+    if (K <= 0) {
+      throw new RuntimeException("K must be a positive integer.");
+    }
+    if (K <= Kmer32.MAX_K) {
+      return new Kmer32(K);
+    }
+    if (K <= Kmer64.MAX_K) {
+      return new Kmer64(K);
+    }
+    throw new RuntimeException(
+        "KMers longer than " + Kmer64.MAX_K + " bases aren't supported.");
+  }
+
+  /**
+   * Whether there is a Kmer implementation for KMers of length K.
+   */
+  public static boolean isSupported(int K) {
+    return K > 0 && K <= Kmer64.MAX_K;
+  }
+
+  /**
+   * Return the value of the base for the letter or -1 if the letter isn't
+   * one of {A, C, G, T}.
+   */
+  public static int baseForLetter(char letter) {
+    return ALPHABET.letterCode(letter);
+  }
+
+  /**
+   * Return the complement of a base.
+   */
+  public static int complementBase(int base) {
+    return base ^ BASE_MASK;
+  }
+
+  /**
+   * Compare two words containing packed bases.
+   *
+   * Since base 0 is stored in the least significant bits the lexicographic
+   * order is determined by the least significant base which differs.
+   *
+   * @return: -1, 0 or 1 if the bases in left are lexicographically less than,
+   *   equal to or greater than the bases in right.
+   */
+  public static int compareWords(long left, long right) {
+    long diff = left ^ right;
+    if (diff == 0) {
+      return 0;
+    }
+    int shift = Long.numberOfTrailingZeros(diff) & ~(BITS_PER_BASE - 1);
+    return ((left >>> shift) & BASE_MASK) < ((right >>> shift) & BASE_MASK) ?
+        -1 : 1;
+  }
+
+  /**
+   * The length of the KMer.
+   */
+  public int getK() {
+    return K;
+  }
+
+  /**
+   * Empty the window.
+   */
+  public void clear() {
+    numBases = 0;
+    clearWords();
+  }
+
+  /**
+   * Whether at least K bases have been added since the last clear.
+   */
+  public boolean isFull() {
+    return numBases >= K;
+  }
+
+  /**
+   * Slide the window one base.
+   *
+   * The first base of the KMer is dropped and base becomes the last base of
+   * the KMer.
+   *
+   * @param base: The value of the base [0, 3].
+   */
+  public void addBase(int base) {
+    shiftIn(base);
+    if (numBases < K) {
+      ++numBases;
+    }
+  }
+
+  /**
+   * Slide the window one letter.
+   *
+   * If the letter isn't a valid base the window is cleared, so the next
+   * full KMer is the first one following the invalid letter.
+   *
+   * @return: True if the letter was a valid base.
+   */
+  public boolean addLetter(char letter) {
+    int base = baseForLetter(letter);
+    if (base < 0) {
+      clear();
+      return false;
+    }
+    addBase(base);
+    return true;
+  }
+
+  /**
+   * Return the value of the base at the indicated position of the
+   * specified strand.
+   */
+  public int baseAt(DNAStrand strand, int pos) {
+    long word = getWord(strand, pos / BASES_PER_WORD);
+    return (int) (word >>> (BITS_PER_BASE * (pos % BASES_PER_WORD))) &
+        BASE_MASK;
+  }
+
+  /**
+   * Return the canonical strand of the KMer.
+   *
+   * Matches DNAUtil.canonicaldir; i.e if the KMer equals its reverse
+   * complement the canonical strand is FORWARD.
+   */
+  public DNAStrand canonicalStrand() {
+    return compareStrands() <= 0 ? DNAStrand.FORWARD : DNAStrand.REVERSE;
+  }
+
+  /**
+   * Whether the forward strand of this KMer equals the forward strand of
+   * other.
+   */
+  public boolean forwardEquals(Kmer other) {
+    if (other.K != K || other.numWords() != numWords()) {
+      return false;
+    }
+    for (int i = 0; i < numWords(); ++i) {
+      if (getWord(DNAStrand.FORWARD, i) !=
+          other.getWord(DNAStrand.FORWARD, i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The number of bytes needed to store the packed bases.
+   */
+  public int numPackedBytes() {
+    return (K * BITS_PER_BASE + 7) / 8;
+  }
+
+  /**
+   * Write the packed bytes for the specified strand into buffer.
+   *
+   * The bytes are identical to the first numPackedBytes() of
+   * Sequence.toPackedBytes().
+   *
+   * @param strand: Which strand to write.
+   * @param buffer: Buffer to write to; must have length >= numPackedBytes().
+   * @return: The number of bytes written.
+   */
+  public int toPackedBytes(DNAStrand strand, byte[] buffer) {
+    int numBytes = numPackedBytes();
+    int index = 0;
+    for (int w = 0; w < numWords(); ++w) {
+      long word = getWord(strand, w);
+      for (int b = 0; b < 8 && index < numBytes; ++b) {
+        buffer[index] = (byte) (word >>> (8 * b));
+        ++index;
+      }
+    }
+    return numBytes;
+  }
+
+  /**
+   * Return the packed bytes for the specified strand.
+   */
+  public byte[] toPackedBytes(DNAStrand strand) {
+    byte[] buffer = new byte[numPackedBytes()];
+    toPackedBytes(strand, buffer);
+    return buffer;
+  }
+
+  /**
+   * Return a new Sequence representing the specified strand.
+   */
+  public Sequence toSequence(DNAStrand strand) {
+    int[] data = new int[(K * BITS_PER_BASE + 31) / 32];
+    for (int i = 0; i < data.length; ++i) {
+      long word = getWord(strand, i / 2);
+      data[i] = (int) (word >>> (32 * (i % 2)));
+    }
+    return new Sequence(data, K, DNAAlphabetFactory.create());
+  }
+
+  /**
+   * Write the letters for the specified strand into buffer.
+   *
+   * @param buffer: Buffer to write to; must have length >= K.
+   */
+  public void toChars(DNAStrand strand, char[] buffer) {
+    for (int pos = 0; pos < K; ++pos) {
+      buffer[pos] = LETTER_FOR_BASE[baseAt(strand, pos)];
+    }
+  }
+
+  /**
+   * Return a string representing the specified strand.
+   */
+  public String toString(DNAStrand strand) {
+    char[] letters = new char[K];
+    toChars(strand, letters);
+    return String.valueOf(letters);
+  }
+
+  /**
+   * Return a string representing the forward strand.
+   */
+  @Override
+  public String toString() {
+    return toString(DNAStrand.FORWARD);
+  }
+
+  /**
+   * Copy the state of other into this KMer. The two KMers must have the
+   * same length.
+   */
+  public abstract void set(Kmer other);
+
+  /**
+   * Replace the KMer with its reverse complement. Subsequent bases are then
+   * added to the reverse complement.
+   */
+  public abstract void reverseComplement();
+
+  /**
+   * Compare the forward strand to its reverse complement.
+   *
+   * @return: -1, 0, 1 if the forward strand is lexicographically less than,
+   *   equal to or greater than its reverse complement.
+   */
+  public abstract int compareStrands();
+
+  /**
+   * The number of words used to store each strand.
+   */
+  public abstract int numWords();
+
+  /**
+   * Return the indicated word for the specified strand. Bits beyond the end
+   * of the KMer are always zero.
+   */
+  public abstract long getWord(DNAStrand strand, int index);
+
+  /**
+   * Shift the base into the words for both strands.
+   */
+  protected abstract void shiftIn(int base);
+
+  /**
+   * Zero out the words for both strands.
+   */
+  protected abstract void clearWords();
+}
@@ -0,0 +1,102 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.sequences;
+
+/**
+ * A KMer of length K <= 32 stored in a single long per strand.
+ */
+public class Kmer32 extends Kmer {
+  public static final int MAX_K = 32;
+
+  // Mask selecting the 2K bits used by the KMer.
+  private final long mask;
+
+  // Shift to move a base into position K - 1.
+  private final int lastShift;
+
+  private long forward;
+  private long reverse;
+
+  public Kmer32(int K) {
+    super(K);
+    if (K <= 0 || K > MAX_K) {
+      throw new RuntimeException("K must be in the range [1, " + MAX_K + "]");
+    }
+    mask = K == MAX_K ? -1L : (1L << (BITS_PER_BASE * K)) - 1;
+    lastShift = BITS_PER_BASE * (K - 1);
+  }
+
+  @Override
+  protected void shiftIn(int base) {
+    forward = (forward >>> BITS_PER_BASE) | ((long) base << lastShift);
+    reverse = ((reverse << BITS_PER_BASE) | complementBase(base)) & mask;
+  }
+
+  @Override
+  protected void clearWords() {
+    forward = 0;
+    reverse = 0;
+  }
+
+  @Override
+  public void set(Kmer other) {
+    Kmer32 kmer = (Kmer32) other;
+    if (kmer.K != K) {
+      throw new RuntimeException("The KMers must have the same length.");
+    }
+    forward = kmer.forward;
+    reverse = kmer.reverse;
+    numBases = kmer.numBases;
+  }
+
+  @Override
+  public void reverseComplement() {
+    long tmp = forward;
+    forward = reverse;
+    reverse = tmp;
+  }
+
+  @Override
+  public int compareStrands() {
+    return compareWords(forward, reverse);
+  }
+
+  @Override
+  public int numWords() {
+    return 1;
+  }
+
+  @Override
+  public long getWord(DNAStrand strand, int index) {
+    if (index != 0) {
+      throw new IndexOutOfBoundsException("Kmer32 only has a single word.");
+    }
+    return strand == DNAStrand.FORWARD ? forward : reverse;
+  }
+
+  /**
+   * Return the index of the specified strand when KMers are enumerated in
+   * lexicographic order; i.e the first base is the most significant.
+   * This is the index quake uses for its bitvector.
+   */
+  public long lexicographicIndex(DNAStrand strand) {
+    long word = strand == DNAStrand.FORWARD ? forward : reverse;
+    // Reverse the order of the bits and then swap the bits within each base
+    // so that the order of the bases is reversed.
+    word = Long.reverse(word);
+    word = ((word >>> 1) & 0x5555555555555555L) |
+           ((word & 0x5555555555555555L) << 1);
+    return word >>> (64 - BITS_PER_BASE * K);
+  }
+}
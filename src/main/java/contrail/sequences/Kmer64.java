@@ -0,0 +1,120 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.sequences;
+
+/**
+ * A KMer of length 32 < K <= 64 stored in two longs per strand.
+ *
+ * The low word stores bases [0, 32) and the high word stores bases [32, K).
+ */
+public class Kmer64 extends Kmer {
+  public static final int MAX_K = 64;
+
+  // Mask selecting the bits of the high word used by the KMer.
+  private final long highMask;
+
+  // Shift to move a base into position K - 1 of the high word.
+  private final int lastShift;
+
+  private long forwardLow;
+  private long forwardHigh;
+  private long reverseLow;
+  private long reverseHigh;
+
+  public Kmer64(int K) {
+    super(K);
+    if (K <= Kmer32.MAX_K || K > MAX_K) {
+      throw new RuntimeException(
+          "K must be in the range [" + (Kmer32.MAX_K + 1) + ", " + MAX_K +
+          "]. Use Kmer32 for shorter KMers.");
+    }
+    int highBases = K - BASES_PER_WORD;
+    highMask = highBases == BASES_PER_WORD ?
+        -1L : (1L << (BITS_PER_BASE * highBases)) - 1;
+    lastShift = BITS_PER_BASE * (highBases - 1);
+  }
+
+  @Override
+  protected void shiftIn(int base) {
+    forwardLow = (forwardLow >>> BITS_PER_BASE) |
+        ((forwardHigh & BASE_MASK) << (64 - BITS_PER_BASE));
+    forwardHigh = (forwardHigh >>> BITS_PER_BASE) | ((long) base << lastShift);
+
+    reverseHigh = ((reverseHigh << BITS_PER_BASE) |
+        (reverseLow >>> (64 - BITS_PER_BASE))) & highMask;
+    reverseLow = (reverseLow << BITS_PER_BASE) | complementBase(base);
+  }
+
+  @Override
+  protected void clearWords() {
+    forwardLow = 0;
+    forwardHigh = 0;
+    reverseLow = 0;
+    reverseHigh = 0;
+  }
+
+  @Override
+  public void set(Kmer other) {
+    Kmer64 kmer = (Kmer64) other;
+    if (kmer.K != K) {
+      throw new RuntimeException("The KMers must have the same length.");
+    }
+    forwardLow = kmer.forwardLow;
+    forwardHigh = kmer.forwardHigh;
+    reverseLow = kmer.reverseLow;
+    reverseHigh = kmer.reverseHigh;
+    numBases = kmer.numBases;
+  }
+
+  @Override
+  public void reverseComplement() {
+    long tmp = forwardLow;
+    forwardLow = reverseLow;
+    reverseLow = tmp;
+
+    tmp = forwardHigh;
+    forwardHigh = reverseHigh;
+    reverseHigh = tmp;
+  }
+
+  @Override
+  public int compareStrands() {
+    int result = compareWords(forwardLow, reverseLow);
+    if (result != 0) {
+      return result;
+    }
+    return compareWords(forwardHigh, reverseHigh);
+  }
+
+  @Override
+  public int numWords() {
+    return 2;
+  }
+
+  @Override
+  public long getWord(DNAStrand strand, int index) {
+    if (strand == DNAStrand.FORWARD) {
+      switch (index) {
+        case 0: return forwardLow;
+        case 1: return forwardHigh;
+      }
+    } else {
+      switch (index) {
+        case 0: return reverseLow;
+        case 1: return reverseHigh;
+      }
+    }
+    throw new IndexOutOfBoundsException("Kmer64 only has two words.");
+  }
+}
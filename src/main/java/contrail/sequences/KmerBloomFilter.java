@@ -0,0 +1,151 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.sequences;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import contrail.util.HashUtil;
+
+/**
+ * A Bloom filter of canonical KMers.
+ *
+ * A KMer and its reverse complement are treated as the same KMer. The bit
+ * positions for a KMer are computed using double hashing of the packed
+ * words of its canonical strand, so they can be computed without
+ * allocating any objects. computeIndexes is public so that counting
+ * filters (see BuildKmerFilter) use the same positions.
+ */
+public class KmerBloomFilter {
+  private final long numBits;
+  private final int numHashes;
+  private final long[] bits;
+
+  /**
+   * @param numBits: The number of bits in the filter; must be a positive
+   *   multiple of 64.
+   * @param numHashes: The number of bits set for each KMer.
+   */
+  public KmerBloomFilter(long numBits, int numHashes) {
+    if (numBits <= 0 || numBits % 64 != 0 ||
+        numBits / 64 > Integer.MAX_VALUE) {
+      throw new RuntimeException(
+          "The number of bits must be a positive multiple of 64: " + numBits);
+    }
+    if (numHashes <= 0) {
+      throw new RuntimeException("The number of hashes must be positive.");
+    }
+    this.numBits = numBits;
+    this.numHashes = numHashes;
+    bits = new long[(int) (numBits / 64)];
+  }
+
+  public long getNumBits() {
+    return numBits;
+  }
+
+  public int getNumHashes() {
+    return numHashes;
+  }
+
+  /**
+   * Compute the positions of the bits for a KMer.
+   *
+   * @param kmer: The KMer; either strand gives the same positions.
+   * @param numBits: The number of bits in the filter.
+   * @param indexes: Array to store the positions in. The length of the
+   *   array is the number of hashes.
+   */
+  public static void computeIndexes(Kmer kmer, long numBits, long[] indexes) {
+    DNAStrand strand = kmer.canonicalStrand();
+    long hash = HashUtil.mix64(kmer.getWord(strand, 0) ^ kmer.getK());
+    for (int w = 1; w < kmer.numWords(); ++w) {
+      hash = HashUtil.mix64(hash ^ kmer.getWord(strand, w));
+    }
+    long step = HashUtil.mix64(hash + 0x9E3779B97F4A7C15L) | 1;
+    for (int i = 0; i < indexes.length; ++i) {
+      indexes[i] = ((hash + i * step) >>> 1) % numBits;
+    }
+  }
+
+  /**
+   * Set the bit at the indicated position.
+   */
+  public void setBit(long index) {
+    bits[(int) (index >>> 6)] |= 1L << index;
+  }
+
+  public boolean getBit(long index) {
+    return (bits[(int) (index >>> 6)] & (1L << index)) != 0;
+  }
+
+  /**
+   * Add a KMer to the filter.
+   */
+  public void add(Kmer kmer) {
+    long[] indexes = new long[numHashes];
+    computeIndexes(kmer, numBits, indexes);
+    for (long index : indexes) {
+      setBit(index);
+    }
+  }
+
+  /**
+   * Check whether the KMer might be in the filter.
+   *
+   * @param kmer: The KMer.
+   * @param indexes: Buffer for the positions of the bits; must have length
+   *   numHashes. The buffer lets callers avoid allocating an array for
+   *   each lookup.
+   * @return: False if the KMer definitely wasn't added to the filter.
+   */
+  public boolean mightContain(Kmer kmer, long[] indexes) {
+    computeIndexes(kmer, numBits, indexes);
+    for (long index : indexes) {
+      if (!getBit(index)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public boolean mightContain(Kmer kmer) {
+    return mightContain(kmer, new long[numHashes]);
+  }
+
+  /**
+   * Write the filter.
+   */
+  public void write(DataOutput out) throws IOException {
+    out.writeLong(numBits);
+    out.writeInt(numHashes);
+    for (long word : bits) {
+      out.writeLong(word);
+    }
+  }
+
+  /**
+   * Read a filter written by write.
+   */
+  public static KmerBloomFilter read(DataInput in) throws IOException {
+    long numBits = in.readLong();
+    int numHashes = in.readInt();
+    KmerBloomFilter filter = new KmerBloomFilter(numBits, numHashes);
+    for (int i = 0; i < filter.bits.length; ++i) {
+      filter.bits[i] = in.readLong();
+    }
+    return filter;
+  }
+}
@@ -0,0 +1,121 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.sequences;
+
+import java.util.Arrays;
+
+/**
+ * A set of the forward strands of KMers.
+ *
+ * The set stores the packed words in an open addressing hash table so
+ * adding and looking up KMers doesn't allocate any objects. The set is
+ * intended to be reused; e.g. to track the KMers seen in a read.
+ */
+public class KmerSet {
+  // Each slot holds two words. KMers with a single word use 0 for the
+  // second word.
+  private long[] words;
+  private boolean[] used;
+  private int size;
+
+  public KmerSet() {
+    this(64);
+  }
+
+  /**
+   * @param capacity: The expected number of KMers.
+   */
+  public KmerSet(int capacity) {
+    int slots = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) * 2;
+    words = new long[2 * slots];
+    used = new boolean[slots];
+    size = 0;
+  }
+
+  /**
+   * Remove all KMers from the set.
+   */
+  public void clear() {
+    if (size > 0) {
+      Arrays.fill(used, false);
+      size = 0;
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean contains(Kmer kmer) {
+    long low = kmer.getWord(DNAStrand.FORWARD, 0);
+    long high = kmer.numWords() > 1 ? kmer.getWord(DNAStrand.FORWARD, 1) : 0;
+    return used[findSlot(low, high)];
+  }
+
+  /**
+   * Add the forward strand of the KMer to the set.
+   *
+   * @return: True if the KMer wasn't already in the set.
+   */
+  public boolean add(Kmer kmer) {
+    long low = kmer.getWord(DNAStrand.FORWARD, 0);
+    long high = kmer.numWords() > 1 ? kmer.getWord(DNAStrand.FORWARD, 1) : 0;
+    int slot = findSlot(low, high);
+    if (used[slot]) {
+      return false;
+    }
+    used[slot] = true;
+    words[2 * slot] = low;
+    words[2 * slot + 1] = high;
+    ++size;
+
+    // Keep the load factor below 1/2.
+    if (2 * size > used.length) {
+      grow();
+    }
+    return true;
+  }
+
+  private static int hash(long low, long high) {
+    long hash = (low ^ (high * 0xC2B2AE3D27D4EB4FL)) * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32));
+  }
+
+  // Return the slot containing the words or the empty slot where they
+  // should be inserted.
+  private int findSlot(long low, long high) {
+    int mask = used.length - 1;
+    int slot = hash(low, high) & mask;
+    while (used[slot] &&
+           (words[2 * slot] != low || words[2 * slot + 1] != high)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void grow() {
+    long[] oldWords = words;
+    boolean[] oldUsed = used;
+    words = new long[2 * oldWords.length];
+    used = new boolean[2 * oldUsed.length];
+    for (int i = 0; i < oldUsed.length; ++i) {
+      if (oldUsed[i]) {
+        int slot = findSlot(oldWords[2 * i], oldWords[2 * i + 1]);
+        used[slot] = true;
+        words[2 * slot] = oldWords[2 * i];
+        words[2 * slot + 1] = oldWords[2 * i + 1];
+      }
+    }
+  }
+}
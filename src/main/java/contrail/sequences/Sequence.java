@@ -7,6 +7,7 @@ import java.util.Arrays;
 import org.apache.commons.codec.binary.Base64;
 
 import contrail.util.ByteUtil;
+import contrail.util.HashUtil;
 
 /**
  * Provides a wrapper class for accessing the sequence compactly encoded in an
@@ -116,46 +117,17 @@ public class Sequence implements Comparable<Sequence> {
         / alphabet.bitsPerLetter()));
   }
 
-  // Min3 gives minimum between 3 elements
-  private int Min3(int a, int b, int c) {
-    a = Math.min(a, b);
-    return Math.min(a, c);
-  }
-
   /**
    * Calculate the edit distance (Levenshtein Distance) between two sequences.
    *
    * see: http://en.wikipedia.org/wiki/String_metric
    * http://www.ling.ohio-state.edu/~cbrew/795M/string-distance.html
+   *
+   * This allocates a new EditDistance; when computing many distances reuse
+   * an EditDistance object instead.
    * */
   public int computeEditDistance(Sequence sequence2) {
-    Sequence sequence1 = this;
-    int len1 = sequence1.size();
-    int len2 = sequence2.size();
-
-    // The cost of the various errors.
-    final int DEL_COST = 1;
-    final int INS_COST = 1;
-    final int SUB_COST = 1;
-
-    int[][] d = new int[len1 + 1][len2 + 1];
-    d[0][0] = 0;
-    for (int i = 0; i < len1; i++) {
-      d[i + 1][0] = d[i][0] + DEL_COST;
-    }
-    for (int j = 0; j < len2; j++) {
-      d[0][j + 1] = d[0][j] + INS_COST;
-    }
-    for (int row = 1; row <= len1; ++row) {
-      char w1 = sequence1.at(row - 1);
-      for (int col = 1; col <= len2; ++col) {
-        char w2 = sequence2.at(col - 1);
-        int e = (w1 == w2) ? 0 : SUB_COST;
-        d[row][col] = Min3(d[row - 1][col] + 1, d[row][col - 1] + 1,
-            d[row - 1][col - 1] + e);
-      }
-    }
-    return d[len1][len2];
+    return new EditDistance().compute(this, sequence2);
   }
 
   /**
@@ -367,8 +339,7 @@ public class Sequence implements Comparable<Sequence> {
       data = new int[min_ints];
     }
 
-    int[] letters = alphabet.utf8ToInt(utf_letters, length);
-    setAt(0, letters);
+    alphabet.encode(utf_letters, 0, length, data);
   }
 
   /**
@@ -410,22 +381,27 @@ public class Sequence implements Comparable<Sequence> {
     // Zero out the array.
     Arrays.fill(this.data, FILL_VALUE);
 
-    boolean has_eos = alphabet.hasEOS();
-
-    for (int pos = 0; pos < sequence.length(); pos++) {
-      if (has_eos && (sequence.charAt(pos) == alphabet.EOS())) {
-        String error = "Sequence should not contain the null/end of sequence character ("
-            + alphabet.EOS() + "). Sequence is: " + sequence.toString();
-        throw new RuntimeException(error);
+    if (alphabet.hasEOS()) {
+      for (int pos = 0; pos < sequence.length(); pos++) {
+        if (sequence.charAt(pos) == alphabet.EOS()) {
+          String error = "Sequence should not contain the null/end of sequence character ("
+              + alphabet.EOS() + "). Sequence is: " + sequence.toString();
+          throw new RuntimeException(error);
+        }
       }
-      setAt(pos, sequence.charAt(pos));
     }
+
+    alphabet.encode(sequence, 0, sequence.length(), data);
     length = sequence.length();
 
     // Set null characters for all remaining characters in the array.
-    int max_length = capacity();
-    for (int pos = sequence.length(); pos < max_length; pos++) {
-      setAt(pos, alphabet.EOS());
+    // The array is already zeroed so this is only necessary if the
+    // end of sequence character isn't encoded as zero.
+    if (alphabet.intEOS() != FILL_VALUE) {
+      int max_length = capacity();
+      for (int pos = sequence.length(); pos < max_length; pos++) {
+        setAt(pos, alphabet.EOS());
+      }
     }
   }
 
@@ -534,12 +510,15 @@ public class Sequence implements Comparable<Sequence> {
   /**
    * Compare to sequences.
    *
+   * We compare the packed ints rather than individual letters. We can't just
+   * compare the integers because we start filling in the integers starting
+   * with the least significant bit. Thus, if we have two sequences of equal
+   * length, the most significant bit in the int is actually the least
+   * significant bit with regards to the comparison. Instead we find the
+   * least significant bit which differs; the letter containing that bit is
+   * the first letter which differs.
+   *
    * TODO(jlewi): How should we handle sequences with different alphabets.
-   * TODO(jlewi): Can we speed this up? Unfortunately, we can't just convert the
-   * integers because we start filling in the integers starting with the least
-   * significant bit. Thus, if we have two sequences of equal length, the most
-   * significant bit in the int is actually the least significant bit with
-   * regards to the comparison.
    *
    * @param seq
    * @return
@@ -554,12 +533,9 @@ public class Sequence implements Comparable<Sequence> {
     // Determine which sequence is shorter.
     int min_length = this.size() < seq.size() ? this.size() : seq.size();
 
-    for (int i = 0; i < min_length; i++) {
-      if (this.valAt(i) < seq.valAt(i)) {
-        return -1;
-      } else if (this.valAt(i) > seq.valAt(i)) {
-        return 1;
-      }
+    int diff_letter = firstDifference(seq, min_length);
+    if (diff_letter >= 0) {
+      return this.valAt(diff_letter) < seq.valAt(diff_letter) ? -1 : 1;
     }
     // Check if one sequence is a prefix of the other.
     if (this.size() < seq.size()) {
@@ -572,28 +548,106 @@ public class Sequence implements Comparable<Sequence> {
   }
 
   /**
-   * Check if two alphabets are equal
+   * Find the first letter in [0, length) which differs between this sequence
+   * and other. Both sequences must use the same alphabet.
+   *
+   * @return: The position of the letter or -1 if the letters are the same.
+   */
+  private int firstDifference(Sequence other, int length) {
+    final int bits_per_letter = alphabet.bitsPerLetter();
+    final long num_bits = (long) length * bits_per_letter;
+    final int num_items = (int) ((num_bits + BITSPERITEM - 1) / BITSPERITEM);
+    for (int index = 0; index < num_items; index++) {
+      int diff = this.data[index] ^ other.data[index];
+      if (index == num_items - 1) {
+        // Ignore bits after the last letter.
+        int unset_bits = (int) ((long) num_items * BITSPERITEM - num_bits);
+        diff = diff & (0xFFFFFFFF >>> unset_bits);
+      }
+      if (diff != 0) {
+        long bit = (long) index * BITSPERITEM +
+            Integer.numberOfTrailingZeros(diff);
+        return (int) (bit / bits_per_letter);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Check if two sequences are equal.
+   *
+   * Sequences are equal if they use the same alphabet and contain the same
+   * letters.
    */
   @Override
   public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
     if (!(other instanceof Sequence)) {
-      throw new RuntimeException(
-          "Can only compare Sequences to other sequences");
+      return false;
+    }
+    Sequence seq = (Sequence) other;
+    if (this.length != seq.length || !this.alphabet.equals(seq.alphabet)) {
+      return false;
     }
-    return this.compareTo((Sequence) other) == 0 ? true : false;
+    return firstDifference(seq, this.length) < 0;
   }
 
   /**
-   * Construct a string representing the sequence.
+   * Compute a hash code from the packed ints. Bits after the last letter are
+   * ignored so the hash code is consistent with equals.
    */
   @Override
-  public String toString() {
-    StringBuilder builder = new StringBuilder(size());
-    for (int i = 0; i < size(); i++) {
-      builder.append(at(i));
+  public int hashCode() {
+    final long num_bits = (long) length * alphabet.bitsPerLetter();
+    final int num_items = (int) ((num_bits + BITSPERITEM - 1) / BITSPERITEM);
+    int hash = length;
+    for (int index = 0; index < num_items; index++) {
+      int item = data[index];
+      if (index == num_items - 1) {
+        int unset_bits = (int) ((long) num_items * BITSPERITEM - num_bits);
+        item = item & (0xFFFFFFFF >>> unset_bits);
+      }
+      hash = 31 * hash + item;
+    }
+    return hash;
+  }
+
+  /**
+   * Compute a 64 bit hash of the sequence from the packed ints.
+   *
+   * Unlike hashCode the hash is intended to have few collisions even for
+   * billions of sequences so it can be used as an identifier; e.g. for
+   * compact node ids. Bits after the last letter are ignored.
+   *
+   * @param seed: Seed for the hash; different seeds produce independent
+   *   hashes.
+   */
+  public long hash64(long seed) {
+    final long num_bits = (long) length * alphabet.bitsPerLetter();
+    final int num_items = (int) ((num_bits + BITSPERITEM - 1) / BITSPERITEM);
+    long hash = HashUtil.mix64(seed ^ length);
+    for (int index = 0; index < num_items; index++) {
+      int item = data[index];
+      if (index == num_items - 1) {
+        int unset_bits = (int) ((long) num_items * BITSPERITEM - num_bits);
+        item = item & (0xFFFFFFFF >>> unset_bits);
+      }
+      hash = HashUtil.mix64(hash ^ (item & 0xFFFFFFFFL)) +
+          0x9E3779B97F4A7C15L;
     }
+    return HashUtil.mix64(hash);
+  }
 
-    return builder.toString();
+  /**
+   * Construct a string representing the sequence.
+   */
+  @Override
+  public String toString() {
+    char[] letters = new char[size()];
+    alphabet.decode(data, 0, size(), letters);
+    return String.valueOf(letters);
   }
 
   /**
@@ -743,6 +797,61 @@ public class Sequence implements Comparable<Sequence> {
     return this.data;
   }
 
+  /**
+   * Add the letters in the view to this sequence.
+   *
+   * This avoids copying the letters into a temporary sequence; e.g. when
+   * appending the non overlapping suffix of a sequence. We grow the buffer if
+   * needed and return a reference to the buffer so the caller can update
+   * references.
+   *
+   * @param other - The letters to add to this one.
+   * @return - Pointer to the buffer inside this Sequence which stores the sum.
+   */
+  public int[] add(SequenceView other) {
+    if (other.size() == 0) {
+      return this.data;
+    }
+    if (!this.alphabet.equals(other.getAlphabet())) {
+      throw new RuntimeException(
+          "Sequences must use the same alphabet to be added.");
+    }
+    growCapacity(this.size() + other.size());
+
+    // The items of the view are ORed into place so all unset bits must be
+    // zero.
+    zeroOutUnsetBits();
+
+    final long write_bit = (long) alphabet.bitsPerLetter() * this.size();
+    final int num_items = other.numItems();
+    for (int index = 0; index < num_items; index++) {
+      int item = other.itemAt(index);
+      long bit = write_bit + (long) index * BITSPERITEM;
+      int write_pos = (int) (bit / BITSPERITEM);
+      int write_int_offset = (int) (bit % BITSPERITEM);
+      this.data[write_pos] |= item << write_int_offset;
+      if (write_int_offset > 0 && write_pos + 1 < this.data.length) {
+        this.data[write_pos + 1] |= item >>> (BITSPERITEM - write_int_offset);
+      }
+    }
+    this.length += other.size();
+    return this.data;
+  }
+
+  /**
+   * Return the 32 bits of packed data starting at bit. Bits past the end of
+   * the buffer are zero. Used by SequenceView to read unaligned items.
+   */
+  int itemAtBit(long bit) {
+    int pos = (int) (bit / BITSPERITEM);
+    int offset = (int) (bit % BITSPERITEM);
+    int item = pos < data.length ? data[pos] >>> offset : 0;
+    if (offset > 0 && pos + 1 < data.length) {
+      item = item | (data[pos + 1] << (BITSPERITEM - offset));
+    }
+    return item;
+  }
+
   /**
    * Return the number of items needed for sequences of the given length.
    *
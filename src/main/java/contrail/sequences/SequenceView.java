@@ -0,0 +1,225 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.sequences;
+
+/**
+ * A read only view of the letters [start, end) of a sequence.
+ *
+ * Unlike Sequence.subSequence a view doesn't copy the packed data. Views
+ * are compared and hashed by reading the packed ints of the underlying
+ * sequence at the offset of the view, so comparing overlaps or KMers
+ * doesn't allocate any objects. A view can be pointed at a different region
+ * using set, so a single view can be reused in a loop.
+ *
+ * The view isn't valid if the underlying sequence is modified.
+ */
+public class SequenceView implements Comparable<SequenceView> {
+  private static final int BITSPERITEM = 32;
+
+  private Sequence sequence;
+  private int start;
+  private int length;
+
+  /**
+   * Construct a view of the entire sequence.
+   */
+  public SequenceView(Sequence sequence) {
+    set(sequence, 0, sequence.size());
+  }
+
+  /**
+   * Construct a view of the letters [start, end) of sequence.
+   */
+  public SequenceView(Sequence sequence, int start, int end) {
+    set(sequence, start, end);
+  }
+
+  /**
+   * Point the view at the letters [start, end) of sequence.
+   */
+  public void set(Sequence sequence, int start, int end) {
+    if (start < 0 || end > sequence.size() || start > end) {
+      throw new IndexOutOfBoundsException(
+          "The range [" + start + ", " + end + ") isn't a valid range for a " +
+          "sequence of length " + sequence.size());
+    }
+    this.sequence = sequence;
+    this.start = start;
+    this.length = end - start;
+  }
+
+  /**
+   * The number of letters in the view.
+   */
+  public int size() {
+    return length;
+  }
+
+  public Alphabet getAlphabet() {
+    return sequence.getAlphabet();
+  }
+
+  /**
+   * Return the letter at the indicated position of the view.
+   */
+  public char at(int pos) {
+    checkPosition(pos);
+    return sequence.at(start + pos);
+  }
+
+  /**
+   * Return the integer value of the letter at the indicated position of the
+   * view.
+   */
+  public int valAt(int pos) {
+    checkPosition(pos);
+    return sequence.valAt(start + pos);
+  }
+
+  /**
+   * The number of packed ints needed to store the letters in the view.
+   */
+  int numItems() {
+    long num_bits = (long) length * getAlphabet().bitsPerLetter();
+    return (int) ((num_bits + BITSPERITEM - 1) / BITSPERITEM);
+  }
+
+  /**
+   * Return the index'th packed int of the view; i.e the int Sequence would
+   * store at that index if the view were copied into a new sequence. Bits
+   * after the last letter are zero.
+   */
+  int itemAt(int index) {
+    final int bits_per_letter = getAlphabet().bitsPerLetter();
+    long bit = (long) start * bits_per_letter + (long) index * BITSPERITEM;
+    int item = sequence.itemAtBit(bit);
+    if (index == numItems() - 1) {
+      long num_bits = (long) length * bits_per_letter;
+      int unset_bits = (int) ((long) (index + 1) * BITSPERITEM - num_bits);
+      item = item & (0xFFFFFFFF >>> unset_bits);
+    }
+    return item;
+  }
+
+  /**
+   * Find the first letter in [0, length) which differs between this view
+   * and other. Both views must use the same alphabet.
+   *
+   * @return: The position of the letter or -1 if the letters are the same.
+   */
+  private int firstDifference(SequenceView other, int length) {
+    final int bits_per_letter = getAlphabet().bitsPerLetter();
+    final long num_bits = (long) length * bits_per_letter;
+    final int num_items = (int) ((num_bits + BITSPERITEM - 1) / BITSPERITEM);
+    final long this_bit = (long) start * bits_per_letter;
+    final long other_bit = (long) other.start * bits_per_letter;
+    for (int index = 0; index < num_items; index++) {
+      long offset = (long) index * BITSPERITEM;
+      int diff = sequence.itemAtBit(this_bit + offset) ^
+          other.sequence.itemAtBit(other_bit + offset);
+      if (index == num_items - 1) {
+        // Ignore bits after the last letter.
+        int unset_bits = (int) ((long) num_items * BITSPERITEM - num_bits);
+        diff = diff & (0xFFFFFFFF >>> unset_bits);
+      }
+      if (diff != 0) {
+        long bit = offset + Integer.numberOfTrailingZeros(diff);
+        return (int) (bit / bits_per_letter);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Compare two views lexicographically. The ordering is the same as the
+   * ordering of the corresponding sequences.
+   */
+  @Override
+  public int compareTo(SequenceView other) {
+    if (!getAlphabet().equals(other.getAlphabet())) {
+      throw new RuntimeException(
+          "Two sequences must use the same alphabet to be comparable");
+    }
+    int min_length = Math.min(length, other.length);
+    int diff_letter = firstDifference(other, min_length);
+    if (diff_letter >= 0) {
+      return valAt(diff_letter) < other.valAt(diff_letter) ? -1 : 1;
+    }
+    if (length < other.length) {
+      return -1;
+    } else if (length > other.length) {
+      return 1;
+    }
+    return 0;
+  }
+
+  /**
+   * Two views are equal if they use the same alphabet and contain the same
+   * letters; the underlying sequences and offsets can differ.
+   */
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
+    if (!(other instanceof SequenceView)) {
+      return false;
+    }
+    SequenceView view = (SequenceView) other;
+    if (length != view.length || !getAlphabet().equals(view.getAlphabet())) {
+      return false;
+    }
+    return firstDifference(view, length) < 0;
+  }
+
+  /**
+   * The hash code equals the hash code of the sequence returned by
+   * toSequence.
+   */
+  @Override
+  public int hashCode() {
+    int hash = length;
+    final int num_items = numItems();
+    for (int index = 0; index < num_items; index++) {
+      hash = 31 * hash + itemAt(index);
+    }
+    return hash;
+  }
+
+  /**
+   * Copy the letters in the view into a new sequence.
+   */
+  public Sequence toSequence() {
+    if (length == 0) {
+      return new Sequence(getAlphabet());
+    }
+    return sequence.subSequence(start, start + length);
+  }
+
+  @Override
+  public String toString() {
+    char[] letters = new char[length];
+    for (int pos = 0; pos < length; ++pos) {
+      letters[pos] = sequence.at(start + pos);
+    }
+    return String.valueOf(letters);
+  }
+
+  private void checkPosition(int pos) {
+    if (pos < 0 || pos >= length) {
+      throw new IndexOutOfBoundsException(
+          "Position " + pos + " is outside the view of length " + length);
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.mapred.AvroMapper;
+import org.apache.avro.mapred.Pair;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ToolRunner;
+
+import contrail.graph.GraphNodeData;
+
+/**
+ * Apply the messages found by FindCleanGraphFrontier to the graph.
+ *
+ * This is a map only job. Each mapper loads all the messages into memory
+ * so this should only be used when the frontier is small. For each node
+ * the mapper does what the reducer of CleanGraphAvro would do with the node
+ * and the messages sent to it, so the output is the same as CleanGraphAvro.
+ * Nodes which didn't receive any messages are passed through.
+ */
+public class ApplyCleanGraphFrontier extends MRStage {
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+    defs.putAll(new CleanGraphAvro().getParameterDefinitions());
+
+    ParameterDefinition frontierPath = new ParameterDefinition(
+        "frontier_path", "The directory containing the output of " +
+        "FindCleanGraphFrontier.", String.class, null);
+    defs.put(frontierPath.getName(), frontierPath);
+    return Collections.unmodifiableMap(defs);
+  }
+
+  public static class ApplyFrontierMapper extends
+      AvroMapper<GraphNodeData, GraphNodeData> {
+    // The messages keyed by the id of the node they are sent to.
+    private HashMap<String, List<CleanGraphMessage>> messages;
+
+    private CleanGraphAvro.CleanGraphMapper rules;
+    private CleanGraphAvro.CleanGraphReducer cleaner;
+
+    private CleanGraphMessage nodeMessage;
+    private ArrayList<CleanGraphMessage> nodeMessages;
+
+    // The messages to other nodes were already output by
+    // FindCleanGraphFrontier so we drop them.
+    private AvroCollector<Pair<CharSequence, CleanGraphMessage>> dropMessages;
+
+    @Override
+    public void configure(JobConf job) {
+      messages = new HashMap<String, List<CleanGraphMessage>>();
+      loadMessages(job);
+
+      rules = new CleanGraphAvro.CleanGraphMapper();
+      rules.configure(job);
+      cleaner = new CleanGraphAvro.CleanGraphReducer();
+      cleaner.configure(job);
+
+      nodeMessage = new CleanGraphMessage();
+      nodeMessages = new ArrayList<CleanGraphMessage>();
+      dropMessages =
+          new AvroCollector<Pair<CharSequence, CleanGraphMessage>>() {
+        @Override
+        public void collect(Pair<CharSequence, CleanGraphMessage> pair) {
+          // Do nothing.
+        }
+      };
+    }
+
+    protected void addMessage(String nodeId, CleanGraphMessage message) {
+      List<CleanGraphMessage> nodeList = messages.get(nodeId);
+      if (nodeList == null) {
+        nodeList = new ArrayList<CleanGraphMessage>();
+        messages.put(nodeId, nodeList);
+      }
+      nodeList.add(message);
+    }
+
+    /**
+     * Read the output of FindCleanGraphFrontier.
+     */
+    protected void loadMessages(JobConf job) {
+      String frontierPath = (String) new ApplyCleanGraphFrontier()
+          .getParameterDefinitions().get("frontier_path").parseJobConf(job);
+      try {
+        Path glob = new Path(frontierPath, "*.avro");
+        FileSystem fs = glob.getFileSystem(job);
+        for (FileStatus status : fs.globStatus(glob)) {
+          DataFileStream<Pair<CharSequence, CleanGraphMessage>> reader =
+              new DataFileStream<Pair<CharSequence, CleanGraphMessage>>(
+                  fs.open(status.getPath()),
+                  new SpecificDatumReader<Pair<CharSequence,
+                      CleanGraphMessage>>(CleanGraphAvro.MAP_OUT_SCHEMA));
+          for (Pair<CharSequence, CleanGraphMessage> pair : reader) {
+            addMessage(pair.key().toString(), pair.value());
+          }
+          reader.close();
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(
+            "Couldn't read the frontier: " + frontierPath, e);
+      }
+    }
+
+    @Override
+    public void map(GraphNodeData graphData,
+        AvroCollector<GraphNodeData> output, Reporter reporter)
+            throws IOException {
+      nodeMessages.clear();
+      // The counters for the rules were incremented by
+      // FindCleanGraphFrontier.
+      if (rules.sendMessages(graphData, dropMessages, Reporter.NULL)) {
+        nodeMessage.setNode(graphData);
+        nodeMessage.setTipStrands(null);
+        nodeMessage.setRemovedNeighbor(null);
+        nodeMessages.add(nodeMessage);
+      }
+      String nodeId = graphData.getNodeId().toString();
+      List<CleanGraphMessage> received = messages.get(nodeId);
+      if (received != null) {
+        nodeMessages.addAll(received);
+      }
+      if (nodeMessages.size() == 0) {
+        // The node was removed and no tips were attached to it.
+        return;
+      }
+      cleaner.reduce(nodeId, nodeMessages, output, reporter);
+    }
+  }
+
+  @Override
+  public List<InvalidParameter> validateParameters() {
+    CleanGraphAvro stage = new CleanGraphAvro();
+    stage.setParameters(stage_options);
+    return stage.validateParameters();
+  }
+
+  @Override
+  protected void setupConfHook() {
+    JobConf conf = (JobConf) getConf();
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    FileInputFormat.addInputPath(conf, new Path(inputPath));
+    FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+    GraphNodeData graphData = new GraphNodeData();
+    AvroJob.setInputSchema(conf, graphData.getSchema());
+    AvroJob.setOutputSchema(conf, graphData.getSchema());
+    AvroJob.setMapperClass(conf, ApplyFrontierMapper.class);
+
+    // This is a mapper only job.
+    conf.setNumReduceTasks(0);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(
+        new Configuration(), new ApplyCleanGraphFrontier(), args);
+    System.exit(res);
+  }
+}
@@ -0,0 +1,203 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.mapred.AvroMapper;
+import org.apache.avro.mapred.Pair;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ToolRunner;
+
+import contrail.CompressedRead;
+import contrail.sequences.FastQRecord;
+import contrail.sequences.Read;
+
+/**
+ * Replace the id of each read with a short, dense id.
+ *
+ * The read ids are copied into the KMerReadTags, R5Tags and edge read tags
+ * of the graph, so long read names (e.g. SRR001666.123456/1) take up a lot
+ * of the space in the graph and get shuffled on every stage. This stage
+ * assigns each read a 64 bit id formed from the index of the map task and
+ * the position of the read in the task's input; the id is written in base
+ * 36 so it is at most 13 characters and usually much shorter.
+ *
+ * The output contains the reads, in the same format as the input, and a
+ * dictionary mapping the new ids to the original names. The dictionary is
+ * written to the subdirectory "dictionary" of the output path as avro files
+ * of pairs (id, name); RestoreReadNames uses it to put the original names
+ * back into a graph. Since the dictionary files are in a subdirectory they
+ * aren't picked up by stages reading the reads.
+ *
+ * This is a mapper only job.
+ */
+public class AssignReadIds extends MRStage {
+  public static final String DICTIONARY_DIR = "dictionary";
+
+  public static final Schema DICTIONARY_SCHEMA = Pair.getPairSchema(
+      Schema.create(Schema.Type.STRING), Schema.create(Schema.Type.STRING));
+
+  // The number of bits for the position of the read within a task.
+  private static final int RECORD_BITS = 40;
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+    defs.putAll(super.createParameterDefinitions());
+    for (ParameterDefinition def:
+      ContrailParameters.getInputOutputPathOptions()) {
+      defs.put(def.getName(), def);
+    }
+    return Collections.unmodifiableMap(defs);
+  }
+
+  /**
+   * Construct the id for a read.
+   *
+   * @param task: The index of the map task.
+   * @param record: The position of the read in the input of the task.
+   */
+  public static String formatReadId(int task, long record) {
+    if (record >= (1L << RECORD_BITS)) {
+      throw new RuntimeException(
+          "Too many reads in a single task: " + record);
+    }
+    long id = ((long) task << RECORD_BITS) | record;
+    return Long.toString(id, Character.MAX_RADIX);
+  }
+
+  /**
+   * Return the id of a read.
+   */
+  public static CharSequence getReadId(Object inputRecord) {
+    if (inputRecord instanceof CompressedRead) {
+      return ((CompressedRead) inputRecord).getId();
+    } else if (inputRecord instanceof FastQRecord) {
+      return ((FastQRecord) inputRecord).getId();
+    } else if (inputRecord instanceof Read) {
+      return ((Read) inputRecord).getFastq().getId();
+    }
+    throw new RuntimeException(
+        "Unsupported input record: " + inputRecord.getClass().getName());
+  }
+
+  /**
+   * Set the id of a read.
+   */
+  public static void setReadId(Object inputRecord, CharSequence id) {
+    if (inputRecord instanceof CompressedRead) {
+      ((CompressedRead) inputRecord).setId(id);
+    } else if (inputRecord instanceof FastQRecord) {
+      ((FastQRecord) inputRecord).setId(id);
+    } else if (inputRecord instanceof Read) {
+      ((Read) inputRecord).getFastq().setId(id);
+    } else {
+      throw new RuntimeException(
+          "Unsupported input record: " + inputRecord.getClass().getName());
+    }
+  }
+
+  public static class AssignIdsMapper extends AvroMapper<Object, Object> {
+    private int task;
+    private long numRecords;
+    private DataFileWriter<Pair<CharSequence, CharSequence>> dictionary;
+    private Pair<CharSequence, CharSequence> entry;
+
+    @Override
+    public void configure(JobConf job) {
+      task = job.getInt("mapred.task.partition", 0);
+      numRecords = 0;
+      entry = new Pair<CharSequence, CharSequence>(DICTIONARY_SCHEMA);
+
+      // We write the dictionary to the task's work directory so that it
+      // gets committed along with the output of the task.
+      Path dictionaryPath = new Path(
+          new Path(FileOutputFormat.getWorkOutputPath(job), DICTIONARY_DIR),
+          String.format("part-%05d.avro", task));
+      try {
+        FileSystem fs = dictionaryPath.getFileSystem(job);
+        dictionary = new DataFileWriter<Pair<CharSequence, CharSequence>>(
+            new GenericDatumWriter<Pair<CharSequence, CharSequence>>(
+                DICTIONARY_SCHEMA));
+        dictionary.create(DICTIONARY_SCHEMA, fs.create(dictionaryPath));
+      } catch (IOException e) {
+        throw new RuntimeException(
+            "Could not create the dictionary: " + dictionaryPath, e);
+      }
+    }
+
+    @Override
+    public void map(Object inputRecord, AvroCollector<Object> collector,
+        Reporter reporter) throws IOException {
+      String id = formatReadId(task, numRecords);
+      ++numRecords;
+      entry.key(id);
+      entry.value(getReadId(inputRecord));
+      dictionary.append(entry);
+
+      setReadId(inputRecord, id);
+      collector.collect(inputRecord);
+    }
+
+    @Override
+    public void close() throws IOException {
+      dictionary.close();
+    }
+  }
+
+  /**
+   * Return the path of the dictionary.
+   */
+  public Path getDictionaryPath() {
+    return new Path((String) stage_options.get("outputpath"), DICTIONARY_DIR);
+  }
+
+  @Override
+  protected void setupConfHook() {
+    JobConf conf = (JobConf) getConf();
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    FileInputFormat.addInputPath(conf, new Path(inputPath));
+    FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+    Schema readSchema = BuildGraphAvro.createInputSchema();
+    AvroJob.setInputSchema(conf, readSchema);
+    AvroJob.setOutputSchema(conf, readSchema);
+    AvroJob.setMapperClass(conf, AssignIdsMapper.class);
+
+    // This is a mapper only job.
+    conf.setNumReduceTasks(0);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(), new AssignReadIds(), args);
+    System.exit(res);
+  }
+}
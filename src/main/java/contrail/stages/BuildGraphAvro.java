@@ -31,6 +31,7 @@ import org.apache.avro.mapred.AvroMapper;
 import org.apache.avro.mapred.AvroReducer;
 import org.apache.avro.mapred.Pair;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
@@ -41,6 +42,7 @@ import org.apache.log4j.Logger;
 
 import contrail.CompressedRead;
 import contrail.ReadState;
+import contrail.graph.CompactNodeIdUtil;
 import contrail.graph.EdgeDirection;
 import contrail.graph.EdgeTerminal;
 import contrail.graph.GraphNode;
@@ -52,8 +54,12 @@ import contrail.sequences.DNAStrand;
 import contrail.sequences.DNAUtil;
 import contrail.sequences.FastQRecord;
 import contrail.sequences.KMerReadTag;
+import contrail.sequences.Kmer;
+import contrail.sequences.KmerBloomFilter;
+import contrail.sequences.KmerSet;
 import contrail.sequences.Read;
 import contrail.sequences.Sequence;
+import contrail.sequences.SequenceView;
 import contrail.sequences.StrandsForEdge;
 import contrail.sequences.StrandsUtil;
 
@@ -100,6 +106,22 @@ public class BuildGraphAvro extends MRStage {
     return sequence.toBase64();
   }
 
+  /**
+   * Construct the nodeId for a given sequence.
+   *
+   * @param sequence: The canonical sequence for the node.
+   * @param nodeIdBits: 0 to use constructNodeIdForSequence otherwise the
+   *   number of bits for a compact id; see CompactNodeIdUtil.
+   * @return
+   */
+  public static String constructNodeIdForSequence(
+      Sequence sequence, int nodeIdBits) {
+    if (nodeIdBits == 0) {
+      return constructNodeIdForSequence(sequence);
+    }
+    return CompactNodeIdUtil.nodeIdForSequence(sequence, nodeIdBits);
+  }
+
   @Override
   protected Map<String, ParameterDefinition> createParameterDefinitions() {
     HashMap<String, ParameterDefinition> defs = new HashMap<String, ParameterDefinition>();
@@ -126,8 +148,28 @@ public class BuildGraphAvro extends MRStage {
         "RECORD_ALL_THREADS", "Record all threads.", Boolean.class,
         new Boolean(false));
 
+    ParameterDefinition combine_entries = new ParameterDefinition(
+        "in_mapper_combine_entries", "Maximum number of distinct edges the " +
+        "mapper aggregates in memory before flushing them. Aggregating " +
+        "edges in the mapper reduces the amount of data shuffled for high " +
+        "coverage data. 0 disables in-mapper combining.",
+        Integer.class, new Integer(0));
+
+    ParameterDefinition node_id_bits = new ParameterDefinition(
+        "node_id_bits", "Number of bits for compact node ids (64 or 128). " +
+        "Compact ids are a fixed width hash of the KMer; use " +
+        "BuildNodeIdDictionary to check for collisions and map the ids " +
+        "back to KMers. 0 uses the base64 encoded KMer as the id.",
+        Integer.class, new Integer(0));
+
+    ParameterDefinition kmer_filter = new ParameterDefinition(
+        "kmer_filter", "Path to a filter of trusted KMers produced by " +
+        "BuildKmerFilter. Edges involving KMers which aren't in the filter " +
+        "are dropped. Leave empty to keep all edges.", String.class, "");
+
     for (ParameterDefinition def : new ParameterDefinition[] { max_reads,
-        trim3, trim5, maxR5, max_thread_reads, record_all_threads }) {
+        trim3, trim5, maxR5, max_thread_reads, record_all_threads,
+        combine_entries, node_id_bits, kmer_filter }) {
       defs.put(def.getName(), def);
     }
 
@@ -156,20 +198,65 @@ public class BuildGraphAvro extends MRStage {
    */
   public static Sequence ConstructDestSequence(Sequence canonical_src,
       ByteBuffer last_base_byte, StrandsForEdge strands, Alphabet alphabet) {
-    Sequence last_base = new Sequence(alphabet);
-    last_base.readPackedBytes(last_base_byte.array(), 1);
-    Sequence dest;
-
     int K = canonical_src.size();
-    if (StrandsUtil.src(strands) == DNAStrand.FORWARD) {
-      dest = canonical_src.subSequence(1, K);
-    } else {
-      dest = DNAUtil.reverseComplement(canonical_src).subSequence(1, K);
+    Sequence src = canonical_src;
+    if (StrandsUtil.src(strands) == DNAStrand.REVERSE) {
+      src = DNAUtil.reverseComplement(canonical_src);
     }
-    dest.add(last_base);
+    // Copy the last K-1 bases of the source straight into the destination
+    // and then set the last base; this avoids allocating intermediate
+    // sequences for the overlap and the last base.
+    Sequence dest = new Sequence(alphabet, K);
+    dest.add(new SequenceView(src, 1, K));
+    dest.setSize(K);
+    dest.setAt(K - 1, last_base_byte.array()[0] & alphabet.letterMask());
     return dest;
   }
 
+  /**
+   * Create the schema for the input records.
+   */
+  public static Schema createInputSchema() {
+    ArrayList<Schema> schemas = new ArrayList<Schema>();
+    CompressedRead read = new CompressedRead();
+    FastQRecord fastQRecord = new FastQRecord();
+
+    // We need to create a schema representing the union of CompressedRead
+    // and FastQRecord because we want to accept either schema for the
+    // input.
+    schemas.add(read.getSchema());
+    schemas.add(fastQRecord.getSchema());
+    schemas.add((new Read()).getSchema());
+    return Schema.createUnion(schemas);
+  }
+
+  /**
+   * Read the sequence from one of the input records accepted by BuildGraph.
+   *
+   * @param inputRecord: A CompressedRead, FastQRecord or Read.
+   * @param sequence: The sequence to read the bases into.
+   * @return: The id of the read.
+   */
+  public static CharSequence readInputRecord(
+      Object inputRecord, Sequence sequence) {
+    if (inputRecord instanceof CompressedRead) {
+      CompressedRead compressed_read = (CompressedRead) inputRecord;
+      sequence.readPackedBytes(compressed_read.getDna().array(),
+          compressed_read.getLength());
+      return compressed_read.getId();
+    } else if (inputRecord instanceof FastQRecord) {
+      FastQRecord fastQRecord = (FastQRecord) inputRecord;
+      sequence.readCharSequence(fastQRecord.getRead());
+      return fastQRecord.getId();
+    } else if (inputRecord instanceof Read) {
+      Read read = (Read) inputRecord;
+      sequence.readCharSequence(read.getFastq().getRead());
+      return read.getFastq().getId();
+    }
+    throw new RuntimeException(
+        "Unsupported input record: " + inputRecord.getClass().getName());
+  }
+
   /**
    * This class contains the operations for preprocessing sequences.
    *
@@ -251,6 +338,31 @@ public class BuildGraphAvro extends MRStage {
 
     private CharSequence readId;
 
+    // The KMers used to generate the edges. These are null if K is too
+    // large to be represented by a Kmer.
+    private Kmer ukmer;
+    private Kmer vkmer;
+    private KmerSet seenmers;
+
+    // Buffers for the packed bytes of the KMers and the last base of each
+    // edge.
+    private byte[] ukmerBytes;
+    private byte[] vkmerBytes;
+    private final byte[] ukmerStartBytes = new byte[1];
+    private final byte[] vkmerEndBytes = new byte[1];
+
+    // Aggregates edges before they are output; null if in-mapper combining
+    // is disabled.
+    private KMerEdgeAggregator aggregator;
+
+    // The collector is saved so that we can flush the aggregator when the
+    // mapper is closed.
+    private AvroCollector<Pair<ByteBuffer, KMerEdge>> collector;
+
+    // Filter of the trusted KMers; null if all KMers are trusted.
+    private KmerBloomFilter kmerFilter;
+    private long[] filterIndexes;
+
     @Override
     public void configure(JobConf job) {
       BuildGraphAvro stage = new BuildGraphAvro();
@@ -266,6 +378,49 @@ public class BuildGraphAvro extends MRStage {
 
       preprocessor = new SequencePreProcessor(alphabet, TRIM5, TRIM3);
       outPair = new Pair<ByteBuffer, KMerEdge>(MAP_OUT_SCHEMA);
+      node.setCoverage(0f);
+      node.setExtraTags(new ArrayList<CharSequence>());
+
+      int combineEntries = (Integer) (definitions.get(
+          "in_mapper_combine_entries").parseJobConf(job));
+      if (combineEntries > 0) {
+        int maxThreadReads = (Integer) (definitions.get("MAXTHREADREADS")
+            .parseJobConf(job));
+        aggregator = new KMerEdgeAggregator(combineEntries, maxThreadReads);
+      } else {
+        aggregator = null;
+      }
+
+      if (Kmer.isSupported(K)) {
+        ukmer = Kmer.create(K);
+        vkmer = Kmer.create(K);
+        seenmers = new KmerSet();
+        ukmerBytes = new byte[ukmer.numPackedBytes()];
+        vkmerBytes = new byte[vkmer.numPackedBytes()];
+      } else {
+        ukmer = null;
+        vkmer = null;
+      }
+
+      String filterPath =
+          (String) (definitions.get("kmer_filter").parseJobConf(job));
+      if (filterPath.length() > 0) {
+        if (ukmer == null) {
+          throw new RuntimeException(
+              "The KMer filter can only be used with K <= 64.");
+        }
+        kmerFilter = BuildKmerFilter.readFilter(job, filterPath);
+        filterIndexes = new long[kmerFilter.getNumHashes()];
+      } else {
+        kmerFilter = null;
+      }
+    }
+
+    /**
+     * Whether the KMer is trusted; i.e. it is in the KMer filter.
+     */
+    private boolean isTrusted(Kmer kmer) {
+      return kmerFilter == null || kmerFilter.mightContain(kmer, filterIndexes);
     }
 
     /*
@@ -284,20 +439,8 @@ public class BuildGraphAvro extends MRStage {
     public void map(Object inputRecord,
         AvroCollector<Pair<ByteBuffer, KMerEdge>> output, Reporter reporter)
             throws IOException {
-      if (inputRecord instanceof CompressedRead) {
-        CompressedRead compressed_read = (CompressedRead) inputRecord;
-        fullSequence.readPackedBytes(compressed_read.getDna().array(),
-            compressed_read.getLength());
-        readId = compressed_read.getId();
-      } else if (inputRecord instanceof FastQRecord) {
-        FastQRecord fastQRecord = (FastQRecord) inputRecord;
-        readId = fastQRecord.getId();
-        fullSequence.readCharSequence(fastQRecord.getRead());
-      } else if (inputRecord instanceof Read) {
-        Read read = (Read) inputRecord;
-        readId = read.getFastq().getId();
-        fullSequence.readCharSequence(read.getFastq().getRead());
-      }
+      collector = output;
+      readId = readInputRecord(inputRecord, fullSequence);
 
       fullSequence = preprocessor.PreProcess(fullSequence);
 
@@ -307,10 +450,139 @@ public class BuildGraphAvro extends MRStage {
         return;
       }
 
+      if (ukmer != null) {
+        emitEdgesUsingKmers(output, reporter);
+      } else {
+        emitEdgesUsingSequences(output, reporter);
+      }
+    }
+
+    /**
+     * Emit the edges for fullSequence using Kmer.
+     *
+     * The KMers are updated incrementally as we slide along the read so
+     * computing the canonical representation of each KMer is O(1) and we
+     * don't allocate any objects per base. The output is identical to
+     * emitEdgesUsingSequences.
+     */
+    private void emitEdgesUsingKmers(
+        AvroCollector<Pair<ByteBuffer, KMerEdge>> output, Reporter reporter)
+            throws IOException {
+      ReadState ustate;
+      ReadState vstate;
+
+      seenmers.clear();
+      int chunk = 0;
+
+      final int end = fullSequence.size() - K;
+
+      vkmer.clear();
+      for (int i = 0; i < K; i++) {
+        vkmer.addBase(fullSequence.valAt(i));
+      }
+      boolean vkmerTrusted = isTrusted(vkmer);
+
+      for (int i = 0; i < end; i++) {
+        // ukmer and vkmer are sequential KMers in the read.
+        ukmer.set(vkmer);
+        vkmer.addBase(fullSequence.valAt(i + K));
+
+        // Edges involving an untrusted KMer aren't output. We still track
+        // the repeated KMers so the chunks are the same as without the
+        // filter.
+        boolean ukmerTrusted = vkmerTrusted;
+        vkmerTrusted = isTrusted(vkmer);
+        boolean emit = ukmerTrusted && vkmerTrusted;
+        if (!emit) {
+          reporter.incrCounter("Contrail", "edges-filtered", 2);
+        }
+
+        // The base we need to add to the source kmer in order to generate
+        // the destination KMer. For the reverse strand this is the complement
+        // of the first base in ukmer.
+        ukmerStartBytes[0] = (byte) Kmer.complementBase(fullSequence.valAt(i));
+        vkmerEndBytes[0] = (byte) fullSequence.valAt(i + K);
+
+        DNAStrand ukmer_strand = ukmer.canonicalStrand();
+        DNAStrand vkmer_strand = vkmer.canonicalStrand();
+
+        StrandsForEdge strands = StrandsUtil.form(ukmer_strand, vkmer_strand);
+        StrandsForEdge rc_strands = StrandsUtil.complement(strands);
+
+        // Determine the read state for each KMer.
+        if (i == 0) {
+          if (ukmer_strand == DNAStrand.FORWARD) {
+            ustate = ReadState.STARTFORWARD;
+          } else {
+            ustate = ReadState.STARTREVERSE;
+          }
+        } else {
+          ustate = ReadState.MIDDLE;
+        }
+
+        if (i + 1 == end) {
+          vstate = ReadState.END;
+        } else {
+          vstate = ReadState.MIDDLE;
+        }
+
+        // If the strand and its reverse complement are the same then we want
+        // seen to be true because we want to assign the edges from the two
+        // strands to different chunk segments.
+        boolean seen = (seenmers.contains(ukmer) || seenmers.contains(vkmer)
+            || ukmer.forwardEquals(vkmer));
+        seenmers.add(ukmer);
+        if (seen) {
+          // We use the chunk to segment the nodes based on repeat KMers.
+          // We use this segmentation at several stages.
+          chunk++;
+        }
+
+        // Output an edge assuming we are reading the forward strand.
+        if (emit) {
+          int numBytes = ukmer.toPackedBytes(ukmer_strand, ukmerBytes);
+          node.setStrands(strands);
+          node.setLastBase(ByteBuffer.wrap(vkmerEndBytes));
+          node.setTag(readId);
+          node.setState(ustate);
+          node.setChunk(chunk);
+          outPair.key(ByteBuffer.wrap(ukmerBytes, 0, numBytes));
+          outPair.value(node);
+          collect(output);
+        }
+        if (seen) {
+          chunk++;
+        }
+
+        if (emit) {
+          // Output an edge assuming we are reading the reverse strand.
+          int numBytes = vkmer.toPackedBytes(vkmer_strand, vkmerBytes);
+          node.setStrands(rc_strands);
+          node.setLastBase(ByteBuffer.wrap(ukmerStartBytes));
+          node.setTag(readId);
+          node.setState(vstate);
+          node.setChunk(chunk);
+          outPair.key(ByteBuffer.wrap(vkmerBytes, 0, numBytes));
+          outPair.value(node);
+          collect(output);
+        }
+      }
+
+      incrementReadCounters(end, fullSequence.size(), reporter);
+    }
+
+    /**
+     * Emit the edges for fullSequence using Sequence.
+     *
+     * This is used when K is too large for Kmer.
+     */
+    private void emitEdgesUsingSequences(
+        AvroCollector<Pair<ByteBuffer, KMerEdge>> output, Reporter reporter)
+            throws IOException {
       ReadState ustate;
       ReadState vstate;
 
-      Set<String> seenmers = new HashSet<String>();
+      Set<Sequence> seenmers = new HashSet<Sequence>();
 
       int chunk = 0;
 
@@ -376,14 +648,12 @@ public class BuildGraphAvro extends MRStage {
             vstate = ReadState.MIDDLE;
           }
 
-          // TODO(jlewi): It would probably be more efficient not to use a string
-          // representation of the Kmers in seen.
           // If the strand and its reverse complement are the same then we want
           // seen to be true because we want to assign the edges from the two
           // strands to different chunk segments.
-          boolean seen = (seenmers.contains(ukmer.toString())
-              || seenmers.contains(vkmer.toString()) || ukmer.equals(vkmer));
-          seenmers.add(ukmer.toString());
+          boolean seen = (seenmers.contains(ukmer)
+              || seenmers.contains(vkmer) || ukmer.equals(vkmer));
+          seenmers.add(ukmer);
           if (seen) {
             // We use the chunk to segment the nodes based on repeat KMers.
             // We use this segmentation at several stages.
@@ -403,7 +673,7 @@ public class BuildGraphAvro extends MRStage {
             outPair.key(ByteBuffer.wrap(ukmer_canonical.toPackedBytes(), 0,
                 ukmer_canonical.numPackedBytes()));
             outPair.value(node);
-            output.collect(outPair);
+            collect(output);
           }
           if (seen) {
             chunk++;
@@ -422,24 +692,50 @@ public class BuildGraphAvro extends MRStage {
             outPair.key(ByteBuffer.wrap(vkmer_canonical.toPackedBytes(), 0,
                 vkmer_canonical.numPackedBytes()));
             outPair.value(node);
-            output.collect(outPair);
+            collect(output);
           }
           ustate = ReadState.MIDDLE;
         }
 
-        // Add some counters to keep track of how many edges this read produces.
-        if (end == 1) {
-          reporter.incrCounter("Contrail", "reads-num-edges-1", 1);
-        } else if (end>1 && end <= 5) {
-          reporter.incrCounter("Contrail", "reads-num-edges-(1,5]", 1);
-        } else if (end >5 && end <= 10) {
-          reporter.incrCounter("Contrail", "reads-num-edges-(5,10]", 1);
-        } else {
-          reporter.incrCounter("Contrail", "reads-num-edges-(10,...]", 1);
-        }
-        reporter.incrCounter("Contrail", "reads-good", 1);
-        reporter.incrCounter("Contrail", "reads-goodbp", seq.size());
+        incrementReadCounters(end, seq.size(), reporter);
+      }
+    }
+
+    /**
+     * Output outPair. If in-mapper combining is enabled, edges which don't
+     * start a read are added to the aggregator instead.
+     */
+    private void collect(AvroCollector<Pair<ByteBuffer, KMerEdge>> output)
+        throws IOException {
+      ReadState state = outPair.value().getState();
+      if (aggregator == null || state == ReadState.STARTFORWARD ||
+          state == ReadState.STARTREVERSE) {
+        output.collect(outPair);
+        return;
       }
+      aggregator.add(outPair.key(), outPair.value(), output);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (aggregator != null && collector != null) {
+        aggregator.flush(collector);
+      }
+    }
+
+    private void incrementReadCounters(int end, int length, Reporter reporter) {
+      // Add some counters to keep track of how many edges this read produces.
+      if (end == 1) {
+        reporter.incrCounter("Contrail", "reads-num-edges-1", 1);
+      } else if (end>1 && end <= 5) {
+        reporter.incrCounter("Contrail", "reads-num-edges-(1,5]", 1);
+      } else if (end >5 && end <= 10) {
+        reporter.incrCounter("Contrail", "reads-num-edges-(5,10]", 1);
+      } else {
+        reporter.incrCounter("Contrail", "reads-num-edges-(10,...]", 1);
+      }
+      reporter.incrCounter("Contrail", "reads-good", 1);
+      reporter.incrCounter("Contrail", "reads-goodbp", length);
     }
   }
 
@@ -459,6 +755,7 @@ public class BuildGraphAvro extends MRStage {
     private int MAXTHREADREADS = 0;
     private int MAXR5 = 0;
     private boolean RECORD_ALL_THREADS = false;
+    private int nodeIdBits = 0;
     private GraphNode graphnode;
     private Sequence canonical_src;
 
@@ -473,6 +770,8 @@ public class BuildGraphAvro extends MRStage {
       MAXR5 = (Integer) (definitions.get("MAXR5").parseJobConf(job));
       RECORD_ALL_THREADS = (Boolean) (definitions.get("RECORD_ALL_THREADS")
           .parseJobConf(job));
+      nodeIdBits = (Integer) (definitions.get("node_id_bits")
+          .parseJobConf(job));
 
       graphnode = new GraphNode();
       canonical_src = new Sequence(DNAAlphabetFactory.create());
@@ -527,7 +826,10 @@ public class BuildGraphAvro extends MRStage {
         }
 
         // Update the coverage.
-        if (state == ReadState.MIDDLE) {
+        if (edge.getCoverage() > 0) {
+          // The edge combines several edges aggregated in the mapper.
+          cov += edge.getCoverage();
+        } else if (state == ReadState.MIDDLE) {
           // For KMers in the middle of a read we would generate two
           // edges for the kmer. One corresponding to the kmer and the other
           // corresponding to RC(KMer). Thus, we increment the coverage
@@ -539,11 +841,17 @@ public class BuildGraphAvro extends MRStage {
 
         // Add an edge to this destination.
         DNAStrand src_strand = StrandsUtil.src(strands);
-        String terminalid = constructNodeIdForSequence(canonical_dest);
+        String terminalid = constructNodeIdForSequence(
+            canonical_dest, nodeIdBits);
         EdgeTerminal terminal = new EdgeTerminal(terminalid,
             StrandsUtil.dest(strands));
-        graphnode.addOutgoingEdge(src_strand, terminal, tag.toString(),
-            MAXTHREADREADS);
+        if (edge.getCoverage() > 0) {
+          graphnode.addOutgoingEdgeWithTags(
+              src_strand, terminal, edge.getExtraTags(), MAXTHREADREADS);
+        } else {
+          graphnode.addOutgoingEdge(src_strand, terminal, tag.toString(),
+              MAXTHREADREADS);
+        }
       }
 
       graphnode.setMertag(mertag);
@@ -551,7 +859,8 @@ public class BuildGraphAvro extends MRStage {
 
       // TODO(jlewi): We should at the very least use a compact
       // representation of the sequence.
-      graphnode.getData().setNodeId(constructNodeIdForSequence(canonical_src));
+      graphnode.getData().setNodeId(
+          constructNodeIdForSequence(canonical_src, nodeIdBits));
 
       int degree =
           graphnode.degree(DNAStrand.FORWARD, EdgeDirection.INCOMING) +
@@ -581,6 +890,20 @@ public class BuildGraphAvro extends MRStage {
           "problems for graph construction.");
       items.add(item);
     }
+
+    int nodeIdBits = (Integer) stage_options.get("node_id_bits");
+    if (nodeIdBits != 0 && !CompactNodeIdUtil.isValidNumBits(nodeIdBits)) {
+      InvalidParameter item = new InvalidParameter(
+          "node_id_bits", "node_id_bits must be 0, 64 or 128.");
+      items.add(item);
+    }
+
+    String kmerFilter = (String) stage_options.get("kmer_filter");
+    if (kmerFilter.length() > 0 && !Kmer.isSupported(K)) {
+      InvalidParameter item = new InvalidParameter(
+          "kmer_filter", "The KMer filter can only be used with K <= 64.");
+      items.add(item);
+    }
     return items;
   }
 
@@ -592,19 +915,12 @@ public class BuildGraphAvro extends MRStage {
     FileInputFormat.addInputPath(conf, new Path(inputPath));
     FileOutputFormat.setOutputPath(conf, new Path(outputPath));
 
-    ArrayList<Schema> schemas = new ArrayList<Schema>();
-    CompressedRead read = new CompressedRead();
-    FastQRecord fastQRecord = new FastQRecord();
-
-    // We need to create a schema representing the union of CompressedRead
-    // and FastQRecord because we want to accept either schema for the
-    // input.
-    schemas.add(read.getSchema());
-    schemas.add(fastQRecord.getSchema());
-    schemas.add((new Read()).getSchema());
-    Schema unionSchema = Schema.createUnion(schemas);
+    String kmerFilter = (String) stage_options.get("kmer_filter");
+    if (kmerFilter.length() > 0) {
+      DistributedCache.addCacheFile(new Path(kmerFilter).toUri(), conf);
+    }
 
-    AvroJob.setInputSchema(conf, unionSchema);
+    AvroJob.setInputSchema(conf, createInputSchema());
     AvroJob.setMapOutputSchema(conf, BuildGraphAvro.MAP_OUT_SCHEMA);
     AvroJob.setOutputSchema(conf, BuildGraphAvro.REDUCE_OUT_SCHEMA);
 
@@ -0,0 +1,469 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.mapred.AvroMapper;
+import org.apache.avro.mapred.AvroReducer;
+import org.apache.avro.mapred.Pair;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ToolRunner;
+
+import contrail.ReadState;
+import contrail.graph.GraphNodeData;
+import contrail.graph.KMerEdge;
+import contrail.graph.SuperKMer;
+import contrail.sequences.DNAAlphabetFactory;
+import contrail.sequences.DNAStrand;
+import contrail.sequences.Kmer;
+import contrail.sequences.Kmer32;
+import contrail.sequences.KmerSet;
+import contrail.sequences.Sequence;
+import contrail.sequences.StrandsForEdge;
+import contrail.sequences.StrandsUtil;
+import contrail.util.HashUtil;
+
+/**
+ * Build the graph by shuffling super-KMers instead of individual edges.
+ *
+ * BuildGraphAvro emits two KMerEdges for every pair of consecutive KMers in
+ * a read, so the amount of data shuffled is roughly 2K times the size of the
+ * reads. This stage instead assigns every KMer a minimizer; the smallest
+ * hash of the canonical m-mers (m = minimizer_length) contained in the
+ * KMer. Consecutive KMers in a read usually share the same minimizer so the
+ * mapper splits each read into maximal runs of KMers with the same
+ * minimizer (super-KMers) and emits one record per run keyed by the
+ * minimizer.
+ *
+ * Since the minimizer of a KMer doesn't depend on the strand, every
+ * occurrence of a KMer ends up in the same reducer call. The reducer
+ * expands the super-KMers into exactly the KMerEdges BuildGraphMapper would
+ * have emitted for the KMers in the bucket and runs BuildGraphReducer on
+ * them, so the output is the same as BuildGraphAvro's output. The edges for
+ * a bucket are held in memory, so the minimizer length shouldn't be too
+ * small.
+ *
+ * Only K <= 64 is supported since the mapper uses Kmer.
+ */
+public class BuildGraphSuperKMers extends MRStage {
+  public static final Schema MAP_OUT_SCHEMA = Pair.getPairSchema(
+      Schema.create(Schema.Type.LONG), new SuperKMer().getSchema());
+
+  public static final Schema REDUCE_OUT_SCHEMA =
+      BuildGraphAvro.REDUCE_OUT_SCHEMA;
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+    defs.putAll(new BuildGraphAvro().getParameterDefinitions());
+
+    ParameterDefinition minimizerLength = new ParameterDefinition(
+        "minimizer_length", "The length of the m-mers used to compute the " +
+        "minimizers which partition the KMers. Must be less than K and at " +
+        "most " + Kmer32.MAX_K + ".", Integer.class, new Integer(11));
+    defs.put(minimizerLength.getName(), minimizerLength);
+    return Collections.unmodifiableMap(defs);
+  }
+
+  /**
+   * Compute the minimizer of every KMer in a sequence.
+   *
+   * The minimizer of a KMer is the smallest hash of the m-mers it contains.
+   * The hash of an m-mer is the smaller of the hashes of its two strands so
+   * the minimizer of a KMer and its reverse complement are the same.
+   *
+   * @param sequence: The sequence.
+   * @param K: The length of the KMers.
+   * @param mmer: A Kmer of length m used to slide over the sequence.
+   * @param minimizers: Array to store the minimizers in; must have length
+   *   at least sequence.size() - K + 1.
+   */
+  protected static void computeMinimizers(
+      Sequence sequence, int K, Kmer32 mmer, long[] minimizers) {
+    int m = mmer.getK();
+    int numMmers = sequence.size() - m + 1;
+    int window = K - m + 1;
+
+    // A monotonic queue of the m-mers which could be the minimum of a
+    // window. The hashes in the queue are increasing.
+    long[] hashes = new long[numMmers];
+    int[] queue = new int[numMmers];
+    int head = 0;
+    int tail = 0;
+
+    mmer.clear();
+    for (int i = 0; i < sequence.size(); ++i) {
+      mmer.addBase(sequence.valAt(i));
+      if (!mmer.isFull()) {
+        continue;
+      }
+      int index = i - m + 1;
+      hashes[index] = Math.min(
+          HashUtil.mix64(mmer.getWord(DNAStrand.FORWARD, 0)),
+          HashUtil.mix64(mmer.getWord(DNAStrand.REVERSE, 0)));
+
+      while (tail > head && hashes[queue[tail - 1]] >= hashes[index]) {
+        --tail;
+      }
+      queue[tail] = index;
+      ++tail;
+
+      // The window for KMer kmerIndex ends with this m-mer.
+      int kmerIndex = index - window + 1;
+      if (kmerIndex < 0) {
+        continue;
+      }
+      while (queue[head] < kmerIndex) {
+        ++head;
+      }
+      minimizers[kmerIndex] = hashes[queue[head]];
+    }
+  }
+
+  /**
+   * Mapper splits the reads into super-KMers.
+   */
+  public static class SuperKMerMapper extends
+      AvroMapper<Object, Pair<Long, SuperKMer>> {
+    private int K;
+
+    private Sequence fullSequence = new Sequence(DNAAlphabetFactory.create());
+    private BuildGraphAvro.SequencePreProcessor preprocessor;
+
+    private Kmer ukmer;
+    private Kmer vkmer;
+    private Kmer32 mmer;
+    private KmerSet seenmers;
+
+    // The minimizer of each KMer, whether each edge involves a repeated
+    // KMer and the chunk before each edge. These are resized as needed.
+    private long[] minimizers;
+    private boolean[] repeats;
+    private int[] chunks;
+
+    private SuperKMer superKMer;
+    private Pair<Long, SuperKMer> outPair;
+
+    @Override
+    public void configure(JobConf job) {
+      BuildGraphSuperKMers stage = new BuildGraphSuperKMers();
+      Map<String, ParameterDefinition> definitions =
+          stage.getParameterDefinitions();
+      K = (Integer) (definitions.get("K").parseJobConf(job));
+      if (!Kmer.isSupported(K)) {
+        throw new RuntimeException(
+            "BuildGraphSuperKMers doesn't support K=" + K);
+      }
+      int minimizerLength =
+          (Integer) (definitions.get("minimizer_length").parseJobConf(job));
+      int TRIM5 = (Integer) (definitions.get("TRIM5").parseJobConf(job));
+      int TRIM3 = (Integer) (definitions.get("TRIM3").parseJobConf(job));
+
+      preprocessor = new BuildGraphAvro.SequencePreProcessor(
+          DNAAlphabetFactory.create(), TRIM5, TRIM3);
+
+      ukmer = Kmer.create(K);
+      vkmer = Kmer.create(K);
+      mmer = new Kmer32(minimizerLength);
+      seenmers = new KmerSet();
+
+      minimizers = new long[0];
+      repeats = new boolean[0];
+      chunks = new int[0];
+
+      superKMer = new SuperKMer();
+      superKMer.setRepeats(new ArrayList<Integer>());
+      outPair = new Pair<Long, SuperKMer>(MAP_OUT_SCHEMA);
+    }
+
+    /**
+     * Determine which edges involve a repeated KMer and the chunk before
+     * each edge. This must match BuildGraphMapper's assignment of chunks.
+     */
+    private void computeChunks(int numEdges) {
+      seenmers.clear();
+      int chunk = 0;
+      vkmer.clear();
+      for (int i = 0; i < K; i++) {
+        vkmer.addBase(fullSequence.valAt(i));
+      }
+      for (int i = 0; i < numEdges; ++i) {
+        ukmer.set(vkmer);
+        vkmer.addBase(fullSequence.valAt(i + K));
+        boolean seen = (seenmers.contains(ukmer) || seenmers.contains(vkmer)
+            || ukmer.forwardEquals(vkmer));
+        seenmers.add(ukmer);
+        repeats[i] = seen;
+        chunks[i] = chunk;
+        if (seen) {
+          chunk += 2;
+        }
+      }
+    }
+
+    @Override
+    public void map(Object inputRecord,
+        AvroCollector<Pair<Long, SuperKMer>> output, Reporter reporter)
+            throws IOException {
+      CharSequence readId =
+          BuildGraphAvro.readInputRecord(inputRecord, fullSequence);
+      fullSequence = preprocessor.PreProcess(fullSequence);
+
+      // Check for short reads.
+      if (fullSequence.size() <= K) {
+        reporter.incrCounter("Contrail", "reads_short", 1);
+        return;
+      }
+
+      int numKmers = fullSequence.size() - K + 1;
+      int numEdges = numKmers - 1;
+      if (minimizers.length < numKmers) {
+        minimizers = new long[numKmers];
+        repeats = new boolean[numKmers];
+        chunks = new int[numKmers];
+      }
+      computeMinimizers(fullSequence, K, mmer, minimizers);
+      computeChunks(numEdges);
+
+      int first = 0;
+      while (first < numKmers) {
+        int last = first;
+        while (last + 1 < numKmers &&
+               minimizers[last + 1] == minimizers[first]) {
+          ++last;
+        }
+
+        // We need the KMer before and after the run to construct the edges
+        // to the neighbors of the run.
+        int firstEdge = first > 0 ? first - 1 : 0;
+        int lastEdge = Math.min(last, numEdges - 1);
+        int start = firstEdge;
+        int end = lastEdge + K + 1;
+
+        superKMer.setReadTag(readId);
+        superKMer.setSequence(
+            fullSequence.subSequence(start, end).toCompressedSequence());
+        superKMer.setFirstKmer(first);
+        superKMer.setNumKmers(last - first + 1);
+        superKMer.setNumReadKmers(numKmers);
+        superKMer.setChunk(chunks[firstEdge]);
+        superKMer.getRepeats().clear();
+        for (int i = firstEdge; i <= lastEdge; ++i) {
+          if (repeats[i]) {
+            superKMer.getRepeats().add(i);
+          }
+        }
+
+        outPair.key(minimizers[first]);
+        outPair.value(superKMer);
+        output.collect(outPair);
+        reporter.incrCounter("Contrail", "super-kmers", 1);
+        first = last + 1;
+      }
+      reporter.incrCounter("Contrail", "reads-good", 1);
+      reporter.incrCounter("Contrail", "reads-goodbp", fullSequence.size());
+    }
+  }
+
+  /**
+   * Reducer expands the super-KMers for a minimizer and builds the nodes.
+   */
+  public static class SuperKMerReducer extends
+      AvroReducer<Long, SuperKMer, GraphNodeData> {
+    private int K;
+    private BuildGraphAvro.BuildGraphReducer nodeReducer;
+
+    private Sequence sequence;
+    private Kmer ukmer;
+    private Kmer vkmer;
+
+    // The edges for each canonical KMer in the bucket.
+    private HashMap<ByteBuffer, List<KMerEdge>> edges;
+
+    @Override
+    public void configure(JobConf job) {
+      BuildGraphSuperKMers stage = new BuildGraphSuperKMers();
+      Map<String, ParameterDefinition> definitions =
+          stage.getParameterDefinitions();
+      K = (Integer) (definitions.get("K").parseJobConf(job));
+      nodeReducer = new BuildGraphAvro.BuildGraphReducer();
+      nodeReducer.configure(job);
+
+      sequence = new Sequence(DNAAlphabetFactory.create());
+      ukmer = Kmer.create(K);
+      vkmer = Kmer.create(K);
+      edges = new HashMap<ByteBuffer, List<KMerEdge>>();
+    }
+
+    private void addEdge(Kmer kmer, DNAStrand strand, StrandsForEdge strands,
+        int lastBase, CharSequence tag, ReadState state, int chunk) {
+      KMerEdge edge = new KMerEdge();
+      edge.setStrands(strands);
+      edge.setLastBase(ByteBuffer.wrap(new byte[] {(byte) lastBase}));
+      edge.setTag(tag);
+      edge.setState(state);
+      edge.setChunk(chunk);
+      edge.setCoverage(0f);
+      edge.setExtraTags(new ArrayList<CharSequence>());
+
+      ByteBuffer key = ByteBuffer.wrap(kmer.toPackedBytes(strand));
+      List<KMerEdge> kmerEdges = edges.get(key);
+      if (kmerEdges == null) {
+        kmerEdges = new ArrayList<KMerEdge>();
+        edges.put(key, kmerEdges);
+      }
+      kmerEdges.add(edge);
+    }
+
+    /**
+     * Add the edges BuildGraphMapper would emit for the KMers in the
+     * super-KMer.
+     */
+    private void expand(SuperKMer superKMer) {
+      sequence.readCompressedSequence(superKMer.getSequence());
+      CharSequence tag = superKMer.getReadTag().toString();
+      int first = superKMer.getFirstKmer();
+      int last = first + superKMer.getNumKmers() - 1;
+      int numEdges = superKMer.getNumReadKmers() - 1;
+      int firstEdge = first > 0 ? first - 1 : 0;
+      int lastEdge = Math.min(last, numEdges - 1);
+
+      List<Integer> repeats = superKMer.getRepeats();
+      int repeatIndex = 0;
+      int chunk = superKMer.getChunk();
+
+      vkmer.clear();
+      for (int i = 0; i < K; ++i) {
+        vkmer.addBase(sequence.valAt(i));
+      }
+      for (int edge = firstEdge; edge <= lastEdge; ++edge) {
+        // Position in sequence of the first base of ukmer.
+        int offset = edge - firstEdge;
+        ukmer.set(vkmer);
+        vkmer.addBase(sequence.valAt(offset + K));
+
+        boolean seen = repeatIndex < repeats.size() &&
+            repeats.get(repeatIndex) == edge;
+        if (seen) {
+          ++repeatIndex;
+        }
+
+        DNAStrand ukmerStrand = ukmer.canonicalStrand();
+        DNAStrand vkmerStrand = vkmer.canonicalStrand();
+        StrandsForEdge strands = StrandsUtil.form(ukmerStrand, vkmerStrand);
+
+        if (seen) {
+          chunk++;
+        }
+        if (edge >= first) {
+          ReadState state = ReadState.MIDDLE;
+          if (edge == 0) {
+            state = ukmerStrand == DNAStrand.FORWARD ?
+                ReadState.STARTFORWARD : ReadState.STARTREVERSE;
+          }
+          addEdge(ukmer, ukmerStrand, strands, sequence.valAt(offset + K),
+              tag, state, chunk);
+        }
+        if (seen) {
+          chunk++;
+        }
+        if (edge + 1 <= last) {
+          ReadState state =
+              edge + 1 == numEdges ? ReadState.END : ReadState.MIDDLE;
+          addEdge(vkmer, vkmerStrand, StrandsUtil.complement(strands),
+              Kmer.complementBase(sequence.valAt(offset)), tag, state, chunk);
+        }
+      }
+    }
+
+    @Override
+    public void reduce(Long minimizer, Iterable<SuperKMer> superKMers,
+        AvroCollector<GraphNodeData> collector, Reporter reporter)
+            throws IOException {
+      edges.clear();
+      for (SuperKMer superKMer : superKMers) {
+        expand(superKMer);
+      }
+      for (Map.Entry<ByteBuffer, List<KMerEdge>> entry : edges.entrySet()) {
+        nodeReducer.reduce(
+            entry.getKey(), entry.getValue(), collector, reporter);
+      }
+      edges.clear();
+    }
+  }
+
+  @Override
+  public List<InvalidParameter> validateParameters() {
+    BuildGraphAvro buildGraph = new BuildGraphAvro();
+    buildGraph.setParameters(stage_options);
+    List<InvalidParameter> items = buildGraph.validateParameters();
+
+    int K = (Integer) stage_options.get("K");
+    if (!Kmer.isSupported(K)) {
+      items.add(new InvalidParameter(
+          "K", "BuildGraphSuperKMers only supports K <= 64."));
+    }
+    String kmerFilter = (String) stage_options.get("kmer_filter");
+    if (kmerFilter.length() > 0) {
+      items.add(new InvalidParameter(
+          "kmer_filter", "BuildGraphSuperKMers doesn't support kmer_filter."));
+    }
+    int minimizerLength = (Integer) stage_options.get("minimizer_length");
+    if (minimizerLength <= 0 || minimizerLength >= K ||
+        minimizerLength > Kmer32.MAX_K) {
+      items.add(new InvalidParameter(
+          "minimizer_length", "minimizer_length must be in the range " +
+          "[1, min(K - 1, " + Kmer32.MAX_K + ")]."));
+    }
+    return items;
+  }
+
+  @Override
+  protected void setupConfHook() {
+    JobConf conf = (JobConf) getConf();
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    FileInputFormat.addInputPath(conf, new Path(inputPath));
+    FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+    AvroJob.setInputSchema(conf, BuildGraphAvro.createInputSchema());
+    AvroJob.setMapOutputSchema(conf, MAP_OUT_SCHEMA);
+    AvroJob.setOutputSchema(conf, REDUCE_OUT_SCHEMA);
+
+    AvroJob.setMapperClass(conf, SuperKMerMapper.class);
+    AvroJob.setReducerClass(conf, SuperKMerReducer.class);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(
+        new Configuration(), new BuildGraphSuperKMers(), args);
+    System.exit(res);
+  }
+}
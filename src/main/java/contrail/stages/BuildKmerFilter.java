@@ -0,0 +1,440 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.mapred.AvroMapper;
+import org.apache.avro.mapred.AvroReducer;
+import org.apache.avro.mapred.Pair;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+
+import contrail.sequences.DNAAlphabetFactory;
+import contrail.sequences.Kmer;
+import contrail.sequences.KmerBloomFilter;
+import contrail.sequences.Sequence;
+
+/**
+ * Build a Bloom filter of the KMers which occur at least min_kmer_count
+ * times in the reads.
+ *
+ * Most of the distinct KMers in raw reads are sequencing errors which occur
+ * once. BuildGraphAvro can use the filter (see the parameter kmer_filter)
+ * to drop the edges which involve untrusted KMers, so the errors never
+ * enter the graph instead of being removed later on by
+ * RemoveTipsAvro and RemoveLowCoverageAvro.
+ *
+ * Each mapper counts the KMers in a counting Bloom filter with 4 bit
+ * counters that saturate at min_kmer_count. When the mapper is closed it
+ * emits the non zero blocks of counters keyed by the index of the block.
+ * The combiner and reducer add up the counters and the reducer sets the bit
+ * for each position whose count is at least min_kmer_count. Since the count
+ * for a KMer is the minimum of its counters, a KMer which occurs at least
+ * min_kmer_count times is always in the filter; with a small probability an
+ * untrusted KMer is too.
+ *
+ * Like BuildBitVector, a single reducer is used and the filter is written
+ * directly to FILTER_FILENAME in the output directory.
+ */
+public class BuildKmerFilter extends MRStage {
+  private static final Logger sLogger =
+      Logger.getLogger(BuildKmerFilter.class);
+
+  // The name for the file to store the filter.
+  public final static String FILTER_FILENAME = "kmer_filter.bloom";
+
+  // Number of counters in each block emitted by the mapper. Each byte
+  // holds two counters.
+  public final static int COUNTERS_PER_BLOCK = 1 << 16;
+
+  // The largest count that fits in a counter.
+  public final static int MAX_COUNT = 15;
+
+  public static final Schema BLOCK_SCHEMA = Pair.getPairSchema(
+      Schema.create(Schema.Type.INT), Schema.create(Schema.Type.BYTES));
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+    defs.putAll(super.createParameterDefinitions());
+
+    ParameterDefinition minKmerCount = new ParameterDefinition(
+        "min_kmer_count", "KMers which occur fewer than this many times in " +
+        "the reads are treated as sequencing errors. Values <= 1 disable " +
+        "the filter.", Integer.class, new Integer(1));
+
+    ParameterDefinition filterBits = new ParameterDefinition(
+        "bloom_filter_bits", "The number of bits in the KMer filter. Must " +
+        "be a multiple of " + COUNTERS_PER_BLOCK + ". Each mapper uses " +
+        "half this many bytes for its counters.",
+        Long.class, new Long(1L << 27));
+
+    ParameterDefinition filterHashes = new ParameterDefinition(
+        "bloom_filter_hashes", "The number of hash functions for the KMer " +
+        "filter.", Integer.class, new Integer(4));
+
+    ParameterDefinition trim3 = new ParameterDefinition("TRIM3",
+        "Chopped bases.", Integer.class, new Integer(0));
+
+    ParameterDefinition trim5 = new ParameterDefinition("TRIM5",
+        "Chopped bases.", Integer.class, new Integer(0));
+
+    for (ParameterDefinition def : new ParameterDefinition[] {
+        minKmerCount, filterBits, filterHashes, trim3, trim5}) {
+      defs.put(def.getName(), def);
+    }
+    for (ParameterDefinition def :
+         ContrailParameters.getInputOutputPathOptions()) {
+      defs.put(def.getName(), def);
+    }
+    ParameterDefinition kDef = ContrailParameters.getK();
+    defs.put(kDef.getName(), kDef);
+    return Collections.unmodifiableMap(defs);
+  }
+
+  /**
+   * Add two arrays of packed 4 bit counters.
+   *
+   * @param sum: The counters to add to.
+   * @param counters: The counters to add.
+   * @param maxCount: The counters saturate at this value.
+   */
+  protected static void addCounters(
+      byte[] sum, ByteBuffer counters, int maxCount) {
+    int offset = counters.position();
+    byte[] values = counters.array();
+    for (int i = 0; i < sum.length; ++i) {
+      int left = sum[i];
+      int right = values[offset + i];
+      int low = Math.min((left & 0xF) + (right & 0xF), maxCount);
+      int high = Math.min(
+          ((left >>> 4) & 0xF) + ((right >>> 4) & 0xF), maxCount);
+      sum[i] = (byte) (low | (high << 4));
+    }
+  }
+
+  /**
+   * Mapper counts the KMers in a counting Bloom filter.
+   */
+  public static class CountMapper extends
+      AvroMapper<Object, Pair<Integer, ByteBuffer>> {
+    private int K;
+    private int minCount;
+    private long numBits;
+
+    private Sequence sequence;
+    private BuildGraphAvro.SequencePreProcessor preprocessor;
+    private Kmer kmer;
+    private long[] indexes;
+
+    // Two 4 bit counters per byte; the counter for position i is in the
+    // low bits of byte i / 2 if i is even.
+    private byte[] counters;
+
+    private Pair<Integer, ByteBuffer> outPair;
+
+    // The collector is saved so the counters can be output when the mapper
+    // is closed.
+    private AvroCollector<Pair<Integer, ByteBuffer>> collector;
+
+    @Override
+    public void configure(JobConf job) {
+      BuildKmerFilter stage = new BuildKmerFilter();
+      Map<String, ParameterDefinition> definitions =
+          stage.getParameterDefinitions();
+      K = (Integer) (definitions.get("K").parseJobConf(job));
+      minCount = Math.min(
+          (Integer) (definitions.get("min_kmer_count").parseJobConf(job)),
+          MAX_COUNT);
+      numBits = (Long) (definitions.get("bloom_filter_bits").parseJobConf(job));
+      int numHashes =
+          (Integer) (definitions.get("bloom_filter_hashes").parseJobConf(job));
+      int TRIM5 = (Integer) (definitions.get("TRIM5").parseJobConf(job));
+      int TRIM3 = (Integer) (definitions.get("TRIM3").parseJobConf(job));
+
+      sequence = new Sequence(DNAAlphabetFactory.create());
+      preprocessor = new BuildGraphAvro.SequencePreProcessor(
+          DNAAlphabetFactory.create(), TRIM5, TRIM3);
+      kmer = Kmer.create(K);
+      indexes = new long[numHashes];
+      counters = new byte[(int) (numBits / 2)];
+      outPair = new Pair<Integer, ByteBuffer>(BLOCK_SCHEMA);
+    }
+
+    @Override
+    public void map(Object inputRecord,
+        AvroCollector<Pair<Integer, ByteBuffer>> output, Reporter reporter)
+            throws IOException {
+      collector = output;
+      BuildGraphAvro.readInputRecord(inputRecord, sequence);
+      sequence = preprocessor.PreProcess(sequence);
+
+      kmer.clear();
+      for (int i = 0; i < sequence.size(); ++i) {
+        kmer.addBase(sequence.valAt(i));
+        if (!kmer.isFull()) {
+          continue;
+        }
+        KmerBloomFilter.computeIndexes(kmer, numBits, indexes);
+        for (long index : indexes) {
+          int pos = (int) (index >>> 1);
+          int shift = (int) (index & 1) * 4;
+          if (((counters[pos] >>> shift) & 0xF) < minCount) {
+            counters[pos] += 1 << shift;
+          }
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (collector == null) {
+        return;
+      }
+      int blockBytes = COUNTERS_PER_BLOCK / 2;
+      for (int block = 0; block * blockBytes < counters.length; ++block) {
+        int start = block * blockBytes;
+        boolean empty = true;
+        for (int i = start; i < start + blockBytes && empty; ++i) {
+          empty = counters[i] == 0;
+        }
+        if (empty) {
+          continue;
+        }
+        outPair.key(block);
+        outPair.value(ByteBuffer.wrap(
+            Arrays.copyOfRange(counters, start, start + blockBytes)));
+        collector.collect(outPair);
+      }
+    }
+  }
+
+  /**
+   * Combiner adds up the counters for a block.
+   */
+  public static class CountCombiner extends
+      AvroReducer<Integer, ByteBuffer, Pair<Integer, ByteBuffer>> {
+    private byte[] sum;
+    private Pair<Integer, ByteBuffer> outPair;
+
+    @Override
+    public void configure(JobConf job) {
+      sum = new byte[COUNTERS_PER_BLOCK / 2];
+      outPair = new Pair<Integer, ByteBuffer>(BLOCK_SCHEMA);
+    }
+
+    @Override
+    public void reduce(Integer block, Iterable<ByteBuffer> blocks,
+        AvroCollector<Pair<Integer, ByteBuffer>> collector, Reporter reporter)
+            throws IOException {
+      Arrays.fill(sum, (byte) 0);
+      for (ByteBuffer counters : blocks) {
+        addCounters(sum, counters, MAX_COUNT);
+      }
+      outPair.key(block);
+      outPair.value(ByteBuffer.wrap(sum));
+      collector.collect(outPair);
+    }
+  }
+
+  /**
+   * A single reducer sets the bits of the filter for the counters which
+   * reach min_kmer_count and writes the filter when it is closed.
+   */
+  public static class FilterReducer extends
+      AvroReducer<Integer, ByteBuffer, Pair<Integer, ByteBuffer>> {
+    private int minCount;
+    private byte[] sum;
+    private KmerBloomFilter filter;
+    private Path filterPath;
+    private JobConf job;
+
+    @Override
+    public void configure(JobConf job) {
+      this.job = job;
+      BuildKmerFilter stage = new BuildKmerFilter();
+      Map<String, ParameterDefinition> definitions =
+          stage.getParameterDefinitions();
+      minCount = Math.min(
+          (Integer) (definitions.get("min_kmer_count").parseJobConf(job)),
+          MAX_COUNT);
+      long numBits =
+          (Long) (definitions.get("bloom_filter_bits").parseJobConf(job));
+      int numHashes =
+          (Integer) (definitions.get("bloom_filter_hashes").parseJobConf(job));
+      String outputPath =
+          (String) (definitions.get("outputpath").parseJobConf(job));
+
+      sum = new byte[COUNTERS_PER_BLOCK / 2];
+      filter = new KmerBloomFilter(numBits, numHashes);
+      filterPath = new Path(FilenameUtils.concat(outputPath, FILTER_FILENAME));
+    }
+
+    @Override
+    public void reduce(Integer block, Iterable<ByteBuffer> blocks,
+        AvroCollector<Pair<Integer, ByteBuffer>> collector, Reporter reporter)
+            throws IOException {
+      Arrays.fill(sum, (byte) 0);
+      for (ByteBuffer counters : blocks) {
+        addCounters(sum, counters, MAX_COUNT);
+      }
+      long start = (long) block * COUNTERS_PER_BLOCK;
+      for (int i = 0; i < COUNTERS_PER_BLOCK; ++i) {
+        if (((sum[i >>> 1] >>> ((i & 1) * 4)) & 0xF) >= minCount) {
+          filter.setBit(start + i);
+          reporter.incrCounter("Contrail", "kmer-filter-bits-set", 1);
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      FileSystem fs = filterPath.getFileSystem(job);
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(fs.create(filterPath, true)));
+      filter.write(out);
+      out.close();
+    }
+  }
+
+  /**
+   * Read the filter.
+   *
+   * If the filter was added to the distributed cache the local copy is
+   * read; otherwise the filter is read from path.
+   *
+   * @param job: The job configuration.
+   * @param path: The path of the filter.
+   */
+  public static KmerBloomFilter readFilter(JobConf job, String path) {
+    try {
+      Path filterPath = new Path(path);
+      FileSystem fs = filterPath.getFileSystem(job);
+      Path[] cacheFiles = DistributedCache.getLocalCacheFiles(job);
+      if (cacheFiles != null) {
+        for (Path cachePath : cacheFiles) {
+          if (cachePath.getName().equals(filterPath.getName())) {
+            filterPath = cachePath;
+            fs = FileSystem.getLocal(job);
+          }
+        }
+      }
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(fs.open(filterPath)));
+      KmerBloomFilter filter = KmerBloomFilter.read(in);
+      in.close();
+      return filter;
+    } catch (IOException e) {
+      throw new RuntimeException("Couldn't read the KMer filter: " + path, e);
+    }
+  }
+
+  /**
+   * Return the path where the filter is written.
+   */
+  public Path getFilterPath() {
+    return new Path(FilenameUtils.concat(
+        (String) stage_options.get("outputpath"), FILTER_FILENAME));
+  }
+
+  @Override
+  public List<InvalidParameter> validateParameters() {
+    List<InvalidParameter> items = super.validateParameters();
+    int K = (Integer) stage_options.get("K");
+    if (!Kmer.isSupported(K)) {
+      items.add(new InvalidParameter(
+          "K", "BuildKmerFilter only supports K <= 64."));
+    }
+    long numBits = (Long) stage_options.get("bloom_filter_bits");
+    if (numBits <= 0 || numBits % COUNTERS_PER_BLOCK != 0 ||
+        numBits / 2 > Integer.MAX_VALUE) {
+      items.add(new InvalidParameter(
+          "bloom_filter_bits", "bloom_filter_bits must be a positive " +
+          "multiple of " + COUNTERS_PER_BLOCK + " and less than 2^32."));
+    }
+    int minCount = (Integer) stage_options.get("min_kmer_count");
+    if (minCount > MAX_COUNT) {
+      items.add(new InvalidParameter(
+          "min_kmer_count", "min_kmer_count can be at most " + MAX_COUNT));
+    }
+    return items;
+  }
+
+  @Override
+  protected void setupConfHook() {
+    JobConf conf = (JobConf) getConf();
+    String inputPath = (String) stage_options.get("inputpath");
+    FileInputFormat.addInputPath(conf, new Path(inputPath));
+
+    // The filter is written to the output path so the output of the
+    // mapreduce, which is empty, goes to a subdirectory.
+    String outputPath = (String) stage_options.get("outputpath");
+    FileOutputFormat.setOutputPath(
+        conf, new Path(FilenameUtils.concat(outputPath, "mroutput")));
+
+    AvroJob.setInputSchema(conf, BuildGraphAvro.createInputSchema());
+    AvroJob.setMapOutputSchema(conf, BLOCK_SCHEMA);
+    AvroJob.setOutputSchema(conf, BLOCK_SCHEMA);
+
+    AvroJob.setMapperClass(conf, CountMapper.class);
+    AvroJob.setCombinerClass(conf, CountCombiner.class);
+    AvroJob.setReducerClass(conf, FilterReducer.class);
+
+    // The filter is written by a single reducer.
+    conf.setNumReduceTasks(1);
+  }
+
+  @Override
+  protected void postRunHook() {
+    try {
+      long bitsSet = job.getCounters().findCounter(
+          "Contrail", "kmer-filter-bits-set").getValue();
+      sLogger.info(String.format(
+          "Number of bits set in the KMer filter: %d of %d", bitsSet,
+          (Long) stage_options.get("bloom_filter_bits")));
+    } catch (IOException e) {
+      sLogger.fatal("Couldn't get counters.", e);
+      System.exit(-1);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(), new BuildKmerFilter(), args);
+    System.exit(res);
+  }
+}
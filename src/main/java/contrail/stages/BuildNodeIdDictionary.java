@@ -0,0 +1,160 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.mapred.AvroMapper;
+import org.apache.avro.mapred.AvroReducer;
+import org.apache.avro.mapred.Pair;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+
+import contrail.graph.GraphNode;
+import contrail.graph.GraphNodeData;
+import contrail.stages.GraphCounters.CounterName;
+
+/**
+ * Build a dictionary mapping node ids to sequences.
+ *
+ * This is intended to be run on the output of BuildGraphAvro when
+ * compact node ids are used (node_id_bits > 0). Compact ids are hashes of
+ * the KMers so the ids can't be decoded; the dictionary lets debugging
+ * tools map the ids back to the KMers. Since every KMer produces exactly
+ * one node, two nodes with the same id means two KMers hashed to the same
+ * id; in that case the job fails.
+ *
+ * The output is a pair of strings (node id, sequence).
+ */
+public class BuildNodeIdDictionary extends MRStage {
+  private static final Logger sLogger =
+      Logger.getLogger(BuildNodeIdDictionary.class);
+
+  public static final Schema DICTIONARY_SCHEMA = Pair.getPairSchema(
+      Schema.create(Schema.Type.STRING), Schema.create(Schema.Type.STRING));
+
+  public final static CounterName NUM_COLLISIONS =
+      new CounterName("Contrail", "node-id-collisions");
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+    defs.putAll(super.createParameterDefinitions());
+    for (ParameterDefinition def:
+      ContrailParameters.getInputOutputPathOptions()) {
+      defs.put(def.getName(), def);
+    }
+    return Collections.unmodifiableMap(defs);
+  }
+
+  public static class DictionaryMapper extends
+      AvroMapper<GraphNodeData, Pair<CharSequence, CharSequence>> {
+    private GraphNode node;
+    private Pair<CharSequence, CharSequence> outPair;
+
+    @Override
+    public void configure(JobConf job) {
+      node = new GraphNode();
+      outPair = new Pair<CharSequence, CharSequence>(DICTIONARY_SCHEMA);
+    }
+
+    @Override
+    public void map(GraphNodeData input,
+        AvroCollector<Pair<CharSequence, CharSequence>> collector,
+        Reporter reporter) throws IOException {
+      node.setData(input);
+      outPair.key(node.getNodeId());
+      outPair.value(node.getSequence().toString());
+      collector.collect(outPair);
+    }
+  }
+
+  public static class DictionaryReducer extends
+      AvroReducer<CharSequence, CharSequence,
+                  Pair<CharSequence, CharSequence>> {
+    private Pair<CharSequence, CharSequence> outPair;
+
+    @Override
+    public void configure(JobConf job) {
+      outPair = new Pair<CharSequence, CharSequence>(DICTIONARY_SCHEMA);
+    }
+
+    @Override
+    public void reduce(CharSequence nodeId, Iterable<CharSequence> sequences,
+        AvroCollector<Pair<CharSequence, CharSequence>> collector,
+        Reporter reporter) throws IOException {
+      Iterator<CharSequence> iter = sequences.iterator();
+      String sequence = iter.next().toString();
+      if (iter.hasNext()) {
+        String other = iter.next().toString();
+        reporter.incrCounter(NUM_COLLISIONS.group, NUM_COLLISIONS.tag, 1);
+        throw new RuntimeException(String.format(
+            "Node id collision: %s is the id for %s and %s. Use a larger " +
+            "value for node_id_bits.", nodeId, sequence, other));
+      }
+      outPair.key(nodeId.toString());
+      outPair.value(sequence);
+      collector.collect(outPair);
+    }
+  }
+
+  @Override
+  protected void setupConfHook() {
+    JobConf conf = (JobConf) getConf();
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    FileInputFormat.addInputPath(conf, new Path(inputPath));
+    FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+    AvroJob.setInputSchema(conf, new GraphNodeData().getSchema());
+    AvroJob.setMapOutputSchema(conf, DICTIONARY_SCHEMA);
+    AvroJob.setOutputSchema(conf, DICTIONARY_SCHEMA);
+
+    AvroJob.setMapperClass(conf, DictionaryMapper.class);
+    AvroJob.setReducerClass(conf, DictionaryReducer.class);
+  }
+
+  @Override
+  protected void postRunHook() {
+    try {
+      long numIds = job.getCounters().findCounter(
+          "org.apache.hadoop.mapred.Task$Counter",
+          "REDUCE_OUTPUT_RECORDS").getValue();
+      sLogger.info("Number of node ids in the dictionary:" + numIds);
+    } catch (IOException e) {
+      sLogger.fatal("Couldn't get counters.", e);
+      System.exit(-1);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(
+        new Configuration(), new BuildNodeIdDictionary(), args);
+    System.exit(res);
+  }
+}
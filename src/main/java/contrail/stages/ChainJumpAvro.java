@@ -0,0 +1,357 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.mapred.AvroMapper;
+import org.apache.avro.mapred.AvroReducer;
+import org.apache.avro.mapred.Pair;
+import org.apache.avro.specific.SpecificData;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+
+import contrail.graph.EdgeDirection;
+import contrail.graph.EdgeTerminal;
+import contrail.graph.GraphNode;
+import contrail.sequences.DNAStrand;
+import contrail.sequences.DNAStrandUtil;
+import contrail.stages.GraphCounters.CounterName;
+
+/**
+ * One round of ranking linear chains by pointer jumping.
+ *
+ * Each compressible node keeps a pointer for each strand. The pointer for
+ * strand s points to the terminal reached by walking the outgoing edges of s
+ * along the chain. Initially the pointers point to the adjacent nodes in the
+ * chain; a pointer on a strand which isn't compressible points at the node
+ * itself and is marked done because the node is the end of the chain.
+ *
+ * In each round, every node X sends each of its targets T the pointer for
+ * its other strand. T replaces its pointer to X with that pointer, so the
+ * distance covered by each pointer doubles. After O(log L) rounds, where
+ * L is the length of the longest chain, all pointers are done and every node
+ * knows both ends of its chain; ChainKeyAvro and ChainMergeAvro then merge
+ * each chain in a single step. This replaces the O(L) expected rounds of the
+ * randomized PairMarkAvro/PairMergeAvro, and the records shuffled in each
+ * round don't contain the nodes.
+ *
+ * The pointers of nodes in a cycle are never done. Every node also keeps a
+ * label, the smallest node id it has seen, so once the pointers have
+ * wrapped around the cycle all nodes in the cycle have the same label.
+ *
+ * The input is either the CompressibleNodeData outputted by CompressibleAvro
+ * or the ChainLinkData outputted by a previous round. The output is
+ * ChainLinkData for the compressible nodes.
+ */
+public class ChainJumpAvro extends MRStage {
+  private static final Logger sLogger = Logger.getLogger(ChainJumpAvro.class);
+
+  public static final CounterName NUM_CHAIN_NODES =
+      new CounterName("Contrail", "chain-nodes");
+
+  // The number of pointers which haven't reached the end of their chain.
+  public static final CounterName NUM_ACTIVE_POINTERS =
+      new CounterName("Contrail", "chain-active-pointers");
+
+  public static final Schema MAP_OUT_SCHEMA = Pair.getPairSchema(
+      Schema.create(Schema.Type.STRING), createMapValueSchema());
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+    defs.putAll(super.createParameterDefinitions());
+    for (ParameterDefinition def:
+      ContrailParameters.getInputOutputPathOptions()) {
+      defs.put(def.getName(), def);
+    }
+    return Collections.unmodifiableMap(defs);
+  }
+
+  protected static Schema createInputSchema() {
+    ArrayList<Schema> schemas = new ArrayList<Schema>();
+    schemas.add(new CompressibleNodeData().getSchema());
+    schemas.add(new ChainLinkData().getSchema());
+    return Schema.createUnion(schemas);
+  }
+
+  private static Schema createMapValueSchema() {
+    ArrayList<Schema> schemas = new ArrayList<Schema>();
+    schemas.add(new ChainLinkData().getSchema());
+    schemas.add(new ChainJumpMessage().getSchema());
+    return Schema.createUnion(schemas);
+  }
+
+  /**
+   * Return the pointer for the given strand.
+   */
+  public static ChainPointer getPointer(
+      ChainLinkData link, DNAStrand strand) {
+    if (strand == DNAStrand.FORWARD) {
+      return link.getForward();
+    }
+    return link.getReverse();
+  }
+
+  private static void setPointer(
+      ChainLinkData link, DNAStrand strand, ChainPointer pointer) {
+    if (strand == DNAStrand.FORWARD) {
+      link.setForward(pointer);
+    } else {
+      link.setReverse(pointer);
+    }
+  }
+
+  private static boolean isCompressible(
+      CompressibleStrands strands, DNAStrand strand) {
+    if (strands == CompressibleStrands.BOTH) {
+      return true;
+    }
+    return CompressUtil.compressibleStrandsToDNAStrand(strands) == strand;
+  }
+
+  /**
+   * Create the initial link for a compressible node.
+   */
+  public static ChainLinkData createLink(CompressibleNodeData nodeData) {
+    GraphNode node = new GraphNode(nodeData.getNode());
+    ChainLinkData link = new ChainLinkData();
+    link.setNodeId(node.getNodeId());
+    link.setLabel(node.getNodeId());
+    link.setEndNeighbors(new ArrayList<CharSequence>());
+
+    for (DNAStrand strand : DNAStrand.values()) {
+      ChainPointer pointer = new ChainPointer();
+      if (isCompressible(nodeData.getCompressibleStrands(), strand)) {
+        EdgeTerminal next = node.getEdgeTerminals(
+            strand, EdgeDirection.OUTGOING).get(0);
+        pointer.setTargetId(next.nodeId);
+        pointer.setTargetStrand(next.strand);
+        pointer.setDone(false);
+      } else {
+        // The node is the end of the chain on this strand. We keep track
+        // of the neighbors on this side because their edges need to be
+        // moved when the chain is merged.
+        pointer.setTargetId(node.getNodeId());
+        pointer.setTargetStrand(strand);
+        pointer.setDone(true);
+
+        HashSet<String> neighbors = new HashSet<String>();
+        for (EdgeTerminal terminal :
+             node.getEdgeTerminals(strand, EdgeDirection.OUTGOING)) {
+          neighbors.add(terminal.nodeId);
+        }
+        link.getEndNeighbors().addAll(neighbors);
+      }
+      setPointer(link, strand, pointer);
+    }
+    return link;
+  }
+
+  private static int compareTerminals(EdgeTerminal left, EdgeTerminal right) {
+    int result = left.nodeId.compareTo(right.nodeId);
+    if (result != 0) {
+      return result;
+    }
+    return left.strand.compareTo(right.strand);
+  }
+
+  /**
+   * Find the terminals at the start and the end of the chain containing
+   * the node.
+   *
+   * Walking the outgoing edges from the start terminal visits the whole
+   * chain and arrives at the end terminal. Of the two orientations of the
+   * chain we pick the one with the smaller start terminal, so all nodes in
+   * the chain agree on the start and end.
+   *
+   * @param link: The link for a node after all rounds have finished.
+   * @return: An array containing the start and end terminals or null if
+   *   the pointers aren't done; i.e. the chain is a cycle.
+   */
+  public static EdgeTerminal[] findChainEnds(ChainLinkData link) {
+    ChainPointer forward = link.getForward();
+    ChainPointer reverse = link.getReverse();
+    if (!forward.getDone() || !reverse.getDone()) {
+      return null;
+    }
+    // Walking the chain in the direction of the forward strand of this node
+    // we start at the flip of the terminal reached from the reverse strand.
+    EdgeTerminal start = new EdgeTerminal(
+        reverse.getTargetId().toString(),
+        DNAStrandUtil.flip(reverse.getTargetStrand()));
+    EdgeTerminal end = new EdgeTerminal(
+        forward.getTargetId().toString(), forward.getTargetStrand());
+
+    if (compareTerminals(end.flip(), start) < 0) {
+      return new EdgeTerminal[] {end.flip(), start.flip()};
+    }
+    return new EdgeTerminal[] {start, end};
+  }
+
+  public static class JumpMapper extends
+      AvroMapper<Object, Pair<CharSequence, Object>> {
+    private Pair<CharSequence, Object> outPair;
+    private ChainJumpMessage message;
+
+    @Override
+    public void configure(JobConf job) {
+      outPair = new Pair<CharSequence, Object>(MAP_OUT_SCHEMA);
+      message = new ChainJumpMessage();
+    }
+
+    @Override
+    public void map(
+        Object record, AvroCollector<Pair<CharSequence, Object>> collector,
+        Reporter reporter) throws IOException {
+      ChainLinkData link;
+      if (record instanceof CompressibleNodeData) {
+        CompressibleNodeData nodeData = (CompressibleNodeData) record;
+        if (nodeData.getCompressibleStrands() == CompressibleStrands.NONE) {
+          return;
+        }
+        link = createLink(nodeData);
+        reporter.incrCounter(NUM_CHAIN_NODES.group, NUM_CHAIN_NODES.tag, 1);
+      } else {
+        link = (ChainLinkData) record;
+      }
+
+      for (DNAStrand strand : DNAStrand.values()) {
+        ChainPointer pointer = getPointer(link, strand);
+        if (pointer.getDone()) {
+          continue;
+        }
+        // Walking from the target back towards this node starts on the
+        // flip of the strand we arrive on. The target can skip over this
+        // node by following the pointer for our other strand.
+        message.setStrand(DNAStrandUtil.flip(pointer.getTargetStrand()));
+        message.setPointer(getPointer(link, DNAStrandUtil.flip(strand)));
+        message.setLabel(link.getLabel());
+        outPair.key(pointer.getTargetId());
+        outPair.value(message);
+        collector.collect(outPair);
+      }
+
+      outPair.key(link.getNodeId());
+      outPair.value(link);
+      collector.collect(outPair);
+    }
+  }
+
+  public static class JumpReducer extends
+      AvroReducer<CharSequence, Object, ChainLinkData> {
+    private ArrayList<ChainJumpMessage> messages;
+
+    @Override
+    public void configure(JobConf job) {
+      messages = new ArrayList<ChainJumpMessage>();
+    }
+
+    @Override
+    public void reduce(
+        CharSequence nodeId, Iterable<Object> records,
+        AvroCollector<ChainLinkData> collector, Reporter reporter)
+            throws IOException {
+      ChainLinkData link = null;
+      messages.clear();
+      // We need to make copies because hadoop reuses the objects.
+      for (Object record : records) {
+        if (record instanceof ChainLinkData) {
+          if (link != null) {
+            throw new RuntimeException(
+                "Node: " + nodeId + " has more than one link.");
+          }
+          ChainLinkData value = (ChainLinkData) record;
+          link = SpecificData.get().deepCopy(value.getSchema(), value);
+        } else {
+          ChainJumpMessage value = (ChainJumpMessage) record;
+          messages.add(SpecificData.get().deepCopy(value.getSchema(), value));
+        }
+      }
+
+      if (link == null) {
+        throw new RuntimeException("No link for node: " + nodeId);
+      }
+
+      String label = link.getLabel().toString();
+      for (ChainJumpMessage message : messages) {
+        setPointer(link, message.getStrand(), message.getPointer());
+        if (message.getLabel().toString().compareTo(label) < 0) {
+          label = message.getLabel().toString();
+        }
+      }
+      link.setLabel(label);
+
+      int numActive = 0;
+      for (DNAStrand strand : DNAStrand.values()) {
+        if (!getPointer(link, strand).getDone()) {
+          ++numActive;
+        }
+      }
+      if (numActive > 0) {
+        reporter.incrCounter(
+            NUM_ACTIVE_POINTERS.group, NUM_ACTIVE_POINTERS.tag, numActive);
+      }
+      collector.collect(link);
+    }
+  }
+
+  @Override
+  protected void setupConfHook() {
+    JobConf conf = (JobConf) getConf();
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    FileInputFormat.addInputPath(conf, new Path(inputPath));
+    FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+    AvroJob.setInputSchema(conf, createInputSchema());
+    AvroJob.setMapOutputSchema(conf, MAP_OUT_SCHEMA);
+    AvroJob.setOutputSchema(conf, new ChainLinkData().getSchema());
+
+    AvroJob.setMapperClass(conf, JumpMapper.class);
+    AvroJob.setReducerClass(conf, JumpReducer.class);
+  }
+
+  @Override
+  protected void postRunHook() {
+    try {
+      long numActive = job.getCounters().findCounter(
+          NUM_ACTIVE_POINTERS.group, NUM_ACTIVE_POINTERS.tag).getValue();
+      sLogger.info("Number of pointers still jumping:" + numActive);
+    } catch (IOException e) {
+      sLogger.fatal("Couldn't get counters.", e);
+      System.exit(-1);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(), new ChainJumpAvro(), args);
+    System.exit(res);
+  }
+}
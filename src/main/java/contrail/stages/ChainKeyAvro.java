@@ -0,0 +1,242 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.avro.Schema;
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.mapred.AvroMapper;
+import org.apache.avro.mapred.AvroReducer;
+import org.apache.avro.mapred.Pair;
+import org.apache.avro.specific.SpecificData;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ToolRunner;
+
+import contrail.graph.EdgeDirection;
+import contrail.graph.EdgeTerminal;
+import contrail.graph.GraphNode;
+import contrail.sequences.DNAStrand;
+
+/**
+ * Key the nodes of the graph by the chain they belong to.
+ *
+ * This MR takes two inputs:
+ * 1. The CompressibleNodeData outputted by CompressibleAvro.
+ * 2. The ChainLinkData outputted by the last round of ChainJumpAvro.
+ * The input path should be a comma separated list of the two.
+ *
+ * Each node in a chain is keyed by the id of the node at the start of
+ * the chain; ChainMergeAvro keeps that id for the merged node. Nodes in a
+ * cycle are keyed by their label and nodes which aren't compressible are
+ * keyed by their own id. Since the start terminal keeps its id and strand,
+ * only the edges to the end of the chain need to be moved. The end node
+ * sends an EdgeUpdateForMerge to its neighbors outside the chain and the
+ * reducer applies it before outputting the node.
+ *
+ * The output is Pair<key, CompressibleNodeData>.
+ */
+public class ChainKeyAvro extends MRStage {
+  public static final Schema MAP_OUT_SCHEMA = Pair.getPairSchema(
+      Schema.create(Schema.Type.STRING), createMapValueSchema());
+
+  public static final Schema REDUCE_OUT_SCHEMA = Pair.getPairSchema(
+      Schema.create(Schema.Type.STRING),
+      new CompressibleNodeData().getSchema());
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+    defs.putAll(super.createParameterDefinitions());
+    for (ParameterDefinition def:
+      ContrailParameters.getInputOutputPathOptions()) {
+      defs.put(def.getName(), def);
+    }
+    return Collections.unmodifiableMap(defs);
+  }
+
+  private static Schema createMapValueSchema() {
+    ArrayList<Schema> schemas = new ArrayList<Schema>();
+    schemas.add(new CompressibleNodeData().getSchema());
+    schemas.add(new ChainLinkData().getSchema());
+    schemas.add(new EdgeUpdateForMerge().getSchema());
+    return Schema.createUnion(schemas);
+  }
+
+  public static class KeyMapper extends
+      AvroMapper<Object, Pair<CharSequence, Object>> {
+    private Pair<CharSequence, Object> outPair;
+    private EdgeUpdateForMerge update;
+
+    @Override
+    public void configure(JobConf job) {
+      outPair = new Pair<CharSequence, Object>(MAP_OUT_SCHEMA);
+      update = new EdgeUpdateForMerge();
+    }
+
+    @Override
+    public void map(
+        Object record, AvroCollector<Pair<CharSequence, Object>> collector,
+        Reporter reporter) throws IOException {
+      if (record instanceof CompressibleNodeData) {
+        outPair.key(((CompressibleNodeData) record).getNode().getNodeId());
+        outPair.value(record);
+        collector.collect(outPair);
+        return;
+      }
+
+      ChainLinkData link = (ChainLinkData) record;
+      String nodeId = link.getNodeId().toString();
+      outPair.key(nodeId);
+      outPair.value(link);
+      collector.collect(outPair);
+
+      EdgeTerminal[] ends = ChainJumpAvro.findChainEnds(link);
+      if (ends == null) {
+        return;
+      }
+      EdgeTerminal start = ends[0];
+      EdgeTerminal end = ends[1];
+      if (!end.nodeId.equals(nodeId) || end.nodeId.equals(start.nodeId)) {
+        // Only the end node needs to send messages. If the chain starts and
+        // ends on the same node, e.g. X->...->R(X), then the edges into the
+        // end are the edges into the start so they don't move.
+        return;
+      }
+
+      // Edges into the flip of the end become edges into the flip of the
+      // merged node.
+      update.setOldId(end.nodeId);
+      update.setOldStrand(end.flip().strand);
+      update.setNewId(start.nodeId);
+      update.setNewStrand(start.flip().strand);
+      for (CharSequence neighborId : link.getEndNeighbors()) {
+        if (neighborId.toString().equals(nodeId)) {
+          // Edges to the node itself are moved by the merge.
+          continue;
+        }
+        outPair.key(neighborId);
+        outPair.value(update);
+        collector.collect(outPair);
+      }
+    }
+  }
+
+  public static class KeyReducer extends
+      AvroReducer<CharSequence, Object,
+                  Pair<CharSequence, CompressibleNodeData>> {
+    private Pair<CharSequence, CompressibleNodeData> outPair;
+    private ArrayList<EdgeUpdateForMerge> updates;
+
+    @Override
+    public void configure(JobConf job) {
+      outPair = new Pair<CharSequence, CompressibleNodeData>(
+          REDUCE_OUT_SCHEMA);
+      updates = new ArrayList<EdgeUpdateForMerge>();
+    }
+
+    @Override
+    public void reduce(
+        CharSequence nodeId, Iterable<Object> records,
+        AvroCollector<Pair<CharSequence, CompressibleNodeData>> collector,
+        Reporter reporter) throws IOException {
+      CompressibleNodeData nodeData = null;
+      ChainLinkData link = null;
+      updates.clear();
+
+      // We need to make copies because hadoop reuses the objects.
+      for (Object record : records) {
+        if (record instanceof CompressibleNodeData) {
+          if (nodeData != null) {
+            throw new RuntimeException(
+                "Node: " + nodeId + " appeared multiple times.");
+          }
+          nodeData = CompressUtil.copyCompressibleNode(
+              (CompressibleNodeData) record);
+        } else if (record instanceof ChainLinkData) {
+          ChainLinkData value = (ChainLinkData) record;
+          link = SpecificData.get().deepCopy(value.getSchema(), value);
+        } else {
+          EdgeUpdateForMerge value = (EdgeUpdateForMerge) record;
+          updates.add(SpecificData.get().deepCopy(value.getSchema(), value));
+        }
+      }
+
+      if (nodeData == null) {
+        throw new RuntimeException("No node provided for node: " + nodeId);
+      }
+
+      GraphNode node = new GraphNode(nodeData.getNode());
+      for (EdgeUpdateForMerge update : updates) {
+        EdgeTerminal oldTerminal = new EdgeTerminal(
+            update.getOldId().toString(), update.getOldStrand());
+        EdgeTerminal newTerminal = new EdgeTerminal(
+            update.getNewId().toString(), update.getNewStrand());
+        Set<DNAStrand> strands = node.findStrandsWithEdgeToTerminal(
+            oldTerminal, EdgeDirection.OUTGOING);
+        for (DNAStrand strand : strands) {
+          node.moveOutgoingEdge(strand, oldTerminal, newTerminal);
+        }
+      }
+      nodeData.setNode(node.getData());
+
+      String key = nodeId.toString();
+      if (link != null) {
+        EdgeTerminal[] ends = ChainJumpAvro.findChainEnds(link);
+        if (ends == null) {
+          reporter.incrCounter("Contrail", "chain-nodes-in-cycles", 1);
+          key = link.getLabel().toString();
+        } else {
+          key = ends[0].nodeId;
+        }
+      }
+      outPair.key(key);
+      outPair.value(nodeData);
+      collector.collect(outPair);
+    }
+  }
+
+  @Override
+  protected void setupConfHook() {
+    JobConf conf = (JobConf) getConf();
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    FileInputFormat.addInputPaths(conf, inputPath);
+    FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+    AvroJob.setInputSchema(conf, ChainJumpAvro.createInputSchema());
+    AvroJob.setMapOutputSchema(conf, MAP_OUT_SCHEMA);
+    AvroJob.setOutputSchema(conf, REDUCE_OUT_SCHEMA);
+
+    AvroJob.setMapperClass(conf, KeyMapper.class);
+    AvroJob.setReducerClass(conf, KeyReducer.class);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(), new ChainKeyAvro(), args);
+    System.exit(res);
+  }
+}
@@ -0,0 +1,248 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.mapred.AvroMapper;
+import org.apache.avro.mapred.AvroReducer;
+import org.apache.avro.mapred.Pair;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+
+import contrail.graph.EdgeDirection;
+import contrail.graph.EdgeTerminal;
+import contrail.graph.GraphNode;
+import contrail.graph.GraphNodeData;
+import contrail.graph.LinearChainWalker;
+import contrail.graph.NodeMerger;
+import contrail.graph.NodeReverser;
+import contrail.sequences.DNAStrand;
+import contrail.stages.GraphCounters.CounterName;
+
+/**
+ * Merge the chains keyed by ChainKeyAvro.
+ *
+ * All nodes in a chain are sent to the same reducer so each chain is merged
+ * in one step. The key of a chain which isn't a cycle is the id of the node
+ * at its start; the merged node keeps that id and is oriented so the strand
+ * of the start terminal still corresponds to the start of the chain. Thus
+ * the edges into the start don't change; the edges into the end were moved
+ * by ChainKeyAvro. Cycles are broken at the node whose id is the key.
+ *
+ * Nodes which aren't part of any chain are outputted unchanged. The output
+ * is GraphNodeData.
+ */
+public class ChainMergeAvro extends MRStage {
+  private static final Logger sLogger = Logger.getLogger(ChainMergeAvro.class);
+
+  public static final CounterName NUM_MERGED_CHAINS =
+      new CounterName("Contrail", "chains-merged");
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+    defs.putAll(super.createParameterDefinitions());
+    for (ParameterDefinition def:
+      ContrailParameters.getInputOutputPathOptions()) {
+      defs.put(def.getName(), def);
+    }
+    ParameterDefinition kDef = ContrailParameters.getK();
+    defs.put(kDef.getName(), kDef);
+    return Collections.unmodifiableMap(defs);
+  }
+
+  public static class Mapper extends
+      AvroMapper<Pair<CharSequence, CompressibleNodeData>,
+                 Pair<CharSequence, CompressibleNodeData>> {
+    @Override
+    public void map(
+        Pair<CharSequence, CompressibleNodeData> record,
+        AvroCollector<Pair<CharSequence, CompressibleNodeData>> collector,
+        Reporter reporter) throws IOException {
+      collector.collect(record);
+    }
+  }
+
+  public static class MergeReducer extends
+      AvroReducer<CharSequence, CompressibleNodeData, GraphNodeData> {
+    private int K;
+    private NodeMerger nodeMerger;
+    private NodeReverser nodeReverser;
+    private HashMap<String, GraphNode> nodes;
+    private HashMap<String, CompressibleStrands> compressibleStrands;
+
+    @Override
+    public void configure(JobConf job) {
+      ChainMergeAvro stage = new ChainMergeAvro();
+      Map<String, ParameterDefinition> definitions =
+          stage.getParameterDefinitions();
+      K = (Integer)(definitions.get("K").parseJobConf(job));
+      nodeMerger = new NodeMerger();
+      nodeReverser = new NodeReverser();
+      nodes = new HashMap<String, GraphNode>();
+      compressibleStrands = new HashMap<String, CompressibleStrands>();
+    }
+
+    /**
+     * Merge a chain which isn't a cycle.
+     *
+     * @param start: The terminal at the start of the chain.
+     * @return: The merged node.
+     */
+    protected GraphNode mergeChain(EdgeTerminal start) {
+      ArrayList<EdgeTerminal> terminals = new ArrayList<EdgeTerminal>();
+      HashSet<String> visited = new HashSet<String>();
+      terminals.add(start);
+      visited.add(start.nodeId);
+      LinearChainWalker walker = new LinearChainWalker(
+          nodes, start, EdgeDirection.OUTGOING);
+      while (walker.hasNext()) {
+        EdgeTerminal terminal = walker.next();
+        terminals.add(terminal);
+        visited.add(terminal.nodeId);
+      }
+
+      // Sanity check.
+      if (visited.size() != nodes.size()) {
+        throw new RuntimeException(
+            "The chain starting at " + start + " only contains " +
+            visited.size() + " of the " + nodes.size() + " nodes with the " +
+            "same key.");
+      }
+
+      NodeMerger.MergeResult result = nodeMerger.mergeNodes(
+          start.nodeId, terminals, nodes, K - 1);
+      GraphNode mergedNode = result.node;
+      if (result.strand != start.strand) {
+        mergedNode = nodeReverser.reverse(mergedNode);
+      }
+      return mergedNode;
+    }
+
+    /**
+     * Merge a chain forming a cycle.
+     *
+     * @return: The nodes after the merge.
+     */
+    protected ArrayList<GraphNode> mergeCycle(GraphNode startNode) {
+      QuickMergeUtil.NodesToMerge nodesToMerge =
+          QuickMergeUtil.findNodesToMerge(nodes, startNode);
+      if (nodesToMerge.start_terminal != null) {
+        QuickMergeUtil.ChainMergeResult result =
+            QuickMergeUtil.mergeLinearChain(nodes, nodesToMerge, K - 1);
+        for (String mergedId : result.merged_nodeids) {
+          nodes.remove(mergedId);
+        }
+        nodes.put(result.merged_node.getNodeId(), result.merged_node);
+      }
+      return new ArrayList<GraphNode>(nodes.values());
+    }
+
+    @Override
+    public void reduce(
+        CharSequence key, Iterable<CompressibleNodeData> records,
+        AvroCollector<GraphNodeData> collector, Reporter reporter)
+            throws IOException {
+      nodes.clear();
+      compressibleStrands.clear();
+      for (CompressibleNodeData record : records) {
+        // We need to make a copy because hadoop reuses the object.
+        GraphNode node = new GraphNode(record.getNode()).clone();
+        nodes.put(node.getNodeId(), node);
+        compressibleStrands.put(
+            node.getNodeId(), record.getCompressibleStrands());
+      }
+
+      if (nodes.size() == 1) {
+        collector.collect(nodes.values().iterator().next().getData());
+        return;
+      }
+
+      String startId = key.toString();
+      GraphNode startNode = nodes.get(startId);
+      if (startNode == null) {
+        throw new RuntimeException(
+            "The chain with key: " + startId + " doesn't contain that node.");
+      }
+
+      reporter.incrCounter(NUM_MERGED_CHAINS.group, NUM_MERGED_CHAINS.tag, 1);
+      reporter.incrCounter("Contrail", "chain-nodes-merged", nodes.size());
+      CompressibleStrands strands = compressibleStrands.get(startId);
+      if (strands == CompressibleStrands.BOTH) {
+        reporter.incrCounter("Contrail", "chain-cycles", 1);
+        for (GraphNode node : mergeCycle(startNode)) {
+          collector.collect(node.getData());
+        }
+        return;
+      }
+
+      DNAStrand strand = CompressUtil.compressibleStrandsToDNAStrand(strands);
+      if (strand == null) {
+        throw new RuntimeException(
+            "The node at the start of the chain with key: " + startId +
+            " isn't compressible.");
+      }
+      GraphNode mergedNode = mergeChain(new EdgeTerminal(startId, strand));
+      collector.collect(mergedNode.getData());
+    }
+  }
+
+  @Override
+  protected void setupConfHook() {
+    JobConf conf = (JobConf) getConf();
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    FileInputFormat.addInputPath(conf, new Path(inputPath));
+    FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+    AvroJob.setInputSchema(conf, ChainKeyAvro.REDUCE_OUT_SCHEMA);
+    AvroJob.setMapOutputSchema(conf, ChainKeyAvro.REDUCE_OUT_SCHEMA);
+    AvroJob.setOutputSchema(conf, new GraphNodeData().getSchema());
+
+    AvroJob.setMapperClass(conf, Mapper.class);
+    AvroJob.setReducerClass(conf, MergeReducer.class);
+  }
+
+  @Override
+  protected void postRunHook() {
+    try {
+      long numChains = job.getCounters().findCounter(
+          NUM_MERGED_CHAINS.group, NUM_MERGED_CHAINS.tag).getValue();
+      sLogger.info("Number of chains merged:" + numChains);
+    } catch (IOException e) {
+      sLogger.fatal("Couldn't get counters.", e);
+      System.exit(-1);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(), new ChainMergeAvro(), args);
+    System.exit(res);
+  }
+}
@@ -0,0 +1,507 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.mapred.AvroMapper;
+import org.apache.avro.mapred.AvroReducer;
+import org.apache.avro.mapred.Pair;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+
+import contrail.graph.EdgeDirection;
+import contrail.graph.EdgeTerminal;
+import contrail.graph.GraphNode;
+import contrail.graph.GraphNodeData;
+import contrail.graph.NeighborData;
+import contrail.sequences.DNAStrand;
+import contrail.sequences.StrandsUtil;
+import contrail.stages.GraphCounters.CounterName;
+
+/**
+ * Remove tips and low coverage nodes in a single job.
+ *
+ * RemoveTipsAvro and RemoveLowCoverageAvro have the same structure; the
+ * mapper decides which nodes to delete and sends messages to their neighbors
+ * and the reducer removes the edges. This stage applies both rules in one
+ * mapper and applies all the removals in one reducer. The rules are the same
+ * as in the separate stages:
+ *
+ * Mapper:
+ *   -- If remove_low_coverage is true and the node is too short or has low
+ *      coverage, tell its neighbors to delete their edges to it.
+ *   -- Otherwise drop islands shorter than tiplength and send tips to their
+ *      neighbor.
+ *
+ * Reducer:
+ *   -- Delete the edges to the low coverage nodes. If this leaves a low
+ *      coverage node with no edges, the node is removed.
+ *   -- Delete the tips. If all the edges on one side of the node are tips
+ *      we keep the longest one.
+ *   -- Count the nodes which FindBubblesAvro would consider as bubbles.
+ *
+ * Running the rules together is the same as running RemoveLowCoverage
+ * followed by RemoveTips, except that nodes which only become tips or
+ * islands because a neighbor was removed aren't removed until the next run.
+ *
+ * Bubbles can't be popped in this job because the potential bubbles have to
+ * be grouped with their major neighbor and then the minor neighbor has to be
+ * updated. Instead we count the potential bubbles so FindBubblesAvro and
+ * PopBubblesAvro can be skipped when there aren't any.
+ */
+public class CleanGraphAvro extends MRStage {
+  private static final Logger sLogger = Logger.getLogger(CleanGraphAvro.class);
+
+  public static final Schema MAP_OUT_SCHEMA =
+      Pair.getPairSchema(Schema.create(Schema.Type.STRING),
+          (new CleanGraphMessage()).getSchema());
+
+  public final static CounterName NUM_TIPS_REMOVED =
+      new CounterName("Contrail", "clean-graph-tips-removed");
+  public final static CounterName NUM_ISLANDS_REMOVED =
+      new CounterName("Contrail", "clean-graph-islands-removed");
+  public final static CounterName NUM_LOW_COVERAGE_REMOVED =
+      new CounterName("Contrail", "clean-graph-low-coverage-removed");
+  public final static CounterName NUM_BUBBLE_CANDIDATES =
+      new CounterName("Contrail", "clean-graph-bubble-candidates");
+  // The number of messages sent to other nodes.
+  public final static CounterName NUM_MESSAGES =
+      new CounterName("Contrail", "clean-graph-messages");
+
+  // The counters for the nodes which are removed.
+  public final static CounterName[] REMOVED_COUNTERS = new CounterName[] {
+      NUM_TIPS_REMOVED, NUM_ISLANDS_REMOVED, NUM_LOW_COVERAGE_REMOVED};
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+    defs.putAll(super.createParameterDefinitions());
+
+    // Use the same parameters as the stages whose rules we apply.
+    Map<String, ParameterDefinition> tipDefs =
+        new RemoveTipsAvro().getParameterDefinitions();
+    Map<String, ParameterDefinition> coverageDefs =
+        new RemoveLowCoverageAvro().getParameterDefinitions();
+    Map<String, ParameterDefinition> bubbleDefs =
+        new FindBubblesAvro().getParameterDefinitions();
+    defs.put("tiplength", tipDefs.get("tiplength"));
+    for (String name :
+         new String[] {"length_thresh", "low_cov_thresh", "min_length"}) {
+      defs.put(name, coverageDefs.get(name));
+    }
+    defs.put(
+        "bubble_length_threshold", bubbleDefs.get("bubble_length_threshold"));
+
+    ParameterDefinition removeLowCoverage = new ParameterDefinition(
+        "remove_low_coverage", "If true remove the low coverage nodes as " +
+        "well as the tips.", Boolean.class, false);
+    defs.put(removeLowCoverage.getName(), removeLowCoverage);
+
+    for (ParameterDefinition def:
+      ContrailParameters.getInputOutputPathOptions()) {
+      defs.put(def.getName(), def);
+    }
+
+    ParameterDefinition kDef = ContrailParameters.getK();
+    defs.put(kDef.getName(), kDef);
+
+    return Collections.unmodifiableMap(defs);
+  }
+
+  public static class CleanGraphMapper extends
+      AvroMapper<GraphNodeData, Pair<CharSequence, CleanGraphMessage>> {
+    private int tipLength;
+    private boolean removeLowCoverage;
+    private int lengthThresh;
+    private float lowCovThresh;
+    private int minLength;
+
+    private GraphNode node;
+    private CleanGraphMessage msg;
+    private Pair<CharSequence, CleanGraphMessage> outPair;
+
+    // Neighbors we have already sent messages to.
+    private HashSet<String> neighbors;
+
+    @Override
+    public void configure(JobConf job) {
+      CleanGraphAvro stage = new CleanGraphAvro();
+      Map<String, ParameterDefinition> definitions =
+          stage.getParameterDefinitions();
+      tipLength = (Integer) definitions.get("tiplength").parseJobConf(job);
+      removeLowCoverage =
+          (Boolean) definitions.get("remove_low_coverage").parseJobConf(job);
+      if (removeLowCoverage) {
+        lengthThresh =
+            (Integer) definitions.get("length_thresh").parseJobConf(job);
+        lowCovThresh =
+            (Float) definitions.get("low_cov_thresh").parseJobConf(job);
+        minLength = (Integer) definitions.get("min_length").parseJobConf(job);
+      }
+      node = new GraphNode();
+      msg = new CleanGraphMessage();
+      outPair = new Pair<CharSequence, CleanGraphMessage>(MAP_OUT_SCHEMA);
+      neighbors = new HashSet<String>();
+    }
+
+    /**
+     * Returns true if RemoveLowCoverageAvro would remove the node.
+     */
+    private boolean isLowCoverage() {
+      int len = node.getSequence().size();
+      if (len < minLength) {
+        return true;
+      }
+      return (len <= lengthThresh) && (node.getCoverage() < lowCovThresh);
+    }
+
+    private void sendNode(
+        AvroCollector<Pair<CharSequence, CleanGraphMessage>> output)
+            throws IOException {
+      msg.setNode(node.getData());
+      msg.setTipStrands(null);
+      msg.setRemovedNeighbor(null);
+      outPair.set(node.getNodeId(), msg);
+      output.collect(outPair);
+    }
+
+    /**
+     * Apply the rules to the node and send the messages for the tips and the
+     * removed nodes.
+     *
+     * @return: True if the node is kept, in which case the caller is
+     *   responsible for sending it.
+     */
+    protected boolean sendMessages(GraphNodeData graphData,
+        AvroCollector<Pair<CharSequence, CleanGraphMessage>> output,
+        Reporter reporter) throws IOException {
+      node.setData(graphData);
+
+      if (removeLowCoverage && isLowCoverage()) {
+        reporter.incrCounter(
+            NUM_LOW_COVERAGE_REMOVED.group, NUM_LOW_COVERAGE_REMOVED.tag, 1);
+        // Tell all nodes with edges to this node to remove them.
+        neighbors.clear();
+        for (DNAStrand strand : DNAStrand.values()) {
+          for (EdgeTerminal terminal :
+               node.getEdgeTerminals(strand, EdgeDirection.INCOMING)) {
+            if (!neighbors.add(terminal.nodeId)) {
+              continue;
+            }
+            msg.setNode(null);
+            msg.setTipStrands(null);
+            msg.setRemovedNeighbor(node.getNodeId());
+            outPair.set(terminal.nodeId, msg);
+            output.collect(outPair);
+            reporter.incrCounter(NUM_MESSAGES.group, NUM_MESSAGES.tag, 1);
+          }
+        }
+        return false;
+      }
+
+      int len = node.getSequence().size();
+      int inDegree = node.degree(DNAStrand.FORWARD, EdgeDirection.INCOMING);
+      int outDegree = node.degree(DNAStrand.FORWARD, EdgeDirection.OUTGOING);
+
+      if ((inDegree == 0) && (outDegree == 0)) {
+        if (len <= tipLength) {
+          reporter.incrCounter(
+              NUM_ISLANDS_REMOVED.group, NUM_ISLANDS_REMOVED.tag, 1);
+          return false;
+        }
+        return true;
+      }
+
+      // See RemoveTipsAvro for why we check for connected strands.
+      if ((len <= tipLength) && (inDegree + outDegree <= 1) &&
+          !node.hasConnectedStrands()) {
+        // Send the tip to its one neighbor.
+        DNAStrand strand = (node.degree(DNAStrand.FORWARD) == 1) ?
+            DNAStrand.FORWARD : DNAStrand.REVERSE;
+        EdgeTerminal terminal = node.getEdgeTerminals(
+            strand, EdgeDirection.OUTGOING).get(0);
+        msg.setNode(graphData);
+        msg.setTipStrands(StrandsUtil.form(strand, terminal.strand));
+        msg.setRemovedNeighbor(null);
+        outPair.set(terminal.nodeId, msg);
+        output.collect(outPair);
+        reporter.incrCounter(NUM_MESSAGES.group, NUM_MESSAGES.tag, 1);
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    public void map(GraphNodeData graphData,
+        AvroCollector<Pair<CharSequence, CleanGraphMessage>> output,
+        Reporter reporter) throws IOException {
+      if (sendMessages(graphData, output, reporter)) {
+        sendNode(output);
+      }
+    }
+  }
+
+  public static class CleanGraphReducer extends
+      AvroReducer<CharSequence, CleanGraphMessage, GraphNodeData> {
+    private boolean removeLowCoverage;
+    private int lengthThresh;
+    private float lowCovThresh;
+    // Negative if bubble_length_threshold isn't set.
+    private int bubbleLengthThresh;
+
+    private GraphNode node;
+    private ArrayList<String> removedNeighbors;
+    private HashMap<DNAStrand, List<GraphNode>> tips;
+
+    @Override
+    public void configure(JobConf job) {
+      CleanGraphAvro stage = new CleanGraphAvro();
+      Map<String, ParameterDefinition> definitions =
+          stage.getParameterDefinitions();
+      removeLowCoverage =
+          (Boolean) definitions.get("remove_low_coverage").parseJobConf(job);
+      if (removeLowCoverage) {
+        lengthThresh =
+            (Integer) definitions.get("length_thresh").parseJobConf(job);
+        lowCovThresh =
+            (Float) definitions.get("low_cov_thresh").parseJobConf(job);
+      }
+      Integer bubbleLength = (Integer) definitions.get(
+          "bubble_length_threshold").parseJobConf(job);
+      bubbleLengthThresh = (bubbleLength == null) ? -1 : bubbleLength;
+
+      node = new GraphNode();
+      removedNeighbors = new ArrayList<String>();
+      tips = new HashMap<DNAStrand, List<GraphNode>>();
+      for (DNAStrand strand : DNAStrand.values()) {
+        tips.put(strand, new ArrayList<GraphNode>());
+      }
+    }
+
+    /**
+     * Remove the tips attached to one strand of the node.
+     *
+     * If all the incoming edges for the strand are tips we keep the longest
+     * tip (the first one if there's a tie) and output it. Otherwise all the
+     * tips are removed.
+     */
+    private void removeTips(
+        DNAStrand strand, AvroCollector<GraphNodeData> output,
+        Reporter reporter) throws IOException {
+      List<GraphNode> strandTips = tips.get(strand);
+      if (strandTips.size() == 0) {
+        return;
+      }
+
+      GraphNode keep = null;
+      if (strandTips.size() == node.degree(strand, EdgeDirection.INCOMING)) {
+        for (GraphNode tip : strandTips) {
+          if (keep == null ||
+              tip.getSequence().size() > keep.getSequence().size()) {
+            keep = tip;
+          }
+        }
+        output.collect(keep.getData());
+        reporter.incrCounter("Contrail", "tips_kept", 1);
+      }
+
+      for (GraphNode tip : strandTips) {
+        if (tip == keep) {
+          continue;
+        }
+        NeighborData result = node.removeNeighbor(tip.getNodeId());
+        if (result != null) {
+          reporter.incrCounter(
+              NUM_TIPS_REMOVED.group, NUM_TIPS_REMOVED.tag, 1);
+        }
+      }
+    }
+
+    @Override
+    public void reduce(CharSequence nodeId,
+        Iterable<CleanGraphMessage> iterable,
+        AvroCollector<GraphNodeData> output, Reporter reporter)
+            throws IOException {
+      removedNeighbors.clear();
+      for (List<GraphNode> strandTips : tips.values()) {
+        strandTips.clear();
+      }
+      int sawNode = 0;
+      int numTips = 0;
+
+      for (CleanGraphMessage msg : iterable) {
+        if (msg.getNode() == null) {
+          // Calling toString makes a copy of the id.
+          removedNeighbors.add(msg.getRemovedNeighbor().toString());
+        } else if (msg.getTipStrands() == null) {
+          node.setData(msg.getNode());
+          node = node.clone();
+          ++sawNode;
+        } else {
+          GraphNode tip = new GraphNode(msg.getNode()).clone();
+          tips.get(StrandsUtil.dest(msg.getTipStrands())).add(tip);
+          ++numTips;
+        }
+      }
+
+      if (sawNode > 1) {
+        throw new IOException(
+            "ERROR: Saw multiple nodes (" + sawNode + ") for " +
+            nodeId.toString());
+      }
+
+      if (sawNode == 0) {
+        // The node was removed in the mapper. Any tips attached to it would
+        // now be islands shorter than tiplength so they are removed too.
+        reporter.incrCounter(
+            NUM_TIPS_REMOVED.group, NUM_TIPS_REMOVED.tag, numTips);
+        return;
+      }
+
+      for (String neighbor : removedNeighbors) {
+        NeighborData result = node.removeNeighbor(neighbor);
+        if (result == null) {
+          throw new RuntimeException(
+              "ERROR: Edge could not be removed from " + nodeId.toString() +
+              " to low coverage node " + neighbor);
+        }
+        reporter.incrCounter("Contrail", "links-removed", 1);
+      }
+
+      if (removeLowCoverage && removedNeighbors.size() > 0 &&
+          node.degree(DNAStrand.FORWARD) + node.degree(DNAStrand.REVERSE) == 0
+          && node.getSequence().size() <= lengthThresh &&
+          node.getCoverage() < lowCovThresh) {
+        // All the neighbors were removed and the node has low coverage.
+        reporter.incrCounter(
+            NUM_LOW_COVERAGE_REMOVED.group, NUM_LOW_COVERAGE_REMOVED.tag, 1);
+        return;
+      }
+
+      for (DNAStrand strand : DNAStrand.values()) {
+        removeTips(strand, output, reporter);
+      }
+
+      if (!FindBubblesAvro.isSelfBubble(node) &&
+          FindBubblesAvro.isPotentialBubble(node) &&
+          (bubbleLengthThresh < 0 ||
+           node.getSequence().size() <= bubbleLengthThresh)) {
+        reporter.incrCounter(
+            NUM_BUBBLE_CANDIDATES.group, NUM_BUBBLE_CANDIDATES.tag, 1);
+      }
+      output.collect(node.getData());
+    }
+  }
+
+  @Override
+  public List<InvalidParameter> validateParameters() {
+    List<InvalidParameter> items = super.validateParameters();
+    int K = (Integer) stage_options.get("K");
+
+    int tipLength = (Integer) stage_options.get("tiplength");
+    if (tipLength <= K) {
+      items.add(new InvalidParameter(
+          "tiplength",
+          "tiplength can't be less than K because no nodes would be removed."));
+    }
+
+    if ((Boolean) stage_options.get("remove_low_coverage")) {
+      Float coverageThreshold = (Float) stage_options.get("low_cov_thresh");
+      Integer lengthThreshold = (Integer) stage_options.get("length_thresh");
+      if (coverageThreshold == null || coverageThreshold <= 0) {
+        items.add(new InvalidParameter(
+            "low_cov_thresh",
+            "low_cov_thresh must be positive to remove low coverage nodes."));
+      }
+      if (lengthThreshold == null || lengthThreshold <= K) {
+        items.add(new InvalidParameter(
+            "length_thresh",
+            "length_thresh must be larger than K to remove low coverage " +
+            "nodes."));
+      }
+    }
+    return items;
+  }
+
+  @Override
+  protected void setupConfHook() {
+    JobConf conf = (JobConf) getConf();
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    FileInputFormat.addInputPath(conf, new Path(inputPath));
+    FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+    GraphNodeData graphData = new GraphNodeData();
+    AvroJob.setInputSchema(conf, graphData.getSchema());
+    AvroJob.setMapOutputSchema(conf, MAP_OUT_SCHEMA);
+    AvroJob.setOutputSchema(conf, graphData.getSchema());
+
+    AvroJob.setMapperClass(conf, CleanGraphMapper.class);
+    AvroJob.setReducerClass(conf, CleanGraphReducer.class);
+  }
+
+  /**
+   * Returns the total number of nodes removed by the job.
+   */
+  public long getNumRemoved() {
+    try {
+      long numRemoved = 0;
+      for (CounterName counter : REMOVED_COUNTERS) {
+        numRemoved += job.getCounters().findCounter(
+            counter.group, counter.tag).getValue();
+      }
+      return numRemoved;
+    } catch (IOException e) {
+      throw new RuntimeException("Couldn't get counters.", e);
+    }
+  }
+
+  @Override
+  protected void postRunHook() {
+    try {
+      for (CounterName counter : new CounterName[] {
+               NUM_TIPS_REMOVED, NUM_ISLANDS_REMOVED,
+               NUM_LOW_COVERAGE_REMOVED, NUM_BUBBLE_CANDIDATES}) {
+        sLogger.info(counter.tag + ": " + job.getCounters().findCounter(
+            counter.group, counter.tag).getValue());
+      }
+    } catch (IOException e) {
+      sLogger.fatal("Couldn't get counters.", e);
+      System.exit(-1);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(), new CleanGraphAvro(), args);
+    System.exit(res);
+  }
+}
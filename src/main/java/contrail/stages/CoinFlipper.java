@@ -14,22 +14,33 @@
 // Author:Jeremy Lewi (jeremy@lewi.us)
 package contrail.stages;
 
-import java.util.Random;
-
 /**
  * The CoinFlipper class maps a string to a random value. The random
  * value is based on a seed and the string passed in. This class is
  * primarily used by PairMarkAvro to determine which pairs of nodes can
  * be merged.
+ *
+ * The value is computed by hashing the id with the seed and applying the
+ * SplitMix64 finalizer. This is stateless so a flipper can be shared and
+ * flips don't allocate. Each flipper has its own seed so flippers for
+ * different rounds don't interfere with each other.
  */
 public class CoinFlipper {
+  // Constants from SplitMix64 (Steele, Lea and Flood 2014).
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+  private static final long MIX_MULTIPLIER_1 = 0xbf58476d1ce4e5b9L;
+  private static final long MIX_MULTIPLIER_2 = 0x94d049bb133111ebL;
+
+  private final long randseed;
+
   /**
    * Construct a flipper using the given seed.
    * @param seed
    */
   public CoinFlipper(long seed) {
-    rfactory = new Random();
-    randseed = seed;
+    // Mix the seed so that seeds which differ in a few bits give unrelated
+    // flips.
+    randseed = mix(seed + GOLDEN_GAMMA);
   }
 
   /**
@@ -44,19 +55,53 @@ public class CoinFlipper {
   }
 
   /**
-   * Flip a coin. The seed for the random generator is a combination of a
-   * seed passed to the constructor and the argument to flip.
+   * The SplitMix64 finalizer. Every bit of the output depends on every bit
+   * of the input.
+   */
+  public static long mix(long z) {
+    z = (z ^ (z >>> 30)) * MIX_MULTIPLIER_1;
+    z = (z ^ (z >>> 27)) * MIX_MULTIPLIER_2;
+    return z ^ (z >>> 31);
+  }
+
+  private static CoinFlip toFlip(long hash) {
+    return (hash < 0) ? CoinFlip.UP : CoinFlip.DOWN;
+  }
+
+  /**
+   * Flip a coin. The outcome is a combination of the seed passed to the
+   * constructor and the argument to flip.
    * @param string_seed
    * @return
    */
   public CoinFlip flip(String string_seed) {
-    rfactory.setSeed(string_seed.hashCode() ^ randseed);
+    long hash = randseed;
+    for (int i = 0; i < string_seed.length(); ++i) {
+      hash = (hash ^ string_seed.charAt(i)) * GOLDEN_GAMMA;
+    }
+    return toFlip(mix(hash ^ string_seed.length()));
+  }
 
-    double rand = rfactory.nextDouble();
-    CoinFlip side = (rand >= .5) ? CoinFlip.UP : CoinFlip.DOWN;
-    return side;
+  /**
+   * Flip a coin for an id stored as bytes, e.g. a packed sequence.
+   *
+   * @param bytes: The buffer containing the id.
+   * @param offset: The position of the first byte of the id.
+   * @param length: The number of bytes in the id.
+   * @return
+   */
+  public CoinFlip flip(byte[] bytes, int offset, int length) {
+    long hash = randseed;
+    for (int i = offset; i < offset + length; ++i) {
+      hash = (hash ^ (bytes[i] & 0xff)) * GOLDEN_GAMMA;
+    }
+    return toFlip(mix(hash ^ length));
   }
 
-  private static long randseed = 0;
-  private Random rfactory = new Random();
+  /**
+   * Flip a coin for an id which fits in a long.
+   */
+  public CoinFlip flip(long id) {
+    return toFlip(mix(randseed ^ mix(id + GOLDEN_GAMMA)));
+  }
 }
@@ -53,12 +53,23 @@ public class CompressAndCorrect extends PipelineStage {
     // We add all the options for the stages we depend on.
     StageBase[] substages =
       {new CompressChains(), new RemoveTipsAvro(), new FindBubblesAvro(),
-       new PopBubblesAvro(), new RemoveLowCoverageAvro()};
+       new PopBubblesAvro(), new RemoveLowCoverageAvro(),
+       new IncrementalCleanGraph()};
 
     for (StageBase stage: substages) {
       definitions.putAll(stage.getParameterDefinitions());
     }
 
+    // We decide when CleanGraph removes low coverage nodes.
+    definitions.remove("remove_low_coverage");
+
+    ParameterDefinition cleanGraph = new ParameterDefinition(
+        "clean_graph", "If true use CleanGraphAvro to remove the tips and " +
+        "the low coverage nodes. CleanGraph also counts the potential " +
+        "bubbles so FindBubbles and PopBubbles only run when there are " +
+        "some.", Boolean.class, false);
+    definitions.put(cleanGraph.getName(), cleanGraph);
+
     ParameterDefinition stats = ContrailParameters.getComputeStats();
     definitions.put(stats.getName(), stats);
 
@@ -78,6 +89,8 @@ public class CompressAndCorrect extends PipelineStage {
     public String graphPath;
     // A message summarizing what happened.
     public String logMessage;
+    // False if we know the graph doesn't have any potential bubbles.
+    public boolean mayHaveBubbles = true;
   }
 
   private JobInfo compressGraph(String inputPath, String outputPath)
@@ -145,6 +158,42 @@ public class CompressAndCorrect extends PipelineStage {
     return result;
   }
 
+  /**
+   * Remove the tips and optionally the low coverage nodes using
+   * IncrementalCleanGraph.
+   */
+  private JobInfo cleanGraph(
+      String inputPath, String outputPath, boolean removeLowCoverage)
+          throws Exception {
+    IncrementalCleanGraph stage = new IncrementalCleanGraph();
+    stage.initializeAsChild(this);
+    Map<String, Object> stageOptions =
+        ContrailParameters.extractParameters(
+            this.stage_options,
+            stage.getParameterDefinitions().values());
+
+    stageOptions.put("inputpath", inputPath);
+    stageOptions.put("outputpath", outputPath);
+    stageOptions.put("remove_low_coverage", removeLowCoverage);
+    stage.setParameters(stageOptions);
+    executeChild(stage);
+
+    long nodesRemoved = stage.getNumRemoved();
+    long bubbleCandidates =
+        stage.getCounter(CleanGraphAvro.NUM_BUBBLE_CANDIDATES);
+
+    JobInfo result = new JobInfo();
+    result.graphChanged = nodesRemoved > 0;
+    result.graphPath = outputPath;
+    result.mayHaveBubbles = bubbleCandidates > 0;
+
+    Formatter formatter = new Formatter(new StringBuilder());
+    result.logMessage = formatter.format(
+        "CleanGraph: number of nodes removed %d, potential bubbles %d",
+        nodesRemoved, bubbleCandidates).toString();
+    return result;
+  }
+
   /**
    * PopBubbles in the graph.
    * @param inputPath
@@ -360,9 +409,19 @@ public class CompressAndCorrect extends PipelineStage {
       sLogger.info(compressResult.logMessage);
       computeStats(stepPath, CompressChains.class.getName(), compressResult);
 
-      JobInfo tipsResult = removeTips(compressResult.graphPath, removeTipsPath);
-      sLogger.info(tipsResult.logMessage);
-      computeStats(stepPath, RemoveTipsAvro.class.getName(), tipsResult);
+      JobInfo tipsResult;
+      if ((Boolean) stage_options.get("clean_graph")) {
+        tipsResult = cleanGraph(
+            compressResult.graphPath,
+            new Path(stepPath, "CleanGraph").toString(), false);
+        sLogger.info(tipsResult.logMessage);
+        computeStats(
+            stepPath, IncrementalCleanGraph.class.getName(), tipsResult);
+      } else {
+        tipsResult = removeTips(compressResult.graphPath, removeTipsPath);
+        sLogger.info(tipsResult.logMessage);
+        computeStats(stepPath, RemoveTipsAvro.class.getName(), tipsResult);
+      }
 
       if (tipsResult.graphChanged) {
         stepInputPath = tipsResult.graphPath;
@@ -370,6 +429,13 @@ public class CompressAndCorrect extends PipelineStage {
         continue;
       }
 
+      if (!tipsResult.mayHaveBubbles) {
+        sLogger.info("There are no potential bubbles so skip PopBubbles.");
+        stepInputPath = tipsResult.graphPath;
+        done = true;
+        continue;
+      }
+
       // There were no tips, so the graph is maximally compressed. Try
       // finding and removing bubbles.
       String popBubblesPath = new Path(stepPath, "PoppedBubbles").toString();
@@ -456,11 +522,21 @@ public class CompressAndCorrect extends PipelineStage {
           tempPath(), "step_" +sf.format(step)).toString();
       String lowCoveragePath =
           new Path(stepPath, "LowCoveragePath").toString();
-      lowCoverageResult = removeLowCoverageNodes(
-              initialCompression.latestPath, lowCoveragePath);
-      sLogger.info(lowCoverageResult.logMessage);;
-      computeStats(
-          stepPath, RemoveLowCoverageAvro.class.getName(), lowCoverageResult);
+      if ((Boolean) stage_options.get("clean_graph")) {
+        // Remove the tips in the same job.
+        lowCoverageResult = cleanGraph(
+            initialCompression.latestPath, lowCoveragePath, true);
+        sLogger.info(lowCoverageResult.logMessage);
+        computeStats(
+            stepPath, IncrementalCleanGraph.class.getName(), lowCoverageResult);
+      } else {
+        lowCoverageResult = removeLowCoverageNodes(
+                initialCompression.latestPath, lowCoveragePath);
+        sLogger.info(lowCoverageResult.logMessage);;
+        computeStats(
+            stepPath, RemoveLowCoverageAvro.class.getName(),
+            lowCoverageResult);
+      }
     }
 
     String finalGraphPath;
@@ -43,6 +43,25 @@ import contrail.util.FileHelper;
  * algorithm (PairMark & PairMerge) to do several merges in parallel.
  * When the number of compressible nodes drops below a threshold then
  * we send all compressible nodes to a single machine to be serially compressed.
+ * If partition_merge is true the chains whose nodes share a locality key
+ * (PartitionMergeAvro) are merged before the randomized rounds.
+ * If local_heap_fraction is set the switch is instead made when the
+ * estimated heap needed by the compressible nodes (see
+ * CompressUtil.estimateHeapBytes) fits in that fraction of the reducer's heap.
+ * QuickMark also sends the neighbors of the compressible nodes; if the
+ * nodes it sends don't fit we run a round of the randomized algorithm
+ * instead and scale later estimates accordingly.
+ * The estimate and the decision for each step are recorded in the StageInfo.
+ * If local_merge_threads is set that machine is the driver and independent
+ * chains are merged in parallel (QuickMergeLocal); the budget is then a
+ * fraction of the driver's heap.
+ * If fuse_pair_merge is true each round of the randomized algorithm is a
+ * single job (PairMarkMergeAvro) instead of two.
+ *
+ * If pointer_jumping is true we instead rank the chains by pointer jumping
+ * (ChainJumpAvro) and merge every chain in a single step (ChainKeyAvro and
+ * ChainMergeAvro). The number of rounds is logarithmic in the length of the
+ * longest chain and doesn't depend on a random number generator.
  *
  * Input: The input should be an AVRO file encoding the graph. The records
  * should be GraphNodeData.
@@ -102,6 +121,8 @@ public class CompressChains extends PipelineStage {
 
     int stage = 0;
     long compressible = 0;
+    // Estimate of the heap needed by the compressible nodes or -1 if unknown.
+    long compressibleBytes = -1;
     DecimalFormat df = new DecimalFormat("0.00");
 
     // The minimum number of nodes for doing parallel compressions.
@@ -109,6 +130,11 @@ public class CompressChains extends PipelineStage {
     // all compressible nodes to a single reducer for compression.
     final int LOCALNODES = (Integer) stage_options.get("localnodes");
 
+    // If positive, the heap available for compressing the nodes on a single
+    // machine. This takes precedence over LOCALNODES when we have an
+    // estimate of the heap needed by the compressible nodes.
+    final long LOCAL_HEAP_BUDGET = getLocalHeapBudget();
+
     // When formatting the step as a string we want to zero pad it
     DecimalFormat sf = new DecimalFormat("00");
 
@@ -118,6 +144,9 @@ public class CompressChains extends PipelineStage {
 
     final boolean RESUME = (Boolean) stage_options.get("resume");
 
+    // Set to true if the chains were all merged by PartitionMergeAvro.
+    boolean allMerged = false;
+
     // TODO(jlewi): To determine the step number we should probably parse the
     // directory rather than just letting the user specify the directory
     // to continue from. We should probably rewrite the resume option
@@ -151,16 +180,65 @@ public class CompressChains extends PipelineStage {
       compress.setParameters(substage_options);
       executeChild(compress);
       compressible = counter(compress.job, CompressibleAvro.NUM_COMPRESSIBLE);
+      compressibleBytes = counter(
+          compress.job, CompressibleAvro.NUM_COMPRESSIBLE_BYTES);
 
       if (compressible == 0) {
         sLogger.info("The graph isn't compressible.");
         finalGraphPath = input_path;
         return;
       }
+
+      if ((Boolean) stage_options.get("partition_merge")) {
+        // Merge the chains within each partition before the distributed
+        // rounds.
+        PartitionMergeAvro partitionMerge = new PartitionMergeAvro();
+        partitionMerge.initializeAsChild(this);
+        logStartJob("PartitionMerge");
+        Map<String, Object> partition_options =
+            ContrailParameters.extractParameters(
+                this.stage_options,
+                partitionMerge.getParameterDefinitions().values());
+        String partition_path =
+            new File(temp_path, "partition_merged").getPath();
+        partition_options.put("inputpath", latest_path);
+        partition_options.put("outputpath", partition_path);
+        partitionMerge.setParameters(partition_options);
+        executeChild(partitionMerge);
+
+        if ((Boolean) stage_options.get("cleanup")) {
+          Path toDelete = new Path(latest_path);
+          toDelete.getFileSystem(getConf()).delete(toDelete, true);
+        }
+        latest_path = partition_path;
+        compressible = counter(
+            partitionMerge.job, PairMergeAvro.NUM_REMAINING_COMPRESSIBLE);
+        compressibleBytes = counter(
+            partitionMerge.job,
+            PairMergeAvro.NUM_REMAINING_COMPRESSIBLE_BYTES);
+
+        if (compressible == 0) {
+          sLogger.info("All chains were merged within their partitions.");
+          latest_path = convertToGraph(
+              latest_path, new File(temp_path, "converted_graph").getPath());
+          allMerged = true;
+        }
+      }
     }
 
     sLogger.info("Number of compressible nodes:" + compressible);
     long lastremaining = compressible;
+    long lastremainingBytes = compressibleBytes;
+
+    // The estimates only count the compressible nodes but QuickMark also
+    // sends their neighbors to the compressor. When QuickMark finds the
+    // nodes don't fit we scale later estimates by the ratio it observed.
+    double neighborRatio = 1;
+
+    if ((Boolean) stage_options.get("pointer_jumping") && !allMerged) {
+      latest_path = compressByPointerJumping(latest_path, temp_path);
+      lastremaining = 0;
+    }
 
     ArrayList<String> pathsToDelete = new ArrayList<String>();
 
@@ -183,17 +261,24 @@ public class CompressChains extends PipelineStage {
 
       latest_path = merged_graph_path;
       long remaining = 0;
+      long remainingBytes = -1;
 
       // After each step we will want to delete the path containing the input
       // to the marking step and the output of the marking step.
       pathsToDelete.add(mark_input);
       pathsToDelete.add(marked_graph_path);
 
-      if (lastremaining < LOCALNODES) {
+      boolean useLocal = lastremaining < LOCALNODES;
+      if (LOCAL_HEAP_BUDGET > 0 && lastremainingBytes >= 0) {
+        long estimatedBytes = (long) (lastremainingBytes * neighborRatio);
+        useLocal = estimatedBytes <= LOCAL_HEAP_BUDGET;
+        recordLocalDecision(
+            sf.format(stage), estimatedBytes, LOCAL_HEAP_BUDGET, useLocal);
+      }
+
+      if (useLocal) {
         QuickMarkAvro qmark   = new QuickMarkAvro();
-        QuickMergeAvro qmerge = new QuickMergeAvro();
         qmark.initializeAsChild(this);
-        qmerge.initializeAsChild(this);
 
         // Send all the compressible nodes and their neighbors to the same
         // machine so they can be compressed in one shot.
@@ -215,17 +300,55 @@ public class CompressChains extends PipelineStage {
                     qmark.job,
                     GraphCounters.quick_mark_nodes_send_to_compressor)));
 
-        logStartJob("  QMerge " + stage);
-
+        if (LOCAL_HEAP_BUDGET > 0) {
+          // Check the nodes fit now that we know the neighbors too.
+          long sentBytes = counter(
+              qmark.job, GraphCounters.quick_mark_bytes_send_to_compressor);
+          if (sentBytes > LOCAL_HEAP_BUDGET) {
+            recordLocalDecision(
+                sf.format(stage) + "_with_neighbors", sentBytes,
+                LOCAL_HEAP_BUDGET, false);
+            if (lastremainingBytes > 0) {
+              neighborRatio = Math.max(
+                  neighborRatio, (double) sentBytes / lastremainingBytes);
+            }
+            // The randomized algorithm writes to the same path.
+            Path toDelete = new Path(marked_graph_path);
+            toDelete.getFileSystem(getConf()).delete(toDelete, true);
+            useLocal = false;
+          }
+        }
+      }
 
-        Map<String, Object> qmerge_options =
-            ContrailParameters.extractParameters(
-                this.stage_options, qmerge.getParameterDefinitions().values());
+      if (useLocal) {
+        logStartJob("  QMerge " + stage);
 
-        qmerge_options.put("inputpath", marked_graph_path);
-        qmerge_options.put("outputpath", merged_graph_path);
-        qmerge.setParameters(qmerge_options);
-        executeChild(qmerge);
+        int localMergeThreads =
+            (Integer) stage_options.get("local_merge_threads");
+        if (localMergeThreads > 0) {
+          // Merge the chains on this machine instead of in a single reducer.
+          QuickMergeLocal localMerge = new QuickMergeLocal();
+          localMerge.initializeAsChild(this);
+          Map<String, Object> local_options = new HashMap<String, Object>();
+          local_options.put("inputpath", marked_graph_path);
+          local_options.put("outputpath", merged_graph_path);
+          local_options.put("K", stage_options.get("K"));
+          local_options.put("num_threads", localMergeThreads);
+          localMerge.setParameters(local_options);
+          executeChild(localMerge);
+        } else {
+          QuickMergeAvro qmerge = new QuickMergeAvro();
+          qmerge.initializeAsChild(this);
+          Map<String, Object> qmerge_options =
+              ContrailParameters.extractParameters(
+                  this.stage_options,
+                  qmerge.getParameterDefinitions().values());
+
+          qmerge_options.put("inputpath", marked_graph_path);
+          qmerge_options.put("outputpath", merged_graph_path);
+          qmerge.setParameters(qmerge_options);
+          executeChild(qmerge);
+        }
 
         // Set remaining to zero because all compressible nodes should
         // be compressed.
@@ -235,22 +358,39 @@ public class CompressChains extends PipelineStage {
         // Use the randomized algorithm
         double rand = Math.random();
 
-        PairMarkAvro pmark   = new PairMarkAvro();
-        PairMergeAvro pmerge = new PairMergeAvro();
-        pmark.initializeAsChild(this);
-        pmerge.initializeAsChild(this);
+        Long seed = (long)(rand*10000000);
+        if (stage -1 < seeds.size()) {
+          seed = seeds.get(stage -1).longValue();
+        }
+
+        if ((Boolean) stage_options.get("fuse_pair_merge")) {
+          PairMarkMergeAvro pmarkmerge = new PairMarkMergeAvro();
+          pmarkmerge.initializeAsChild(this);
+          logStartJob("MarkMerge" + stage);
+          Map<String, Object> merge_options = new HashMap<String, Object>();
+          merge_options.put("inputpath", mark_input);
+          merge_options.put("outputpath", merged_graph_path);
+          merge_options.put("randseed", seed);
+          merge_options.put("K", stage_options.get("K"));
+          pmarkmerge.setParameters(merge_options);
+          executeChild(pmarkmerge);
+          sLogger.info(
+              "Number of nodes merged:" +
+              counter(pmarkmerge.job, PairMarkAvro.NUM_MARKED_FOR_MERGE));
+          remaining = counter(
+              pmarkmerge.job, PairMergeAvro.NUM_REMAINING_COMPRESSIBLE);
+          remainingBytes = counter(
+              pmarkmerge.job, PairMergeAvro.NUM_REMAINING_COMPRESSIBLE_BYTES);
+        } else {
+          PairMarkAvro pmark   = new PairMarkAvro();
+          PairMergeAvro pmerge = new PairMergeAvro();
+          pmark.initializeAsChild(this);
+          pmerge.initializeAsChild(this);
 
-        {
           logStartJob("Mark" + stage);
           Map<String, Object> mark_options = new HashMap<String, Object>();
           mark_options.put("inputpath", mark_input);
           mark_options.put("outputpath", marked_graph_path);
-
-          Long seed = (long)(rand*10000000);
-          if (stage -1 < seeds.size()) {
-            seed = seeds.get(stage -1).longValue();
-          }
-
           mark_options.put("randseed", seed);
           pmark.setParameters(mark_options);
           executeChild(pmark);
@@ -258,35 +398,28 @@ public class CompressChains extends PipelineStage {
           sLogger.info(
               "Number of nodes marked to compress:" +
               counter(pmark.job, PairMarkAvro.NUM_MARKED_FOR_MERGE));
-        }
-        {
+
           logStartJob("  Merge " + stage);
-          Map<String, Object> mark_options = new HashMap<String, Object>();
-          mark_options.put("inputpath", marked_graph_path);
-          mark_options.put("outputpath", merged_graph_path);
-          mark_options.put("K", stage_options.get("K"));
-          pmerge.setParameters(mark_options);
+          Map<String, Object> merge_options = new HashMap<String, Object>();
+          merge_options.put("inputpath", marked_graph_path);
+          merge_options.put("outputpath", merged_graph_path);
+          merge_options.put("K", stage_options.get("K"));
+          pmerge.setParameters(merge_options);
           executeChild(pmerge);
           remaining = counter(
               pmerge.job, PairMergeAvro.NUM_REMAINING_COMPRESSIBLE);
+          remainingBytes = counter(
+              pmerge.job, PairMergeAvro.NUM_REMAINING_COMPRESSIBLE_BYTES);
         }
 
         if (remaining == 0) {
-          String convertedGraphPath = new File(
-              step_dir, "converted_graph").getPath();
-          CompressibleNodeConverter converter =
-              new CompressibleNodeConverter();
-          converter.initializeAsChild(this);
           // If the number of remaining nodes is zero. Then we need to convert
           // the graph of CompressibleNode's to GraphData. Ordinarily this
           // would happen automatically in QuickMark + QuickMerge.
           logStartJob("Convert to GraphNode's " + stage);
-          Map<String, Object> convert_options = new HashMap<String, Object>();
-          convert_options.put("inputpath", merged_graph_path);
-          convert_options.put("outputpath", convertedGraphPath);
-          converter.setParameters(convert_options);
-          executeChild(converter);
-          latest_path = convertedGraphPath;
+          latest_path = convertToGraph(
+              merged_graph_path,
+              new File(step_dir, "converted_graph").getPath());
           pathsToDelete.add(merged_graph_path);
         }
 
@@ -309,6 +442,7 @@ public class CompressChains extends PipelineStage {
                    " (" + percchange + "%)\n");
 
       lastremaining = remaining;
+      lastremainingBytes = remainingBytes;
     }
 
     sLogger.info("Moving graph from: " + latest_path);
@@ -324,6 +458,210 @@ public class CompressChains extends PipelineStage {
     lastInfo.getModifiedParameters().add(finalPathParameter);
   }
 
+  /**
+   * Convert a graph of CompressibleNodeData to GraphNodeData.
+   *
+   * @param input_path: The path to the CompressibleNodeData.
+   * @param output_path: The path for the GraphNodeData.
+   * @return: The output path.
+   */
+  private String convertToGraph(String input_path, String output_path) {
+    CompressibleNodeConverter converter = new CompressibleNodeConverter();
+    converter.initializeAsChild(this);
+    Map<String, Object> convert_options = new HashMap<String, Object>();
+    convert_options.put("inputpath", input_path);
+    convert_options.put("outputpath", output_path);
+    converter.setParameters(convert_options);
+    executeChild(converter);
+    return output_path;
+  }
+
+  /**
+   * Compress all chains by pointer jumping instead of PairMark/PairMerge.
+   *
+   * ChainJumpAvro is run until the pointers of all nodes reach the ends of
+   * their chains, which takes O(log L) rounds for a chain of length L. The
+   * nodes are then keyed by chain and each chain is merged in one step.
+   *
+   * @param compressible_path: Path to the CompressibleNodeData.
+   * @param temp_path: The parent directory for the outputs.
+   * @return: The path to the compressed graph.
+   * @throws Exception
+   */
+  private String compressByPointerJumping(
+      String compressible_path, String temp_path) throws Exception {
+    DecimalFormat sf = new DecimalFormat("00");
+    String jump_dir = new File(temp_path, "pointer_jumping").getPath();
+    ArrayList<String> pathsToDelete = new ArrayList<String>();
+
+    String links_path = compressible_path;
+    long num_chain_nodes = 0;
+    long num_active = 0;
+    int round = 0;
+    do {
+      ++round;
+      ChainJumpAvro jump = new ChainJumpAvro();
+      jump.initializeAsChild(this);
+      logStartJob("  Jump " + round);
+
+      String output_path =
+          new File(jump_dir, "links_" + sf.format(round)).getPath();
+      Map<String, Object> jump_options = new HashMap<String, Object>();
+      jump_options.put("inputpath", links_path);
+      jump_options.put("outputpath", output_path);
+      jump.setParameters(jump_options);
+      executeChild(jump);
+
+      if (round == 1) {
+        num_chain_nodes = counter(jump.job, ChainJumpAvro.NUM_CHAIN_NODES);
+      } else {
+        pathsToDelete.add(links_path);
+      }
+      links_path = output_path;
+      num_active = counter(jump.job, ChainJumpAvro.NUM_ACTIVE_POINTERS);
+      sLogger.info("Number of pointers still jumping:" + num_active);
+
+      // After round r each pointer skips 2^r nodes so once that's at least
+      // the number of nodes in chains every chain has been ranked. Any
+      // pointers still jumping belong to cycles, whose labels are complete.
+    } while (num_active > 0 && (1L << round) < num_chain_nodes);
+
+    ChainKeyAvro key = new ChainKeyAvro();
+    key.initializeAsChild(this);
+    logStartJob("  Key chains");
+    String keyed_path = new File(jump_dir, "keyed_graph").getPath();
+    Map<String, Object> key_options = new HashMap<String, Object>();
+    key_options.put("inputpath", compressible_path + "," + links_path);
+    key_options.put("outputpath", keyed_path);
+    key.setParameters(key_options);
+    executeChild(key);
+    pathsToDelete.add(links_path);
+
+    ChainMergeAvro merge = new ChainMergeAvro();
+    merge.initializeAsChild(this);
+    logStartJob("  Merge chains");
+    String merged_path = new File(jump_dir, "merged_graph").getPath();
+    Map<String, Object> merge_options = new HashMap<String, Object>();
+    merge_options.put("inputpath", keyed_path);
+    merge_options.put("outputpath", merged_path);
+    merge_options.put("K", stage_options.get("K"));
+    merge.setParameters(merge_options);
+    executeChild(merge);
+    pathsToDelete.add(keyed_path);
+
+    if ((Boolean) stage_options.get("cleanup")) {
+      JobConf job_conf = new JobConf(CompressChains.class);
+      for (String pathToDelete : pathsToDelete) {
+        sLogger.info("Deleting:" + pathToDelete);
+        Path toDelete = new Path(pathToDelete);
+        toDelete.getFileSystem(job_conf).delete(toDelete, true);
+      }
+    }
+    return merged_path;
+  }
+
+  /**
+   * Parse the maximum heap size from java options such as "-Xmx1000m".
+   *
+   * @param javaOpts: The options passed to the jvm.
+   * @return: The heap size in bytes or -1 if it isn't set.
+   */
+  protected static long parseMaxHeapBytes(String javaOpts) {
+    if (javaOpts == null) {
+      return -1;
+    }
+    long heapBytes = -1;
+    // If -Xmx appears more than once the jvm uses the last value.
+    for (String option : javaOpts.trim().split("\\s+")) {
+      if (!option.startsWith("-Xmx") || option.length() == 4) {
+        continue;
+      }
+      String value = option.substring(4).toLowerCase();
+      long multiplier = 1;
+      switch (value.charAt(value.length() - 1)) {
+        case 'k':
+          multiplier = 1L << 10;
+          break;
+        case 'm':
+          multiplier = 1L << 20;
+          break;
+        case 'g':
+          multiplier = 1L << 30;
+          break;
+        default:
+          break;
+      }
+      if (multiplier > 1) {
+        value = value.substring(0, value.length() - 1);
+      }
+      try {
+        heapBytes = Long.parseLong(value) * multiplier;
+      } catch (NumberFormatException e) {
+        throw new RuntimeException("Couldn't parse the option: " + option, e);
+      }
+    }
+    return heapBytes;
+  }
+
+  /**
+   * Return the number of bytes of heap which the nodes compressed on a single
+   * machine can use, or -1 if local_heap_fraction isn't set.
+   */
+  private long getLocalHeapBudget() {
+    float fraction = (Float) stage_options.get("local_heap_fraction");
+    if (fraction <= 0) {
+      return -1;
+    }
+    if ((Integer) stage_options.get("local_merge_threads") > 0) {
+      // QuickMergeLocal merges the nodes in this process.
+      long heapBytes = Runtime.getRuntime().maxMemory();
+      sLogger.info("Heap available to the driver: " + heapBytes);
+      return (long) (fraction * heapBytes);
+    }
+    long heapBytes =
+        (Integer) stage_options.get("reducer_heap_mb") * (1L << 20);
+    if (heapBytes <= 0) {
+      heapBytes = parseMaxHeapBytes(
+          getConf().get("mapred.reduce.child.java.opts"));
+    }
+    if (heapBytes <= 0) {
+      // Hadoop's default is -Xmx200m.
+      heapBytes = parseMaxHeapBytes(
+          getConf().get("mapred.child.java.opts", "-Xmx200m"));
+    }
+    sLogger.info("Heap available to the reducers: " + heapBytes);
+    return (long) (fraction * heapBytes);
+  }
+
+  /**
+   * Log the decision whether to compress the remaining nodes on a single
+   * machine and record it in the stage info.
+   */
+  private void recordLocalDecision(
+      String step, long remainingBytes, long budget, boolean useLocal) {
+    sLogger.info(String.format(
+        "Step %s: Estimated heap for the compressible nodes: %d bytes. " +
+        "Budget: %d bytes. Compress on a single machine: %b",
+        step, remainingBytes, budget, useLocal));
+
+    String prefix = "step_" + step + "_";
+    StageInfo info = getStageInfo();
+    CounterInfo bytesInfo = new CounterInfo();
+    bytesInfo.setName(prefix + "compressible_bytes");
+    bytesInfo.setValue(remainingBytes);
+    info.getCounters().add(bytesInfo);
+
+    CounterInfo budgetInfo = new CounterInfo();
+    budgetInfo.setName(prefix + "local_heap_budget");
+    budgetInfo.setValue(budget);
+    info.getCounters().add(budgetInfo);
+
+    CounterInfo decisionInfo = new CounterInfo();
+    decisionInfo.setName(prefix + "compress_locally");
+    decisionInfo.setValue(useLocal ? 1L : 0L);
+    info.getCounters().add(decisionInfo);
+  }
+
   /**
    * Return the value of the specified counter in the job.
    * @param job
@@ -348,7 +686,7 @@ public class CompressChains extends PipelineStage {
     // We add all the options for the stages we depend on.
     StageBase[] substages =
       {new CompressibleAvro(), new QuickMergeAvro(), new PairMarkAvro(),
-       new PairMergeAvro()};
+       new PairMergeAvro(), new PartitionMergeAvro()};
 
     for (StageBase stage: substages) {
       definitions.putAll(stage.getParameterDefinitions());
@@ -356,6 +694,14 @@ public class CompressChains extends PipelineStage {
 
     definitions.remove("randseed");
 
+    // QuickMark gives all the compressible nodes the same mertag so
+    // QuickMergeAvro must not split it. Nor can it spill it: the QuickMerge
+    // path assumes every chain is compressed so any fragments left by the
+    // spills would never be merged.
+    definitions.remove("hot_tag_threshold");
+    definitions.remove("hot_tag_splits");
+    definitions.remove("max_nodes_in_memory");
+
     ParameterDefinition localnodes =
         new ParameterDefinition("localnodes",
             "If the number of compressible nodes is less than this value " +
@@ -363,6 +709,22 @@ public class CompressChains extends PipelineStage {
             "for compression.",
             Integer.class, new Integer(1000));
 
+    ParameterDefinition local_heap_fraction =
+        new ParameterDefinition("local_heap_fraction",
+            "If greater than zero, the compressible nodes are sent to a " +
+            "single worker once their estimated size in memory is less " +
+            "than this fraction of the reducer's heap, or of the driver's " +
+            "heap if local_merge_threads is set. This replaces " +
+            "localnodes once an estimate is available.",
+            Float.class, new Float(0));
+
+    ParameterDefinition reducer_heap_mb =
+        new ParameterDefinition("reducer_heap_mb",
+            "The heap in MB of the reducers; used with local_heap_fraction. " +
+            "If zero, the heap is parsed from the -Xmx option in " +
+            "mapred.reduce.child.java.opts or mapred.child.java.opts.",
+            Integer.class, new Integer(0));
+
     ParameterDefinition resume =
         new ParameterDefinition("resume",
             "Indicates we want to resume compressing a set of nodes. " +
@@ -385,8 +747,41 @@ public class CompressChains extends PipelineStage {
             "for debugging to repeat a previous run to see what happened.",
             String.class, "");
 
+    ParameterDefinition pointer_jumping =
+        new ParameterDefinition("pointer_jumping",
+            "If true the chains are compressed by pointer jumping, which " +
+            "takes O(log L) rounds for a chain of length L, instead of the " +
+            "randomized PairMark and PairMerge.",
+            Boolean.class, new Boolean(false));
+
+    ParameterDefinition fuse_pair_merge =
+        new ParameterDefinition("fuse_pair_merge",
+            "If true each round of the randomized algorithm marks and " +
+            "merges the nodes in a single job (PairMarkMergeAvro). This " +
+            "avoids writing the marked graph but merges fewer nodes in " +
+            "each round.",
+            Boolean.class, new Boolean(false));
+
+    ParameterDefinition partition_merge =
+        new ParameterDefinition("partition_merge",
+            "If true, before the randomized rounds the nodes are " +
+            "partitioned by partition_key and the chains within each " +
+            "partition are merged (PartitionMergeAvro).",
+            Boolean.class, new Boolean(false));
+
+    ParameterDefinition local_merge_threads =
+        new ParameterDefinition("local_merge_threads",
+            "If greater than zero, the chains left when the number of " +
+            "compressible nodes drops below localnodes are merged on this " +
+            "machine using this many threads (QuickMergeLocal) instead of " +
+            "in a single reducer.",
+            Integer.class, new Integer(0));
+
     for (ParameterDefinition def:
-      new ParameterDefinition[] {localnodes, resume, stage_num, seeds}) {
+      new ParameterDefinition[] {
+          localnodes, local_heap_fraction, reducer_heap_mb, resume,
+          stage_num, seeds, pointer_jumping, fuse_pair_merge,
+          partition_merge, local_merge_threads}) {
       definitions.put(def.getName(), def);
     }
 
@@ -14,13 +14,52 @@
 // Author:Jeremy Lewi (jeremy@lewi.us)
 package contrail.stages;
 
+import contrail.graph.EdgeData;
 import contrail.graph.GraphNode;
+import contrail.graph.GraphNodeData;
+import contrail.graph.NeighborData;
+import contrail.graph.R5Tag;
 import contrail.sequences.DNAStrand;
 
 /**
  * A collection of routines used by the stages for compressing linear chains.
  */
 public class CompressUtil {
+  // Approximate sizes in bytes used by estimateHeapBytes. NODE_BYTES
+  // includes the GraphNode wrapping the data and the kmer tag.
+  private static final long NODE_BYTES = 256;
+  private static final long RECORD_BYTES = 48;
+  private static final long STRING_BYTES = 40;
+
+  private static long estimateStringBytes(CharSequence value) {
+    return STRING_BYTES + 2 * value.length();
+  }
+
+  /**
+   * Estimate the number of bytes of heap used by a node when it is loaded
+   * into memory, e.g. by QuickMergeAvro.
+   *
+   * This is only a rough estimate based on the sizes of the fields; it is
+   * used to decide whether the remaining nodes will fit on a single machine.
+   */
+  public static long estimateHeapBytes(GraphNodeData node) {
+    long bytes = NODE_BYTES + estimateStringBytes(node.getNodeId());
+    bytes += node.getSequence().getDna().limit();
+    for (NeighborData neighbor : node.getNeighbors()) {
+      bytes += RECORD_BYTES + estimateStringBytes(neighbor.getNodeId());
+      for (EdgeData edge : neighbor.getEdges()) {
+        bytes += RECORD_BYTES;
+        for (CharSequence tag : edge.getReadTags()) {
+          bytes += estimateStringBytes(tag);
+        }
+      }
+    }
+    for (R5Tag tag : node.getR5Tags()) {
+      bytes += RECORD_BYTES + estimateStringBytes(tag.getTag());
+    }
+    return bytes;
+  }
+
   /**
    * Convert the enumeration CompressibleStrands to the equivalent DNAStrand
    * enumeration if possible.
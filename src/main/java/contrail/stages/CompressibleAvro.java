@@ -83,6 +83,10 @@ public class CompressibleAvro extends MRStage {
   public static CounterName NUM_COMPRESSIBLE =
       new CounterName("Contrail", "compressible");
 
+  // An estimate of the heap needed to hold the compressible nodes.
+  public static CounterName NUM_COMPRESSIBLE_BYTES =
+      new CounterName("Contrail", "compressible_bytes");
+
   /**
    * Get the parameters used by this stage.
    */
@@ -383,6 +387,9 @@ public class CompressibleAvro extends MRStage {
       if (compressible_strands != CompressibleStrands.NONE) {
         reporter.incrCounter(
             NUM_COMPRESSIBLE.group, NUM_COMPRESSIBLE.tag, 1);
+        reporter.incrCounter(
+            NUM_COMPRESSIBLE_BYTES.group, NUM_COMPRESSIBLE_BYTES.tag,
+            CompressUtil.estimateHeapBytes(node.getData()));
       }
       collector.collect(annotated_node);
     }
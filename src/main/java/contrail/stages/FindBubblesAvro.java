@@ -44,6 +44,7 @@ import contrail.graph.GraphUtil;
 import contrail.sequences.DNAAlphabetFactory;
 import contrail.sequences.DNAStrand;
 import contrail.sequences.DNAUtil;
+import contrail.sequences.EditDistance;
 import contrail.sequences.Sequence;
 import contrail.stages.GraphCounters.CounterName;
 import contrail.util.ContrailLogger;
@@ -295,6 +296,7 @@ public class FindBubblesAvro extends MRStage   {
     private GraphNode majorNode = null;
     private GraphNode middleNode = null;
     private FindBubblesOutput output = null;
+    private final EditDistance editDistance = new EditDistance();
 
     @Override
     public void configure(JobConf job) {
@@ -621,13 +623,16 @@ public class FindBubblesAvro extends MRStage   {
             continue;
           }
 
-          distance = highCoveragePath.getTrimmedSequence().computeEditDistance(
-              lowCoveragePath.getTrimmedSequence());
-
           threshold = (int) Math.ceil(Math.max(
               highCoveragePath.getTrimmedSequence().size(),
               lowCoveragePath.getTrimmedSequence().size()) * bubbleEditRate);
 
+          // We only care whether the distance is within the threshold so
+          // stop computing the distance once it exceeds the threshold.
+          distance = editDistance.compute(
+              highCoveragePath.getTrimmedSequence(),
+              lowCoveragePath.getTrimmedSequence(), threshold);
+
           reporter.incrCounter("Contrail", "pathschecked", 1);
           if (distance <= threshold)  {
 
@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.mapred.Pair;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ToolRunner;
+
+import contrail.graph.GraphNodeData;
+
+/**
+ * Output the messages CleanGraphAvro would send to other nodes.
+ *
+ * This is a map only job. The output is the frontier of the graph, i.e. the
+ * messages for the nodes which CleanGraphAvro would change, keyed by the id
+ * of the node they are sent to. Nodes which are kept aren't output. See
+ * IncrementalCleanGraph.
+ */
+public class FindCleanGraphFrontier extends MRStage {
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    return new CleanGraphAvro().getParameterDefinitions();
+  }
+
+  public static class FrontierMapper extends CleanGraphAvro.CleanGraphMapper {
+    @Override
+    public void map(GraphNodeData graphData,
+        AvroCollector<Pair<CharSequence, CleanGraphMessage>> output,
+        Reporter reporter) throws IOException {
+      sendMessages(graphData, output, reporter);
+    }
+  }
+
+  @Override
+  public List<InvalidParameter> validateParameters() {
+    CleanGraphAvro stage = new CleanGraphAvro();
+    stage.setParameters(stage_options);
+    return stage.validateParameters();
+  }
+
+  @Override
+  protected void setupConfHook() {
+    JobConf conf = (JobConf) getConf();
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    FileInputFormat.addInputPath(conf, new Path(inputPath));
+    FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+    AvroJob.setInputSchema(conf, new GraphNodeData().getSchema());
+    AvroJob.setOutputSchema(conf, CleanGraphAvro.MAP_OUT_SCHEMA);
+    AvroJob.setMapperClass(conf, FrontierMapper.class);
+
+    // This is a mapper only job.
+    conf.setNumReduceTasks(0);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(
+        new Configuration(), new FindCleanGraphFrontier(), args);
+    System.exit(res);
+  }
+}
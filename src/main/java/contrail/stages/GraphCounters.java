@@ -38,4 +38,9 @@ public class GraphCounters {
 
   public static CounterName quick_mark_nodes_send_to_compressor =
       new CounterName("Contrail", "nodes_to_send_to_compressor");
+
+  // An estimate of the heap needed by the nodes sent to the compressor
+  // (see CompressUtil.estimateHeapBytes).
+  public static CounterName quick_mark_bytes_send_to_compressor =
+      new CounterName("Contrail", "bytes_to_send_to_compressor");
 }
@@ -16,6 +16,7 @@ package contrail.stages;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -40,6 +41,7 @@ import org.apache.log4j.Logger;
 
 import contrail.graph.GraphNode;
 import contrail.graph.GraphNodeData;
+import contrail.graph.GraphNodeProjection;
 
 /**
  * Convert the graph to fasta files.
@@ -104,7 +106,11 @@ public class GraphToFasta extends MRStage {
     String inputPath = (String) stage_options.get("inputpath");
     String outputPath = (String) stage_options.get("outputpath");
 
-    AvroJob.setInputSchema(conf, GraphNodeData.SCHEMA$);
+    // We only need the ids and sequences of the nodes.
+    AvroJob.setInputSchema(conf, GraphNodeProjection.createSchema(EnumSet.of(
+        GraphNodeProjection.Field.MERTAG,
+        GraphNodeProjection.Field.NEIGHBORS,
+        GraphNodeProjection.Field.R5_TAGS)));
 
     FileInputFormat.addInputPath(conf, new Path(inputPath));
     FileOutputFormat.setOutputPath(conf, new Path(outputPath));
@@ -0,0 +1,166 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+
+import contrail.stages.GraphCounters.CounterName;
+import contrail.util.FileHelper;
+
+/**
+ * Clean the graph without shuffling the nodes which don't change.
+ *
+ * After the first few rounds of compression and correction only a small
+ * part of the graph is affected by removing tips and low coverage nodes.
+ * We first run FindCleanGraphFrontier to output the messages CleanGraphAvro
+ * would send. If the frontier is small enough to load into memory we apply
+ * the messages with the map only job ApplyCleanGraphFrontier. Otherwise we
+ * run CleanGraphAvro on the whole graph. The output is the same either way.
+ */
+public class IncrementalCleanGraph extends PipelineStage {
+  private static final Logger sLogger =
+      Logger.getLogger(IncrementalCleanGraph.class);
+
+  // The jobs which were run.
+  private ArrayList<MRStage> stages;
+
+  public IncrementalCleanGraph() {
+    stages = new ArrayList<MRStage>();
+  }
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> definitions =
+        new HashMap<String, ParameterDefinition>();
+    definitions.putAll(super.createParameterDefinitions());
+    definitions.putAll(new CleanGraphAvro().getParameterDefinitions());
+
+    ParameterDefinition maxFrontierMB = new ParameterDefinition(
+        "max_frontier_mb", "The maximum size in MB of the frontier files " +
+        "for which we apply the messages in memory. Every mapper loads the " +
+        "whole frontier and the messages for tips contain the tip, so this " +
+        "should be a small fraction of the mappers' heap. If the frontier " +
+        "is larger we run CleanGraphAvro on the whole graph.",
+        Integer.class, new Integer(64));
+    definitions.put(maxFrontierMB.getName(), maxFrontierMB);
+    return Collections.unmodifiableMap(definitions);
+  }
+
+  private void runChild(
+      MRStage stage, Map<String, Object> extraOptions) {
+    stage.initializeAsChild(this);
+    Map<String, Object> options =
+        ContrailParameters.extractParameters(
+            stage_options, stage.getParameterDefinitions().values());
+    options.putAll(extraOptions);
+    stage.setParameters(options);
+    executeChild(stage);
+    stages.add(stage);
+  }
+
+  /**
+   * Returns the sum of the counter over the jobs whose output was used.
+   */
+  public long getCounter(CounterName counter) {
+    long total = 0;
+    try {
+      for (MRStage stage : stages) {
+        total += stage.job.getCounters().findCounter(
+            counter.group, counter.tag).getValue();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Couldn't get counters.", e);
+    }
+    return total;
+  }
+
+  /**
+   * Returns the total number of nodes removed.
+   */
+  public long getNumRemoved() {
+    long numRemoved = 0;
+    for (CounterName counter : CleanGraphAvro.REMOVED_COUNTERS) {
+      numRemoved += getCounter(counter);
+    }
+    return numRemoved;
+  }
+
+  @Override
+  protected void stageMain() {
+    stages.clear();
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    String frontierPath = FilenameUtils.concat(outputPath, "frontier");
+    String graphPath = FilenameUtils.concat(outputPath, "graph");
+    long maxFrontierBytes =
+        (Integer) stage_options.get("max_frontier_mb") * 1024L * 1024L;
+
+    try {
+      HashMap<String, Object> options = new HashMap<String, Object>();
+      options.put("inputpath", inputPath);
+      options.put("outputpath", frontierPath);
+      FindCleanGraphFrontier frontier = new FindCleanGraphFrontier();
+      runChild(frontier, options);
+
+      long numMessages = frontier.job.getCounters().findCounter(
+          CleanGraphAvro.NUM_MESSAGES.group,
+          CleanGraphAvro.NUM_MESSAGES.tag).getValue();
+      Path frontierDir = new Path(frontierPath);
+      long frontierBytes = frontierDir.getFileSystem(getConf())
+          .getContentSummary(frontierDir).getLength();
+      sLogger.info("Number of messages in the frontier: " + numMessages);
+      sLogger.info("Size of the frontier in bytes: " + frontierBytes);
+
+      options.put("outputpath", graphPath);
+      if (frontierBytes <= maxFrontierBytes) {
+        options.put("frontier_path", frontierPath);
+        runChild(new ApplyCleanGraphFrontier(), options);
+      } else {
+        sLogger.info(
+            "The frontier is too large so we clean the whole graph.");
+        // CleanGraphAvro's mapper increments the same counters as
+        // FindCleanGraphFrontier so we only count CleanGraphAvro.
+        stages.remove(frontier);
+        runChild(new CleanGraphAvro(), options);
+      }
+      FileHelper.moveDirectoryContents(getConf(), graphPath, outputPath);
+
+      // The directory we moved the output from is now empty. The frontier
+      // is always deleted so the output directory only contains the graph.
+      for (String path : new String[] {graphPath, frontierPath}) {
+        Path toDelete = new Path(path);
+        toDelete.getFileSystem(getConf()).delete(toDelete, true);
+      }
+    } catch (IOException e) {
+      sLogger.fatal("IncrementalCleanGraph failed.", e);
+      System.exit(-1);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(
+        new Configuration(), new IncrementalCleanGraph(), args);
+    System.exit(res);
+  }
+}
@@ -0,0 +1,216 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.Pair;
+
+import contrail.ReadState;
+import contrail.graph.KMerEdge;
+import contrail.sequences.KMerReadTag;
+import contrail.sequences.StrandsForEdge;
+
+/**
+ * Aggregate the KMerEdges emitted by BuildGraphMapper in memory.
+ *
+ * For high coverage data the same edge (source KMer, strands, last base)
+ * is emitted once for every read containing it. The aggregator combines
+ * these into a single KMerEdge whose coverage is the sum of the coverage of
+ * the combined edges and whose extra_tags holds up to maxTags of their read
+ * tags. BuildGraphReducer merges combined edges with the other edges for
+ * the KMer.
+ *
+ * Only edges in the middle or at the end of a read are combined; edges at
+ * the start of a read are needed to compute the R5 tags so they should be
+ * emitted directly.
+ *
+ * The number of distinct edges held in memory is bounded; when the table is
+ * full all the edges are flushed to the collector.
+ */
+public class KMerEdgeAggregator {
+  private final int maxEntries;
+  private final int maxTags;
+
+  private final HashMap<EdgeKey, CombinedEdge> entries;
+
+  // Reused to look up edges without allocating a key.
+  private final EdgeKey probe;
+
+  private final KMerEdge outEdge;
+  private final byte[] lastBaseBytes = new byte[1];
+  private final Pair<ByteBuffer, KMerEdge> outPair;
+
+  /**
+   * Key identifying an edge; the packed bytes of the source KMer followed by
+   * the strands and the last base.
+   */
+  private static class EdgeKey {
+    private byte[] bytes;
+    private int length;
+    private int hash;
+
+    public EdgeKey() {
+      bytes = new byte[16];
+    }
+
+    public void set(ByteBuffer kmer, StrandsForEdge strands, byte lastBase) {
+      int kmerLength = kmer.remaining();
+      if (bytes.length < kmerLength + 2) {
+        bytes = new byte[kmerLength + 2];
+      }
+      kmer.duplicate().get(bytes, 0, kmerLength);
+      bytes[kmerLength] = (byte) strands.ordinal();
+      bytes[kmerLength + 1] = lastBase;
+      length = kmerLength + 2;
+
+      hash = length;
+      for (int i = 0; i < length; ++i) {
+        hash = 31 * hash + bytes[i];
+      }
+    }
+
+    public EdgeKey copy() {
+      EdgeKey key = new EdgeKey();
+      key.bytes = Arrays.copyOf(bytes, length);
+      key.length = length;
+      key.hash = hash;
+      return key;
+    }
+
+    public int kmerLength() {
+      return length - 2;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof EdgeKey)) {
+        return false;
+      }
+      EdgeKey key = (EdgeKey) other;
+      if (key.length != length || key.hash != hash) {
+        return false;
+      }
+      for (int i = 0; i < length; ++i) {
+        if (bytes[i] != key.bytes[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * The aggregated data for an edge.
+   */
+  private static class CombinedEdge {
+    public StrandsForEdge strands;
+    public float coverage;
+    public KMerReadTag minTag;
+    public List<CharSequence> tags = new ArrayList<CharSequence>();
+  }
+
+  /**
+   * @param maxEntries: The maximum number of distinct edges to hold before
+   *   flushing.
+   * @param maxTags: The maximum number of read tags to keep for each edge.
+   *   The reducer keeps at most MAXTHREADREADS tags so there is no need to
+   *   keep more than that.
+   */
+  public KMerEdgeAggregator(int maxEntries, int maxTags) {
+    this.maxEntries = maxEntries;
+    this.maxTags = maxTags;
+    entries = new HashMap<EdgeKey, CombinedEdge>();
+    probe = new EdgeKey();
+    outEdge = new KMerEdge();
+    outPair = new Pair<ByteBuffer, KMerEdge>(BuildGraphAvro.MAP_OUT_SCHEMA);
+  }
+
+  /**
+   * The number of distinct edges currently held.
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Add an edge to the table, flushing the table to output if its full.
+   *
+   * @param kmer: The packed bytes of the canonical source KMer.
+   * @param edge: The edge. Its state should be MIDDLE or END.
+   */
+  public void add(ByteBuffer kmer, KMerEdge edge,
+      AvroCollector<Pair<ByteBuffer, KMerEdge>> output) throws IOException {
+    ByteBuffer lastBase = edge.getLastBase();
+    probe.set(kmer, edge.getStrands(), lastBase.get(lastBase.position()));
+    CombinedEdge combined = entries.get(probe);
+    if (combined == null) {
+      if (entries.size() >= maxEntries) {
+        flush(output);
+      }
+      combined = new CombinedEdge();
+      combined.strands = edge.getStrands();
+      entries.put(probe.copy(), combined);
+    }
+
+    // For KMers in the middle of a read we generate two edges; one for
+    // each strand so each edge counts for half the coverage.
+    combined.coverage += edge.getState() == ReadState.MIDDLE ? .5f : 1f;
+    KMerReadTag tag = new KMerReadTag(
+        edge.getTag().toString(), edge.getChunk());
+    if (combined.minTag == null || tag.compareTo(combined.minTag) < 0) {
+      combined.minTag = tag;
+    }
+    if (combined.tags.size() < maxTags) {
+      combined.tags.add(tag.toString());
+    }
+  }
+
+  /**
+   * Output all the combined edges and empty the table.
+   */
+  public void flush(AvroCollector<Pair<ByteBuffer, KMerEdge>> output)
+      throws IOException {
+    outEdge.setState(ReadState.MIDDLE);
+    for (Map.Entry<EdgeKey, CombinedEdge> entry : entries.entrySet()) {
+      EdgeKey key = entry.getKey();
+      CombinedEdge combined = entry.getValue();
+      int kmerLength = key.kmerLength();
+
+      outEdge.setStrands(combined.strands);
+      lastBaseBytes[0] = key.bytes[kmerLength + 1];
+      outEdge.setLastBase(ByteBuffer.wrap(lastBaseBytes));
+      outEdge.setTag(combined.minTag.read_id);
+      outEdge.setChunk(combined.minTag.chunk);
+      outEdge.setCoverage(combined.coverage);
+      outEdge.setExtraTags(combined.tags);
+      outPair.key(ByteBuffer.wrap(key.bytes, 0, kmerLength));
+      outPair.value(outEdge);
+      output.collect(outPair);
+    }
+    entries.clear();
+  }
+}
@@ -18,11 +18,13 @@ package contrail.stages;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.avro.Schema;
 import org.apache.avro.mapred.AvroCollector;
 import org.apache.avro.mapred.AvroJob;
 import org.apache.avro.mapred.AvroMapper;
@@ -42,6 +44,7 @@ import org.apache.log4j.Logger;
 import contrail.graph.EdgeDirection;
 import contrail.graph.GraphNode;
 import contrail.graph.GraphNodeData;
+import contrail.graph.GraphNodeProjection;
 import contrail.graph.LengthStatsData;
 import contrail.sequences.DNAStrand;
 
@@ -54,6 +57,17 @@ import contrail.sequences.DNAStrand;
 public class LengthStats extends MRStage {
   private static final Logger sLogger = Logger.getLogger(LengthStats.class);
 
+  /**
+   * The schema for reading the graph. The stats only depend on the length,
+   * coverage and degree of the nodes so we skip the other fields.
+   */
+  public static final Schema INPUT_SCHEMA = GraphNodeProjection.createSchema(
+      EnumSet.of(
+          GraphNodeProjection.Field.MERTAG,
+          GraphNodeProjection.Field.SEQUENCE_BASES,
+          GraphNodeProjection.Field.EDGE_READ_TAGS,
+          GraphNodeProjection.Field.R5_TAGS));
+
   public static final List<String> BASE_NAMES = Collections.unmodifiableList(
       Arrays.asList(new String[]{"coverage", "degree"}));
   /**
@@ -137,11 +151,11 @@ public class LengthStats extends MRStage {
         AvroCollector<Pair<Long, LengthStatsData>> collector,
         Reporter reporter) throws IOException {
       node.setData(nodeData);
-      long len     = node.getSequence().size();
-      int fdegree = node.getEdgeTerminals(
-          DNAStrand.FORWARD, EdgeDirection.OUTGOING).size();
-      int rdegree = node.getEdgeTerminals(
-          DNAStrand.REVERSE, EdgeDirection.OUTGOING).size();
+      // The bases aren't decoded (see INPUT_SCHEMA) so we get the length
+      // from the compressed sequence.
+      long len     = nodeData.getSequence().getLength();
+      int fdegree = node.degree(DNAStrand.FORWARD, EdgeDirection.OUTGOING);
+      int rdegree = node.degree(DNAStrand.REVERSE, EdgeDirection.OUTGOING);
       double cov   = node.getCoverage();
 
       graphStats.setCount(1L);
@@ -229,7 +243,7 @@ public class LengthStats extends MRStage {
     Pair<Long, LengthStatsData> mapOutput =
         new Pair<Long, LengthStatsData> (0L, new LengthStatsData());
 
-    AvroJob.setInputSchema(conf, new GraphNodeData().getSchema());
+    AvroJob.setInputSchema(conf, INPUT_SCHEMA);
     AvroJob.setMapOutputSchema(conf, mapOutput.getSchema());
     AvroJob.setOutputSchema(conf, new LengthStatsData().getSchema());
 
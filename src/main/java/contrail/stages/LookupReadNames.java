@@ -0,0 +1,187 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.mapred.AvroMapper;
+import org.apache.avro.mapred.AvroReducer;
+import org.apache.avro.mapred.Pair;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ToolRunner;
+
+import contrail.graph.GraphNodeData;
+import contrail.stages.GraphCounters.CounterName;
+
+/**
+ * Find the names of the reads used by each node.
+ *
+ * The input is the graph and the dictionary written by AssignReadIds. The
+ * mapper keys each read id used by a node, and each entry of the dictionary,
+ * by the read id so the reducer can join them. The output contains a
+ * ReadName for each node and read id with a name. See RestoreReadNames.
+ */
+public class LookupReadNames extends MRStage {
+  public final static CounterName NUM_MISSING_NAMES =
+      new CounterName("Contrail", "read-ids-without-names");
+
+  public static final Schema MAP_OUT_SCHEMA = Pair.getPairSchema(
+      Schema.create(Schema.Type.STRING), ReadName.SCHEMA$);
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+    defs.putAll(super.createParameterDefinitions());
+    for (ParameterDefinition def:
+      ContrailParameters.getInputOutputPathOptions()) {
+      defs.put(def.getName(), def);
+    }
+    ParameterDefinition dictionary = new ParameterDefinition(
+        "read_id_dictionary", "The dictionary written by AssignReadIds.",
+        String.class, null);
+    defs.put(dictionary.getName(), dictionary);
+    return Collections.unmodifiableMap(defs);
+  }
+
+  protected static Schema getInputSchema() {
+    ArrayList<Schema> schemas = new ArrayList<Schema>();
+    schemas.add(GraphNodeData.SCHEMA$);
+    schemas.add(AssignReadIds.DICTIONARY_SCHEMA);
+    return Schema.createUnion(schemas);
+  }
+
+  public static class LookupMapper extends
+      AvroMapper<Object, Pair<CharSequence, ReadName>> {
+    private Pair<CharSequence, ReadName> outPair;
+    private ReadName message;
+    private HashSet<String> readIds;
+
+    @Override
+    public void configure(JobConf job) {
+      outPair = new Pair<CharSequence, ReadName>(MAP_OUT_SCHEMA);
+      message = new ReadName();
+      readIds = new HashSet<String>();
+    }
+
+    @Override
+    public void map(
+        Object record, AvroCollector<Pair<CharSequence, ReadName>> collector,
+        Reporter reporter) throws IOException {
+      if (record instanceof GraphNodeData) {
+        GraphNodeData node = (GraphNodeData) record;
+        readIds.clear();
+        RestoreReadNames.getReadIds(node, readIds);
+        message.setNodeId(node.getNodeId());
+        message.setName(null);
+        for (String readId : readIds) {
+          message.setReadId(readId);
+          outPair.set(readId, message);
+          collector.collect(outPair);
+        }
+      } else {
+        // An entry of the dictionary.
+        Pair<CharSequence, CharSequence> entry =
+            (Pair<CharSequence, CharSequence>) record;
+        message.setNodeId(null);
+        message.setReadId(entry.key());
+        message.setName(entry.value());
+        outPair.set(entry.key(), message);
+        collector.collect(outPair);
+      }
+    }
+  }
+
+  public static class LookupReducer extends
+      AvroReducer<CharSequence, ReadName, ReadName> {
+    private ReadName output;
+    private List<String> nodeIds;
+
+    @Override
+    public void configure(JobConf job) {
+      output = new ReadName();
+      nodeIds = new ArrayList<String>();
+    }
+
+    @Override
+    public void reduce(
+        CharSequence readId, Iterable<ReadName> messages,
+        AvroCollector<ReadName> collector, Reporter reporter)
+            throws IOException {
+      nodeIds.clear();
+      String name = null;
+      for (ReadName message : messages) {
+        if (message.getName() != null) {
+          name = message.getName().toString();
+        } else {
+          nodeIds.add(message.getNodeId().toString());
+        }
+      }
+      if (nodeIds.isEmpty()) {
+        return;
+      }
+      if (name == null) {
+        reporter.incrCounter(
+            NUM_MISSING_NAMES.group, NUM_MISSING_NAMES.tag, 1);
+        return;
+      }
+
+      output.setReadId(readId.toString());
+      output.setName(name);
+      for (String nodeId : nodeIds) {
+        output.setNodeId(nodeId);
+        collector.collect(output);
+      }
+    }
+  }
+
+  @Override
+  protected void setupConfHook() {
+    JobConf conf = (JobConf) getConf();
+    String inputPath = (String) stage_options.get("inputpath");
+    String dictionaryPath = (String) stage_options.get("read_id_dictionary");
+    String outputPath = (String) stage_options.get("outputpath");
+
+    FileInputFormat.addInputPath(conf, new Path(inputPath));
+    FileInputFormat.addInputPath(conf, new Path(dictionaryPath));
+    FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+    AvroJob.setInputSchema(conf, getInputSchema());
+    AvroJob.setMapOutputSchema(conf, MAP_OUT_SCHEMA);
+    AvroJob.setOutputSchema(conf, ReadName.SCHEMA$);
+
+    AvroJob.setMapperClass(conf, LookupMapper.class);
+    AvroJob.setReducerClass(conf, LookupReducer.class);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(
+        new Configuration(), new LookupReadNames(), args);
+    System.exit(res);
+  }
+}
@@ -0,0 +1,355 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.mapred.AvroMapper;
+import org.apache.avro.mapred.AvroReducer;
+import org.apache.avro.mapred.Pair;
+import org.apache.avro.specific.SpecificData;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+
+import contrail.graph.EdgeDirection;
+import contrail.graph.EdgeTerminal;
+import contrail.graph.GraphNode;
+import contrail.graph.TailData;
+import contrail.sequences.DNAStrand;
+
+/**
+ * Mark and merge pairs of nodes in a single map-reduce job.
+ *
+ * This stage does the work of PairMarkAvro followed by PairMergeAvro
+ * without writing the marked graph to disk. The mapper marks the nodes and
+ * sends each up node directly to the down node it is merged with. The
+ * reducer applies the edge updates and then merges the nodes using the
+ * same code as PairMergeReducer.
+ *
+ * For this to work the edge updates have to be keyed by the reducer which
+ * will process the node being updated. PairMarkAvro can't guarantee this
+ * because a node's state depends on the states of its neighbors, which
+ * the node sending the update doesn't know. So the rules for marking are
+ * stricter than in PairMarkAvro and only depend on the coin flips and ids
+ * of a node's neighbors, which the node can compute itself:
+ * 1. An up node is merged with a down neighbor only if all of its
+ *    neighbors are down.
+ * 2. A down node is converted to up and merged only if all of its
+ *    neighbors are down and it has the smallest id among them.
+ * Thus no two adjacent nodes are both merged into other nodes and every
+ * edge update is sent to a node which keeps its id; the update is keyed by
+ * that id.
+ *
+ * The stricter rules mean fewer nodes are merged in each round than with
+ * PairMarkAvro, but each round is a single job.
+ */
+public class PairMarkMergeAvro extends MRStage {
+  private static final Logger sLogger =
+      Logger.getLogger(PairMarkMergeAvro.class);
+
+  protected static class PairMarkMergeMapper extends
+      AvroMapper<CompressibleNodeData, Pair<CharSequence, PairMarkOutput>> {
+    private CoinFlipper flipper;
+    private GraphNode node;
+    private NodeInfoForMerge node_info_for_merge;
+    private EdgeUpdateForMerge edge_update;
+    private Pair<CharSequence, PairMarkOutput> out_pair;
+
+    @Override
+    public void configure(JobConf job) {
+      PairMarkMergeAvro stage = new PairMarkMergeAvro();
+      Map<String, ParameterDefinition> parameters =
+          stage.getParameterDefinitions();
+      long randseed = (Long) parameters.get("randseed").parseJobConf(job);
+      flipper = new CoinFlipper(randseed);
+      node = new GraphNode();
+      node_info_for_merge = new NodeInfoForMerge();
+      edge_update = new EdgeUpdateForMerge();
+      out_pair = new Pair<CharSequence, PairMarkOutput>(
+          "", new PairMarkOutput());
+    }
+
+    private boolean canCompress(
+        CompressibleNodeData node_data, DNAStrand strand) {
+      CompressibleStrands strands = node_data.getCompressibleStrands();
+      return strands == CompressibleStrands.BOTH ||
+          strands == CompressUtil.dnaStrandToCompressibleStrands(strand);
+    }
+
+    /**
+     * Find the strand of the node to merge.
+     *
+     * @return: The strand or null if the node isn't merged.
+     */
+    private DNAStrand findStrandToMerge(CompressibleNodeData node_data) {
+      // Every neighbor must be down so that none of them moves.
+      Set<String> neighbors = node.getNeighborIds();
+      for (String neighbor : neighbors) {
+        if (flipper.flip(neighbor) != CoinFlipper.CoinFlip.DOWN) {
+          return null;
+        }
+      }
+
+      if (flipper.flip(node.getNodeId()) == CoinFlipper.CoinFlip.DOWN) {
+        // Convert the node to up if it has the smallest id. This ensures
+        // none of its neighbors is converted as well.
+        for (String neighbor : neighbors) {
+          if (node.getNodeId().compareTo(neighbor) >= 0) {
+            return null;
+          }
+        }
+      }
+
+      // Prefer merging forward if we can.
+      for (DNAStrand strand : new DNAStrand[] {
+               DNAStrand.FORWARD, DNAStrand.REVERSE}) {
+        if (!canCompress(node_data, strand)) {
+          continue;
+        }
+        TailData tail = node.getTail(strand, EdgeDirection.OUTGOING);
+        if (tail != null && !tail.terminal.nodeId.equals(node.getNodeId())) {
+          return strand;
+        }
+      }
+      return null;
+    }
+
+    private void collectNode(
+        CharSequence key, CompressibleNodeData node_data,
+        CompressibleStrands strand_to_merge,
+        AvroCollector<Pair<CharSequence, PairMarkOutput>> collector)
+            throws IOException {
+      out_pair.key(key);
+      node_info_for_merge.setCompressibleNode(node_data);
+      node_info_for_merge.setStrandToMerge(strand_to_merge);
+      out_pair.value().setPayload(node_info_for_merge);
+      collector.collect(out_pair);
+    }
+
+    @Override
+    public void map(CompressibleNodeData node_data,
+        AvroCollector<Pair<CharSequence, PairMarkOutput>> collector,
+        Reporter reporter) throws IOException {
+      node.setData(node_data.getNode());
+      if (node_data.getCompressibleStrands() == CompressibleStrands.NONE) {
+        collectNode(
+            node.getNodeId(), node_data, CompressibleStrands.NONE, collector);
+        reporter.incrCounter("Contrail", "nodes", 1);
+        return;
+      }
+      reporter.incrCounter("Contrail", "compressible", 1);
+
+      DNAStrand strand = findStrandToMerge(node_data);
+      if (strand == null) {
+        collectNode(
+            node.getNodeId(), node_data, CompressibleStrands.NONE, collector);
+        reporter.incrCounter("Contrail", "nodes", 1);
+        return;
+      }
+
+      EdgeTerminal down_terminal =
+          node.getEdgeTerminals(strand, EdgeDirection.OUTGOING).get(0);
+
+      // Tell the nodes with edges to this strand the terminal which
+      // will replace it. All of them are down nodes so they are
+      // processed by the reducer with their own id.
+      edge_update.setOldId(node.getNodeId());
+      edge_update.setOldStrand(strand);
+      edge_update.setNewId(down_terminal.nodeId);
+      edge_update.setNewStrand(down_terminal.strand);
+      List<EdgeTerminal> incoming_terminals =
+          node.getEdgeTerminals(strand, EdgeDirection.INCOMING);
+      for (EdgeTerminal terminal : incoming_terminals) {
+        if (terminal.nodeId.equals(down_terminal.nodeId)) {
+          // The edge is moved when the two nodes are merged.
+          continue;
+        }
+        out_pair.key(terminal.nodeId);
+        out_pair.value().setPayload(edge_update);
+        collector.collect(out_pair);
+      }
+
+      // Send the node to the down node.
+      collectNode(
+          down_terminal.nodeId, node_data,
+          CompressUtil.dnaStrandToCompressibleStrands(strand), collector);
+      reporter.incrCounter(
+          PairMarkAvro.NUM_MARKED_FOR_MERGE.group,
+          PairMarkAvro.NUM_MARKED_FOR_MERGE.tag, 1);
+    }
+
+    /**
+     * Sets the coin flipper. This is primarily intended for use by the
+     * unittest.
+     */
+    public void setFlipper(CoinFlipper flipper) {
+      this.flipper = flipper;
+    }
+  }
+
+  protected static class PairMarkMergeReducer extends
+      AvroReducer<CharSequence, PairMarkOutput, CompressibleNodeData> {
+    private PairMergeAvro.PairMergeReducer merger;
+    private ArrayList<NodeInfoForMerge> nodes_to_merge;
+    private ArrayList<EdgeUpdateForMerge> edge_updates;
+
+    @Override
+    public void configure(JobConf job) {
+      merger = new PairMergeAvro.PairMergeReducer();
+      merger.configure(job);
+      nodes_to_merge = new ArrayList<NodeInfoForMerge>();
+      edge_updates = new ArrayList<EdgeUpdateForMerge>();
+    }
+
+    @Override
+    public void reduce(
+        CharSequence nodeid, Iterable<PairMarkOutput> iterable,
+        AvroCollector<CompressibleNodeData> collector, Reporter reporter)
+            throws IOException {
+      nodes_to_merge.clear();
+      edge_updates.clear();
+      NodeInfoForMerge down_node = null;
+      String down_id = nodeid.toString();
+
+      // We need to make copies because the iterable reuses the data.
+      for (PairMarkOutput mark_output : iterable) {
+        if (mark_output.getPayload() instanceof NodeInfoForMerge) {
+          NodeInfoForMerge node_info = CompressUtil.copyNodeInfoForMerge(
+              (NodeInfoForMerge) mark_output.getPayload());
+          nodes_to_merge.add(node_info);
+          if (node_info.getCompressibleNode().getNode().getNodeId()
+                  .toString().equals(down_id)) {
+            down_node = node_info;
+          }
+        } else {
+          EdgeUpdateForMerge edge_update =
+              (EdgeUpdateForMerge) mark_output.getPayload();
+          edge_updates.add(SpecificData.get().deepCopy(
+              edge_update.getSchema(), edge_update));
+        }
+      }
+
+      if (down_node == null) {
+        throw new RuntimeException(
+            "There is no node to output for nodeid: " + nodeid);
+      }
+
+      if (!edge_updates.isEmpty()) {
+        GraphNode graph_node =
+            new GraphNode(down_node.getCompressibleNode().getNode());
+        for (EdgeUpdateForMerge edge_update : edge_updates) {
+          EdgeTerminal old_terminal = new EdgeTerminal(
+              edge_update.getOldId().toString(), edge_update.getOldStrand());
+          EdgeTerminal new_terminal = new EdgeTerminal(
+              edge_update.getNewId().toString(), edge_update.getNewStrand());
+          Set<DNAStrand> strands = graph_node.findStrandsWithEdgeToTerminal(
+              old_terminal, EdgeDirection.OUTGOING);
+          if (strands.isEmpty()) {
+            throw new RuntimeException(
+                "Node: " + nodeid + " has recieved a message to update edge " +
+                "to terminal:" + old_terminal + " but no edge could be " +
+                "found to that terminal.");
+          }
+          for (DNAStrand strand : strands) {
+            graph_node.moveOutgoingEdge(strand, old_terminal, new_terminal);
+          }
+        }
+        down_node.getCompressibleNode().setNode(graph_node.getData());
+      }
+
+      merger.mergeNodes(nodeid, nodes_to_merge, collector, reporter);
+    }
+  }
+
+  /**
+   * Return a list of parameters used by this stage.
+   */
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+
+    defs.putAll(super.createParameterDefinitions());
+
+    ContrailParameters.addList(
+        defs, ContrailParameters.getInputOutputPathOptions());
+
+    ParameterDefinition seed =
+        new ParameterDefinition(
+            "randseed",
+            "Seed for the random number generator. Needs to be unique for " +
+            "each iteration", Long.class, null);
+    defs.put(seed.getName(), seed);
+
+    ParameterDefinition kDef = ContrailParameters.getK();
+    defs.put(kDef.getName(), kDef);
+    return Collections.unmodifiableMap(defs);
+  }
+
+  @Override
+  protected void setupConfHook() {
+    JobConf conf = (JobConf) getConf();
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    FileInputFormat.addInputPath(conf, new Path(inputPath));
+    FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+    Pair<CharSequence, PairMarkOutput> map_output =
+        new Pair<CharSequence, PairMarkOutput>("", new PairMarkOutput());
+    AvroJob.setInputSchema(conf, new CompressibleNodeData().getSchema());
+    AvroJob.setMapOutputSchema(conf, map_output.getSchema());
+    AvroJob.setOutputSchema(conf, new CompressibleNodeData().getSchema());
+
+    AvroJob.setMapperClass(conf, PairMarkMergeMapper.class);
+    AvroJob.setReducerClass(conf, PairMarkMergeReducer.class);
+  }
+
+  @Override
+  protected void postRunHook() {
+    try {
+      long numMarkedNodes = job.getCounters().findCounter(
+          PairMarkAvro.NUM_MARKED_FOR_MERGE.group,
+          PairMarkAvro.NUM_MARKED_FOR_MERGE.tag).getValue();
+      long numCompressibleRemaining = job.getCounters().findCounter(
+          PairMergeAvro.NUM_REMAINING_COMPRESSIBLE.group,
+          PairMergeAvro.NUM_REMAINING_COMPRESSIBLE.tag).getValue();
+      sLogger.info("Number of nodes merged:" + numMarkedNodes);
+      sLogger.info(
+          "Number of remaining nodes to compress:" + numCompressibleRemaining);
+    } catch (IOException e) {
+      sLogger.fatal("Couldn't get counters.", e);
+      System.exit(-1);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(
+        new Configuration(), new PairMarkMergeAvro(), args);
+    System.exit(res);
+  }
+}
@@ -59,6 +59,11 @@ public class PairMergeAvro extends MRStage {
   public static CounterName NUM_REMAINING_COMPRESSIBLE =
       new CounterName("Contrail", "nodes_left_to_compress");
 
+  // An estimate of the heap needed to hold the nodes which still need to be
+  // compressed (see CompressUtil.estimateHeapBytes).
+  public static CounterName NUM_REMAINING_COMPRESSIBLE_BYTES =
+      new CounterName("Contrail", "bytes_left_to_compress");
+
   protected static class PairMergeMapper extends
       AvroMapper<NodeInfoForMerge, Pair<CharSequence, NodeInfoForMerge>> {
     private GraphNode node;
@@ -352,7 +357,22 @@ public class PairMergeAvro extends MRStage {
         // data.
         nodes_to_merge.add(CompressUtil.copyNodeInfoForMerge(node_data));
       }
+      mergeNodes(nodeid, nodes_to_merge, collector, reporter);
+    }
 
+    /**
+     * Merge the nodes sent to the same reducer and output the result.
+     *
+     * This is shared with PairMarkMergeAvro which marks and merges the
+     * nodes in a single job.
+     *
+     * @param nodeid: The id of the down node.
+     * @param nodes_to_merge: Copies of the nodes keyed by nodeid.
+     */
+    protected void mergeNodes(
+        CharSequence nodeid, ArrayList<NodeInfoForMerge> nodes_to_merge,
+        AvroCollector<CompressibleNodeData> collector, Reporter reporter)
+            throws IOException {
       // Sanity check. There should be at most three nodes in nodes_to_merge.
       if (nodes_to_merge.size() > 3) {
         throw new RuntimeException(
@@ -370,6 +390,10 @@ public class PairMergeAvro extends MRStage {
           reporter.incrCounter(
               NUM_REMAINING_COMPRESSIBLE.group, NUM_REMAINING_COMPRESSIBLE.tag,
               1);
+          reporter.incrCounter(
+              NUM_REMAINING_COMPRESSIBLE_BYTES.group,
+              NUM_REMAINING_COMPRESSIBLE_BYTES.tag,
+              CompressUtil.estimateHeapBytes(node.getNode()));
           reporter.incrCounter("PairMergeAvro", "nodes-unmerged", 1);
         }
         // Output the node
@@ -399,7 +423,10 @@ public class PairMergeAvro extends MRStage {
         reporter.incrCounter(
             NUM_REMAINING_COMPRESSIBLE.group, NUM_REMAINING_COMPRESSIBLE.tag,
             1);
-
+        reporter.incrCounter(
+            NUM_REMAINING_COMPRESSIBLE_BYTES.group,
+            NUM_REMAINING_COMPRESSIBLE_BYTES.tag,
+            CompressUtil.estimateHeapBytes(merged_node.getData()));
       }
       output.setNode(merged_node.getData());
       output.setCompressibleStrands(compressible_strands);
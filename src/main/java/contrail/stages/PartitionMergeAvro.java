@@ -0,0 +1,352 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.mapred.AvroMapper;
+import org.apache.avro.mapred.AvroReducer;
+import org.apache.avro.mapred.Pair;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+
+import contrail.graph.EdgeDirection;
+import contrail.graph.GraphNode;
+import contrail.graph.TailData;
+import contrail.sequences.DNAStrand;
+import contrail.sequences.Kmer32;
+import contrail.sequences.Sequence;
+
+/**
+ * Compress the chains whose nodes all fall in the same partition.
+ *
+ * This stage runs on the output of CompressibleAvro before the randomized
+ * rounds of PairMark and PairMerge. The mapper assigns each node a locality
+ * key; either its mertag (as in QuickMergeAvro) or the minimizer of its
+ * sequence. Adjacent KMers usually share both so most of a chain ends up in
+ * the same partition. The reducer merges the chains in each partition with
+ * QuickMergeUtil. The end of a chain is only merged if all of its edges are
+ * in memory, so edges to nodes in other partitions are never changed.
+ *
+ * The compressible strands are then recomputed. If the neighbor is in the
+ * partition we check its degree directly; otherwise the node can't have been
+ * merged so we keep the value computed by CompressibleAvro. The output
+ * therefore only has compressible links which cross partitions.
+ */
+public class PartitionMergeAvro extends MRStage {
+  private static final Logger sLogger =
+      Logger.getLogger(PartitionMergeAvro.class);
+
+  public static final Schema MAP_OUT_SCHEMA =
+      Pair.getPairSchema(
+          Schema.create(Schema.Type.STRING),
+          (new CompressibleNodeData()).getSchema());
+
+  public static final String MERTAG_KEY = "mertag";
+  public static final String MINIMIZER_KEY = "minimizer";
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+
+    defs.putAll(super.createParameterDefinitions());
+
+    for (ParameterDefinition def:
+      ContrailParameters.getInputOutputPathOptions()) {
+      defs.put(def.getName(), def);
+    }
+    ParameterDefinition kDef = ContrailParameters.getK();
+    defs.put(kDef.getName(), kDef);
+
+    ParameterDefinition partitionKey = new ParameterDefinition(
+        "partition_key", "How to partition the nodes. Either " + MERTAG_KEY +
+        " or " + MINIMIZER_KEY + ".", String.class, MERTAG_KEY);
+    defs.put(partitionKey.getName(), partitionKey);
+
+    ParameterDefinition minimizerLength = new ParameterDefinition(
+        "minimizer_length", "The length of the m-mers used to compute the " +
+        "minimizer of a node when partition_key is " + MINIMIZER_KEY +
+        ". Must be at most " + Kmer32.MAX_K + ".", Integer.class,
+        new Integer(11));
+    defs.put(minimizerLength.getName(), minimizerLength);
+    return defs;
+  }
+
+  /**
+   * Returns true if strands includes strand.
+   */
+  private static boolean canCompress(
+      CompressibleStrands strands, DNAStrand strand) {
+    switch (strands) {
+      case BOTH:
+        return true;
+      case FORWARD:
+        return strand == DNAStrand.FORWARD;
+      case REVERSE:
+        return strand == DNAStrand.REVERSE;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Determine the compressible strands of a node after merging.
+   *
+   * @param nodes: The nodes in the partition.
+   * @param node: The node.
+   * @param original: The compressible strands computed by CompressibleAvro.
+   *   This is used for edges to nodes which aren't in the partition.
+   * @return
+   */
+  protected static CompressibleStrands findCompressibleStrands(
+      Map<String, GraphNode> nodes, GraphNode node,
+      CompressibleStrands original) {
+    if (node.hasSelfCycle()) {
+      return CompressibleStrands.NONE;
+    }
+    boolean[] compressible = new boolean[2];
+    for (DNAStrand strand : DNAStrand.values()) {
+      TailData tail = node.getTail(strand, EdgeDirection.OUTGOING);
+      if (tail == null) {
+        continue;
+      }
+      if (tail.terminal.nodeId.equals(node.getNodeId())) {
+        // A hairpin, e.g. X->RC(X); like CompressibleAvro we don't
+        // compress it.
+        continue;
+      }
+      GraphNode other = nodes.get(tail.terminal.nodeId);
+      if (other == null) {
+        compressible[strand.ordinal()] = canCompress(original, strand);
+      } else {
+        compressible[strand.ordinal()] =
+            other.degree(tail.terminal.strand, EdgeDirection.INCOMING) == 1;
+      }
+    }
+    if (compressible[0] && compressible[1]) {
+      return CompressibleStrands.BOTH;
+    } else if (compressible[0]) {
+      return CompressibleStrands.FORWARD;
+    } else if (compressible[1]) {
+      return CompressibleStrands.REVERSE;
+    }
+    return CompressibleStrands.NONE;
+  }
+
+  public static class PartitionMergeMapper extends
+      AvroMapper<CompressibleNodeData, Pair<CharSequence,
+                 CompressibleNodeData>> {
+    private Pair<CharSequence, CompressibleNodeData> out_pair;
+    private boolean useMinimizer;
+    private Kmer32 mmer;
+    private long[] minimizer;
+    private GraphNode node;
+
+    @Override
+    public void configure(JobConf job) {
+      PartitionMergeAvro stage = new PartitionMergeAvro();
+      Map<String, ParameterDefinition> definitions =
+          stage.getParameterDefinitions();
+      String partitionKey =
+          (String) definitions.get("partition_key").parseJobConf(job);
+      if (partitionKey.equals(MINIMIZER_KEY)) {
+        useMinimizer = true;
+      } else if (partitionKey.equals(MERTAG_KEY)) {
+        useMinimizer = false;
+      } else {
+        throw new RuntimeException(
+            "Invalid value for partition_key: " + partitionKey);
+      }
+      int minimizerLength = (Integer)
+          definitions.get("minimizer_length").parseJobConf(job);
+      mmer = new Kmer32(minimizerLength);
+      minimizer = new long[1];
+      node = new GraphNode();
+      out_pair = new Pair<CharSequence, CompressibleNodeData>(MAP_OUT_SCHEMA);
+    }
+
+    /**
+     * Return the key for the partition of the node.
+     */
+    protected String partitionKey(CompressibleNodeData data) {
+      if (!useMinimizer) {
+        return QuickMergeAvro.KMerTag(data.getNode());
+      }
+      node.setData(data.getNode());
+      Sequence sequence = node.getSequence();
+      if (sequence.size() < mmer.getK()) {
+        return node.getNodeId();
+      }
+      // The minimizer of the whole node is the same for both strands.
+      BuildGraphSuperKMers.computeMinimizers(
+          sequence, sequence.size(), mmer, minimizer);
+      return Long.toHexString(minimizer[0]);
+    }
+
+    @Override
+    public void map(
+        CompressibleNodeData data,
+        AvroCollector<Pair<CharSequence, CompressibleNodeData>> output,
+        Reporter reporter) throws IOException {
+      out_pair.set(partitionKey(data), data);
+      output.collect(out_pair);
+      reporter.incrCounter("Contrail", "nodes", 1);
+    }
+  }
+
+  /**
+   * Merge the chains in each partition.
+   */
+  public static class PartitionMergeReducer extends
+      AvroReducer<CharSequence, CompressibleNodeData, CompressibleNodeData> {
+    private int K;
+    private CompressibleNodeData output;
+
+    @Override
+    public void configure(JobConf job) {
+      PartitionMergeAvro stage = new PartitionMergeAvro();
+      Map<String, ParameterDefinition> definitions =
+          stage.getParameterDefinitions();
+      K = (Integer)(definitions.get("K").parseJobConf(job));
+      output = new CompressibleNodeData();
+    }
+
+    @Override
+    public void reduce(
+        CharSequence key, Iterable<CompressibleNodeData> iterable,
+        AvroCollector<CompressibleNodeData> collector, Reporter reporter)
+            throws IOException {
+      HashMap<String, GraphNode> nodes = new HashMap<String, GraphNode>();
+      HashMap<String, CompressibleStrands> original =
+          new HashMap<String, CompressibleStrands>();
+      int numCompressible = 0;
+      for (CompressibleNodeData value : iterable) {
+        // We need to make a copy because the iterable reuses the object.
+        GraphNode node = new GraphNode(value.getNode()).clone();
+        nodes.put(node.getNodeId(), node);
+        original.put(node.getNodeId(), value.getCompressibleStrands());
+        if (value.getCompressibleStrands() != CompressibleStrands.NONE) {
+          ++numCompressible;
+        }
+      }
+
+      // We need at least two compressible nodes to merge anything.
+      if (numCompressible > 1) {
+        QuickMergeUtil.MergeAllChainsResult mergeResult =
+            QuickMergeUtil.mergeAllChains(nodes, K - 1);
+        reporter.incrCounter(
+            QuickMergeAvro.NUM_COMPRESSED_CHAINS.group,
+            QuickMergeAvro.NUM_COMPRESSED_CHAINS.tag,
+            mergeResult.num_compressed_chains);
+        reporter.incrCounter(
+            QuickMergeAvro.NUM_COMPRESSED_NODES.group,
+            QuickMergeAvro.NUM_COMPRESSED_NODES.tag,
+            mergeResult.num_nodes_in_compressed_chains);
+      }
+
+      for (GraphNode node : nodes.values()) {
+        // A merged node keeps the id of one of its nodes. All the neighbors
+        // of a merged node are in memory so the original value for that
+        // id isn't used.
+        CompressibleStrands strands = findCompressibleStrands(
+            nodes, node, original.get(node.getNodeId()));
+        if (strands != CompressibleStrands.NONE) {
+          reporter.incrCounter(
+              PairMergeAvro.NUM_REMAINING_COMPRESSIBLE.group,
+              PairMergeAvro.NUM_REMAINING_COMPRESSIBLE.tag, 1);
+          reporter.incrCounter(
+              PairMergeAvro.NUM_REMAINING_COMPRESSIBLE_BYTES.group,
+              PairMergeAvro.NUM_REMAINING_COMPRESSIBLE_BYTES.tag,
+              CompressUtil.estimateHeapBytes(node.getData()));
+        }
+        output.setNode(node.getData());
+        output.setCompressibleStrands(strands);
+        collector.collect(output);
+      }
+    }
+  }
+
+  @Override
+  public List<InvalidParameter> validateParameters() {
+    List<InvalidParameter> items = super.validateParameters();
+    String partitionKey = (String) stage_options.get("partition_key");
+    if (!partitionKey.equals(MERTAG_KEY) &&
+        !partitionKey.equals(MINIMIZER_KEY)) {
+      items.add(new InvalidParameter(
+          "partition_key",
+          "partition_key must be " + MERTAG_KEY + " or " + MINIMIZER_KEY));
+    }
+    int minimizerLength = (Integer) stage_options.get("minimizer_length");
+    if (minimizerLength <= 0 || minimizerLength > Kmer32.MAX_K) {
+      items.add(new InvalidParameter(
+          "minimizer_length",
+          "minimizer_length must be between 1 and " + Kmer32.MAX_K));
+    }
+    return items;
+  }
+
+  @Override
+  protected void setupConfHook() {
+    JobConf conf = (JobConf) getConf();
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    FileInputFormat.addInputPath(conf, new Path(inputPath));
+    FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+    CompressibleNodeData node = new CompressibleNodeData();
+    AvroJob.setInputSchema(conf, node.getSchema());
+    AvroJob.setMapOutputSchema(conf, MAP_OUT_SCHEMA);
+    AvroJob.setOutputSchema(conf, node.getSchema());
+
+    AvroJob.setMapperClass(conf, PartitionMergeMapper.class);
+    AvroJob.setReducerClass(conf, PartitionMergeReducer.class);
+  }
+
+  @Override
+  protected void postRunHook() {
+    try {
+      long numCompressedNodes = job.getCounters().findCounter(
+          QuickMergeAvro.NUM_COMPRESSED_NODES.group,
+          QuickMergeAvro.NUM_COMPRESSED_NODES.tag).getValue();
+      long numCompressibleRemaining = job.getCounters().findCounter(
+          PairMergeAvro.NUM_REMAINING_COMPRESSIBLE.group,
+          PairMergeAvro.NUM_REMAINING_COMPRESSIBLE.tag).getValue();
+      sLogger.info("Number of nodes compressed:" + numCompressedNodes);
+      sLogger.info(
+          "Number of remaining nodes to compress:" + numCompressibleRemaining);
+    } catch (IOException e) {
+      sLogger.fatal("Couldn't get counters.", e);
+      System.exit(-1);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(
+        new Configuration(), new PartitionMergeAvro(), args);
+    System.exit(res);
+  }
+}
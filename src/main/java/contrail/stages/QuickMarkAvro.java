@@ -79,6 +79,9 @@ public class QuickMarkAvro extends MRStage     {
   public static final Schema REDUCE_OUT_SCHEMA =
       new GraphNodeData().getSchema();
 
+  // The read tag assigned to the nodes which get sent to the compressor.
+  public static final String COMPRESS_TAG = "compress";
+
 
   public static class QuickMarkMapper extends
   AvroMapper<CompressibleNodeData, Pair<CharSequence, QuickMarkMessage>> {
@@ -168,12 +171,16 @@ public class QuickMarkAvro extends MRStage     {
       }
 
       if (compresspair)     {
-        KMerReadTag readtag = new KMerReadTag("compress", 0);
+        KMerReadTag readtag = new KMerReadTag(COMPRESS_TAG, 0);
         //when QuickMerge is run all nodes that need to be compressed or are connected to compressed nodes will be sent to the same reducer
         node.setMertag(readtag);
         reporter.incrCounter(
             GraphCounters.quick_mark_nodes_send_to_compressor.group,
             GraphCounters.quick_mark_nodes_send_to_compressor.tag, 1);
+        reporter.incrCounter(
+            GraphCounters.quick_mark_bytes_send_to_compressor.group,
+            GraphCounters.quick_mark_bytes_send_to_compressor.tag,
+            CompressUtil.estimateHeapBytes(node.getData()));
       }
       else	{
         KMerReadTag readtag = new KMerReadTag(node.getNodeId(), node.getNodeId().hashCode());
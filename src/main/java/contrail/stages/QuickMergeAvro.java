@@ -14,19 +14,25 @@
 // Author: Michael Schatz, Jeremy Lewi
 package contrail.stages;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.mapred.AvroCollector;
 import org.apache.avro.mapred.AvroJob;
 import org.apache.avro.mapred.AvroMapper;
 import org.apache.avro.mapred.AvroReducer;
 import org.apache.avro.mapred.Pair;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapred.FileInputFormat;
@@ -38,8 +44,33 @@ import org.apache.log4j.Logger;
 
 import contrail.graph.GraphNode;
 import contrail.graph.GraphNodeData;
+import contrail.graph.GraphNodeKMerTag;
+import contrail.sequences.Kmer32;
+import contrail.sequences.Sequence;
 import contrail.stages.GraphCounters.CounterName;
 
+/**
+ * Merge the chains formed by nodes with the same mertag.
+ *
+ * Repetitive genomes can produce a few mertags shared by a very large number
+ * of nodes. Two options deal with these groups.
+ *
+ * If hot_tag_threshold is positive, each mapper counts the mertags it sees.
+ * Once a mertag has been seen more than hot_tag_threshold times, the
+ * remaining nodes with that mertag are split into hot_tag_splits groups using
+ * the minimizer of the node, so adjacent nodes usually stay together. Chains
+ * which cross the groups are merged by running the stage again (see
+ * SkewedQuickMerge); after the first pass the group is much smaller.
+ *
+ * If max_nodes_in_memory is positive and a mertag has more nodes than that,
+ * the reducer spills the nodes to local disk, partitions them by minimizer
+ * into groups which fit in memory and merges the chains within each group.
+ * This is repeated until the fragments fit in memory or a pass doesn't reduce
+ * the number of nodes. Chains which cross the groups are output as separate
+ * fragments, so the output may still contain compressible chains. For this
+ * reason CompressChains, which assumes QuickMerge compresses every chain,
+ * doesn't expose this option.
+ */
 public class QuickMergeAvro extends MRStage {
   private static final Logger sLogger = Logger.getLogger(QuickMergeAvro.class);
 
@@ -56,6 +87,10 @@ public class QuickMergeAvro extends MRStage {
       new CounterName("contrail", "num-compressed-chains");
   public final static CounterName NUM_COMPRESSED_NODES =
       new CounterName("contrail", "num-compressed-nodes-in-chains");
+  public final static CounterName NUM_SPLIT_NODES =
+      new CounterName("contrail", "num-nodes-in-split-mertags");
+  public final static CounterName NUM_SPILLED_NODES =
+      new CounterName("contrail", "num-nodes-spilled");
 
   /**
    * Define the schema for the reducer output. The keys will be a byte buffer
@@ -77,14 +112,104 @@ public class QuickMergeAvro extends MRStage {
     return mertag;
   }
 
+  /**
+   * Return the minimizer of the node's sequence, or the hash of the node id
+   * if the sequence is shorter than the minimizer. Adjacent nodes usually
+   * share the same minimizer so this is used to keep chains together.
+   *
+   * @param mmer: Buffer for the m-mers; its length is the minimizer length.
+   * @param minimizer: Buffer of length 1 for the minimizer.
+   */
+  protected static long minimizerHash(
+      GraphNode node, Kmer32 mmer, long[] minimizer) {
+    Sequence sequence = node.getSequence();
+    if (sequence.size() < mmer.getK()) {
+      return node.getNodeId().hashCode();
+    }
+    BuildGraphSuperKMers.computeMinimizers(
+        sequence, sequence.size(), mmer, minimizer);
+    return minimizer[0];
+  }
+
   public static class QuickMergeMapper extends
       AvroMapper<GraphNodeData, Pair<CharSequence, GraphNodeData>> {
 
     private Pair<CharSequence, GraphNodeData> out_pair;
 
+    // The maximum number of mertags to keep counts for.
+    private static final int MAX_TRACKED_TAGS = 100000;
+
+    private int hotTagThreshold;
+    private int hotTagSplits;
+    // Approximate counts of the mertags seen by this mapper.
+    private HashMap<String, Integer> tagCounts;
+    private HashSet<String> hotTags;
+
+    private GraphNode node;
+    private Kmer32 mmer;
+    private long[] minimizer;
+
     @Override
     public void configure(JobConf job) {
       out_pair = new Pair<CharSequence, GraphNodeData>(MAP_OUT_SCHEMA);
+      QuickMergeAvro stage = new QuickMergeAvro();
+      Map<String, ParameterDefinition> definitions =
+          stage.getParameterDefinitions();
+      hotTagThreshold =
+          (Integer) definitions.get("hot_tag_threshold").parseJobConf(job);
+      hotTagSplits =
+          (Integer) definitions.get("hot_tag_splits").parseJobConf(job);
+      int minimizerLength =
+          (Integer) definitions.get("minimizer_length").parseJobConf(job);
+      tagCounts = new HashMap<String, Integer>();
+      hotTags = new HashSet<String>();
+      node = new GraphNode();
+      mmer = new Kmer32(minimizerLength);
+      minimizer = new long[1];
+    }
+
+    /**
+     * Count the mertag and return true if it is hot.
+     *
+     * We use the Misra-Gries algorithm to bound the number of counts we
+     * keep. A mertag whose count exceeds the threshold is remembered as hot.
+     */
+    private boolean countTag(String mertag, Reporter reporter) {
+      if (hotTags.contains(mertag)) {
+        return true;
+      }
+      Integer count = tagCounts.get(mertag);
+      count = (count == null) ? 1 : count + 1;
+      if (count > hotTagThreshold) {
+        tagCounts.remove(mertag);
+        hotTags.add(mertag);
+        reporter.incrCounter("Contrail", "quickmerge-hot-mertags", 1);
+        return true;
+      }
+      tagCounts.put(mertag, count);
+      if (tagCounts.size() > MAX_TRACKED_TAGS) {
+        Iterator<Map.Entry<String, Integer>> it =
+            tagCounts.entrySet().iterator();
+        while (it.hasNext()) {
+          Map.Entry<String, Integer> entry = it.next();
+          if (entry.getValue() <= 1) {
+            it.remove();
+          } else {
+            entry.setValue(entry.getValue() - 1);
+          }
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Return the key for a node whose mertag is hot.
+     */
+    private String splitKey(String mertag, GraphNodeData graph_data) {
+      node.setData(graph_data);
+      long hash = minimizerHash(node, mmer, minimizer);
+      long split = (CoinFlipper.mix(hash) >>> 1) % hotTagSplits;
+      return mertag + "#" + split;
     }
 
     /**
@@ -101,6 +226,12 @@ public class QuickMergeAvro extends MRStage {
         Reporter reporter) throws IOException {
       String mertag = KMerTag(graph_data);
 
+      if (hotTagThreshold > 0 && countTag(mertag, reporter)) {
+        mertag = splitKey(mertag, graph_data);
+        reporter.incrCounter(
+            NUM_SPLIT_NODES.group, NUM_SPLIT_NODES.tag, 1);
+      }
+
       out_pair.set(mertag, graph_data);
       output.collect(out_pair);
       reporter.incrCounter("Contrail", "nodes", 1);
@@ -121,12 +252,206 @@ public class QuickMergeAvro extends MRStage {
     private static int K = 0;
     public static boolean VERBOSE = false;
 
+    // The maximum number of files to partition the spilled nodes into.
+    private static final int MAX_SPILL_FILES = 64;
+
+    private int maxNodesInMemory;
+    private Reporter reporter;
+    private Kmer32 mmer;
+    private long[] minimizer;
+
     @Override
     public void configure(JobConf job) {
       QuickMergeAvro stage = new QuickMergeAvro();
       Map<String, ParameterDefinition> definitions =
           stage.getParameterDefinitions();
       K = (Integer)(definitions.get("K").parseJobConf(job));
+      maxNodesInMemory =
+          (Integer) definitions.get("max_nodes_in_memory").parseJobConf(job);
+      mmer = new Kmer32(
+          (Integer) definitions.get("minimizer_length").parseJobConf(job));
+      minimizer = new long[1];
+    }
+
+    /**
+     * Merge the chains in nodes and update the counters.
+     *
+     * The merged nodes keep the mertag of the group so a later pass (see
+     * SkewedQuickMerge) groups them with the rest of their chain.
+     */
+    private void mergeChains(Map<String, GraphNode> nodes) {
+      if (nodes.isEmpty()) {
+        return;
+      }
+      GraphNodeKMerTag groupTag =
+          nodes.values().iterator().next().getData().getMertag();
+      GraphNodeKMerTag mertag = new GraphNodeKMerTag();
+      mertag.setReadTag(groupTag.getReadTag().toString());
+      mertag.setChunk(groupTag.getChunk());
+
+      QuickMergeUtil.MergeAllChainsResult merge_result =
+          QuickMergeUtil.mergeAllChains(nodes, K - 1);
+      for (GraphNode node : nodes.values()) {
+        node.getData().setMertag(mertag);
+      }
+
+      reporter.incrCounter(
+          NUM_COMPRESSED_CHAINS.group, NUM_COMPRESSED_CHAINS.tag,
+          merge_result.num_compressed_chains);
+      reporter.incrCounter(
+          NUM_COMPRESSED_NODES.group, NUM_COMPRESSED_NODES.tag,
+          merge_result.num_nodes_in_compressed_chains);
+    }
+
+    /**
+     * Open a file on local disk to spill nodes to.
+     *
+     * Hadoop sets java.io.tmpdir to a directory local to the task.
+     */
+    private File createSpillFile(DataFileWriter<GraphNodeData> writer)
+        throws IOException {
+      File spillFile = File.createTempFile("quickmerge", ".avro");
+      spillFile.deleteOnExit();
+      writer.create(REDUCE_OUT_SCHEMA, spillFile);
+      return spillFile;
+    }
+
+    private DataFileWriter<GraphNodeData> newSpillWriter() {
+      return new DataFileWriter<GraphNodeData>(
+          new SpecificDatumWriter<GraphNodeData>(REDUCE_OUT_SCHEMA));
+    }
+
+    private DataFileReader<GraphNodeData> openSpillFile(File spillFile)
+        throws IOException {
+      return new DataFileReader<GraphNodeData>(
+          spillFile,
+          new SpecificDatumReader<GraphNodeData>(REDUCE_OUT_SCHEMA));
+    }
+
+    /**
+     * Partition the nodes in a spill file into numFiles spill files using
+     * the minimizers of the nodes.
+     */
+    private List<File> partitionSpillFile(File spillFile, int numFiles)
+        throws IOException {
+      List<File> files = new ArrayList<File>();
+      List<DataFileWriter<GraphNodeData>> writers =
+          new ArrayList<DataFileWriter<GraphNodeData>>();
+      for (int i = 0; i < numFiles; ++i) {
+        DataFileWriter<GraphNodeData> writer = newSpillWriter();
+        files.add(createSpillFile(writer));
+        writers.add(writer);
+      }
+      DataFileReader<GraphNodeData> reader = openSpillFile(spillFile);
+      GraphNode node = new GraphNode();
+      for (GraphNodeData data : reader) {
+        node.setData(data);
+        long hash = CoinFlipper.mix(minimizerHash(node, mmer, minimizer));
+        writers.get((int) ((hash >>> 1) % numFiles)).append(data);
+      }
+      reader.close();
+      for (DataFileWriter<GraphNodeData> writer : writers) {
+        writer.close();
+      }
+      return files;
+    }
+
+    /**
+     * Merge the nodes in batches of at most maxNodesInMemory and write the
+     * merged nodes to a spill file.
+     *
+     * @return: The number of nodes written.
+     */
+    private long mergeInBatches(
+        Iterator<GraphNodeData> iter, DataFileWriter<GraphNodeData> writer)
+            throws IOException {
+      HashMap<String, GraphNode> nodes = new HashMap<String, GraphNode>();
+      long numWritten = 0;
+      while (iter.hasNext()) {
+        GraphNode node = new GraphNode(iter.next()).clone();
+        nodes.put(node.getNodeId(), node);
+        if (nodes.size() >= maxNodesInMemory || !iter.hasNext()) {
+          mergeChains(nodes);
+          for (GraphNode merged : nodes.values()) {
+            writer.append(merged.getData());
+          }
+          numWritten += nodes.size();
+          nodes.clear();
+        }
+      }
+      return numWritten;
+    }
+
+    /**
+     * Merge the nodes when there are too many to hold in memory.
+     *
+     * The nodes are spilled to local disk. On each pass we partition the
+     * nodes into files of roughly maxNodesInMemory / 2 nodes using their
+     * minimizers, merge the chains within each file and write the fragments
+     * to a new spill file. We repeat this until the fragments fit in memory
+     * or a pass doesn't reduce the number of nodes, in which case we output
+     * the fragments as they are.
+     */
+    private void reduceWithSpills(
+        Map<String, GraphNode> nodes, Iterator<GraphNodeData> iter,
+        AvroCollector<GraphNodeData> collector) throws IOException {
+      DataFileWriter<GraphNodeData> writer = newSpillWriter();
+      File spillFile = createSpillFile(writer);
+      for (GraphNode node : nodes.values()) {
+        writer.append(node.getData());
+      }
+      long numSpilled = nodes.size();
+      nodes.clear();
+      while (iter.hasNext()) {
+        writer.append(iter.next());
+        ++numSpilled;
+      }
+      writer.close();
+
+      while (true) {
+        reporter.incrCounter(
+            NUM_SPILLED_NODES.group, NUM_SPILLED_NODES.tag, numSpilled);
+        int numFiles = (int) Math.min(
+            MAX_SPILL_FILES, 2 * numSpilled / maxNodesInMemory + 1);
+        List<File> partitions = partitionSpillFile(spillFile, numFiles);
+        spillFile.delete();
+
+        writer = newSpillWriter();
+        spillFile = createSpillFile(writer);
+        long numMerged = 0;
+        for (File partition : partitions) {
+          DataFileReader<GraphNodeData> reader = openSpillFile(partition);
+          numMerged += mergeInBatches(reader, writer);
+          reader.close();
+          partition.delete();
+        }
+        writer.close();
+
+        if (numMerged <= maxNodesInMemory) {
+          DataFileReader<GraphNodeData> reader = openSpillFile(spillFile);
+          for (GraphNodeData data : reader) {
+            GraphNode node = new GraphNode(data).clone();
+            nodes.put(node.getNodeId(), node);
+          }
+          reader.close();
+          mergeChains(nodes);
+          for (GraphNode node : nodes.values()) {
+            collector.collect(node.getData());
+          }
+          break;
+        }
+        if (numMerged >= numSpilled) {
+          // We can't merge any more chains so output the fragments.
+          DataFileReader<GraphNodeData> reader = openSpillFile(spillFile);
+          for (GraphNodeData data : reader) {
+            collector.collect(data);
+          }
+          reader.close();
+          break;
+        }
+        numSpilled = numMerged;
+      }
+      spillFile.delete();
     }
 
     /**
@@ -136,11 +461,7 @@ public class QuickMergeAvro extends MRStage {
     public void reduce(CharSequence  mertag, Iterable<GraphNodeData> iterable,
         AvroCollector<GraphNodeData> collector, Reporter reporter)
             throws IOException {
-      // The number of compressed chains.
-      int num_compressed_chains  = 0;
-      // Total number of nodes used to form the compressed chains.
-      int num_nodes_in_compressed_chains = 0;
-
+      this.reporter = reporter;
       // Load the nodes into memory.
       Map<String, GraphNode> nodes = new HashMap<String, GraphNode>();
       Iterator<GraphNodeData> iter = iterable.iterator();
@@ -152,65 +473,20 @@ public class QuickMergeAvro extends MRStage {
         GraphNode node = new GraphNode(value);
         node = node.clone();
         nodes.put(node.getNodeId().toString(), node);
-      }
-
-      // Create a list of the nodes to process. We need to make a copy of
-      // nodes.keySet otherwise when we remove an entry from the set we remove
-      // it from the hashtable.
-      Set<String> nodes_to_process = new HashSet<String>();
-      nodes_to_process.addAll(nodes.keySet());
-
-      while (nodes_to_process.size() > 0) {
-        String nodeid = nodes_to_process.iterator().next();
-        nodes_to_process.remove(nodeid);
-
-        GraphNode start_node = nodes.get(nodeid);
-
-        if (start_node == null) {
-          throw new RuntimeException("Start node shouldn't be null");
-        }
-
-        // Find a chain if any to merge.
-        QuickMergeUtil.NodesToMerge nodes_to_merge =
-            QuickMergeUtil.findNodesToMerge(nodes, start_node);
 
-        // Remove all the nodes visited from the list of ids to process.
-        nodes_to_process.removeAll(nodes_to_merge.nodeids_visited);
-
-        if (nodes_to_merge.start_terminal == null &&
-            nodes_to_merge.end_terminal == null) {
-          continue;
+        if (maxNodesInMemory > 0 && nodes.size() >= maxNodesInMemory &&
+            iter.hasNext()) {
+          reduceWithSpills(nodes, iter, collector);
+          return;
         }
-
-        // Merge the nodes.
-        QuickMergeUtil.ChainMergeResult merge_result =
-            QuickMergeUtil.mergeLinearChain(nodes, nodes_to_merge, K - 1);
-
-        num_compressed_chains += 1;
-        num_nodes_in_compressed_chains += merge_result.merged_nodeids.size();
-
-        // Remove the merged nodes from nodes because these should not
-        // be outputted.
-        for (String merged_nodeid: merge_result.merged_nodeids){
-          nodes.remove(merged_nodeid);
-        }
-
-        // Add the newly merged node to the list of nodes.
-        nodes.put(merge_result.merged_node.getNodeId(),
-            merge_result.merged_node);
       }
 
+      mergeChains(nodes);
+
       // Output all the remaining nodes.
       for(String nodeid : nodes.keySet()) {
         collector.collect(nodes.get(nodeid).getData());
       }
-
-      reporter.incrCounter(
-          NUM_COMPRESSED_CHAINS.group, NUM_COMPRESSED_CHAINS.tag,
-          num_compressed_chains);
-      reporter.incrCounter(
-          NUM_COMPRESSED_NODES.group, NUM_COMPRESSED_NODES.tag,
-          num_nodes_in_compressed_chains);
     }
   }
 
@@ -228,9 +504,48 @@ public class QuickMergeAvro extends MRStage {
     }
     ParameterDefinition kDef = ContrailParameters.getK();
     defs.put(kDef.getName(), kDef);
+
+    ParameterDefinition hotTagThreshold = new ParameterDefinition(
+        "hot_tag_threshold", "If positive, once a mapper has seen a mertag " +
+        "more than this many times the remaining nodes with that mertag " +
+        "are split into hot_tag_splits groups.", Integer.class,
+        new Integer(0));
+    ParameterDefinition hotTagSplits = new ParameterDefinition(
+        "hot_tag_splits", "The number of groups to split the nodes of a " +
+        "hot mertag into.", Integer.class, new Integer(16));
+    ParameterDefinition minimizerLength = new ParameterDefinition(
+        "minimizer_length", "The length of the m-mers used to compute the " +
+        "minimizer used to split hot mertags. Must be at most " +
+        Kmer32.MAX_K + ".", Integer.class, new Integer(11));
+    ParameterDefinition maxNodesInMemory = new ParameterDefinition(
+        "max_nodes_in_memory", "If positive, the reducer merges the nodes " +
+        "in batches of at most this many nodes and spills them to local " +
+        "disk.", Integer.class, new Integer(0));
+    for (ParameterDefinition def : new ParameterDefinition[] {
+        hotTagThreshold, hotTagSplits, minimizerLength, maxNodesInMemory}) {
+      defs.put(def.getName(), def);
+    }
     return defs;
   }
 
+  @Override
+  public List<InvalidParameter> validateParameters() {
+    List<InvalidParameter> items = super.validateParameters();
+    if ((Integer) stage_options.get("hot_tag_threshold") > 0 &&
+        (Integer) stage_options.get("hot_tag_splits") <= 0) {
+      items.add(new InvalidParameter(
+          "hot_tag_splits", "hot_tag_splits must be positive."));
+    }
+    // The mapper and the reducer both use the minimizer.
+    int minimizerLength = (Integer) stage_options.get("minimizer_length");
+    if (minimizerLength <= 0 || minimizerLength > Kmer32.MAX_K) {
+      items.add(new InvalidParameter(
+          "minimizer_length",
+          "minimizer_length must be between 1 and " + Kmer32.MAX_K));
+    }
+    return items;
+  }
+
   @Override
   protected void setupConfHook() {
     String inputPath = (String) stage_options.get("inputpath");
@@ -264,6 +579,9 @@ public class QuickMergeAvro extends MRStage {
       sLogger.info("Number of chains compressed:" + numCompressedChains);
       sLogger.info("Number of nodes compressed:" + numCompressedNodes);
       sLogger.info("Number of nodes outputed:" + numNodes);
+      sLogger.info("Number of nodes in split mertags:" +
+          job.getCounters().findCounter(
+              NUM_SPLIT_NODES.group, NUM_SPLIT_NODES.tag).getValue());
     } catch (IOException e) {
       sLogger.fatal("Couldn't get counters", e);
       System.exit(-1);
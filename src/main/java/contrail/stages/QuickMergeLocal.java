@@ -0,0 +1,265 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.log4j.Logger;
+
+import contrail.graph.GraphNode;
+import contrail.graph.GraphNodeData;
+import contrail.graph.GraphNodeFilesIterator;
+
+/**
+ * Merge the chains marked by QuickMarkAvro on the driver instead of in a
+ * single reducer.
+ *
+ * This is an alternative to QuickMergeAvro for the final step of
+ * CompressChains. The input is the output of QuickMarkAvro. A single mapper
+ * only job (SelectQuickMarkNodes) copies the nodes which weren't sent to the
+ * compressor to the output, so they stay distributed, and writes the nodes
+ * which were to separate files. Only the nodes which were sent to the
+ * compressor are loaded into memory and split into
+ * connected components. No merge changes a node outside the component of
+ * the chain, so the components are merged in parallel by a fixed pool of
+ * threads.
+ *
+ * The output in outputpath is the part files of the nodes which weren't
+ * compressed and a single avro file, merged.avro, of the merged nodes.
+ */
+public class QuickMergeLocal extends PipelineStage {
+  private static final Logger sLogger =
+      Logger.getLogger(QuickMergeLocal.class);
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+
+    defs.putAll(super.createParameterDefinitions());
+
+    for (ParameterDefinition def:
+      ContrailParameters.getInputOutputPathOptions()) {
+      defs.put(def.getName(), def);
+    }
+    ParameterDefinition kDef = ContrailParameters.getK();
+    defs.put(kDef.getName(), kDef);
+
+    ParameterDefinition numThreads = new ParameterDefinition(
+        "num_threads", "The number of threads to use to merge the chains.",
+        Integer.class, new Integer(1));
+    defs.put(numThreads.getName(), numThreads);
+    return Collections.unmodifiableMap(defs);
+  }
+
+  /**
+   * Find the root of the component containing nodeId.
+   */
+  private static String findRoot(HashMap<String, String> parents,
+      String nodeId) {
+    String root = nodeId;
+    while (!parents.get(root).equals(root)) {
+      root = parents.get(root);
+    }
+    // Compress the path so later lookups are fast.
+    while (!nodeId.equals(root)) {
+      String next = parents.get(nodeId);
+      parents.put(nodeId, root);
+      nodeId = next;
+    }
+    return root;
+  }
+
+  /**
+   * Split the nodes into connected components.
+   *
+   * Edges to nodes which aren't in nodes are ignored.
+   *
+   * @param nodes: The nodes in memory.
+   * @return: A map of the nodes for each component.
+   */
+  protected static List<Map<String, GraphNode>> findComponents(
+      Map<String, GraphNode> nodes) {
+    HashMap<String, String> parents = new HashMap<String, String>();
+    for (String nodeId : nodes.keySet()) {
+      parents.put(nodeId, nodeId);
+    }
+
+    for (GraphNode node : nodes.values()) {
+      for (String neighborId : node.getNeighborIds()) {
+        if (!parents.containsKey(neighborId)) {
+          continue;
+        }
+        String root = findRoot(parents, node.getNodeId());
+        String otherRoot = findRoot(parents, neighborId);
+        if (!root.equals(otherRoot)) {
+          parents.put(otherRoot, root);
+        }
+      }
+    }
+
+    HashMap<String, Map<String, GraphNode>> components =
+        new HashMap<String, Map<String, GraphNode>>();
+    for (GraphNode node : nodes.values()) {
+      String root = findRoot(parents, node.getNodeId());
+      Map<String, GraphNode> component = components.get(root);
+      if (component == null) {
+        component = new HashMap<String, GraphNode>();
+        components.put(root, component);
+      }
+      component.put(node.getNodeId(), node);
+    }
+    return new ArrayList<Map<String, GraphNode>>(components.values());
+  }
+
+  /**
+   * Merge all chains in the nodes using numThreads threads.
+   *
+   * @param nodes: The nodes in memory.
+   * @param overlap: The overlap between nodes, i.e. K - 1.
+   * @param numThreads: The number of threads to use.
+   * @return: The nodes after merging.
+   */
+  protected static Collection<GraphNode> mergeAllChains(
+      Map<String, GraphNode> nodes, final int overlap, int numThreads) {
+    List<Map<String, GraphNode>> components = findComponents(nodes);
+    sLogger.info("Number of components to merge: " + components.size());
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    ArrayList<Future<QuickMergeUtil.MergeAllChainsResult>> futures =
+        new ArrayList<Future<QuickMergeUtil.MergeAllChainsResult>>();
+    for (final Map<String, GraphNode> component : components) {
+      futures.add(executor.submit(
+          new Callable<QuickMergeUtil.MergeAllChainsResult>() {
+            @Override
+            public QuickMergeUtil.MergeAllChainsResult call() {
+              return QuickMergeUtil.mergeAllChains(component, overlap);
+            }
+          }));
+    }
+    executor.shutdown();
+
+    int numChains = 0;
+    int numNodes = 0;
+    try {
+      for (Future<QuickMergeUtil.MergeAllChainsResult> future : futures) {
+        QuickMergeUtil.MergeAllChainsResult result = future.get();
+        numChains += result.num_compressed_chains;
+        numNodes += result.num_nodes_in_compressed_chains;
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      throw new RuntimeException("Merging the chains was interrupted.", e);
+    } catch (ExecutionException e) {
+      executor.shutdownNow();
+      throw new RuntimeException("Merging the chains failed.", e.getCause());
+    }
+    sLogger.info("Number of chains compressed:" + numChains);
+    sLogger.info("Number of nodes compressed:" + numNodes);
+
+    ArrayList<GraphNode> merged = new ArrayList<GraphNode>();
+    for (Map<String, GraphNode> component : components) {
+      merged.addAll(component.values());
+    }
+    return merged;
+  }
+
+  /**
+   * Run SelectQuickMarkNodes to split the nodes which were and weren't
+   * sent to the compressor.
+   */
+  private void selectNodes(String inputPath, String outputPath) {
+    SelectQuickMarkNodes select = new SelectQuickMarkNodes();
+    select.initializeAsChild(this);
+    Map<String, Object> options = ContrailParameters.extractParameters(
+        stage_options, select.getParameterDefinitions().values());
+    options.put("inputpath", inputPath);
+    options.put("outputpath", outputPath);
+    select.setParameters(options);
+    executeChild(select);
+  }
+
+  @Override
+  protected void stageMain() {
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    Path outDir = new Path(outputPath);
+    int overlap = (Integer) stage_options.get("K") - 1;
+    int numThreads = (Integer) stage_options.get("num_threads");
+
+    // The nodes which aren't compressed are copied to the output without
+    // going through this machine.
+    selectNodes(inputPath, outputPath);
+    Path compressGlob = new Path(
+        outDir, SelectQuickMarkNodes.COMPRESS_OUTPUT + "-*.avro");
+
+    GraphNodeFilesIterator input = GraphNodeFilesIterator.fromGlob(
+        getConf(), compressGlob.toString());
+
+    Schema schema = new GraphNodeData().getSchema();
+    DataFileWriter<GraphNodeData> writer = new DataFileWriter<GraphNodeData>(
+        new SpecificDatumWriter<GraphNodeData>(schema));
+
+    HashMap<String, GraphNode> nodes = new HashMap<String, GraphNode>();
+    try {
+      for (GraphNode node : input) {
+        // We need to make a copy because the iterator reuses the node.
+        GraphNode copy = node.clone();
+        nodes.put(copy.getNodeId(), copy);
+      }
+      sLogger.info("Number of nodes loaded into memory: " + nodes.size());
+
+      FileSystem fs = outDir.getFileSystem(getConf());
+      fs.mkdirs(outDir, FsPermission.getDefault());
+      FSDataOutputStream outStream =
+          fs.create(new Path(outDir, "merged.avro"), true);
+      writer.create(schema, outStream);
+      for (GraphNode node : mergeAllChains(nodes, overlap, numThreads)) {
+        writer.append(node.getData());
+      }
+      writer.close();
+      for (FileStatus status : fs.globStatus(compressGlob)) {
+        fs.delete(status.getPath(), false);
+      }
+    } catch (IOException e) {
+      sLogger.fatal("There was a problem writing the merged graph.", e);
+      System.exit(-1);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    QuickMergeLocal stage = new QuickMergeLocal();
+    int res = stage.run(args);
+    System.exit(res);
+  }
+}
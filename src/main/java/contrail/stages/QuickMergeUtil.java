@@ -393,4 +393,75 @@ public class QuickMergeUtil {
     result.merged_node = mergedNode;
     return result;
   }
+
+  /**
+   * Counts of the chains merged by mergeAllChains.
+   */
+  public static class MergeAllChainsResult {
+    // The number of compressed chains.
+    public int num_compressed_chains;
+
+    // Total number of nodes used to form the compressed chains.
+    public int num_nodes_in_compressed_chains;
+  }
+
+  /**
+   * Merge all the chains in nodes.
+   *
+   * @param nodes: The nodes in memory. The map is updated so that on return
+   *   it contains the graph after all chains have been merged.
+   * @param overlap: The overlap between nodes, i.e. K - 1.
+   * @return: The number of chains and nodes that were merged.
+   */
+  public static MergeAllChainsResult mergeAllChains(
+      Map<String, GraphNode> nodes, int overlap) {
+    MergeAllChainsResult result = new MergeAllChainsResult();
+
+    // Create a list of the nodes to process. We need to make a copy of
+    // nodes.keySet otherwise when we remove an entry from the set we remove
+    // it from the hashtable.
+    Set<String> nodes_to_process = new HashSet<String>();
+    nodes_to_process.addAll(nodes.keySet());
+
+    while (nodes_to_process.size() > 0) {
+      String nodeid = nodes_to_process.iterator().next();
+      nodes_to_process.remove(nodeid);
+
+      GraphNode start_node = nodes.get(nodeid);
+
+      if (start_node == null) {
+        throw new RuntimeException("Start node shouldn't be null");
+      }
+
+      // Find a chain if any to merge.
+      NodesToMerge nodes_to_merge = findNodesToMerge(nodes, start_node);
+
+      // Remove all the nodes visited from the list of ids to process.
+      nodes_to_process.removeAll(nodes_to_merge.nodeids_visited);
+
+      if (nodes_to_merge.start_terminal == null &&
+          nodes_to_merge.end_terminal == null) {
+        continue;
+      }
+
+      // Merge the nodes.
+      ChainMergeResult merge_result =
+          mergeLinearChain(nodes, nodes_to_merge, overlap);
+
+      result.num_compressed_chains += 1;
+      result.num_nodes_in_compressed_chains +=
+          merge_result.merged_nodeids.size();
+
+      // Remove the merged nodes from nodes because these should not
+      // be outputted.
+      for (String merged_nodeid: merge_result.merged_nodeids){
+        nodes.remove(merged_nodeid);
+      }
+
+      // Add the newly merged node to the list of nodes.
+      nodes.put(merge_result.merged_node.getNodeId(),
+          merge_result.merged_node);
+    }
+    return result;
+  }
 }
@@ -0,0 +1,205 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.util.ToolRunner;
+
+import contrail.RemoveNeighborMessage;
+import contrail.graph.EdgeDirection;
+import contrail.graph.EdgeTerminal;
+import contrail.graph.GraphNode;
+import contrail.graph.GraphNodeData;
+import contrail.graph.NeighborData;
+import contrail.graph.engine.VertexContext;
+import contrail.graph.engine.VertexProgram;
+import contrail.graph.engine.VertexProgramStage;
+import contrail.sequences.DNAStrand;
+
+/**
+ * RemoveLowCoverageAvro written as a vertex program.
+ *
+ * In superstep 0 the low coverage nodes are removed and tell their
+ * neighbors to remove their edges to them. In superstep 1 the neighbors
+ * remove the edges and remove themselves if they are now low coverage
+ * islands. The output is the same as RemoveLowCoverageAvro but the graph
+ * can also be processed in memory by setting --engine=memory or with
+ * --engine=partitioned only the messages are shuffled.
+ *
+ * The counters of removed nodes and islands match RemoveLowCoverageAvro.
+ * Superstep 1 only runs for the nodes which were sent messages though, so
+ * isolated-nodes-kept only counts the nodes which lost all their edges in
+ * this stage whereas RemoveLowCoverageAvro also counts the nodes which
+ * were already isolated.
+ *
+ * The parameters are validated by RemoveLowCoverageAvro.
+ */
+public class RemoveLowCoverageVertex extends VertexProgramStage {
+  public static class Program extends VertexProgram<RemoveNeighborMessage> {
+    private int lengthThresh;
+    private float lowCovThresh;
+    private int minLength;
+    private GraphNode node;
+    private RemoveNeighborMessage msg;
+    private HashSet<String> neighbors;
+
+    @Override
+    public Map<String, ParameterDefinition> getParameterDefinitions() {
+      Map<String, ParameterDefinition> stageDefs =
+          new RemoveLowCoverageAvro().getParameterDefinitions();
+      HashMap<String, ParameterDefinition> defs =
+          new HashMap<String, ParameterDefinition>();
+      for (String name : new String[] {
+               "K", "length_thresh", "low_cov_thresh", "min_length"}) {
+        defs.put(name, stageDefs.get(name));
+      }
+      return defs;
+    }
+
+    @Override
+    public StageBase createValidationStage() {
+      return new RemoveLowCoverageAvro();
+    }
+
+    @Override
+    public void configure(JobConf job) {
+      Map<String, ParameterDefinition> definitions =
+          getParameterDefinitions();
+      minLength = (Integer)(definitions.get("min_length").parseJobConf(job));
+      lengthThresh =
+          (Integer)(definitions.get("length_thresh").parseJobConf(job));
+      lowCovThresh =
+          (Float)(definitions.get("low_cov_thresh").parseJobConf(job));
+      node = new GraphNode();
+      msg = new RemoveNeighborMessage();
+      neighbors = new HashSet<String>();
+    }
+
+    @Override
+    public Schema getMessageSchema() {
+      return new RemoveNeighborMessage().getSchema();
+    }
+
+    // Remove the node if it has low coverage.
+    private void removeLowCoverage(
+        GraphNodeData graphData, VertexContext<RemoveNeighborMessage> context)
+            throws IOException {
+      node.setData(graphData);
+      int len = graphData.getSequence().getLength();
+      float cov = node.getCoverage();
+
+      if (len < minLength) {
+        // Node is too short.
+        context.incrCounter("contrail", "node-too-short", 1);
+      } else if ((len > lengthThresh) || (cov >= lowCovThresh)) {
+        return;
+      }
+
+      context.incrCounter(
+          RemoveLowCoverageAvro.NUM_REMOVED.group,
+          RemoveLowCoverageAvro.NUM_REMOVED.tag, 1);
+      context.removeNode();
+      // Tell all nodes with edges to this node to remove the edges.
+      neighbors.clear();
+      int degree = 0;
+      for (DNAStrand strand : DNAStrand.values()) {
+        degree += node.degree(strand);
+        for (EdgeTerminal terminal :
+             node.getEdgeTerminals(strand, EdgeDirection.INCOMING)) {
+          if (!neighbors.add(terminal.nodeId)) {
+            // We've already sent a message to this node.
+            continue;
+          }
+          msg.setNode(null);
+          msg.setNodeIDtoRemove(node.getNodeId());
+          context.sendMessage(terminal.nodeId, msg);
+        }
+      }
+      if (degree == 0) {
+        context.incrCounter(
+            RemoveLowCoverageAvro.NUM_ISLANDS.group,
+            RemoveLowCoverageAvro.NUM_ISLANDS.tag, 1);
+      }
+    }
+
+    // Remove the edges to the low coverage nodes.
+    private void removeNeighbors(
+        String nodeId, GraphNodeData graphData,
+        Iterable<RemoveNeighborMessage> messages,
+        VertexContext<RemoveNeighborMessage> context) {
+      if (graphData == null) {
+        // The node was removed because it had low coverage.
+        return;
+      }
+      node.setData(graphData);
+      for (RemoveNeighborMessage message : messages) {
+        String neighbor = message.getNodeIDtoRemove().toString();
+        NeighborData result = node.removeNeighbor(neighbor);
+        if (result == null) {
+          throw new RuntimeException(
+              "ERROR: Edge could not be removed from " + nodeId +
+              " to low coverage node " + neighbor);
+        }
+        context.incrCounter("Contrail", "links-removed", 1);
+      }
+
+      int degree =
+          node.degree(DNAStrand.FORWARD) + node.degree(DNAStrand.REVERSE);
+      // All the neighbors got disconnected.
+      if (degree == 0) {
+        if ((node.getSequence().size() <= lengthThresh) &&
+            (node.getCoverage() < lowCovThresh)) {
+          context.incrCounter("Contrail", "isolated-nodes-removed", 1);
+          context.incrCounter(
+              RemoveLowCoverageAvro.NUM_REMOVED.group,
+              RemoveLowCoverageAvro.NUM_REMOVED.tag, 1);
+          context.removeNode();
+          return;
+        }
+        context.incrCounter("Contrail", "isolated-nodes-kept", 1);
+      }
+      context.setNode(node.getData());
+    }
+
+    @Override
+    public void compute(
+        int superstep, String nodeId, GraphNodeData graphData,
+        Iterable<RemoveNeighborMessage> messages,
+        VertexContext<RemoveNeighborMessage> context) throws IOException {
+      if (superstep == 0) {
+        removeLowCoverage(graphData, context);
+      } else {
+        removeNeighbors(nodeId, graphData, messages, context);
+      }
+    }
+  }
+
+  @Override
+  protected VertexProgram<?> createProgram() {
+    return new Program();
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(
+        new Configuration(), new RemoveLowCoverageVertex(), args);
+    System.exit(res);
+  }
+}
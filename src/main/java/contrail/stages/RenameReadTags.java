@@ -0,0 +1,155 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.mapred.AvroMapper;
+import org.apache.avro.mapred.AvroReducer;
+import org.apache.avro.mapred.Pair;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ToolRunner;
+
+import contrail.graph.GraphNode;
+import contrail.graph.GraphNodeData;
+
+/**
+ * Replace the read ids in the graph with the names found by LookupReadNames.
+ *
+ * The input is the graph and the output of LookupReadNames. Both are keyed
+ * by node id so the reducer gets each node along with the names of its
+ * reads. See RestoreReadNames.
+ */
+public class RenameReadTags extends MRStage {
+  public static final Schema MAP_OUT_SCHEMA = Pair.getPairSchema(
+      Schema.create(Schema.Type.STRING), getInputSchema());
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+    defs.putAll(super.createParameterDefinitions());
+    for (ParameterDefinition def:
+      ContrailParameters.getInputOutputPathOptions()) {
+      defs.put(def.getName(), def);
+    }
+    ParameterDefinition names = new ParameterDefinition(
+        "names_path", "The output of LookupReadNames.", String.class, null);
+    defs.put(names.getName(), names);
+    return Collections.unmodifiableMap(defs);
+  }
+
+  protected static Schema getInputSchema() {
+    ArrayList<Schema> schemas = new ArrayList<Schema>();
+    schemas.add(GraphNodeData.SCHEMA$);
+    schemas.add(ReadName.SCHEMA$);
+    return Schema.createUnion(schemas);
+  }
+
+  public static class RenameMapper extends
+      AvroMapper<Object, Pair<CharSequence, Object>> {
+    private Pair<CharSequence, Object> outPair;
+
+    @Override
+    public void configure(JobConf job) {
+      outPair = new Pair<CharSequence, Object>(MAP_OUT_SCHEMA);
+    }
+
+    @Override
+    public void map(
+        Object record, AvroCollector<Pair<CharSequence, Object>> collector,
+        Reporter reporter) throws IOException {
+      if (record instanceof GraphNodeData) {
+        outPair.key(((GraphNodeData) record).getNodeId());
+      } else {
+        outPair.key(((ReadName) record).getNodeId());
+      }
+      outPair.value(record);
+      collector.collect(outPair);
+    }
+  }
+
+  public static class RenameReducer extends
+      AvroReducer<CharSequence, Object, GraphNodeData> {
+    private GraphNode node;
+    private HashMap<String, String> names;
+
+    @Override
+    public void configure(JobConf job) {
+      node = new GraphNode();
+      names = new HashMap<String, String>();
+    }
+
+    @Override
+    public void reduce(
+        CharSequence nodeId, Iterable<Object> records,
+        AvroCollector<GraphNodeData> collector, Reporter reporter)
+            throws IOException {
+      names.clear();
+      GraphNodeData data = null;
+      for (Object record : records) {
+        if (record instanceof GraphNodeData) {
+          node.setData((GraphNodeData) record);
+          data = node.clone().getData();
+        } else {
+          ReadName name = (ReadName) record;
+          names.put(name.getReadId().toString(), name.getName().toString());
+        }
+      }
+      if (data == null) {
+        reporter.incrCounter("Contrail", "error-missing-node-data", 1);
+        return;
+      }
+      RestoreReadNames.renameReadIds(data, names);
+      collector.collect(data);
+    }
+  }
+
+  @Override
+  protected void setupConfHook() {
+    JobConf conf = (JobConf) getConf();
+    String inputPath = (String) stage_options.get("inputpath");
+    String namesPath = (String) stage_options.get("names_path");
+    String outputPath = (String) stage_options.get("outputpath");
+
+    FileInputFormat.addInputPath(conf, new Path(inputPath));
+    FileInputFormat.addInputPath(conf, new Path(namesPath));
+    FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+    AvroJob.setInputSchema(conf, getInputSchema());
+    AvroJob.setMapOutputSchema(conf, MAP_OUT_SCHEMA);
+    AvroJob.setOutputSchema(conf, GraphNodeData.SCHEMA$);
+
+    AvroJob.setMapperClass(conf, RenameMapper.class);
+    AvroJob.setReducerClass(conf, RenameReducer.class);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(
+        new Configuration(), new RenameReadTags(), args);
+    System.exit(res);
+  }
+}
@@ -0,0 +1,145 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+
+import contrail.graph.EdgeData;
+import contrail.graph.GraphNodeData;
+import contrail.graph.NeighborData;
+import contrail.graph.R5Tag;
+import contrail.util.FileHelper;
+
+/**
+ * Replace the read ids assigned by AssignReadIds with the original names of
+ * the reads.
+ *
+ * The dictionary can be much larger than the memory of a task so we don't
+ * load it. Instead LookupReadNames joins the read ids used by the nodes with
+ * the dictionary, and RenameReadTags joins the names with the nodes and
+ * replaces the ids in the tags of the edges and the R5 tags. Ids which
+ * aren't in the dictionary are left as they are.
+ */
+public class RestoreReadNames extends PipelineStage {
+  private static final Logger sLogger =
+      Logger.getLogger(RestoreReadNames.class);
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> definitions =
+        new HashMap<String, ParameterDefinition>();
+    definitions.putAll(super.createParameterDefinitions());
+    definitions.putAll(new LookupReadNames().getParameterDefinitions());
+    return Collections.unmodifiableMap(definitions);
+  }
+
+  /**
+   * Add the ids of the reads used by the node to readIds.
+   */
+  public static void getReadIds(GraphNodeData node, Set<String> readIds) {
+    for (NeighborData neighbor : node.getNeighbors()) {
+      for (EdgeData edge : neighbor.getEdges()) {
+        for (CharSequence tag : edge.getReadTags()) {
+          readIds.add(tag.toString());
+        }
+      }
+    }
+    for (R5Tag tag : node.getR5Tags()) {
+      readIds.add(tag.getTag().toString());
+    }
+  }
+
+  /**
+   * Replace the ids of the reads used by the node with their names.
+   *
+   * @param node: The node to modify.
+   * @param names: The names of the reads keyed by their ids.
+   */
+  public static void renameReadIds(
+      GraphNodeData node, Map<String, String> names) {
+    for (NeighborData neighbor : node.getNeighbors()) {
+      for (EdgeData edge : neighbor.getEdges()) {
+        List<CharSequence> tags = edge.getReadTags();
+        for (int i = 0; i < tags.size(); ++i) {
+          String name = names.get(tags.get(i).toString());
+          if (name != null) {
+            tags.set(i, name);
+          }
+        }
+      }
+    }
+    for (R5Tag tag : node.getR5Tags()) {
+      String name = names.get(tag.getTag().toString());
+      if (name != null) {
+        tag.setTag(name);
+      }
+    }
+  }
+
+  private void runChild(MRStage stage, Map<String, Object> options) {
+    stage.initializeAsChild(this);
+    stage.setParameters(options);
+    executeChild(stage);
+  }
+
+  @Override
+  protected void stageMain() {
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    String namesPath = FilenameUtils.concat(outputPath, "names");
+    String graphPath = FilenameUtils.concat(outputPath, "graph");
+
+    HashMap<String, Object> options = new HashMap<String, Object>();
+    options.put("inputpath", inputPath);
+    options.put(
+        "read_id_dictionary", stage_options.get("read_id_dictionary"));
+    options.put("outputpath", namesPath);
+    runChild(new LookupReadNames(), options);
+
+    options.clear();
+    options.put("inputpath", inputPath);
+    options.put("names_path", namesPath);
+    options.put("outputpath", graphPath);
+    runChild(new RenameReadTags(), options);
+
+    try {
+      FileHelper.moveDirectoryContents(getConf(), graphPath, outputPath);
+      // The directory we moved the output from is now empty.
+      for (String path : new String[] {graphPath, namesPath}) {
+        Path toDelete = new Path(path);
+        toDelete.getFileSystem(getConf()).delete(toDelete, true);
+      }
+    } catch (IOException e) {
+      sLogger.fatal("RestoreReadNames failed.", e);
+      System.exit(-1);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(
+        new Configuration(), new RestoreReadNames(), args);
+    System.exit(res);
+  }
+}
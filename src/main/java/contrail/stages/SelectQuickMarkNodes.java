@@ -0,0 +1,126 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.mapred.AvroMapper;
+import org.apache.avro.mapred.AvroMultipleOutputs;
+import org.apache.avro.mapred.AvroOutputFormat;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ToolRunner;
+
+import contrail.graph.GraphNodeData;
+
+/**
+ * Split the output of QuickMarkAvro into the nodes which were and weren't
+ * sent to the compressor.
+ *
+ * This is a mapper only job so the nodes which aren't compressed stay in
+ * their part files and only the nodes which are compressed need to be read
+ * by QuickMergeLocal. The nodes which aren't compressed are written to the
+ * part files in outputpath. The nodes which are compressed are written to
+ * the named output COMPRESS_OUTPUT, i.e. the files compress-*.avro in
+ * outputpath, so the input is only read once.
+ */
+public class SelectQuickMarkNodes extends MRStage {
+  public static final String COMPRESS_OUTPUT = "compress";
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+
+    defs.putAll(super.createParameterDefinitions());
+
+    for (ParameterDefinition def:
+      ContrailParameters.getInputOutputPathOptions()) {
+      defs.put(def.getName(), def);
+    }
+    return Collections.unmodifiableMap(defs);
+  }
+
+  public static class SelectMapper extends
+      AvroMapper<GraphNodeData, GraphNodeData> {
+    private AvroMultipleOutputs outputs;
+
+    @Override
+    public void configure(JobConf job) {
+      outputs = new AvroMultipleOutputs(job);
+    }
+
+    /**
+     * Returns the collector for the nodes which are compressed.
+     */
+    @SuppressWarnings("unchecked")
+    protected AvroCollector<GraphNodeData> getCompressCollector(
+        Reporter reporter) throws IOException {
+      return outputs.getCollector(COMPRESS_OUTPUT, reporter);
+    }
+
+    @Override
+    public void map(GraphNodeData nodeData,
+        AvroCollector<GraphNodeData> collector, Reporter reporter)
+            throws IOException {
+      boolean compress = nodeData.getMertag().getReadTag().toString().equals(
+          QuickMarkAvro.COMPRESS_TAG);
+      if (compress) {
+        reporter.incrCounter("Contrail", "quick-mark-nodes-to-compress", 1);
+        getCompressCollector(reporter).collect(nodeData);
+      } else {
+        collector.collect(nodeData);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      outputs.close();
+    }
+  }
+
+  @Override
+  protected void setupConfHook() {
+    JobConf conf = (JobConf) getConf();
+
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    FileInputFormat.addInputPath(conf, new Path(inputPath));
+    FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+    AvroJob.setInputSchema(conf, GraphNodeData.SCHEMA$);
+    AvroJob.setOutputSchema(conf, GraphNodeData.SCHEMA$);
+    AvroJob.setMapperClass(conf, SelectMapper.class);
+    AvroMultipleOutputs.addNamedOutput(
+        conf, COMPRESS_OUTPUT, AvroOutputFormat.class, GraphNodeData.SCHEMA$);
+
+    // This is a mapper only job.
+    conf.setNumReduceTasks(0);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(
+        new Configuration(), new SelectQuickMarkNodes(), args);
+    System.exit(res);
+  }
+}
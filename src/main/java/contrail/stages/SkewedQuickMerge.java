@@ -0,0 +1,138 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+
+import contrail.util.FileHelper;
+
+/**
+ * Run QuickMergeAvro on a graph with very large mertag groups.
+ *
+ * The first pass splits the hot mertags (see QuickMergeAvro). If any nodes
+ * were split we run a second pass on the output to merge the chains which
+ * crossed the splits. The second pass can't split the mertags again: a chain
+ * is only merged if its nodes and their neighbors are in the same group, so
+ * splitting the fragments again would merge almost nothing. The groups are
+ * much smaller after the first pass but can still be too large for a single
+ * reducer, so splitting requires max_nodes_in_memory to bound the number of
+ * nodes the reducers hold in memory.
+ */
+public class SkewedQuickMerge extends PipelineStage {
+  private static final Logger sLogger =
+      Logger.getLogger(SkewedQuickMerge.class);
+
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> definitions =
+        new HashMap<String, ParameterDefinition>();
+    definitions.putAll(super.createParameterDefinitions());
+    definitions.putAll(new QuickMergeAvro().getParameterDefinitions());
+    ParameterDefinition cleanup = ContrailParameters.getCleanup();
+    definitions.put(cleanup.getName(), cleanup);
+    return Collections.unmodifiableMap(definitions);
+  }
+
+  @Override
+  public List<InvalidParameter> validateParameters() {
+    List<InvalidParameter> items = super.validateParameters();
+    if ((Integer) stage_options.get("hot_tag_threshold") > 0 &&
+        (Integer) stage_options.get("max_nodes_in_memory") <= 0) {
+      items.add(new InvalidParameter(
+          "max_nodes_in_memory",
+          "max_nodes_in_memory must be positive when hot_tag_threshold is " +
+          "positive because the second pass doesn't split the mertags."));
+    }
+    return items;
+  }
+
+  /**
+   * Return the options for QuickMergeAvro for one of the passes.
+   */
+  protected Map<String, Object> getPassOptions(
+      String inputPath, String outputPath, boolean splitHotTags) {
+    Map<String, Object> options =
+        ContrailParameters.extractParameters(
+            stage_options,
+            new QuickMergeAvro().getParameterDefinitions().values());
+    options.put("inputpath", inputPath);
+    options.put("outputpath", outputPath);
+    if (!splitHotTags) {
+      options.put("hot_tag_threshold", new Integer(0));
+    }
+    return options;
+  }
+
+  private QuickMergeAvro runPass(
+      String inputPath, String outputPath, boolean splitHotTags) {
+    QuickMergeAvro stage = new QuickMergeAvro();
+    stage.initializeAsChild(this);
+    stage.setParameters(getPassOptions(inputPath, outputPath, splitHotTags));
+    executeChild(stage);
+    return stage;
+  }
+
+  @Override
+  protected void stageMain() {
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    String firstPath = FilenameUtils.concat(outputPath, "first_pass");
+
+    try {
+      QuickMergeAvro first = runPass(inputPath, firstPath, true);
+      long numSplit = first.job.getCounters().findCounter(
+          QuickMergeAvro.NUM_SPLIT_NODES.group,
+          QuickMergeAvro.NUM_SPLIT_NODES.tag).getValue();
+
+      // The directory whose contents are moved to the output.
+      String finalPath = firstPath;
+      if (numSplit == 0) {
+        sLogger.info("No mertags were split so one pass is enough.");
+      } else {
+        sLogger.info("Number of nodes in split mertags: " + numSplit);
+        finalPath = FilenameUtils.concat(outputPath, "second_pass");
+        runPass(firstPath, finalPath, false);
+      }
+      FileHelper.moveDirectoryContents(getConf(), finalPath, outputPath);
+
+      // The directory we moved the output from is now empty.
+      Path emptyPath = new Path(finalPath);
+      emptyPath.getFileSystem(getConf()).delete(emptyPath, true);
+      if (!finalPath.equals(firstPath) &&
+          (Boolean) stage_options.get("cleanup")) {
+        Path toDelete = new Path(firstPath);
+        toDelete.getFileSystem(getConf()).delete(toDelete, true);
+      }
+    } catch (IOException e) {
+      sLogger.fatal("SkewedQuickMerge failed.", e);
+      System.exit(-1);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(
+        new Configuration(), new SkewedQuickMerge(), args);
+    System.exit(res);
+  }
+}
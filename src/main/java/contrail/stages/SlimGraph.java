@@ -0,0 +1,173 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.avro.mapred.AvroJob;
+import org.apache.avro.mapred.AvroMapper;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ToolRunner;
+
+import contrail.graph.EdgeData;
+import contrail.graph.GraphNodeData;
+import contrail.graph.GraphNodeKMerTag;
+import contrail.graph.NeighborData;
+
+/**
+ * Slim down the nodes of the graph after QuickMerge.
+ *
+ * The mertag is only used by QuickMerge to guess which nodes form chains so
+ * afterwards we replace it with an empty tag. The R5Tags are only used when
+ * building scaffolds so they are dropped unless slim_keep_r5_tags is true.
+ * The number of read tags stored for each edge is capped at
+ * slim_max_read_tags; the read tags are only used to resolve threads,
+ * for which a few reads spanning each edge are enough.
+ *
+ * The output is still GraphNodeData so the later stages, including
+ * ResolveThreads, read it without any conversion. This is a mapper only job.
+ */
+public class SlimGraph extends MRStage {
+  /**
+   * Get the parameters used by this stage.
+   */
+  @Override
+  protected Map<String, ParameterDefinition> createParameterDefinitions() {
+    HashMap<String, ParameterDefinition> defs =
+        new HashMap<String, ParameterDefinition>();
+
+    defs.putAll(super.createParameterDefinitions());
+
+    ParameterDefinition maxReadTags = new ParameterDefinition(
+        "slim_max_read_tags", "The maximum number of read tags to keep for " +
+        "each edge when slimming the graph.", Integer.class, new Integer(50));
+    ParameterDefinition keepR5Tags = new ParameterDefinition(
+        "slim_keep_r5_tags", "Whether to keep the R5Tags when slimming the " +
+        "graph; they are needed for scaffolding.", Boolean.class,
+        new Boolean(false));
+
+    for (ParameterDefinition def: new ParameterDefinition[] {
+            maxReadTags, keepR5Tags}) {
+      defs.put(def.getName(), def);
+    }
+    for (ParameterDefinition def:
+      ContrailParameters.getInputOutputPathOptions()) {
+      defs.put(def.getName(), def);
+    }
+    return Collections.unmodifiableMap(defs);
+  }
+
+  /**
+   * Remove the fields we don't need from the node.
+   *
+   * @return: The number of read tags removed.
+   */
+  public static int slimNode(
+      GraphNodeData nodeData, int maxReadTags, boolean keepR5Tags,
+      GraphNodeKMerTag emptyTag) {
+    nodeData.setMertag(emptyTag);
+    if (!keepR5Tags) {
+      nodeData.getR5Tags().clear();
+    }
+    int numRemoved = 0;
+    for (NeighborData neighbor : nodeData.getNeighbors()) {
+      for (EdgeData edge : neighbor.getEdges()) {
+        List<CharSequence> tags = edge.getReadTags();
+        if (tags.size() > maxReadTags) {
+          numRemoved += tags.size() - maxReadTags;
+          edge.setReadTags(
+              new ArrayList<CharSequence>(tags.subList(0, maxReadTags)));
+        }
+      }
+    }
+    return numRemoved;
+  }
+
+  public static class SlimMapper extends
+      AvroMapper<GraphNodeData, GraphNodeData> {
+    private int maxReadTags;
+    private boolean keepR5Tags;
+    private GraphNodeKMerTag emptyTag;
+
+    @Override
+    public void configure(JobConf job) {
+      SlimGraph stage = new SlimGraph();
+      Map<String, ParameterDefinition> definitions =
+          stage.getParameterDefinitions();
+      maxReadTags = (Integer) (definitions.get("slim_max_read_tags")
+          .parseJobConf(job));
+      keepR5Tags = (Boolean) (definitions.get("slim_keep_r5_tags")
+          .parseJobConf(job));
+      emptyTag = new GraphNodeKMerTag();
+      emptyTag.setReadTag("");
+      emptyTag.setChunk(0);
+    }
+
+    @Override
+    public void map(GraphNodeData nodeData,
+        AvroCollector<GraphNodeData> collector, Reporter reporter)
+            throws IOException {
+      int numRemoved = slimNode(nodeData, maxReadTags, keepR5Tags, emptyTag);
+      if (numRemoved > 0) {
+        reporter.incrCounter("Contrail", "slim-read-tags-removed", numRemoved);
+      }
+      collector.collect(nodeData);
+    }
+  }
+
+  @Override
+  public List<InvalidParameter> validateParameters() {
+    List<InvalidParameter> items = super.validateParameters();
+    int maxReadTags = (Integer) stage_options.get("slim_max_read_tags");
+    if (maxReadTags < 0) {
+      items.add(new InvalidParameter(
+          "slim_max_read_tags",
+          "slim_max_read_tags must be non-negative."));
+    }
+    return items;
+  }
+
+  @Override
+  protected void setupConfHook() {
+    JobConf conf = (JobConf) getConf();
+
+    String inputPath = (String) stage_options.get("inputpath");
+    String outputPath = (String) stage_options.get("outputpath");
+    FileInputFormat.addInputPath(conf, new Path(inputPath));
+    FileOutputFormat.setOutputPath(conf, new Path(outputPath));
+
+    AvroJob.setInputSchema(conf, GraphNodeData.SCHEMA$);
+    AvroJob.setOutputSchema(conf, GraphNodeData.SCHEMA$);
+    AvroJob.setMapperClass(conf, SlimMapper.class);
+
+    // This is a mapper only job.
+    conf.setNumReduceTasks(0);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(), new SlimGraph(), args);
+    System.exit(res);
+  }
+}
@@ -50,6 +50,7 @@ import contrail.sequences.DNAAlphabetFactory;
 import contrail.sequences.DNAStrand;
 import contrail.sequences.DNAUtil;
 import contrail.sequences.Sequence;
+import contrail.sequences.SequenceView;
 import contrail.sequences.StrandsForEdge;
 import contrail.sequences.StrandsUtil;
 
@@ -274,18 +275,25 @@ public class ValidateGraph extends MRStage {
         Sequence sequence = node.getSequence();
         sequence = DNAUtil.sequenceToDir(sequence, strand);
 
-        Sequence overlap = sequence;
+        // Views of the prefix of this node and the overlap sent along the
+        // edge; reused for every edge so we don't copy the sequences.
+        SequenceView overlap = new SequenceView(sequence);
+        SequenceView edgeOverlap = new SequenceView(sequence);
 
         HashSet<EdgeTerminal> incoming = new HashSet<EdgeTerminal>();
         incoming.addAll(node.getEdgeTerminals(
             strand, EdgeDirection.INCOMING));
 
         for (EdgeInfo edgeInfo: edges.get(strand)) {
-          // Check the sequences overlap.
-          if (overlap.size() != edgeInfo.overlap.size()) {
-            overlap = sequence.subSequence(0, edgeInfo.overlap.size());
+          // Check the sequences overlap. An overlap longer than this node
+          // can't match so we don't build a view past its end.
+          boolean overlaps = edgeInfo.overlap.size() <= sequence.size();
+          if (overlaps) {
+            overlap.set(sequence, 0, edgeInfo.overlap.size());
+            edgeOverlap.set(edgeInfo.overlap, 0, edgeInfo.overlap.size());
+            overlaps = overlap.equals(edgeOverlap);
           }
-          if (overlap.equals(edgeInfo.overlap) == false) {
+          if (!overlaps) {
             isValid = false;
             StringBuilder builder = new StringBuilder();
             builder.append(
@@ -58,6 +58,9 @@ import contrail.util.BigQuerySchema;
  * BigQuery and other tools for analyzing the graph. The data isn't a direct
  * transcription of the graph node but rather a set of fields or each node
  * that are likely useful for analyzing the graph.
+ *
+ * If the reads were renamed by AssignReadIds, run RestoreReadNames on the
+ * graph first to output the threads with the original names of the reads.
  */
 public class WriteGraphToJson extends MRStage {
   private static final Logger sLogger = Logger.getLogger(WriteGraphToJson.class);
@@ -15,6 +15,7 @@
 package contrail.graph;
 
 import contrail.sequences.DNAAlphabetFactory;
+import contrail.sequences.DNAUtil;
 import contrail.sequences.Sequence;
 
 /**
@@ -38,4 +39,13 @@ public class GraphTestUtil {
     node.setSequence(new Sequence(sequence, DNAAlphabetFactory.create()));
     return node;
   }
+
+  /**
+   * Check if either strand of the node has the given sequence.
+   */
+  public static boolean hasSequence(GraphNode node, String sequence) {
+    return node.getSequence().toString().equals(sequence) ||
+        DNAUtil.reverseComplement(node.getSequence()).toString().equals(
+            sequence);
+  }
 }
@@ -640,4 +640,71 @@ public class TestGraphNode {
       assertFalse(node.hasConnectedStrands());
     }
   }
+
+  @Test
+  public void testDegreeAndTail() {
+    // Check that the degrees and tails, which are computed without
+    // creating the lists of terminals, agree with the lists.
+    for (int trial = 0; trial < 20; ++trial) {
+      GraphNode node = createNode();
+      if (generator.nextBoolean()) {
+        // Make one of the strands have a single outgoing edge.
+        node.getData().getNeighbors().clear();
+        node.addOutgoingEdge(
+            DNAStrand.FORWARD, new EdgeTerminal("tail", DNAStrand.REVERSE));
+      }
+      for (DNAStrand strand : DNAStrand.values()) {
+        for (EdgeDirection direction : EdgeDirection.values()) {
+          // Compute the degree and tail before the lists are created.
+          int degree = node.degree(strand, direction);
+          TailData tail = node.getTail(strand, direction);
+          List<EdgeTerminal> terminals =
+              node.getEdgeTerminals(strand, direction);
+          assertEquals(terminals.size(), degree);
+          if (degree == 1) {
+            assertEquals(terminals.get(0), tail.terminal);
+          } else {
+            assertEquals(null, tail);
+          }
+        }
+        assertEquals(
+            node.degree(strand, EdgeDirection.OUTGOING), node.degree(strand));
+      }
+
+      // Adding an edge should update the degree.
+      int degree = node.degree(DNAStrand.REVERSE, EdgeDirection.INCOMING);
+      node.addIncomingEdge(
+          DNAStrand.REVERSE, new EdgeTerminal("new", DNAStrand.FORWARD));
+      assertEquals(
+          degree + 1, node.degree(DNAStrand.REVERSE, EdgeDirection.INCOMING));
+      assertEquals(
+          degree + 1, node.degree(DNAStrand.FORWARD, EdgeDirection.OUTGOING));
+    }
+  }
+
+  @Test
+  public void testSetDataReusesDerivedData() {
+    // A node reused with setData, which is what the mappers do, should
+    // give the same derived values as a new node for the data.
+    GraphNode reused = new GraphNode();
+    for (int trial = 0; trial < 20; ++trial) {
+      GraphNode expected = createNode();
+      // Index the previous data so that there is state to reset.
+      reused.getNeighborIds();
+      reused.degree(DNAStrand.FORWARD);
+
+      reused.setData(expected.getData());
+      assertEquals(expected.getNeighborIds(), reused.getNeighborIds());
+      for (DNAStrand strand : DNAStrand.values()) {
+        for (EdgeDirection direction : EdgeDirection.values()) {
+          assertEquals(
+              expected.degree(strand, direction),
+              reused.degree(strand, direction));
+          assertEquals(
+              expected.getEdgeTerminals(strand, direction),
+              reused.getEdgeTerminals(strand, direction));
+        }
+      }
+    }
+  }
 }
@@ -0,0 +1,122 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.Test;
+
+import contrail.sequences.DNAStrand;
+import contrail.sequences.KMerReadTag;
+
+public class TestGraphNodeProjection {
+  private GraphNode createNode() {
+    GraphNode node = GraphTestUtil.createNode("node", "ACTGGTCA");
+    node.setCoverage(3.5f);
+    node.setMertag(new KMerReadTag("read", 2));
+    node.addOutgoingEdgeWithTags(
+        DNAStrand.FORWARD, new EdgeTerminal("right", DNAStrand.REVERSE),
+        Arrays.asList("tag1", "tag2"), 10);
+    node.addIncomingEdgeWithTags(
+        DNAStrand.FORWARD, new EdgeTerminal("left", DNAStrand.FORWARD),
+        Arrays.asList("tag3"), 10);
+    node.addR5(new KMerReadTag("read", 0), 0, DNAStrand.FORWARD, 10);
+    return node;
+  }
+
+  // Serialize the node and read it using the projected schema.
+  private GraphNodeData readProjection(GraphNode node, Schema projection)
+      throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(stream, null);
+    SpecificDatumWriter<GraphNodeData> writer =
+        new SpecificDatumWriter<GraphNodeData>(GraphNodeData.SCHEMA$);
+    writer.write(node.getData(), encoder);
+    encoder.flush();
+
+    SpecificDatumReader<GraphNodeData> reader =
+        new SpecificDatumReader<GraphNodeData>(
+            GraphNodeData.SCHEMA$, projection);
+    return reader.read(
+        null, DecoderFactory.get().binaryDecoder(stream.toByteArray(), null));
+  }
+
+  @Test
+  public void testSkipTags() throws IOException {
+    GraphNode node = createNode();
+    Schema projection = GraphNodeProjection.createSchema(EnumSet.of(
+        GraphNodeProjection.Field.MERTAG,
+        GraphNodeProjection.Field.SEQUENCE_BASES,
+        GraphNodeProjection.Field.EDGE_READ_TAGS,
+        GraphNodeProjection.Field.R5_TAGS));
+    GraphNodeData data = readProjection(node, projection);
+
+    assertEquals("node", data.getNodeId().toString());
+    assertEquals(node.getCoverage(), data.getCoverage(), 0);
+    assertEquals(8, data.getSequence().getLength().intValue());
+    assertNull(data.getSequence().getDna());
+    assertNull(data.getMertag());
+    assertNull(data.getR5Tags());
+
+    // The edges are kept but not their tags.
+    GraphNode projected = new GraphNode(data);
+    for (DNAStrand strand : DNAStrand.values()) {
+      for (EdgeDirection direction : EdgeDirection.values()) {
+        assertEquals(
+            node.getEdgeTerminalsSet(strand, direction),
+            projected.getEdgeTerminalsSet(strand, direction));
+      }
+    }
+    for (NeighborData neighbor : data.getNeighbors()) {
+      for (EdgeData edge : neighbor.getEdges()) {
+        assertNull(edge.getReadTags());
+      }
+    }
+  }
+
+  @Test
+  public void testSkipNeighbors() throws IOException {
+    GraphNode node = createNode();
+    Schema projection = GraphNodeProjection.createSchema(EnumSet.of(
+        GraphNodeProjection.Field.NEIGHBORS));
+    GraphNodeData data = readProjection(node, projection);
+
+    assertNull(data.getNeighbors());
+    assertEquals(
+        node.getSequence(), new GraphNode(data).getSequence());
+    assertEquals(node.getData().getMertag(), data.getMertag());
+    assertEquals(1, data.getR5Tags().size());
+  }
+
+  @Test
+  public void testNoProjection() throws IOException {
+    GraphNode node = createNode();
+    Schema projection = GraphNodeProjection.createSchema(
+        EnumSet.noneOf(GraphNodeProjection.Field.class));
+    GraphNodeData data = readProjection(node, projection);
+    assertEquals(node, new GraphNode(data));
+  }
+}
@@ -0,0 +1,210 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.graph.engine;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import contrail.RemoveNeighborMessage;
+import contrail.graph.EdgeDirection;
+import contrail.graph.EdgeTerminal;
+import contrail.graph.GraphNode;
+import contrail.graph.GraphNodeData;
+import contrail.graph.GraphUtil;
+import contrail.sequences.DNAAlphabetFactory;
+import contrail.sequences.DNAStrand;
+import contrail.sequences.Sequence;
+
+public class TestInMemoryVertexEngine {
+  /**
+   * A program which forwards messages along the forward strand. Each node
+   * increases its coverage by the number of messages it receives.
+   */
+  public static class ForwardProgram
+      extends VertexProgram<RemoveNeighborMessage> {
+    private RemoveNeighborMessage msg = new RemoveNeighborMessage();
+
+    @Override
+    public Schema getMessageSchema() {
+      return msg.getSchema();
+    }
+
+    @Override
+    public int getMaxSupersteps() {
+      return 3;
+    }
+
+    @Override
+    public void compute(
+        int superstep, String nodeId, GraphNodeData data,
+        Iterable<RemoveNeighborMessage> messages,
+        VertexContext<RemoveNeighborMessage> context) throws IOException {
+      GraphNode node = new GraphNode(data);
+      for (RemoveNeighborMessage message : messages) {
+        node.setCoverage(node.getCoverage() + 1);
+        context.incrCounter("test", "messages", 1);
+      }
+      context.setNode(node.getData());
+      for (EdgeTerminal terminal : node.getEdgeTerminals(
+               DNAStrand.FORWARD, EdgeDirection.OUTGOING)) {
+        msg.setNode(null);
+        msg.setNodeIDtoRemove(nodeId);
+        context.sendMessage(terminal.nodeId, msg);
+      }
+    }
+  }
+
+  /**
+   * The same program but the messages are combined by keeping the smallest
+   * id.
+   */
+  public static class CombinedForwardProgram extends ForwardProgram {
+    @Override
+    public MessageCombiner<RemoveNeighborMessage> getCombiner() {
+      return new MessageCombiner<RemoveNeighborMessage>() {
+        @Override
+        public RemoveNeighborMessage combine(
+            RemoveNeighborMessage left, RemoveNeighborMessage right) {
+          String leftId = left.getNodeIDtoRemove().toString();
+          String rightId = right.getNodeIDtoRemove().toString();
+          return leftId.compareTo(rightId) <= 0 ? left : right;
+        }
+      };
+    }
+  }
+
+  private static GraphNode createNode(String nodeId, String sequence) {
+    GraphNode node = new GraphNode();
+    node.setNodeId(nodeId);
+    node.setSequence(new Sequence(sequence, DNAAlphabetFactory.create()));
+    node.setCoverage(0);
+    return node;
+  }
+
+  /**
+   * Create the graph A->B->C->D and E->C.
+   */
+  public static Map<String, GraphNode> createGraph() {
+    HashMap<String, GraphNode> nodes = new HashMap<String, GraphNode>();
+    String[] ids = {"A", "B", "C", "D", "E"};
+    String[] sequences = {"ACTG", "CTGA", "TGAC", "GACC", "ATGA"};
+    for (int i = 0; i < ids.length; ++i) {
+      nodes.put(ids[i], createNode(ids[i], sequences[i]));
+    }
+    String[][] edges = {{"A", "B"}, {"B", "C"}, {"C", "D"}, {"E", "C"}};
+    for (String[] edge : edges) {
+      GraphUtil.addBidirectionalEdge(
+          nodes.get(edge[0]), DNAStrand.FORWARD,
+          nodes.get(edge[1]), DNAStrand.FORWARD);
+    }
+    return nodes;
+  }
+
+  /**
+   * Returns the coverage of each node after running the program.
+   */
+  private Map<String, Float> runProgram(
+      VertexProgram<RemoveNeighborMessage> program, int numThreads) {
+    HashMap<String, GraphNodeData> nodes =
+        new HashMap<String, GraphNodeData>();
+    for (GraphNode node : createGraph().values()) {
+      nodes.put(node.getNodeId(), node.getData());
+    }
+    InMemoryVertexEngine<RemoveNeighborMessage> engine =
+        new InMemoryVertexEngine<RemoveNeighborMessage>(
+            program, new JobConf(), numThreads);
+    HashMap<String, Float> coverage = new HashMap<String, Float>();
+    for (GraphNodeData data : engine.run(nodes).values()) {
+      coverage.put(data.getNodeId().toString(), data.getCoverage());
+    }
+    return coverage;
+  }
+
+  @Test
+  public void testForward() {
+    // Superstep 1: B and D get 1 message and C gets 2.
+    // Superstep 2: C and D get 1 message. The messages from C and D are
+    // dropped because it is the last superstep.
+    HashMap<String, Float> expected = new HashMap<String, Float>();
+    expected.put("A", 0f);
+    expected.put("B", 1f);
+    expected.put("C", 3f);
+    expected.put("D", 2f);
+    expected.put("E", 0f);
+    for (int numThreads : new int[] {1, 3}) {
+      assertEquals(expected, runProgram(new ForwardProgram(), numThreads));
+    }
+  }
+
+  @Test
+  public void testCombiner() {
+    // The two messages sent to C in superstep 0 are combined.
+    HashMap<String, Float> expected = new HashMap<String, Float>();
+    expected.put("A", 0f);
+    expected.put("B", 1f);
+    expected.put("C", 2f);
+    expected.put("D", 2f);
+    expected.put("E", 0f);
+    for (int numThreads : new int[] {1, 3}) {
+      assertEquals(
+          expected, runProgram(new CombinedForwardProgram(), numThreads));
+    }
+  }
+
+  @Test
+  public void testRemoveNode() throws IOException {
+    // A program which removes B in superstep 0. The message sent to B in
+    // superstep 0 is delivered with a null node.
+    VertexProgram<RemoveNeighborMessage> program = new RemoveBProgram();
+    HashMap<String, GraphNodeData> nodes =
+        new HashMap<String, GraphNodeData>();
+    for (GraphNode node : createGraph().values()) {
+      nodes.put(node.getNodeId(), node.getData());
+    }
+    InMemoryVertexEngine<RemoveNeighborMessage> engine =
+        new InMemoryVertexEngine<RemoveNeighborMessage>(
+            program, new JobConf(), 2);
+    Map<String, GraphNodeData> output = engine.run(nodes);
+    assertEquals(4, output.size());
+    assertEquals(false, output.containsKey("B"));
+    assertEquals(1, engine.getCounter("test", "missing-node"));
+  }
+
+  public static class RemoveBProgram extends ForwardProgram {
+    @Override
+    public void compute(
+        int superstep, String nodeId, GraphNodeData data,
+        Iterable<RemoveNeighborMessage> messages,
+        VertexContext<RemoveNeighborMessage> context) throws IOException {
+      if (data == null) {
+        context.incrCounter("test", "missing-node", 1);
+        return;
+      }
+      if (nodeId.equals("B")) {
+        context.removeNode();
+        return;
+      }
+      if (superstep == 0) {
+        super.compute(superstep, nodeId, data, messages, context);
+      }
+    }
+  }
+}
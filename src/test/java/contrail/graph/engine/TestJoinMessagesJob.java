@@ -0,0 +1,314 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.graph.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.avro.mapred.Pair;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import contrail.RemoveNeighborMessage;
+import contrail.ReporterMock;
+import contrail.graph.GraphNode;
+import contrail.graph.GraphNodeData;
+import contrail.sequences.DNAAlphabetFactory;
+import contrail.sequences.Sequence;
+import contrail.stages.AvroCollectorMock;
+import contrail.stages.ParameterDefinition;
+
+public class TestJoinMessagesJob {
+  public static class TwoStepProgram
+      extends TestInMemoryVertexEngine.ForwardProgram {
+    @Override
+    public int getMaxSupersteps() {
+      return 2;
+    }
+  }
+
+  public static class CombinedTwoStepProgram
+      extends TestInMemoryVertexEngine.CombinedForwardProgram {
+    @Override
+    public int getMaxSupersteps() {
+      return 2;
+    }
+  }
+
+  public static class RemoveBTwoStepProgram
+      extends TestInMemoryVertexEngine.RemoveBProgram {
+    @Override
+    public int getMaxSupersteps() {
+      return 2;
+    }
+  }
+
+  /**
+   * A program which creates the nodes which are sent messages but aren't in
+   * the graph.
+   */
+  public static class CreateMissingTwoStepProgram extends TwoStepProgram {
+    @Override
+    public void compute(
+        int superstep, String nodeId, GraphNodeData data,
+        Iterable<RemoveNeighborMessage> messages,
+        VertexContext<RemoveNeighborMessage> context) throws IOException {
+      if (data == null) {
+        context.incrCounter("test", "missing-node", 1);
+        GraphNode node = new GraphNode();
+        node.setNodeId(nodeId);
+        node.setSequence(new Sequence("ACTG", DNAAlphabetFactory.create()));
+        node.setCoverage(0);
+        data = node.getData();
+      }
+      super.compute(superstep, nodeId, data, messages, context);
+    }
+  }
+
+  private JobConf createJob(VertexProgram<?> program, int numPartitions) {
+    JobConf job = new JobConf(JoinMessagesJob.class);
+    Map<String, ParameterDefinition> definitions =
+        new JoinMessagesJob(program).getParameterDefinitions();
+    definitions.get("vertex_program").addToJobConf(
+        job, program.getClass().getName());
+    definitions.get("num_partitions").addToJobConf(
+        job, new Integer(numPartitions));
+    return job;
+  }
+
+  /**
+   * Group the pairs by partition and sort them by key like the shuffle
+   * would.
+   */
+  private <V> List<TreeMap<String, List<V>>> shuffle(
+      List<Pair<CharSequence, V>> pairs, int numPartitions) {
+    ArrayList<TreeMap<String, List<V>>> partitions =
+        new ArrayList<TreeMap<String, List<V>>>();
+    for (int i = 0; i < numPartitions; ++i) {
+      partitions.add(new TreeMap<String, List<V>>());
+    }
+    for (Pair<CharSequence, V> pair : pairs) {
+      String key = pair.key().toString();
+      TreeMap<String, List<V>> partition = partitions.get(
+          GraphPartitioner.getPartition(key, numPartitions));
+      if (!partition.containsKey(key)) {
+        partition.put(key, new ArrayList<V>());
+      }
+      partition.get(key).add(pair.value());
+    }
+    return partitions;
+  }
+
+  /**
+   * Partition the graph the way PartitionGraph does.
+   */
+  private List<List<GraphNodeData>> partitionGraph(
+      Map<String, GraphNode> nodes, int numPartitions) throws IOException {
+    PartitionGraph.PartitionMapper mapper =
+        new PartitionGraph.PartitionMapper();
+    mapper.configure(new JobConf());
+    AvroCollectorMock<Pair<CharSequence, GraphNodeData>> mapOutput =
+        new AvroCollectorMock<Pair<CharSequence, GraphNodeData>>();
+    for (GraphNode node : nodes.values()) {
+      mapper.map(node.clone().getData(), mapOutput, new ReporterMock());
+    }
+
+    PartitionGraph.PartitionReducer reducer =
+        new PartitionGraph.PartitionReducer();
+    ArrayList<List<GraphNodeData>> graph = new ArrayList<List<GraphNodeData>>();
+    for (TreeMap<String, List<GraphNodeData>> partition :
+         shuffle(mapOutput.data, numPartitions)) {
+      AvroCollectorMock<GraphNodeData> output =
+          new AvroCollectorMock<GraphNodeData>();
+      for (Map.Entry<String, List<GraphNodeData>> entry :
+           partition.entrySet()) {
+        reducer.reduce(
+            entry.getKey(), entry.getValue(), output, new ReporterMock());
+      }
+      graph.add(output.data);
+    }
+    return graph;
+  }
+
+  /**
+   * Send the messages the way SendMessagesJob does and return the messages
+   * for each partition.
+   */
+  private List<List<Pair<CharSequence, Object>>> sendMessages(
+      JobConf job, List<List<GraphNodeData>> graph, ReporterMock reporter)
+          throws IOException {
+    SendMessagesJob.MessageMapper mapper = new SendMessagesJob.MessageMapper();
+    mapper.configure(job);
+    AvroCollectorMock<Pair<CharSequence, Object>> mapOutput =
+        new AvroCollectorMock<Pair<CharSequence, Object>>();
+    for (List<GraphNodeData> partition : graph) {
+      for (GraphNodeData node : partition) {
+        mapper.map(node, mapOutput, reporter);
+      }
+    }
+
+    SendMessagesJob.MessageReducer reducer =
+        new SendMessagesJob.MessageReducer();
+    reducer.configure(job);
+    ArrayList<List<Pair<CharSequence, Object>>> messages =
+        new ArrayList<List<Pair<CharSequence, Object>>>();
+    for (TreeMap<String, List<Object>> partition :
+         shuffle(mapOutput.data, graph.size())) {
+      AvroCollectorMock<Pair<CharSequence, Object>> output =
+          new AvroCollectorMock<Pair<CharSequence, Object>>();
+      for (Map.Entry<String, List<Object>> entry : partition.entrySet()) {
+        reducer.reduce(entry.getKey(), entry.getValue(), output, reporter);
+      }
+      messages.add(output.data);
+    }
+    return messages;
+  }
+
+  /**
+   * Run the program with the partitioned jobs and return the output
+   * partitions.
+   */
+  private List<List<GraphNodeData>> runPartitioned(
+      VertexProgram<?> program, Map<String, GraphNode> graphNodes,
+      int numPartitions, ReporterMock reporter) throws IOException {
+    JobConf job = createJob(program, numPartitions);
+    List<List<GraphNodeData>> graph =
+        partitionGraph(graphNodes, numPartitions);
+    final List<List<Pair<CharSequence, Object>>> messages =
+        sendMessages(job, graph, reporter);
+
+    ArrayList<List<GraphNodeData>> output =
+        new ArrayList<List<GraphNodeData>>();
+    for (List<GraphNodeData> partition : graph) {
+      JoinMessagesJob.JoinMapper mapper = new JoinMessagesJob.JoinMapper() {
+        @Override
+        protected Iterator<Pair<CharSequence, Object>> openMessages(
+            JobConf job, int partition) {
+          return messages.get(partition).iterator();
+        }
+      };
+      mapper.configure(job);
+      AvroCollectorMock<GraphNodeData> collector =
+          new AvroCollectorMock<GraphNodeData>();
+      for (GraphNodeData node : partition) {
+        mapper.map(node, collector, reporter);
+      }
+      mapper.close();
+      output.add(collector.data);
+    }
+    return output;
+  }
+
+  private <M> HashMap<String, Float> runInMemory(
+      VertexProgram<M> program, Map<String, GraphNode> graph,
+      ReporterMock reporter) {
+    // Copy the nodes because the engine modifies them.
+    HashMap<String, GraphNodeData> nodes =
+        new HashMap<String, GraphNodeData>();
+    for (GraphNode node : graph.values()) {
+      nodes.put(node.getNodeId(), node.clone().getData());
+    }
+    InMemoryVertexEngine<M> engine =
+        new InMemoryVertexEngine<M>(program, new JobConf(), 2);
+    HashMap<String, Float> coverage = new HashMap<String, Float>();
+    for (GraphNodeData data : engine.run(nodes).values()) {
+      coverage.put(data.getNodeId().toString(), data.getCoverage());
+    }
+    for (String tag : new String[] {"messages", "missing-node"}) {
+      reporter.incrCounter("test", tag, engine.getCounter("test", tag));
+    }
+    return coverage;
+  }
+
+  private void assertMatchesInMemory(VertexProgram<?> program)
+      throws IOException {
+    assertMatchesInMemory(program, TestInMemoryVertexEngine.createGraph());
+  }
+
+  private void assertMatchesInMemory(
+      VertexProgram<?> program, Map<String, GraphNode> graph)
+          throws IOException {
+    ReporterMock expectedCounters = new ReporterMock();
+    HashMap<String, Float> expected =
+        runInMemory(program, graph, expectedCounters);
+    for (int numPartitions : new int[] {1, 3}) {
+      ReporterMock reporter = new ReporterMock();
+      HashMap<String, Float> coverage = new HashMap<String, Float>();
+      List<List<GraphNodeData>> output =
+          runPartitioned(program, graph, numPartitions, reporter);
+      assertEquals(numPartitions, output.size());
+      for (int i = 0; i < output.size(); ++i) {
+        String lastId = null;
+        for (GraphNodeData node : output.get(i)) {
+          String nodeId = node.getNodeId().toString();
+          // The output is still partitioned and sorted.
+          assertEquals(
+              i, GraphPartitioner.getPartition(nodeId, numPartitions));
+          if (lastId != null) {
+            assertTrue(lastId.compareTo(nodeId) < 0);
+          }
+          lastId = nodeId;
+          coverage.put(nodeId, node.getCoverage());
+        }
+      }
+      assertEquals(expected, coverage);
+      for (String tag : new String[] {"messages", "missing-node"}) {
+        assertEquals(
+            expectedCounters.getCounterValue("test", tag),
+            reporter.getCounterValue("test", tag));
+      }
+    }
+  }
+
+  @Test
+  public void testMatchesInMemory() throws IOException {
+    assertMatchesInMemory(new TwoStepProgram());
+  }
+
+  @Test
+  public void testCombiner() throws IOException {
+    assertMatchesInMemory(new CombinedTwoStepProgram());
+  }
+
+  @Test
+  public void testRemoveNode() throws IOException {
+    // B is removed in superstep 0 when the graph is joined with the
+    // messages.
+    assertMatchesInMemory(new RemoveBTwoStepProgram());
+  }
+
+  @Test
+  public void testMissingNodes() throws IOException {
+    // The messages to B and D are for nodes which aren't in the graph so
+    // they are delivered with a null node and the program creates them.
+    Map<String, GraphNode> graph = TestInMemoryVertexEngine.createGraph();
+    graph.remove("B");
+    graph.remove("D");
+    ReporterMock reporter = new ReporterMock();
+    HashMap<String, Float> coverage = runInMemory(
+        new CreateMissingTwoStepProgram(), graph, reporter);
+    assertEquals(new Float(1), coverage.get("B"));
+    assertEquals(new Float(1), coverage.get("D"));
+    assertEquals(2, reporter.getCounterValue("test", "missing-node"));
+    assertMatchesInMemory(new CreateMissingTwoStepProgram(), graph);
+  }
+}
@@ -0,0 +1,197 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.graph.engine;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.mapred.Pair;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import contrail.ReporterMock;
+import contrail.graph.GraphNode;
+import contrail.graph.GraphNodeData;
+import contrail.stages.AvroCollectorMock;
+import contrail.stages.ParameterDefinition;
+
+public class TestVertexProgramJob {
+  private JobConf createJob(
+      VertexProgram<?> program, int superstep, boolean outputGraph) {
+    JobConf job = new JobConf(VertexProgramJob.class);
+    Map<String, ParameterDefinition> definitions =
+        new VertexProgramJob(program).getParameterDefinitions();
+    definitions.get("vertex_program").addToJobConf(
+        job, program.getClass().getName());
+    definitions.get("superstep").addToJobConf(job, new Integer(superstep));
+    definitions.get("output_graph").addToJobConf(job, outputGraph);
+    return job;
+  }
+
+  // Group the mapper output by key like the shuffle would.
+  private Map<String, List<GenericRecord>> shuffle(
+      List<Pair<CharSequence, GenericRecord>> pairs) {
+    HashMap<String, List<GenericRecord>> groups =
+        new HashMap<String, List<GenericRecord>>();
+    for (Pair<CharSequence, GenericRecord> pair : pairs) {
+      String key = pair.key().toString();
+      if (!groups.containsKey(key)) {
+        groups.put(key, new ArrayList<GenericRecord>());
+      }
+      groups.get(key).add(pair.value());
+    }
+    return groups;
+  }
+
+  private List<Pair<CharSequence, GenericRecord>> combine(
+      JobConf job, List<Pair<CharSequence, GenericRecord>> pairs)
+          throws IOException {
+    VertexProgramJob.VertexCombiner combiner =
+        new VertexProgramJob.VertexCombiner();
+    combiner.configure(job);
+    AvroCollectorMock<Pair<CharSequence, GenericRecord>> output =
+        new AvroCollectorMock<Pair<CharSequence, GenericRecord>>();
+    for (Map.Entry<String, List<GenericRecord>> entry :
+         shuffle(pairs).entrySet()) {
+      combiner.reduce(
+          entry.getKey(), entry.getValue(), output, new ReporterMock());
+    }
+    return output.data;
+  }
+
+  private List<Object> reduce(
+      JobConf job, List<Pair<CharSequence, GenericRecord>> pairs,
+      ReporterMock reporter) throws IOException {
+    VertexProgramJob.VertexReducer reducer =
+        new VertexProgramJob.VertexReducer();
+    reducer.configure(job);
+    AvroCollectorMock<Object> output = new AvroCollectorMock<Object>();
+    for (Map.Entry<String, List<GenericRecord>> entry :
+         shuffle(pairs).entrySet()) {
+      reducer.reduce(entry.getKey(), entry.getValue(), output, reporter);
+    }
+    return output.data;
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<Pair<CharSequence, GenericRecord>> toPairs(
+      List<Object> records) {
+    ArrayList<Pair<CharSequence, GenericRecord>> pairs =
+        new ArrayList<Pair<CharSequence, GenericRecord>>();
+    for (Object record : records) {
+      pairs.add((Pair<CharSequence, GenericRecord>) record);
+    }
+    return pairs;
+  }
+
+  /**
+   * Run the program for three supersteps the way VertexProgramStage would
+   * and return the coverage of each node.
+   */
+  private Map<String, Float> runProgram(
+      VertexProgram<?> program, boolean useCombiner) throws IOException {
+    ReporterMock reporter = new ReporterMock();
+
+    // The first job computes superstep 0 in the mapper and 1 in the
+    // reducer.
+    JobConf firstJob = createJob(program, 1, false);
+    VertexProgramJob.GraphMapper mapper = new VertexProgramJob.GraphMapper();
+    mapper.configure(firstJob);
+    AvroCollectorMock<Pair<CharSequence, GenericRecord>> mapOutput =
+        new AvroCollectorMock<Pair<CharSequence, GenericRecord>>();
+    for (GraphNode node : TestInMemoryVertexEngine.createGraph().values()) {
+      mapper.map(node.getData(), mapOutput, reporter);
+    }
+    List<Pair<CharSequence, GenericRecord>> pairs = mapOutput.data;
+    if (useCombiner) {
+      pairs = combine(firstJob, pairs);
+    }
+    pairs = toPairs(reduce(firstJob, pairs, reporter));
+
+    // The second job passes the records to the reducer which computes
+    // superstep 2 and outputs the graph.
+    JobConf secondJob = createJob(program, 2, true);
+    VertexProgramJob.RecordMapper recordMapper =
+        new VertexProgramJob.RecordMapper();
+    recordMapper.configure(secondJob);
+    AvroCollectorMock<Pair<CharSequence, GenericRecord>> recordOutput =
+        new AvroCollectorMock<Pair<CharSequence, GenericRecord>>();
+    for (Pair<CharSequence, GenericRecord> pair : pairs) {
+      recordMapper.map(pair, recordOutput, reporter);
+    }
+
+    HashMap<String, Float> coverage = new HashMap<String, Float>();
+    for (Object record : reduce(secondJob, recordOutput.data, reporter)) {
+      GraphNodeData node = (GraphNodeData) record;
+      coverage.put(node.getNodeId().toString(), node.getCoverage());
+    }
+    return coverage;
+  }
+
+  private <M> Map<String, Float> runInMemory(VertexProgram<M> program) {
+    HashMap<String, GraphNodeData> nodes =
+        new HashMap<String, GraphNodeData>();
+    for (GraphNode node : TestInMemoryVertexEngine.createGraph().values()) {
+      nodes.put(node.getNodeId(), node.getData());
+    }
+    InMemoryVertexEngine<M> engine =
+        new InMemoryVertexEngine<M>(program, new JobConf(), 2);
+    HashMap<String, Float> coverage = new HashMap<String, Float>();
+    for (GraphNodeData data : engine.run(nodes).values()) {
+      coverage.put(data.getNodeId().toString(), data.getCoverage());
+    }
+    return coverage;
+  }
+
+  @Test
+  public void testMatchesInMemory() throws IOException {
+    VertexProgram<?> program = new TestInMemoryVertexEngine.ForwardProgram();
+    assertEquals(runInMemory(program), runProgram(program, false));
+
+    program = new TestInMemoryVertexEngine.CombinedForwardProgram();
+    assertEquals(runInMemory(program), runProgram(program, true));
+  }
+
+  @Test
+  public void testExtractGraph() throws IOException {
+    VertexProgram<?> program = new TestInMemoryVertexEngine.ForwardProgram();
+    JobConf job = createJob(program, 1, false);
+    VertexProgramJob.GraphMapper mapper = new VertexProgramJob.GraphMapper();
+    mapper.configure(job);
+    AvroCollectorMock<Pair<CharSequence, GenericRecord>> mapOutput =
+        new AvroCollectorMock<Pair<CharSequence, GenericRecord>>();
+    Map<String, GraphNode> graph = TestInMemoryVertexEngine.createGraph();
+    for (GraphNode node : graph.values()) {
+      mapper.map(node.getData(), mapOutput, new ReporterMock());
+    }
+
+    // The output contains the nodes and the messages but only the nodes
+    // should be extracted.
+    VertexProgramJob.ExtractGraphMapper extractMapper =
+        new VertexProgramJob.ExtractGraphMapper();
+    extractMapper.configure(job);
+    AvroCollectorMock<GraphNodeData> output =
+        new AvroCollectorMock<GraphNodeData>();
+    for (Pair<CharSequence, GenericRecord> pair : mapOutput.data) {
+      extractMapper.map(pair, output, new ReporterMock());
+    }
+    assertEquals(graph.size(), output.data.size());
+  }
+}
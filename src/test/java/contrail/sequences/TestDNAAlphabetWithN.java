@@ -1,7 +1,11 @@
 package contrail.sequences;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import java.util.Arrays;
+import java.util.Random;
+
 import org.junit.Test;
 
 import contrail.util.ByteUtil;
@@ -23,4 +27,52 @@ public class TestDNAAlphabetWithN {
               strLetters.charAt(pos)));
     }
   }
+
+  @Test
+  public void testEncodeDecode() {
+    // The alphabet uses 3 bits per letter so letters span the boundaries
+    // between ints.
+    Alphabet alphabet = DNAAlphabetWithNFactory.create();
+    Random generator = new Random();
+    for (int length = 1; length < 100; length++) {
+      String letters = AlphabetUtil.randomString(generator, length, alphabet);
+
+      // Compute the expected packing one letter at a time.
+      Sequence expected = new Sequence(alphabet, length);
+      for (int pos = 0; pos < length; pos++) {
+        expected.setAt(pos, alphabet.letterToInt(letters.charAt(pos)));
+      }
+      int numInts = expected.numItemsForSize(length);
+
+      int[] packed = new int[numInts];
+      assertEquals(numInts, alphabet.encode(letters, 0, length, packed));
+      assertArrayEquals(
+          Arrays.copyOf(expected.bytes(), numInts), packed);
+
+      int[] packedUTF8 = new int[numInts];
+      alphabet.encode(
+          ByteUtil.stringToBytes(letters), 0, length, packedUTF8);
+      assertArrayEquals(packed, packedUTF8);
+
+      char[] decoded = new char[length];
+      alphabet.decode(packed, 0, length, decoded);
+      assertEquals(letters, String.valueOf(decoded));
+
+      // Decode a suffix.
+      int start = generator.nextInt(length);
+      decoded = new char[length - start];
+      alphabet.decode(packed, start, length - start, decoded);
+      assertEquals(letters.substring(start), String.valueOf(decoded));
+    }
+  }
+
+  @Test
+  public void testLetterCode() {
+    Alphabet alphabet = DNAAlphabetWithNFactory.create();
+    for (char letter : alphabet.validChars()) {
+      assertEquals(alphabet.letterToInt(letter), alphabet.letterCode(letter));
+    }
+    assertEquals(-1, alphabet.letterCode('X'));
+    assertEquals(-1, alphabet.letterCode('\u00e9'));
+  }
 }
@@ -5,6 +5,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.Arrays;
 import java.util.Random;
 
 import org.junit.Test;
@@ -126,4 +127,78 @@ public class TestDNAUtil {
       assertFalse(DNAUtil.isPalindrome(sequence));
     }
   }
+
+  /**
+   * Compute the reverse complement one letter at a time.
+   */
+  private String reverseComplementString(String letters) {
+    StringBuilder builder = new StringBuilder(letters.length());
+    for (int pos = letters.length() - 1; pos >= 0; pos--) {
+      builder.append(DNAUtil.complementBase(letters.charAt(pos)));
+    }
+    return builder.toString();
+  }
+
+  @Test
+  public void testCompareToReverseComplement() {
+    Random generator = new Random();
+    for (Alphabet alphabet : new Alphabet[] {
+             DNAAlphabetFactory.create(), DNAAlphabetWithNFactory.create()}) {
+      for (int length = 0; length < 100; length++) {
+        String letters = AlphabetUtil.randomString(
+            generator, length, alphabet);
+        Sequence seq = new Sequence(letters, alphabet);
+        Sequence rc = new Sequence(reverseComplementString(letters), alphabet);
+        int expected = seq.compareTo(rc);
+        assertEquals(expected, DNAUtil.compareToReverseComplement(seq));
+      }
+
+      // Check palindromes; these require the full comparison.
+      for (int length = 2; length < 100; length += 2) {
+        String half = AlphabetUtil.randomString(
+            generator, length / 2, alphabet);
+        String letters = half + reverseComplementString(half);
+        Sequence seq = new Sequence(letters, alphabet);
+        assertEquals(0, DNAUtil.compareToReverseComplement(seq));
+        assertTrue(DNAUtil.isPalindrome(seq));
+      }
+    }
+  }
+
+  @Test
+  public void testReverseComplementUnsetBits() {
+    // The bits after the end of the sequence shouldn't affect the result.
+    Random generator = new Random();
+    Alphabet alphabet = DNAAlphabetFactory.create();
+    for (int length = 1; length < 100; length++) {
+      String letters = AlphabetUtil.randomString(generator, length, alphabet);
+      Sequence seq = new Sequence(letters, alphabet);
+      int[] data = Arrays.copyOf(seq.bytes(), seq.bytes().length + 1);
+      int numUnset = data.length * 16 - length;
+      for (int i = 0; i < numUnset; i++) {
+        int pos = length + i;
+        data[pos / 16] |= generator.nextInt(4) << (2 * (pos % 16));
+      }
+      Sequence noisy = new Sequence(data, length, alphabet);
+      Sequence rc = DNAUtil.reverseComplement(noisy);
+      assertEquals(reverseComplementString(letters), rc.toString());
+      // All unset bits in the reverse complement should be zero.
+      assertEquals(
+          Arrays.toString(new Sequence(rc.toString(), alphabet).bytes()),
+          Arrays.toString(rc.bytes()));
+      assertEquals(seq.compareTo(rc), DNAUtil.compareToReverseComplement(noisy));
+    }
+  }
+
+  @Test
+  public void testMergeSequences() {
+    Alphabet alphabet = DNAAlphabetFactory.create();
+    Sequence src = new Sequence("ACGTTGCA", alphabet);
+    Sequence dest = new Sequence("TGCAGGA", alphabet);
+    Sequence merged = DNAUtil.mergeSequences(src, dest, 4);
+    assertEquals("ACGTTGCAGGA", merged.toString());
+    // The inputs aren't modified.
+    assertEquals("ACGTTGCA", src.toString());
+    assertEquals("TGCAGGA", dest.toString());
+  }
 }
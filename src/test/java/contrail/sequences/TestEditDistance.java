@@ -0,0 +1,151 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.sequences;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestEditDistance {
+  /**
+   * Compute the edit distance using the dynamic programming algorithm.
+   */
+  private int expectedDistance(String first, String second) {
+    int[][] d = new int[first.length() + 1][second.length() + 1];
+    for (int i = 0; i <= first.length(); ++i) {
+      d[i][0] = i;
+    }
+    for (int j = 0; j <= second.length(); ++j) {
+      d[0][j] = j;
+    }
+    for (int i = 1; i <= first.length(); ++i) {
+      for (int j = 1; j <= second.length(); ++j) {
+        int cost = first.charAt(i - 1) == second.charAt(j - 1) ? 0 : 1;
+        d[i][j] = Math.min(
+            Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1), d[i - 1][j - 1] + cost);
+      }
+    }
+    return d[first.length()][second.length()];
+  }
+
+  /**
+   * Randomly mutate a string.
+   */
+  private String mutate(
+      Random generator, String letters, int numEdits, Alphabet alphabet) {
+    StringBuilder builder = new StringBuilder(letters);
+    for (int i = 0; i < numEdits; ++i) {
+      String letter = AlphabetUtil.randomString(generator, 1, alphabet);
+      int pos = generator.nextInt(builder.length() + 1);
+      switch (generator.nextInt(3)) {
+        case 0:
+          builder.insert(pos, letter);
+          break;
+        case 1:
+          if (pos < builder.length()) {
+            builder.deleteCharAt(pos);
+          }
+          break;
+        default:
+          if (pos < builder.length()) {
+            builder.replace(pos, pos + 1, letter);
+          }
+      }
+    }
+    return builder.toString();
+  }
+
+  @Test
+  public void testCompute() {
+    Random generator = new Random();
+    EditDistance editDistance = new EditDistance();
+    for (Alphabet alphabet : new Alphabet[] {
+        DNAAlphabetFactory.create(), DNAAlphabetWithNFactory.create()}) {
+      for (int trial = 0; trial < 200; ++trial) {
+        // Use lengths that span several words.
+        String first = AlphabetUtil.randomString(
+            generator, generator.nextInt(200), alphabet);
+        String second = mutate(
+            generator, first, generator.nextInt(20), alphabet);
+        if (generator.nextInt(4) == 0) {
+          second = AlphabetUtil.randomString(
+              generator, generator.nextInt(200), alphabet);
+        }
+        Sequence firstSequence = new Sequence(first, alphabet);
+        Sequence secondSequence = new Sequence(second, alphabet);
+
+        int expected = expectedDistance(first, second);
+        assertEquals(
+            expected, editDistance.compute(firstSequence, secondSequence));
+        assertEquals(
+            expected, editDistance.compute(secondSequence, firstSequence));
+        assertEquals(
+            expected, firstSequence.computeEditDistance(secondSequence));
+
+        // Check the bounded distance.
+        int maxDistance = generator.nextInt(expected + 5);
+        int bounded = editDistance.compute(
+            firstSequence, secondSequence, maxDistance);
+        if (expected <= maxDistance) {
+          assertEquals(expected, bounded);
+        } else {
+          assertTrue(bounded > maxDistance);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testBanded() {
+    // Long sequences with a small maximum distance so the band covers only
+    // a few of the blocks in each column.
+    Random generator = new Random();
+    EditDistance editDistance = new EditDistance();
+    Alphabet alphabet = DNAAlphabetFactory.create();
+    for (int trial = 0; trial < 20; ++trial) {
+      String first = AlphabetUtil.randomString(
+          generator, 500 + generator.nextInt(1000), alphabet);
+      String second = mutate(
+          generator, first, generator.nextInt(40), alphabet);
+      Sequence firstSequence = new Sequence(first, alphabet);
+      Sequence secondSequence = new Sequence(second, alphabet);
+
+      int expected = expectedDistance(first, second);
+      for (int maxDistance : new int[] {
+               expected / 2, expected, expected + 1, 2 * expected + 70}) {
+        int bounded = editDistance.compute(
+            firstSequence, secondSequence, maxDistance);
+        if (expected <= maxDistance) {
+          assertEquals(expected, bounded);
+        } else {
+          assertTrue(bounded > maxDistance);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testEmpty() {
+    Alphabet alphabet = DNAAlphabetFactory.create();
+    EditDistance editDistance = new EditDistance();
+    Sequence empty = new Sequence(alphabet);
+    Sequence sequence = new Sequence("ACGTA", alphabet);
+    assertEquals(0, editDistance.compute(empty, empty));
+    assertEquals(5, editDistance.compute(empty, sequence));
+    assertEquals(5, editDistance.compute(sequence, empty));
+  }
+}
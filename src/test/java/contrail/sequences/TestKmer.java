@@ -0,0 +1,144 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.sequences;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestKmer {
+  private final Alphabet alphabet = DNAAlphabetFactory.create();
+
+  /**
+   * Slide a Kmer along a random read and check each KMer against the
+   * result computed using Sequence and DNAUtil.
+   */
+  private void checkSlidingWindow(Random generator, int K) {
+    String read = AlphabetUtil.randomString(generator, K + 50, alphabet);
+    Sequence sequence = new Sequence(read, alphabet);
+    Kmer kmer = Kmer.create(K);
+    for (int i = 0; i < read.length(); ++i) {
+      kmer.addLetter(read.charAt(i));
+      if (i < K - 1) {
+        assertFalse(kmer.isFull());
+        continue;
+      }
+      assertTrue(kmer.isFull());
+      Sequence expected = sequence.subSequence(i - K + 1, i + 1);
+      Sequence rc = DNAUtil.reverseComplement(expected);
+
+      assertEquals(expected.toString(), kmer.toString(DNAStrand.FORWARD));
+      assertEquals(rc.toString(), kmer.toString(DNAStrand.REVERSE));
+      assertEquals(DNAUtil.canonicaldir(expected), kmer.canonicalStrand());
+      assertEquals(expected, kmer.toSequence(DNAStrand.FORWARD));
+
+      Sequence canonical = DNAUtil.canonicalseq(expected);
+      byte[] expectedBytes = Arrays.copyOf(
+          canonical.toPackedBytes(), canonical.numPackedBytes());
+      assertArrayEquals(
+          expectedBytes, kmer.toPackedBytes(kmer.canonicalStrand()));
+    }
+  }
+
+  @Test
+  public void testSlidingWindow() {
+    Random generator = new Random();
+    for (int K = 1; K <= Kmer64.MAX_K; ++K) {
+      checkSlidingWindow(generator, K);
+    }
+  }
+
+  @Test
+  public void testCreate() {
+    assertTrue(Kmer.create(31) instanceof Kmer32);
+    assertTrue(Kmer.create(32) instanceof Kmer32);
+    assertTrue(Kmer.create(33) instanceof Kmer64);
+    assertTrue(Kmer.create(64) instanceof Kmer64);
+    assertFalse(Kmer.isSupported(65));
+  }
+
+  @Test
+  public void testInvalidLetterClears() {
+    Kmer kmer = Kmer.create(3);
+    for (char letter : "ACGNAC".toCharArray()) {
+      kmer.addLetter(letter);
+    }
+    assertFalse(kmer.isFull());
+    kmer.addLetter('T');
+    assertTrue(kmer.isFull());
+    assertEquals("ACT", kmer.toString());
+  }
+
+  @Test
+  public void testReverseComplement() {
+    Random generator = new Random();
+    for (int K : new int[] {5, 32, 33, 63}) {
+      String read = AlphabetUtil.randomString(generator, K + 1, alphabet);
+      Kmer kmer = Kmer.create(K);
+      for (int i = 0; i < K; ++i) {
+        kmer.addLetter(read.charAt(i));
+      }
+      kmer.reverseComplement();
+      kmer.addLetter(read.charAt(K));
+
+      Sequence rc = DNAUtil.reverseComplement(
+          new Sequence(read.substring(0, K), alphabet));
+      String expected = rc.toString().substring(1) + read.charAt(K);
+      assertEquals(expected, kmer.toString());
+    }
+  }
+
+  @Test
+  public void testLexicographicIndex() {
+    Kmer32 kmer = new Kmer32(3);
+    for (char letter : "CAT".toCharArray()) {
+      kmer.addLetter(letter);
+    }
+    // C=1, A=0, T=3 so the index is 1 * 16 + 0 * 4 + 3.
+    assertEquals(19, kmer.lexicographicIndex(DNAStrand.FORWARD));
+    // The reverse complement is ATG.
+    assertEquals(0 * 16 + 3 * 4 + 2,
+                 kmer.lexicographicIndex(DNAStrand.REVERSE));
+  }
+
+  @Test
+  public void testKmerSet() {
+    Random generator = new Random();
+    for (int K : new int[] {5, 45}) {
+      KmerSet set = new KmerSet(4);
+      HashSet<String> expected = new HashSet<String>();
+      String read = AlphabetUtil.randomString(generator, 500, alphabet);
+      Kmer kmer = Kmer.create(K);
+      for (int i = 0; i < read.length(); ++i) {
+        kmer.addLetter(read.charAt(i));
+        if (!kmer.isFull()) {
+          continue;
+        }
+        assertEquals(expected.contains(kmer.toString()), set.contains(kmer));
+        assertEquals(expected.add(kmer.toString()), set.add(kmer));
+      }
+      assertEquals(expected.size(), set.size());
+      set.clear();
+      assertEquals(0, set.size());
+      assertFalse(set.contains(kmer));
+    }
+  }
+}
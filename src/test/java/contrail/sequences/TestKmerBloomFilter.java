@@ -0,0 +1,92 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.sequences;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestKmerBloomFilter {
+  private Kmer createKmer(String letters) {
+    Kmer kmer = Kmer.create(letters.length());
+    for (int i = 0; i < letters.length(); ++i) {
+      kmer.addLetter(letters.charAt(i));
+    }
+    return kmer;
+  }
+
+  @Test
+  public void testFilter() throws IOException {
+    Random generator = new Random();
+    Alphabet alphabet = DNAAlphabetFactory.create();
+    for (int K : new int[] {21, 45}) {
+      KmerBloomFilter filter = new KmerBloomFilter(1 << 16, 4);
+      HashSet<String> added = new HashSet<String>();
+      ArrayList<String> kmers = new ArrayList<String>();
+      for (int i = 0; i < 500; ++i) {
+        String letters = AlphabetUtil.randomString(generator, K, alphabet);
+        filter.add(createKmer(letters));
+        kmers.add(letters);
+        added.add(letters);
+      }
+
+      // There are no false negatives and both strands are in the filter.
+      for (String letters : kmers) {
+        assertTrue(filter.mightContain(createKmer(letters)));
+        String reverse = DNAUtil.reverseComplement(
+            new Sequence(letters, alphabet)).toString();
+        assertTrue(filter.mightContain(createKmer(reverse)));
+      }
+
+      // The false positive rate should be small.
+      int numFalsePositives = 0;
+      for (int i = 0; i < 1000; ++i) {
+        String letters = AlphabetUtil.randomString(generator, K, alphabet);
+        if (!added.contains(letters) &&
+            filter.mightContain(createKmer(letters))) {
+          ++numFalsePositives;
+        }
+      }
+      assertTrue(numFalsePositives < 20);
+
+      // Check that we can read the filter back.
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      filter.write(new DataOutputStream(bytes));
+      KmerBloomFilter copy = KmerBloomFilter.read(new DataInputStream(
+          new ByteArrayInputStream(bytes.toByteArray())));
+      assertEquals(filter.getNumBits(), copy.getNumBits());
+      assertEquals(filter.getNumHashes(), copy.getNumHashes());
+      for (String letters : kmers) {
+        assertTrue(copy.mightContain(createKmer(letters)));
+      }
+    }
+  }
+
+  @Test
+  public void testEmpty() {
+    KmerBloomFilter filter = new KmerBloomFilter(64, 3);
+    assertFalse(filter.mightContain(createKmer("ACGTA")));
+  }
+}
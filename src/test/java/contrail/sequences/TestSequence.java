@@ -14,9 +14,12 @@
 package contrail.sequences;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
 
 import org.apache.commons.codec.binary.Base64;
 import org.junit.Test;
@@ -509,6 +512,61 @@ public class TestSequence {
     }
   }
 
+  @Test
+  public void testCompareWithN() {
+    // The alphabet uses 3 bits per letter so letters span ints.
+    Alphabet alphabet = DNAAlphabetWithNFactory.create();
+    Random generator = new Random();
+    for (int trial = 0; trial < 500; trial++) {
+      int length = generator.nextInt(60) + 1;
+      String left_str = AlphabetUtil.randomString(generator, length, alphabet);
+      // Make the right string share a random prefix with the left string.
+      int prefix = generator.nextInt(length + 1);
+      String right_str = left_str.substring(0, prefix) +
+          AlphabetUtil.randomString(
+              generator, generator.nextInt(10), alphabet);
+      Sequence left = new Sequence(left_str, alphabet);
+      Sequence right = new Sequence(right_str, alphabet);
+
+      int expected = 0;
+      for (int pos = 0; pos < Math.min(left.size(), right.size()); pos++) {
+        if (left.valAt(pos) != right.valAt(pos)) {
+          expected = left.valAt(pos) < right.valAt(pos) ? -1 : 1;
+          break;
+        }
+      }
+      if (expected == 0) {
+        expected = Integer.signum(left.size() - right.size());
+      }
+      assertEquals(expected, left.compareTo(right));
+      assertEquals(-expected, right.compareTo(left));
+      assertEquals(expected == 0, left.equals(right));
+    }
+  }
+
+  @Test
+  public void testEqualsAndHashCode() {
+    Alphabet alphabet = DNAAlphabetFactory.create();
+    Sequence sequence = new Sequence("ACGTTGCA", alphabet);
+
+    // Read a shorter sequence into a sequence with a longer buffer so the
+    // bits after the last letter are set.
+    Sequence reused = new Sequence("TTTTTTTTTTTTTTTTTTT", alphabet);
+    reused.readUTF8(ByteUtil.stringToBytes("ACGTTGCAT"), 8);
+
+    assertEquals(sequence, reused);
+    assertEquals(sequence.hashCode(), reused.hashCode());
+
+    HashSet<Sequence> sequences = new HashSet<Sequence>();
+    sequences.add(sequence);
+    assertTrue(sequences.contains(reused));
+    assertFalse(sequences.contains(new Sequence("ACGTTGC", alphabet)));
+
+    assertFalse(sequence.equals("ACGTTGCA"));
+    assertFalse(sequence.equals(
+        new Sequence("ACGTTGCA", DNAAlphabetWithNFactory.create())));
+  }
+
   @Test
   public void testCompressedSequence() {
     Sequence sequence = new Sequence("ACTGT", DNAAlphabetFactory.create());
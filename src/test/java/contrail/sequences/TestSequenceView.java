@@ -0,0 +1,110 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.sequences;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestSequenceView {
+  private final Alphabet[] alphabets = {
+      DNAAlphabetFactory.create(), DNAAlphabetWithNFactory.create()};
+
+  /**
+   * Check that views behave the same as the subsequences they represent.
+   */
+  @Test
+  public void testMatchesSubSequence() {
+    Random generator = new Random();
+    for (Alphabet alphabet : alphabets) {
+      for (int trial = 0; trial < 200; ++trial) {
+        int length = generator.nextInt(100) + 1;
+        Sequence sequence = new Sequence(
+            AlphabetUtil.randomString(generator, length, alphabet), alphabet);
+
+        int start = generator.nextInt(length);
+        int end = start + generator.nextInt(length - start + 1);
+        SequenceView view = new SequenceView(sequence, start, end);
+        Sequence expected = start == end ?
+            new Sequence(alphabet) : sequence.subSequence(start, end);
+
+        assertEquals(end - start, view.size());
+        assertEquals(expected.toString(), view.toString());
+        assertEquals(expected, view.toSequence());
+        assertEquals(expected.hashCode(), view.hashCode());
+        for (int pos = 0; pos < view.size(); ++pos) {
+          assertEquals(expected.valAt(pos), view.valAt(pos));
+        }
+
+        // Compare to a view of a different region.
+        int otherStart = generator.nextInt(length);
+        int otherEnd =
+            otherStart + generator.nextInt(length - otherStart + 1);
+        SequenceView other = new SequenceView(sequence, otherStart, otherEnd);
+        Sequence otherExpected = otherStart == otherEnd ?
+            new Sequence(alphabet) :
+            sequence.subSequence(otherStart, otherEnd);
+        assertEquals(
+            Integer.signum(expected.compareTo(otherExpected)),
+            Integer.signum(view.compareTo(other)));
+        assertEquals(expected.equals(otherExpected), view.equals(other));
+      }
+    }
+  }
+
+  @Test
+  public void testEqualsDifferentOffsets() {
+    Alphabet alphabet = DNAAlphabetFactory.create();
+    String common = "TTGCAACGTAGGCTTAACCGGTTACGATCGATCAAT";
+    Sequence left = new Sequence("ACG" + common, alphabet);
+    Sequence right = new Sequence(common + "G", alphabet);
+
+    SequenceView leftView = new SequenceView(left, 3, left.size());
+    SequenceView rightView = new SequenceView(right, 0, right.size() - 1);
+    assertTrue(leftView.equals(rightView));
+    assertEquals(leftView.hashCode(), rightView.hashCode());
+    assertEquals(0, leftView.compareTo(rightView));
+
+    // Reuse the view for a different region.
+    rightView.set(right, 1, right.size());
+    assertFalse(leftView.equals(rightView));
+  }
+
+  @Test
+  public void testAdd() {
+    Random generator = new Random();
+    for (Alphabet alphabet : alphabets) {
+      for (int trial = 0; trial < 200; ++trial) {
+        String prefix = AlphabetUtil.randomString(
+            generator, generator.nextInt(70), alphabet);
+        String other = AlphabetUtil.randomString(
+            generator, generator.nextInt(70) + 1, alphabet);
+        int start = generator.nextInt(other.length());
+
+        Sequence sequence = new Sequence(prefix, alphabet);
+        sequence.add(new SequenceView(
+            new Sequence(other, alphabet), start, other.length()));
+
+        Sequence expected = new Sequence(
+            prefix + other.substring(start), alphabet);
+        assertEquals(expected, sequence);
+        assertEquals(expected.toString(), sequence.toString());
+      }
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import contrail.ReporterMock;
+import contrail.sequences.FastQRecord;
+import contrail.util.FileHelper;
+
+public class TestAssignReadIds {
+  /**
+   * Load the dictionary mapping ids to the names of the reads.
+   *
+   * @param path: The directory containing the dictionary.
+   */
+  private HashMap<String, String> readDictionary(
+      Configuration conf, String path) throws IOException {
+    HashMap<String, String> names = new HashMap<String, String>();
+    for (Path file : FileHelper.matchGlobWithDefault(conf, path, "*.avro")) {
+      FileSystem fs = file.getFileSystem(conf);
+      DataFileStream<GenericRecord> reader = new DataFileStream<GenericRecord>(
+          fs.open(file), new GenericDatumReader<GenericRecord>());
+      for (GenericRecord record : reader) {
+        names.put(
+            record.get("key").toString(), record.get("value").toString());
+      }
+      reader.close();
+    }
+    return names;
+  }
+
+  @Test
+  public void testFormatReadId() {
+    assertEquals("0", AssignReadIds.formatReadId(0, 0));
+    assertEquals("z", AssignReadIds.formatReadId(0, 35));
+    assertEquals(
+        Long.toString(3L << 40, 36), AssignReadIds.formatReadId(3, 0));
+  }
+
+  @Test
+  public void testMapper() throws IOException {
+    File tempDir = FileHelper.createLocalTempDir();
+    JobConf job = new JobConf(AssignReadIds.class);
+    job.set("mapred.work.output.dir", tempDir.getAbsolutePath());
+    job.setInt("mapred.task.partition", 2);
+
+    AssignReadIds.AssignIdsMapper mapper =
+        new AssignReadIds.AssignIdsMapper();
+    mapper.configure(job);
+    AvroCollectorMock<Object> collector = new AvroCollectorMock<Object>(
+        BuildGraphAvro.createInputSchema());
+    ReporterMock reporter = new ReporterMock();
+    for (int i = 0; i < 20; ++i) {
+      FastQRecord read = new FastQRecord();
+      read.setId("SRR001666." + i + "/1");
+      read.setRead("ACTGCCT");
+      read.setQvalue("");
+      mapper.map(read, collector, reporter);
+    }
+    mapper.close();
+
+    HashMap<String, String> names = readDictionary(
+        job, new File(tempDir, AssignReadIds.DICTIONARY_DIR).getPath());
+    assertEquals(20, names.size());
+    HashSet<String> ids = new HashSet<String>();
+    for (Object record : collector.data) {
+      FastQRecord read = (FastQRecord) record;
+      String id = read.getId().toString();
+      assertTrue(ids.add(id));
+      assertTrue(id.length() <= 13);
+      assertEquals("ACTGCCT", read.getRead().toString());
+      assertTrue(names.get(id).startsWith("SRR001666."));
+    }
+    assertEquals("SRR001666.3/1", names.get(AssignReadIds.formatReadId(2, 3)));
+    FileUtils.deleteDirectory(tempDir);
+  }
+}
@@ -25,6 +25,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import org.apache.avro.mapred.Pair;
 import org.apache.hadoop.mapred.JobConf;
@@ -40,6 +41,7 @@ import contrail.graph.GraphNodeData;
 import contrail.graph.KMerEdge;
 import contrail.graph.NeighborData;
 import contrail.sequences.Alphabet;
+import contrail.sequences.AlphabetUtil;
 import contrail.sequences.DNAAlphabetFactory;
 import contrail.sequences.DNAStrand;
 import contrail.sequences.DNAStrandUtil;
@@ -714,4 +716,115 @@ public class TestBuildGraphAvro {
 
     assertEquals(3, nodeIds.size());
   }
+
+  /**
+   * Run the mapper and reducer on the reads and return the nodes keyed by id.
+   */
+  private HashMap<String, GraphNodeData> runBuildGraph(
+      List<FastQRecord> reads, int K, int combineEntries) throws IOException {
+    BuildGraphAvro stage = new BuildGraphAvro();
+    Map<String, ParameterDefinition> definitions =
+        stage.getParameterDefinitions();
+    JobConf job = new JobConf(BuildGraphAvro.BuildGraphMapper.class);
+    definitions.get("K").addToJobConf(job, new Integer(K));
+    definitions.get("in_mapper_combine_entries").addToJobConf(
+        job, new Integer(combineEntries));
+
+    BuildGraphAvro.BuildGraphMapper mapper =
+        new BuildGraphAvro.BuildGraphMapper();
+    mapper.configure(job);
+    AvroCollectorMock<Pair<ByteBuffer, KMerEdge>> collector =
+        new AvroCollectorMock<Pair<ByteBuffer, KMerEdge>>();
+    ReporterMock reporter = new ReporterMock();
+    for (FastQRecord read : reads) {
+      mapper.map(read, collector, reporter);
+    }
+    mapper.close();
+
+    HashMap<String, ArrayList<KMerEdge>> reduceGroups =
+        new HashMap<String, ArrayList<KMerEdge>>();
+    for (Pair<ByteBuffer, KMerEdge> pair : collector.data) {
+      Sequence sequence = new Sequence(DNAAlphabetFactory.create());
+      sequence.readPackedBytes(pair.key().array(), K);
+      String key = sequence.toString();
+      if (!reduceGroups.containsKey(key)) {
+        reduceGroups.put(key, new ArrayList<KMerEdge>());
+      }
+      reduceGroups.get(key).add(pair.value());
+    }
+
+    BuildGraphAvro.BuildGraphReducer reducer =
+        new BuildGraphAvro.BuildGraphReducer();
+    reducer.configure(job);
+    AvroCollectorMock<GraphNodeData> reduceCollector =
+        new AvroCollectorMock<GraphNodeData>();
+    for (String key : reduceGroups.keySet()) {
+      Sequence sequence = new Sequence(key, DNAAlphabetFactory.create());
+      reducer.reduce(
+          ByteBuffer.wrap(sequence.toPackedBytes()), reduceGroups.get(key),
+          reduceCollector, reporter);
+    }
+
+    HashMap<String, GraphNodeData> nodes =
+        new HashMap<String, GraphNodeData>();
+    for (GraphNodeData node : reduceCollector.data) {
+      nodes.put(node.getNodeId().toString(), node);
+    }
+    return nodes;
+  }
+
+  @Test
+  public void testInMapperCombining() throws IOException {
+    // Generate overlapping reads from a random genome so that edges are
+    // seen multiple times.
+    Random generator = new Random();
+    Alphabet alphabet = DNAAlphabetFactory.create();
+    String genome = AlphabetUtil.randomString(generator, 60, alphabet);
+    ArrayList<FastQRecord> reads = new ArrayList<FastQRecord>();
+    for (int i = 0; i < 40; ++i) {
+      int start = generator.nextInt(genome.length() - 20);
+      FastQRecord read = new FastQRecord();
+      read.setId("read" + i);
+      read.setRead(genome.substring(start, start + 20));
+      read.setQvalue("");
+      reads.add(read);
+    }
+
+    final int K = 5;
+    HashMap<String, GraphNodeData> expected = runBuildGraph(reads, K, 0);
+    // Use a small table so that it gets flushed.
+    HashMap<String, GraphNodeData> actual = runBuildGraph(reads, K, 7);
+
+    assertEquals(expected.keySet(), actual.keySet());
+    for (String nodeId : expected.keySet()) {
+      GraphNodeData expectedNode = expected.get(nodeId);
+      GraphNodeData actualNode = actual.get(nodeId);
+      assertEquals(
+          expectedNode.getCoverage(), actualNode.getCoverage(), 0.00001);
+      assertEquals(expectedNode.getMertag(), actualNode.getMertag());
+      assertEquals(
+          expectedNode.getR5Tags().size(), actualNode.getR5Tags().size());
+
+      // Compare the edges and their tags ignoring the order.
+      HashSet<String> expectedEdges = new HashSet<String>();
+      for (NeighborData neighbor : expectedNode.getNeighbors()) {
+        for (EdgeData edge : neighbor.getEdges()) {
+          for (CharSequence tag : edge.getReadTags()) {
+            expectedEdges.add(
+                neighbor.getNodeId() + ":" + edge.getStrands() + ":" + tag);
+          }
+        }
+      }
+      HashSet<String> actualEdges = new HashSet<String>();
+      for (NeighborData neighbor : actualNode.getNeighbors()) {
+        for (EdgeData edge : neighbor.getEdges()) {
+          for (CharSequence tag : edge.getReadTags()) {
+            actualEdges.add(
+                neighbor.getNodeId() + ":" + edge.getStrands() + ":" + tag);
+          }
+        }
+      }
+      assertEquals(expectedEdges, actualEdges);
+    }
+  }
 }
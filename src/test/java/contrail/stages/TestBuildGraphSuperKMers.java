@@ -0,0 +1,224 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.avro.mapred.Pair;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import contrail.ReporterMock;
+import contrail.graph.EdgeData;
+import contrail.graph.GraphNodeData;
+import contrail.graph.KMerEdge;
+import contrail.graph.NeighborData;
+import contrail.graph.SuperKMer;
+import contrail.sequences.Alphabet;
+import contrail.sequences.AlphabetUtil;
+import contrail.sequences.DNAAlphabetFactory;
+import contrail.sequences.DNAUtil;
+import contrail.sequences.FastQRecord;
+import contrail.sequences.Kmer32;
+import contrail.sequences.Sequence;
+
+public class TestBuildGraphSuperKMers {
+  private JobConf createJob(int K, int minimizerLength) {
+    BuildGraphSuperKMers stage = new BuildGraphSuperKMers();
+    Map<String, ParameterDefinition> definitions =
+        stage.getParameterDefinitions();
+    JobConf job = new JobConf(BuildGraphSuperKMers.class);
+    definitions.get("K").addToJobConf(job, new Integer(K));
+    definitions.get("minimizer_length").addToJobConf(
+        job, new Integer(minimizerLength));
+    return job;
+  }
+
+  // Run BuildGraphAvro's mapper and reducer.
+  private HashMap<String, GraphNodeData> runBuildGraph(
+      List<FastQRecord> reads, JobConf job) throws IOException {
+    BuildGraphAvro.BuildGraphMapper mapper =
+        new BuildGraphAvro.BuildGraphMapper();
+    mapper.configure(job);
+    AvroCollectorMock<Pair<ByteBuffer, KMerEdge>> collector =
+        new AvroCollectorMock<Pair<ByteBuffer, KMerEdge>>();
+    ReporterMock reporter = new ReporterMock();
+    for (FastQRecord read : reads) {
+      mapper.map(read, collector, reporter);
+    }
+
+    HashMap<ByteBuffer, ArrayList<KMerEdge>> reduceGroups =
+        new HashMap<ByteBuffer, ArrayList<KMerEdge>>();
+    for (Pair<ByteBuffer, KMerEdge> pair : collector.data) {
+      if (!reduceGroups.containsKey(pair.key())) {
+        reduceGroups.put(pair.key(), new ArrayList<KMerEdge>());
+      }
+      reduceGroups.get(pair.key()).add(pair.value());
+    }
+
+    BuildGraphAvro.BuildGraphReducer reducer =
+        new BuildGraphAvro.BuildGraphReducer();
+    reducer.configure(job);
+    AvroCollectorMock<GraphNodeData> reduceCollector =
+        new AvroCollectorMock<GraphNodeData>();
+    for (ByteBuffer key : reduceGroups.keySet()) {
+      reducer.reduce(key, reduceGroups.get(key), reduceCollector, reporter);
+    }
+
+    HashMap<String, GraphNodeData> nodes =
+        new HashMap<String, GraphNodeData>();
+    for (GraphNodeData node : reduceCollector.data) {
+      nodes.put(node.getNodeId().toString(), node);
+    }
+    return nodes;
+  }
+
+  // Run the mapper and reducer for super-KMers.
+  private HashMap<String, GraphNodeData> runSuperKMers(
+      List<FastQRecord> reads, JobConf job, int K) throws IOException {
+    BuildGraphSuperKMers.SuperKMerMapper mapper =
+        new BuildGraphSuperKMers.SuperKMerMapper();
+    mapper.configure(job);
+    AvroCollectorMock<Pair<Long, SuperKMer>> collector =
+        new AvroCollectorMock<Pair<Long, SuperKMer>>(
+            BuildGraphSuperKMers.MAP_OUT_SCHEMA);
+    ReporterMock reporter = new ReporterMock();
+    int numKmers = 0;
+    for (FastQRecord read : reads) {
+      mapper.map(read, collector, reporter);
+      numKmers += read.getRead().length() - K + 1;
+    }
+
+    HashMap<Long, ArrayList<SuperKMer>> reduceGroups =
+        new HashMap<Long, ArrayList<SuperKMer>>();
+    for (Pair<Long, SuperKMer> pair : collector.data) {
+      if (!reduceGroups.containsKey(pair.key())) {
+        reduceGroups.put(pair.key(), new ArrayList<SuperKMer>());
+      }
+      reduceGroups.get(pair.key()).add(pair.value());
+    }
+
+    // The number of records should be much smaller than the number of
+    // KMers.
+    assertTrue(collector.data.size() < numKmers / 2);
+
+    BuildGraphSuperKMers.SuperKMerReducer reducer =
+        new BuildGraphSuperKMers.SuperKMerReducer();
+    reducer.configure(job);
+    AvroCollectorMock<GraphNodeData> reduceCollector =
+        new AvroCollectorMock<GraphNodeData>();
+    for (Long key : reduceGroups.keySet()) {
+      reducer.reduce(key, reduceGroups.get(key), reduceCollector, reporter);
+    }
+
+    HashMap<String, GraphNodeData> nodes =
+        new HashMap<String, GraphNodeData>();
+    for (GraphNodeData node : reduceCollector.data) {
+      // Each KMer should be output exactly once.
+      assertTrue(nodes.put(node.getNodeId().toString(), node) == null);
+    }
+    return nodes;
+  }
+
+  private HashSet<String> getEdgeSet(GraphNodeData node) {
+    HashSet<String> edges = new HashSet<String>();
+    for (NeighborData neighbor : node.getNeighbors()) {
+      for (EdgeData edge : neighbor.getEdges()) {
+        for (CharSequence tag : edge.getReadTags()) {
+          edges.add(
+              neighbor.getNodeId() + ":" + edge.getStrands() + ":" + tag);
+        }
+      }
+    }
+    return edges;
+  }
+
+  @Test
+  public void testMinimizers() {
+    Random generator = new Random();
+    Alphabet alphabet = DNAAlphabetFactory.create();
+    final int K = 21;
+    Kmer32 mmer = new Kmer32(7);
+    for (int trial = 0; trial < 20; ++trial) {
+      Sequence sequence = new Sequence(
+          AlphabetUtil.randomString(generator, 100, alphabet), alphabet);
+      int numKmers = sequence.size() - K + 1;
+      long[] minimizers = new long[numKmers];
+      BuildGraphSuperKMers.computeMinimizers(sequence, K, mmer, minimizers);
+
+      // The minimizers of the reverse complement should be reversed.
+      long[] rcMinimizers = new long[numKmers];
+      BuildGraphSuperKMers.computeMinimizers(
+          DNAUtil.reverseComplement(sequence), K, mmer, rcMinimizers);
+      for (int i = 0; i < numKmers; ++i) {
+        assertEquals(minimizers[i], rcMinimizers[numKmers - 1 - i]);
+      }
+    }
+  }
+
+  @Test
+  public void testSameAsBuildGraph() throws IOException {
+    // Generate overlapping reads from a random genome. Use a genome with
+    // repeats so that some of the KMers are in the same read more than once.
+    Random generator = new Random();
+    Alphabet alphabet = DNAAlphabetFactory.create();
+    String repeat = AlphabetUtil.randomString(generator, 25, alphabet);
+    String genome =
+        AlphabetUtil.randomString(generator, 100, alphabet) + repeat +
+        AlphabetUtil.randomString(generator, 10, alphabet) + repeat +
+        AlphabetUtil.randomString(generator, 100, alphabet);
+    ArrayList<FastQRecord> reads = new ArrayList<FastQRecord>();
+    for (int i = 0; i < 60; ++i) {
+      int length = 30 + generator.nextInt(50);
+      int start = generator.nextInt(genome.length() - length);
+      String read = genome.substring(start, start + length);
+      if (generator.nextBoolean()) {
+        read = DNAUtil.reverseComplement(
+            new Sequence(read, alphabet)).toString();
+      }
+      FastQRecord record = new FastQRecord();
+      record.setId("read" + i);
+      record.setRead(read);
+      record.setQvalue("");
+      reads.add(record);
+    }
+
+    final int K = 21;
+    JobConf job = createJob(K, 9);
+    HashMap<String, GraphNodeData> expected = runBuildGraph(reads, job);
+    HashMap<String, GraphNodeData> actual = runSuperKMers(reads, job, K);
+
+    assertEquals(expected.keySet(), actual.keySet());
+    for (String nodeId : expected.keySet()) {
+      GraphNodeData expectedNode = expected.get(nodeId);
+      GraphNodeData actualNode = actual.get(nodeId);
+      assertEquals(
+          expectedNode.getCoverage(), actualNode.getCoverage(), 0.00001);
+      assertEquals(expectedNode.getMertag(), actualNode.getMertag());
+      assertEquals(
+          expectedNode.getR5Tags().size(), actualNode.getR5Tags().size());
+      assertEquals(getEdgeSet(expectedNode), getEdgeSet(actualNode));
+    }
+  }
+}
@@ -0,0 +1,203 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.avro.mapred.Pair;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import contrail.ReporterMock;
+import contrail.graph.KMerEdge;
+import contrail.sequences.Alphabet;
+import contrail.sequences.AlphabetUtil;
+import contrail.sequences.DNAAlphabetFactory;
+import contrail.sequences.DNAUtil;
+import contrail.sequences.FastQRecord;
+import contrail.sequences.Kmer;
+import contrail.sequences.KmerBloomFilter;
+import contrail.sequences.Sequence;
+import contrail.util.FileHelper;
+
+public class TestBuildKmerFilter {
+  private FastQRecord createRead(String id, String letters) {
+    FastQRecord read = new FastQRecord();
+    read.setId(id);
+    read.setRead(letters);
+    read.setQvalue("");
+    return read;
+  }
+
+  private Kmer createKmer(String letters) {
+    Kmer kmer = Kmer.create(letters.length());
+    for (int i = 0; i < letters.length(); ++i) {
+      kmer.addLetter(letters.charAt(i));
+    }
+    return kmer;
+  }
+
+  @Test
+  public void testAddCounters() {
+    byte[] sum = {0x21, 0x0F};
+    ByteBuffer counters = ByteBuffer.wrap(new byte[] {0x13, 0x11});
+    BuildKmerFilter.addCounters(sum, counters, 3);
+    // The counters saturate at 3.
+    assertEquals(0x33, sum[0]);
+    assertEquals(0x13, sum[1]);
+  }
+
+  @Test
+  public void testFilter() throws IOException {
+    Random generator = new Random();
+    Alphabet alphabet = DNAAlphabetFactory.create();
+    final int K = 11;
+
+    // Reads from a genome overlap so their KMers occur several times; the
+    // KMers of the error read occur once.
+    String genome = AlphabetUtil.randomString(generator, 100, alphabet);
+    ArrayList<FastQRecord> reads = new ArrayList<FastQRecord>();
+    for (int i = 0; i < 20; ++i) {
+      int start = generator.nextInt(genome.length() - 30);
+      reads.add(createRead("read" + i, genome.substring(start, start + 30)));
+    }
+    String error = AlphabetUtil.randomString(generator, 30, alphabet);
+    reads.add(createRead("error", error));
+
+    // Count the canonical KMers.
+    HashMap<String, Integer> counts = new HashMap<String, Integer>();
+    for (FastQRecord read : reads) {
+      String letters = read.getRead().toString();
+      for (int i = 0; i + K <= letters.length(); ++i) {
+        String kmer = DNAUtil.canonicalseq(
+            new Sequence(letters.substring(i, i + K), alphabet)).toString();
+        Integer count = counts.get(kmer);
+        counts.put(kmer, count == null ? 1 : count + 1);
+      }
+    }
+
+    File tempDir = FileHelper.createLocalTempDir();
+    BuildKmerFilter stage = new BuildKmerFilter();
+    Map<String, ParameterDefinition> definitions =
+        stage.getParameterDefinitions();
+    JobConf job = new JobConf(BuildKmerFilter.class);
+    definitions.get("K").addToJobConf(job, new Integer(K));
+    definitions.get("min_kmer_count").addToJobConf(job, new Integer(2));
+    definitions.get("bloom_filter_bits").addToJobConf(
+        job, new Long(1L << 17));
+    definitions.get("outputpath").addToJobConf(
+        job, tempDir.getAbsolutePath());
+
+    // Use two mappers so that the combiner and reducer add up counts.
+    ReporterMock reporter = new ReporterMock();
+    AvroCollectorMock<Pair<Integer, ByteBuffer>> mapCollector =
+        new AvroCollectorMock<Pair<Integer, ByteBuffer>>(
+            BuildKmerFilter.BLOCK_SCHEMA);
+    for (int m = 0; m < 2; ++m) {
+      BuildKmerFilter.CountMapper mapper = new BuildKmerFilter.CountMapper();
+      mapper.configure(job);
+      for (int i = m; i < reads.size(); i += 2) {
+        mapper.map(reads.get(i), mapCollector, reporter);
+      }
+      mapper.close();
+    }
+
+    HashMap<Integer, List<ByteBuffer>> blocks =
+        new HashMap<Integer, List<ByteBuffer>>();
+    for (Pair<Integer, ByteBuffer> pair : mapCollector.data) {
+      if (!blocks.containsKey(pair.key())) {
+        blocks.put(pair.key(), new ArrayList<ByteBuffer>());
+      }
+      blocks.get(pair.key()).add(pair.value());
+    }
+
+    BuildKmerFilter.CountCombiner combiner =
+        new BuildKmerFilter.CountCombiner();
+    combiner.configure(job);
+    AvroCollectorMock<Pair<Integer, ByteBuffer>> combineCollector =
+        new AvroCollectorMock<Pair<Integer, ByteBuffer>>(
+            BuildKmerFilter.BLOCK_SCHEMA);
+    for (Integer block : blocks.keySet()) {
+      combiner.reduce(block, blocks.get(block), combineCollector, reporter);
+    }
+    assertEquals(blocks.size(), combineCollector.data.size());
+
+    BuildKmerFilter.FilterReducer reducer =
+        new BuildKmerFilter.FilterReducer();
+    reducer.configure(job);
+    for (Pair<Integer, ByteBuffer> pair : combineCollector.data) {
+      ArrayList<ByteBuffer> values = new ArrayList<ByteBuffer>();
+      values.add(pair.value());
+      reducer.reduce(pair.key(), values, null, reporter);
+    }
+    reducer.close();
+
+    String filterPath = new File(
+        tempDir, BuildKmerFilter.FILTER_FILENAME).getAbsolutePath();
+    KmerBloomFilter filter = BuildKmerFilter.readFilter(job, filterPath);
+    for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+      if (entry.getValue() >= 2) {
+        assertTrue(filter.mightContain(createKmer(entry.getKey())));
+      } else {
+        // The filter is large enough that a false positive is very
+        // unlikely.
+        assertFalse(filter.mightContain(createKmer(entry.getKey())));
+      }
+    }
+
+    // Check that BuildGraph drops the edges for the error read.
+    JobConf graphJob = new JobConf(BuildGraphAvro.BuildGraphMapper.class);
+    Map<String, ParameterDefinition> graphDefinitions =
+        new BuildGraphAvro().getParameterDefinitions();
+    graphDefinitions.get("K").addToJobConf(graphJob, new Integer(K));
+    graphDefinitions.get("kmer_filter").addToJobConf(graphJob, filterPath);
+    BuildGraphAvro.BuildGraphMapper mapper =
+        new BuildGraphAvro.BuildGraphMapper();
+    mapper.configure(graphJob);
+    AvroCollectorMock<Pair<ByteBuffer, KMerEdge>> edgeCollector =
+        new AvroCollectorMock<Pair<ByteBuffer, KMerEdge>>();
+    mapper.map(createRead("error", error), edgeCollector, reporter);
+    assertEquals(0, edgeCollector.data.size());
+
+    // Only the edges between trusted KMers are kept for the other reads.
+    String letters = reads.get(0).getRead().toString();
+    int numTrustedEdges = 0;
+    for (int i = 0; i + K < letters.length(); ++i) {
+      String first = DNAUtil.canonicalseq(
+          new Sequence(letters.substring(i, i + K), alphabet)).toString();
+      String second = DNAUtil.canonicalseq(
+          new Sequence(letters.substring(i + 1, i + K + 1), alphabet))
+          .toString();
+      if (counts.get(first) >= 2 && counts.get(second) >= 2) {
+        ++numTrustedEdges;
+      }
+    }
+    mapper.map(reads.get(0), edgeCollector, reporter);
+    assertEquals(2 * numTrustedEdges, edgeCollector.data.size());
+
+    FileUtils.deleteDirectory(tempDir);
+  }
+}
@@ -0,0 +1,105 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.apache.avro.mapred.Pair;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import contrail.ReporterMock;
+import contrail.graph.CompactNodeIdUtil;
+import contrail.graph.GraphNode;
+import contrail.sequences.AlphabetUtil;
+import contrail.sequences.DNAAlphabetFactory;
+import contrail.sequences.Sequence;
+
+public class TestBuildNodeIdDictionary {
+  @Test
+  public void testCompactIds() {
+    Random generator = new Random();
+    HashSet<String> ids = new HashSet<String>();
+    HashSet<String> kmers = new HashSet<String>();
+    for (int i = 0; i < 1000; ++i) {
+      String kmer = AlphabetUtil.randomString(
+          generator, 51, DNAAlphabetFactory.create());
+      Sequence sequence = new Sequence(kmer, DNAAlphabetFactory.create());
+      String id64 = BuildGraphAvro.constructNodeIdForSequence(sequence, 64);
+      String id128 = BuildGraphAvro.constructNodeIdForSequence(sequence, 128);
+      assertEquals(11, id64.length());
+      assertEquals(22, id128.length());
+      assertEquals(
+          sequence.toBase64(),
+          BuildGraphAvro.constructNodeIdForSequence(sequence, 0));
+
+      // The id should only depend on the letters.
+      assertEquals(id64, CompactNodeIdUtil.nodeIdForSequence(
+          new Sequence(kmer, DNAAlphabetFactory.create()), 64));
+      if (kmers.add(kmer)) {
+        ids.add(id64);
+      }
+    }
+    assertEquals(kmers.size(), ids.size());
+  }
+
+  @Test
+  public void testMapAndReduce() throws IOException {
+    Sequence sequence = new Sequence("ACTGC", DNAAlphabetFactory.create());
+    GraphNode node = new GraphNode();
+    node.setNodeId(CompactNodeIdUtil.nodeIdForSequence(sequence, 64));
+    node.setSequence(sequence);
+
+    BuildNodeIdDictionary.DictionaryMapper mapper =
+        new BuildNodeIdDictionary.DictionaryMapper();
+    mapper.configure(new JobConf());
+    AvroCollectorMock<Pair<CharSequence, CharSequence>> mapCollector =
+        new AvroCollectorMock<Pair<CharSequence, CharSequence>>(
+            BuildNodeIdDictionary.DICTIONARY_SCHEMA);
+    mapper.map(node.getData(), mapCollector, new ReporterMock());
+    assertEquals(1, mapCollector.data.size());
+    Pair<CharSequence, CharSequence> pair = mapCollector.data.get(0);
+    assertEquals(node.getNodeId(), pair.key().toString());
+    assertEquals("ACTGC", pair.value().toString());
+
+    BuildNodeIdDictionary.DictionaryReducer reducer =
+        new BuildNodeIdDictionary.DictionaryReducer();
+    reducer.configure(new JobConf());
+    AvroCollectorMock<Pair<CharSequence, CharSequence>> reduceCollector =
+        new AvroCollectorMock<Pair<CharSequence, CharSequence>>(
+            BuildNodeIdDictionary.DICTIONARY_SCHEMA);
+    reducer.reduce(
+        pair.key(), Arrays.asList((CharSequence) "ACTGC"), reduceCollector,
+        new ReporterMock());
+    assertEquals(1, reduceCollector.data.size());
+    assertEquals("ACTGC", reduceCollector.data.get(0).value().toString());
+
+    // Two different sequences with the same id is a collision.
+    try {
+      reducer.reduce(
+          pair.key(), Arrays.asList((CharSequence) "ACTGC", "ACTGA"),
+          reduceCollector, new ReporterMock());
+      fail("Expected an exception because of the collision.");
+    } catch (RuntimeException e) {
+      assertTrue(e.getMessage().contains("collision"));
+    }
+  }
+}
@@ -0,0 +1,267 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.avro.mapred.Pair;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import contrail.ReporterMock;
+import contrail.graph.EdgeTerminal;
+import contrail.graph.GraphNode;
+import contrail.graph.GraphNodeData;
+import contrail.graph.GraphTestUtil;
+import contrail.graph.GraphUtil;
+import contrail.graph.SimpleGraphBuilder;
+import contrail.sequences.DNAUtil;
+
+public class TestChainJumpAvro {
+  // Group the output of a mapper by key.
+  private TreeMap<String, List<Object>> shuffle(
+      List<Pair<CharSequence, Object>> pairs) {
+    TreeMap<String, List<Object>> groups = new TreeMap<String, List<Object>>();
+    for (Pair<CharSequence, Object> pair : pairs) {
+      String key = pair.key().toString();
+      if (!groups.containsKey(key)) {
+        groups.put(key, new ArrayList<Object>());
+      }
+      groups.get(key).add(pair.value());
+    }
+    return groups;
+  }
+
+  // Run rounds of ChainJumpAvro the way CompressChains does; i.e. until no
+  // pointers are active or the pointers have skipped over all the nodes in
+  // chains. The pointers of a cycle never finish so a cycle runs until the
+  // step limit.
+  private List<Object> rankChains(List<CompressibleNodeData> input)
+      throws IOException {
+    JobConf job = new JobConf(ChainJumpAvro.class);
+    List<Object> links = new ArrayList<Object>(input);
+    long numChainNodes = 0;
+    long numActive = 0;
+    int round = 0;
+    do {
+      ++round;
+      ReporterMock reporter = new ReporterMock();
+      ChainJumpAvro.JumpMapper mapper = new ChainJumpAvro.JumpMapper();
+      mapper.configure(job);
+      AvroCollectorMock<Pair<CharSequence, Object>> mapCollector =
+          new AvroCollectorMock<Pair<CharSequence, Object>>(
+              ChainJumpAvro.MAP_OUT_SCHEMA);
+      for (Object record : links) {
+        mapper.map(record, mapCollector, reporter);
+      }
+
+      ChainJumpAvro.JumpReducer reducer = new ChainJumpAvro.JumpReducer();
+      reducer.configure(job);
+      AvroCollectorMock<ChainLinkData> reduceCollector =
+          new AvroCollectorMock<ChainLinkData>();
+      for (Map.Entry<String, List<Object>> entry :
+           shuffle(mapCollector.data).entrySet()) {
+        reducer.reduce(
+            entry.getKey(), entry.getValue(), reduceCollector, reporter);
+      }
+
+      links = new ArrayList<Object>(reduceCollector.data);
+      if (round == 1) {
+        numChainNodes = reporter.getCounterValue(
+            ChainJumpAvro.NUM_CHAIN_NODES.group,
+            ChainJumpAvro.NUM_CHAIN_NODES.tag);
+      }
+      numActive = reporter.getCounterValue(
+          ChainJumpAvro.NUM_ACTIVE_POINTERS.group,
+          ChainJumpAvro.NUM_ACTIVE_POINTERS.tag);
+    } while (numActive > 0 && (1L << round) < numChainNodes);
+    return links;
+  }
+
+  // Run ChainKeyAvro and ChainMergeAvro.
+  private Map<String, GraphNode> mergeChains(
+      List<CompressibleNodeData> graph, List<Object> links)
+      throws IOException {
+    JobConf job = new JobConf(ChainMergeAvro.class);
+    ContrailParameters.getK().addToJobConf(job, new Integer(3));
+    ReporterMock reporter = new ReporterMock();
+
+    ChainKeyAvro.KeyMapper keyMapper = new ChainKeyAvro.KeyMapper();
+    keyMapper.configure(job);
+    AvroCollectorMock<Pair<CharSequence, Object>> mapCollector =
+        new AvroCollectorMock<Pair<CharSequence, Object>>(
+            ChainKeyAvro.MAP_OUT_SCHEMA);
+    List<Object> input = new ArrayList<Object>(graph);
+    input.addAll(links);
+    for (Object record : input) {
+      keyMapper.map(record, mapCollector, reporter);
+    }
+
+    ChainKeyAvro.KeyReducer keyReducer = new ChainKeyAvro.KeyReducer();
+    keyReducer.configure(job);
+    AvroCollectorMock<Pair<CharSequence, CompressibleNodeData>> keyCollector =
+        new AvroCollectorMock<Pair<CharSequence, CompressibleNodeData>>(
+            ChainKeyAvro.REDUCE_OUT_SCHEMA);
+    for (Map.Entry<String, List<Object>> entry :
+         shuffle(mapCollector.data).entrySet()) {
+      keyReducer.reduce(
+          entry.getKey(), entry.getValue(), keyCollector, reporter);
+    }
+
+    TreeMap<String, List<CompressibleNodeData>> groups =
+        new TreeMap<String, List<CompressibleNodeData>>();
+    for (Pair<CharSequence, CompressibleNodeData> pair : keyCollector.data) {
+      String key = pair.key().toString();
+      if (!groups.containsKey(key)) {
+        groups.put(key, new ArrayList<CompressibleNodeData>());
+      }
+      groups.get(key).add(pair.value());
+    }
+
+    ChainMergeAvro.MergeReducer mergeReducer =
+        new ChainMergeAvro.MergeReducer();
+    mergeReducer.configure(job);
+    AvroCollectorMock<GraphNodeData> mergeCollector =
+        new AvroCollectorMock<GraphNodeData>();
+    for (Map.Entry<String, List<CompressibleNodeData>> entry :
+         groups.entrySet()) {
+      mergeReducer.reduce(
+          entry.getKey(), entry.getValue(), mergeCollector, reporter);
+    }
+
+    HashMap<String, GraphNode> nodes = new HashMap<String, GraphNode>();
+    for (GraphNodeData data : mergeCollector.data) {
+      GraphNode node = new GraphNode(data);
+      nodes.put(node.getNodeId(), node);
+    }
+    return nodes;
+  }
+
+  @Test
+  public void testLinks() throws IOException {
+    SimpleGraphBuilder builder = new SimpleGraphBuilder();
+    builder.addKMersForString("ACTGGATT", 3);
+    List<CompressibleNodeData> graph = TestCompressibleAvro.markCompressible(
+        builder.getAllNodes().values(), 3);
+    List<Object> links = rankChains(graph);
+
+    // All the nodes form a single chain so every node should agree on the
+    // ends and the label.
+    assertEquals(builder.getAllNodes().size(), links.size());
+    EdgeTerminal[] expected = null;
+    for (Object record : links) {
+      ChainLinkData link = (ChainLinkData) record;
+      EdgeTerminal[] ends = ChainJumpAvro.findChainEnds(link);
+      if (expected == null) {
+        expected = ends;
+      }
+      assertEquals(expected[0], ends[0]);
+      assertEquals(expected[1], ends[1]);
+      assertEquals(
+          ((ChainLinkData) links.get(0)).getLabel().toString(),
+          link.getLabel().toString());
+    }
+  }
+
+  @Test
+  public void testMergeLinearChain() throws IOException {
+    SimpleGraphBuilder builder = new SimpleGraphBuilder();
+    builder.addKMersForString("ACTGGATT", 3);
+    List<CompressibleNodeData> graph = TestCompressibleAvro.markCompressible(
+        builder.getAllNodes().values(), 3);
+    Map<String, GraphNode> nodes = mergeChains(graph, rankChains(graph));
+
+    assertEquals(1, nodes.size());
+    GraphNode merged = nodes.values().iterator().next();
+    assertTrue(GraphTestUtil.hasSequence(merged, "ACTGGATT"));
+    assertEquals(0, merged.getNeighborIds().size());
+  }
+
+  @Test
+  public void testMergeWithBranches() throws IOException {
+    // The chain ACT->...->GAT has two incoming edges at the start and two
+    // outgoing edges at the end.
+    SimpleGraphBuilder builder = new SimpleGraphBuilder();
+    builder.addKMersForString("ACTGGATT", 3);
+    builder.addKMersForString("GGATA", 3);
+    builder.addKMersForString("TACT", 3);
+    builder.addKMersForString("GACT", 3);
+    List<CompressibleNodeData> graph = TestCompressibleAvro.markCompressible(
+        builder.getAllNodes().values(), 3);
+    Map<String, GraphNode> nodes = mergeChains(graph, rankChains(graph));
+
+    assertEquals(5, nodes.size());
+    assertEquals(0, GraphUtil.validateGraph(nodes.values(), 3).size());
+
+    GraphNode merged = null;
+    for (GraphNode node : nodes.values()) {
+      if (node.getSequence().size() > 3) {
+        merged = node;
+      }
+    }
+    assertNotNull(merged);
+    assertTrue(GraphTestUtil.hasSequence(merged, "ACTGGAT"));
+    assertEquals(4, merged.getNeighborIds().size());
+  }
+
+  @Test
+  public void testMergeCycle() throws IOException {
+    // The k-mers of the circular sequence ACTGG form a perfect cycle
+    // ACT->CTG->TGG->GGA->GAC->ACT.
+    SimpleGraphBuilder builder = new SimpleGraphBuilder();
+    builder.addKMersForString("ACTGGACT", 3);
+    assertEquals(5, builder.getAllNodes().size());
+    List<CompressibleNodeData> graph = TestCompressibleAvro.markCompressible(
+        builder.getAllNodes().values(), 3);
+    for (CompressibleNodeData node : graph) {
+      assertEquals(CompressibleStrands.BOTH, node.getCompressibleStrands());
+    }
+
+    // The pointers never reach the end of a cycle but every node should
+    // have the same label once the step limit is reached.
+    List<Object> links = rankChains(graph);
+    String label = ((ChainLinkData) links.get(0)).getLabel().toString();
+    for (Object record : links) {
+      ChainLinkData link = (ChainLinkData) record;
+      assertNull(ChainJumpAvro.findChainEnds(link));
+      assertEquals(label, link.getLabel().toString());
+    }
+
+    Map<String, GraphNode> nodes = mergeChains(graph, links);
+    assertEquals(1, nodes.size());
+    assertEquals(0, GraphUtil.validateGraph(nodes.values(), 3).size());
+
+    // The cycle is broken at the node with the label so the merged node
+    // has all 5 k-mers and an edge to itself.
+    GraphNode merged = nodes.get(label);
+    assertNotNull(merged);
+    assertEquals(7, merged.getSequence().size());
+    String sequence = merged.getSequence().toString();
+    String reverse =
+        DNAUtil.reverseComplement(merged.getSequence()).toString();
+    String circular = "ACTGGACTGGACTGG";
+    assertTrue(circular.contains(sequence) || circular.contains(reverse));
+    assertTrue(merged.getNeighborIds().contains(label));
+  }
+}
@@ -0,0 +1,286 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.mapred.Pair;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import contrail.RemoveTipMessage;
+import contrail.ReporterMock;
+import contrail.graph.GraphNode;
+import contrail.graph.GraphNodeData;
+import contrail.graph.GraphUtil;
+import contrail.graph.SimpleGraphBuilder;
+import contrail.sequences.DNAAlphabetFactory;
+import contrail.sequences.DNAStrand;
+import contrail.sequences.Sequence;
+import contrail.stages.GraphCounters.CounterName;
+
+public class TestCleanGraphAvro extends CleanGraphAvro {
+  private static final int K = 3;
+
+  // The output of running the stage on a graph.
+  private static class CleanResult {
+    public HashMap<String, GraphNode> nodes;
+    public ReporterMock reporter;
+  }
+
+  // Group the mapper output by key like the shuffle would.
+  private static <V> Map<String, List<V>> groupByKey(
+      List<Pair<CharSequence, V>> pairs) {
+    HashMap<String, List<V>> groups = new HashMap<String, List<V>>();
+    for (Pair<CharSequence, V> pair : pairs) {
+      String key = pair.key().toString();
+      if (!groups.containsKey(key)) {
+        groups.put(key, new ArrayList<V>());
+      }
+      groups.get(key).add(pair.value());
+    }
+    return groups;
+  }
+
+  private static HashMap<String, GraphNode> toNodes(
+      List<GraphNodeData> output) {
+    HashMap<String, GraphNode> nodes = new HashMap<String, GraphNode>();
+    for (GraphNodeData data : output) {
+      GraphNode node = new GraphNode(data);
+      nodes.put(node.getNodeId(), node);
+    }
+    return nodes;
+  }
+
+  private JobConf createJob(Map<String, Object> parameters) {
+    JobConf job = new JobConf(CleanGraphAvro.class);
+    Map<String, ParameterDefinition> definitions =
+        new CleanGraphAvro().getParameterDefinitions();
+    definitions.get("K").addToJobConf(job, K);
+    for (Map.Entry<String, Object> entry : parameters.entrySet()) {
+      definitions.get(entry.getKey()).addToJobConf(job, entry.getValue());
+    }
+    return job;
+  }
+
+  private CleanResult runStage(
+      Collection<GraphNode> nodes, Map<String, Object> parameters)
+          throws IOException {
+    JobConf job = createJob(parameters);
+    CleanResult result = new CleanResult();
+    result.reporter = new ReporterMock();
+
+    CleanGraphMapper mapper = new CleanGraphMapper();
+    mapper.configure(job);
+    AvroCollectorMock<Pair<CharSequence, CleanGraphMessage>> mapOutput =
+        new AvroCollectorMock<Pair<CharSequence, CleanGraphMessage>>();
+    for (GraphNode node : nodes) {
+      mapper.map(node.clone().getData(), mapOutput, result.reporter);
+    }
+
+    CleanGraphReducer reducer = new CleanGraphReducer();
+    reducer.configure(job);
+    AvroCollectorMock<GraphNodeData> output =
+        new AvroCollectorMock<GraphNodeData>();
+    for (Map.Entry<String, List<CleanGraphMessage>> entry :
+         groupByKey(mapOutput.data).entrySet()) {
+      reducer.reduce(
+          entry.getKey(), entry.getValue(), output, result.reporter);
+    }
+    result.nodes = toNodes(output.data);
+    return result;
+  }
+
+  // Clean the graph by finding the frontier and applying it in the mapper.
+  private CleanResult runFrontier(
+      Collection<GraphNode> nodes, Map<String, Object> parameters)
+          throws IOException {
+    JobConf job = createJob(parameters);
+    CleanResult result = new CleanResult();
+    result.reporter = new ReporterMock();
+
+    FindCleanGraphFrontier.FrontierMapper frontierMapper =
+        new FindCleanGraphFrontier.FrontierMapper();
+    frontierMapper.configure(job);
+    final AvroCollectorMock<Pair<CharSequence, CleanGraphMessage>> frontier =
+        new AvroCollectorMock<Pair<CharSequence, CleanGraphMessage>>();
+    for (GraphNode node : nodes) {
+      frontierMapper.map(node.clone().getData(), frontier, result.reporter);
+    }
+
+    ApplyCleanGraphFrontier.ApplyFrontierMapper mapper =
+        new ApplyCleanGraphFrontier.ApplyFrontierMapper() {
+      @Override
+      protected void loadMessages(JobConf job) {
+        for (Pair<CharSequence, CleanGraphMessage> pair : frontier.data) {
+          addMessage(pair.key().toString(), pair.value());
+        }
+      }
+    };
+    mapper.configure(job);
+    AvroCollectorMock<GraphNodeData> output =
+        new AvroCollectorMock<GraphNodeData>();
+    for (GraphNode node : nodes) {
+      mapper.map(node.clone().getData(), output, result.reporter);
+    }
+    result.nodes = toNodes(output.data);
+    return result;
+  }
+
+  // Check the frontier gives the same graph and counts as the full job.
+  private void assertFrontierMatches(
+      Collection<GraphNode> nodes, Map<String, Object> parameters,
+      CleanResult expected) throws IOException {
+    CleanResult result = runFrontier(nodes, parameters);
+    assertEquals(expected.nodes, result.nodes);
+    for (CounterName counter : new CounterName[] {
+             NUM_TIPS_REMOVED, NUM_ISLANDS_REMOVED,
+             NUM_LOW_COVERAGE_REMOVED, NUM_BUBBLE_CANDIDATES}) {
+      assertEquals(
+          expected.reporter.getCounterValue(counter.group, counter.tag),
+          result.reporter.getCounterValue(counter.group, counter.tag));
+    }
+  }
+
+  private HashMap<String, GraphNode> runRemoveTips(
+      Collection<GraphNode> nodes, int tipLength) throws IOException {
+    JobConf job = new JobConf(RemoveTipsAvro.class);
+    new RemoveTipsAvro().getParameterDefinitions().get(
+        "tiplength").addToJobConf(job, tipLength);
+    ReporterMock reporter = new ReporterMock();
+
+    RemoveTipsAvro.RemoveTipsAvroMapper mapper =
+        new RemoveTipsAvro.RemoveTipsAvroMapper();
+    mapper.configure(job);
+    AvroCollectorMock<Pair<CharSequence, RemoveTipMessage>> mapOutput =
+        new AvroCollectorMock<Pair<CharSequence, RemoveTipMessage>>();
+    for (GraphNode node : nodes) {
+      mapper.map(node.clone().getData(), mapOutput, reporter);
+    }
+
+    RemoveTipsAvro.RemoveTipsAvroReducer reducer =
+        new RemoveTipsAvro.RemoveTipsAvroReducer();
+    reducer.configure(job);
+    AvroCollectorMock<GraphNodeData> output =
+        new AvroCollectorMock<GraphNodeData>();
+    for (Map.Entry<String, List<RemoveTipMessage>> entry :
+         groupByKey(mapOutput.data).entrySet()) {
+      reducer.reduce(entry.getKey(), entry.getValue(), output, reporter);
+    }
+    return toNodes(output.data);
+  }
+
+  private GraphNode createNode(
+      String nodeId, String sequence, float coverage) {
+    GraphNode node = new GraphNode();
+    node.setNodeId(nodeId);
+    node.setSequence(new Sequence(sequence, DNAAlphabetFactory.create()));
+    node.setCoverage(coverage);
+    return node;
+  }
+
+  @Test
+  public void testTipsMatchRemoveTips() throws IOException {
+    // A chain with a tip at each end which should be removed.
+    SimpleGraphBuilder graph = new SimpleGraphBuilder();
+    graph.addEdge("AAATC", "TCA", 2);
+    graph.addEdge("ATC", "TCA", 2);
+    graph.addEdge("TCA", "CAGTTTTAG", 2);
+    graph.addEdge("CAGTTTTAG", "AGT", 2);
+    graph.addEdge("CAGTTTTAG", "AGGCT", 2);
+
+    HashMap<String, Object> parameters = new HashMap<String, Object>();
+    parameters.put("tiplength", 4);
+    CleanResult result = runStage(graph.getAllNodes().values(), parameters);
+    HashMap<String, GraphNode> expected =
+        runRemoveTips(graph.getAllNodes().values(), 4);
+
+    assertEquals(expected, result.nodes);
+    assertEquals(2, result.reporter.getCounterValue(
+        NUM_TIPS_REMOVED.group, NUM_TIPS_REMOVED.tag));
+    assertFrontierMatches(graph.getAllNodes().values(), parameters, result);
+  }
+
+  @Test
+  public void testLowCoverage() throws IOException {
+    // The graph X->Y->Z where Y has low coverage and T->Y is a tip.
+    GraphNode x = createNode("x", "ACTGGCCTAAG", 10);
+    GraphNode y = createNode("y", "AGTTC", 1);
+    GraphNode z = createNode("z", "TCGGATACCAG", 10);
+    GraphNode t = createNode("t", "CTAG", 10);
+    GraphUtil.addBidirectionalEdge(
+        x, DNAStrand.FORWARD, y, DNAStrand.FORWARD);
+    GraphUtil.addBidirectionalEdge(
+        y, DNAStrand.FORWARD, z, DNAStrand.FORWARD);
+    GraphUtil.addBidirectionalEdge(
+        t, DNAStrand.FORWARD, y, DNAStrand.FORWARD);
+
+    List<GraphNode> nodes = new ArrayList<GraphNode>();
+    for (GraphNode node : new GraphNode[] {x, y, z, t}) {
+      nodes.add(node);
+    }
+
+    HashMap<String, Object> parameters = new HashMap<String, Object>();
+    parameters.put("tiplength", 4);
+    parameters.put("remove_low_coverage", true);
+    parameters.put("length_thresh", 6);
+    parameters.put("low_cov_thresh", 5.0f);
+    CleanResult result = runStage(nodes, parameters);
+
+    // Y and the tip attached to it are removed and X and Z have no edges.
+    assertEquals(2, result.nodes.size());
+    for (GraphNode node : new GraphNode[] {x, z}) {
+      GraphNode expected = node.clone();
+      expected.removeNeighbor("y");
+      assertEquals(expected, result.nodes.get(node.getNodeId()));
+    }
+    assertEquals(1, result.reporter.getCounterValue(
+        NUM_LOW_COVERAGE_REMOVED.group, NUM_LOW_COVERAGE_REMOVED.tag));
+    assertEquals(1, result.reporter.getCounterValue(
+        NUM_TIPS_REMOVED.group, NUM_TIPS_REMOVED.tag));
+    assertFrontierMatches(nodes, parameters, result);
+  }
+
+  @Test
+  public void testBubbleCandidates() throws IOException {
+    // The graph X->{A, B}->Y.
+    SimpleGraphBuilder graph = new SimpleGraphBuilder();
+    graph.addEdge("ACCTG", "TGATC", 2);
+    graph.addEdge("ACCTG", "TGTTC", 2);
+    graph.addEdge("TGATC", "TCCGTA", 2);
+    graph.addEdge("TGTTC", "TCCGTA", 2);
+
+    HashMap<String, Object> parameters = new HashMap<String, Object>();
+    parameters.put("tiplength", 4);
+    parameters.put("bubble_length_threshold", 5);
+    CleanResult result = runStage(graph.getAllNodes().values(), parameters);
+    assertEquals(graph.getAllNodes().size(), result.nodes.size());
+    assertEquals(2, result.reporter.getCounterValue(
+        NUM_BUBBLE_CANDIDATES.group, NUM_BUBBLE_CANDIDATES.tag));
+    assertFrontierMatches(graph.getAllNodes().values(), parameters, result);
+
+    // The nodes are too long to be bubbles.
+    parameters.put("bubble_length_threshold", 4);
+    result = runStage(graph.getAllNodes().values(), parameters);
+    assertEquals(0, result.reporter.getCounterValue(
+        NUM_BUBBLE_CANDIDATES.group, NUM_BUBBLE_CANDIDATES.tag));
+  }
+}
@@ -0,0 +1,137 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestCoinFlipper {
+  private static final int NUM_IDS = 10000;
+
+  private String[] makeIds() {
+    String[] ids = new String[NUM_IDS];
+    for (int i = 0; i < NUM_IDS; ++i) {
+      ids[i] = "node_" + i;
+    }
+    return ids;
+  }
+
+  @Test
+  public void testDeterministic() {
+    CoinFlipper first = new CoinFlipper(12);
+    CoinFlipper second = new CoinFlipper(12);
+    for (String id : makeIds()) {
+      assertEquals(first.flip(id), second.flip(id));
+    }
+  }
+
+  @Test
+  public void testSeedsAreIndependent() {
+    // Constructing a second flipper shouldn't change the first.
+    CoinFlipper first = new CoinFlipper(1);
+    CoinFlipper.CoinFlip flip = first.flip("node_0");
+    new CoinFlipper(2);
+    assertEquals(flip, first.flip("node_0"));
+
+    // Flippers for consecutive seeds should agree on about half the ids.
+    CoinFlipper second = new CoinFlipper(2);
+    int numSame = 0;
+    for (String id : makeIds()) {
+      if (first.flip(id) == second.flip(id)) {
+        ++numSame;
+      }
+    }
+    assertTrue(numSame > 0.45 * NUM_IDS);
+    assertTrue(numSame < 0.55 * NUM_IDS);
+  }
+
+  @Test
+  public void testBalanced() {
+    for (long seed = 0; seed < 10; ++seed) {
+      CoinFlipper flipper = new CoinFlipper(seed);
+      int numUp = 0;
+      for (String id : makeIds()) {
+        if (flipper.flip(id) == CoinFlipper.CoinFlip.UP) {
+          ++numUp;
+        }
+      }
+      assertTrue(numUp > 0.45 * NUM_IDS);
+      assertTrue(numUp < 0.55 * NUM_IDS);
+
+      numUp = 0;
+      for (long id = 0; id < NUM_IDS; ++id) {
+        if (flipper.flip(id) == CoinFlipper.CoinFlip.UP) {
+          ++numUp;
+        }
+      }
+      assertTrue(numUp > 0.45 * NUM_IDS);
+      assertTrue(numUp < 0.55 * NUM_IDS);
+    }
+  }
+
+  @Test
+  public void testBytes() {
+    // Flipping bytes in a buffer should only depend on the bytes of the id.
+    CoinFlipper flipper = new CoinFlipper(3);
+    byte[] id = {1, 2, 3, 4, (byte) 0xff};
+    byte[] buffer = {7, 1, 2, 3, 4, (byte) 0xff, 9};
+    assertEquals(
+        flipper.flip(id, 0, id.length),
+        flipper.flip(buffer, 1, id.length));
+  }
+
+  /**
+   * Compare the speed of the flipper to reseeding java.util.Random, which
+   * is what the flipper used to do.
+   */
+  public static void main(String[] args) {
+    final int numRounds = 20;
+    String[] ids = new TestCoinFlipper().makeIds();
+
+    // Run the loops a few times first so the JIT compiles them.
+    long total = 0;
+    for (int pass = 0; pass < 2; ++pass) {
+      long start = System.nanoTime();
+      CoinFlipper flipper = new CoinFlipper(12);
+      for (int round = 0; round < numRounds; ++round) {
+        for (String id : ids) {
+          total += flipper.flip(id).ordinal();
+        }
+      }
+      long flipperTime = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      Random random = new Random();
+      for (int round = 0; round < numRounds; ++round) {
+        for (String id : ids) {
+          random.setSeed(id.hashCode() ^ 12);
+          total += (random.nextDouble() >= .5) ? 0 : 1;
+        }
+      }
+      long randomTime = System.nanoTime() - start;
+
+      long numFlips = (long) numRounds * ids.length;
+      System.out.println(String.format(
+          "Pass %d: CoinFlipper %.1f ns/flip java.util.Random %.1f ns/flip",
+          pass, (double) flipperTime / numFlips,
+          (double) randomTime / numFlips));
+    }
+    // Print the total so the loops can't be optimized away.
+    System.out.println("Checksum: " + total);
+  }
+}
@@ -1,6 +1,7 @@
 //Author: Jeremy Lewi (jeremy@lewi.us)
 package contrail.stages;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
 import java.io.File;
@@ -86,4 +87,14 @@ public class TestCompressChains extends CompressChains {
       fail("Exception occured:" + exception.getMessage());
     }
   }
+
+  @Test
+  public void testParseMaxHeapBytes() {
+    assertEquals(-1L, parseMaxHeapBytes(null));
+    assertEquals(-1L, parseMaxHeapBytes("-verbose:gc"));
+    assertEquals(1000L << 20, parseMaxHeapBytes("-Xmx1000m"));
+    assertEquals(2L << 30, parseMaxHeapBytes("-server -Xmx2G -Xms1g"));
+    assertEquals(512L << 10, parseMaxHeapBytes("-Xmx1g -Xmx512k"));
+    assertEquals(4096L, parseMaxHeapBytes("-Xmx4096"));
+  }
 }
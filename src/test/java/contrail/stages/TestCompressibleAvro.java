@@ -13,6 +13,8 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.apache.avro.Schema;
 import org.apache.avro.file.DataFileWriter;
@@ -316,6 +318,54 @@ public class TestCompressibleAvro {
     }
   }
 
+  /**
+   * Run the mapper and reducer on the nodes.
+   *
+   * This is used by the tests of the stages which take the output of
+   * CompressibleAvro as input.
+   *
+   * @return: The nodes marked with their compressible strands.
+   */
+  public static List<CompressibleNodeData> markCompressible(
+      Collection<GraphNode> nodes, int K) throws IOException {
+    JobConf job = new JobConf(CompressibleAvro.class);
+    ContrailParameters.getK().addToJobConf(job, K);
+    ReporterMock reporter = new ReporterMock();
+
+    CompressibleAvro.CompressibleMapper mapper =
+        new CompressibleAvro.CompressibleMapper();
+    mapper.configure(job);
+    AvroCollectorMock<Pair<CharSequence, CompressibleMapOutput>> mapCollector =
+        new AvroCollectorMock<Pair<CharSequence, CompressibleMapOutput>>(
+            CompressibleAvro.MAP_OUT_SCHEMA);
+    for (GraphNode node : nodes) {
+      mapper.map(node.clone().getData(), mapCollector, reporter);
+    }
+
+    // Group the outputs by key.
+    TreeMap<String, List<CompressibleMapOutput>> groups =
+        new TreeMap<String, List<CompressibleMapOutput>>();
+    for (Pair<CharSequence, CompressibleMapOutput> pair : mapCollector.data) {
+      String key = pair.key().toString();
+      if (!groups.containsKey(key)) {
+        groups.put(key, new ArrayList<CompressibleMapOutput>());
+      }
+      groups.get(key).add(pair.value());
+    }
+
+    CompressibleAvro.CompressibleReducer reducer =
+        new CompressibleAvro.CompressibleReducer();
+    reducer.configure(job);
+    AvroCollectorMock<CompressibleNodeData> reduceCollector =
+        new AvroCollectorMock<CompressibleNodeData>();
+    for (Map.Entry<String, List<CompressibleMapOutput>> entry :
+         groups.entrySet()) {
+      reducer.reduce(
+          entry.getKey(), entry.getValue(), reduceCollector, reporter);
+    }
+    return reduceCollector.data;
+  }
+
   /**
    * Runs the full MR stage on the inputs.
    */
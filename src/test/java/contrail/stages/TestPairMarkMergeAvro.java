@@ -0,0 +1,214 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.avro.mapred.Pair;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import contrail.ReporterMock;
+import contrail.graph.GraphNode;
+import contrail.graph.GraphTestUtil;
+import contrail.graph.GraphUtil;
+import contrail.graph.SimpleGraphBuilder;
+
+public class TestPairMarkMergeAvro {
+  // A CoinFlipper which uses a hash table to map strings to coin flips.
+  private static class CoinFlipperFixed extends CoinFlipper {
+    public HashMap<String, CoinFlip> tosses;
+    public CoinFlipperFixed() {
+      super(0);
+      tosses = new HashMap<String, CoinFlip>();
+    }
+
+    @Override
+    public CoinFlip flip(String seed) {
+      if (!tosses.containsKey(seed)) {
+        throw new RuntimeException("Flipper is missing seed:" + seed);
+      }
+      return tosses.get(seed);
+    }
+  }
+
+  // Run the mapper and reducer on the input. If flipper is null the
+  // mapper uses a CoinFlipper with the given seed.
+  private List<CompressibleNodeData> runRound(
+      List<CompressibleNodeData> input, long seed, CoinFlipper flipper)
+          throws IOException {
+    JobConf job = new JobConf(PairMarkMergeAvro.class);
+    ContrailParameters.getK().addToJobConf(job, new Integer(3));
+    ReporterMock reporter = new ReporterMock();
+
+    PairMarkMergeAvro.PairMarkMergeMapper mapper =
+        new PairMarkMergeAvro.PairMarkMergeMapper();
+    new PairMarkMergeAvro().getParameterDefinitions().get(
+        "randseed").addToJobConf(job, new Long(seed));
+    mapper.configure(job);
+    if (flipper != null) {
+      mapper.setFlipper(flipper);
+    }
+    AvroCollectorMock<Pair<CharSequence, PairMarkOutput>> mapCollector =
+        new AvroCollectorMock<Pair<CharSequence, PairMarkOutput>>();
+    for (CompressibleNodeData node : input) {
+      mapper.map(node, mapCollector, reporter);
+    }
+
+    TreeMap<String, List<PairMarkOutput>> groups =
+        new TreeMap<String, List<PairMarkOutput>>();
+    for (Pair<CharSequence, PairMarkOutput> pair : mapCollector.data) {
+      String key = pair.key().toString();
+      if (!groups.containsKey(key)) {
+        groups.put(key, new ArrayList<PairMarkOutput>());
+      }
+      groups.get(key).add(pair.value());
+    }
+
+    PairMarkMergeAvro.PairMarkMergeReducer reducer =
+        new PairMarkMergeAvro.PairMarkMergeReducer();
+    reducer.configure(job);
+    AvroCollectorMock<CompressibleNodeData> reduceCollector =
+        new AvroCollectorMock<CompressibleNodeData>();
+    for (Map.Entry<String, List<PairMarkOutput>> entry : groups.entrySet()) {
+      reducer.reduce(
+          entry.getKey(), entry.getValue(), reduceCollector, reporter);
+    }
+    return new ArrayList<CompressibleNodeData>(reduceCollector.data);
+  }
+
+  // Run rounds with different seeds until nothing is compressible.
+  private Map<String, GraphNode> compress(List<CompressibleNodeData> input)
+      throws IOException {
+    List<CompressibleNodeData> nodes = input;
+    Random generator = new Random(7);
+    for (int round = 0; round < 100; ++round) {
+      boolean compressible = false;
+      for (CompressibleNodeData node : nodes) {
+        compressible = compressible ||
+            node.getCompressibleStrands() != CompressibleStrands.NONE;
+      }
+      if (!compressible) {
+        HashMap<String, GraphNode> result = new HashMap<String, GraphNode>();
+        for (CompressibleNodeData node : nodes) {
+          GraphNode graphNode = new GraphNode(node.getNode());
+          result.put(graphNode.getNodeId(), graphNode);
+        }
+        return result;
+      }
+      // Pick the seeds the same way CompressChains does.
+      long seed = (long) (generator.nextDouble() * 10000000);
+      nodes = runRound(nodes, seed, null);
+    }
+    throw new RuntimeException("The graph wasn't compressed.");
+  }
+
+  @Test
+  public void testMergeWithDownNeighbors() throws IOException {
+    SimpleGraphBuilder builder = new SimpleGraphBuilder();
+    builder.addKMersForString("ACTGG", 3);
+    String middle = builder.findNodeIdForSequence("CTG");
+
+    CoinFlipperFixed flipper = new CoinFlipperFixed();
+    for (String nodeId : builder.getAllNodes().keySet()) {
+      flipper.tosses.put(nodeId, CoinFlipper.CoinFlip.DOWN);
+    }
+    flipper.tosses.put(middle, CoinFlipper.CoinFlip.UP);
+
+    List<CompressibleNodeData> output =
+        runRound(TestCompressibleAvro.markCompressible(
+            builder.getAllNodes().values(), 3), 0, flipper);
+    assertEquals(2, output.size());
+
+    HashMap<String, GraphNode> nodes = new HashMap<String, GraphNode>();
+    for (CompressibleNodeData data : output) {
+      GraphNode node = new GraphNode(data.getNode());
+      nodes.put(node.getNodeId(), node);
+      // Both nodes can still be merged with each other.
+      assertTrue(data.getCompressibleStrands() != CompressibleStrands.NONE);
+    }
+    assertEquals(0, GraphUtil.validateGraph(nodes.values(), 3).size());
+    boolean found = false;
+    for (GraphNode node : nodes.values()) {
+      found = found || GraphTestUtil.hasSequence(node, "CTGG") ||
+          GraphTestUtil.hasSequence(node, "ACTG");
+    }
+    assertTrue(found);
+  }
+
+  @Test
+  public void testNoMergeWithUpNeighbor() throws IOException {
+    // The middle node is up but so is one of its neighbors so it can't be
+    // merged because the edge updates couldn't be routed.
+    SimpleGraphBuilder builder = new SimpleGraphBuilder();
+    builder.addKMersForString("ACTGG", 3);
+    String first = builder.findNodeIdForSequence("ACT");
+    String middle = builder.findNodeIdForSequence("CTG");
+    String last = builder.findNodeIdForSequence("TGG");
+
+    CoinFlipperFixed flipper = new CoinFlipperFixed();
+    flipper.tosses.put(first, CoinFlipper.CoinFlip.UP);
+    flipper.tosses.put(middle, CoinFlipper.CoinFlip.UP);
+    flipper.tosses.put(last, CoinFlipper.CoinFlip.DOWN);
+
+    List<CompressibleNodeData> output =
+        runRound(TestCompressibleAvro.markCompressible(
+            builder.getAllNodes().values(), 3), 0, flipper);
+    // The first node is also up so neither up node can be merged.
+    assertEquals(3, output.size());
+  }
+
+  @Test
+  public void testCompressChain() throws IOException {
+    SimpleGraphBuilder builder = new SimpleGraphBuilder();
+    builder.addKMersForString("ACTGGATT", 3);
+    Map<String, GraphNode> nodes =
+        compress(TestCompressibleAvro.markCompressible(
+            builder.getAllNodes().values(), 3));
+
+    assertEquals(1, nodes.size());
+    GraphNode merged = nodes.values().iterator().next();
+    assertTrue(GraphTestUtil.hasSequence(merged, "ACTGGATT"));
+    assertEquals(0, merged.getNeighborIds().size());
+  }
+
+  @Test
+  public void testCompressWithBranches() throws IOException {
+    SimpleGraphBuilder builder = new SimpleGraphBuilder();
+    builder.addKMersForString("ACTGGATT", 3);
+    builder.addKMersForString("GGATA", 3);
+    builder.addKMersForString("TACT", 3);
+    builder.addKMersForString("GACT", 3);
+    Map<String, GraphNode> nodes =
+        compress(TestCompressibleAvro.markCompressible(
+            builder.getAllNodes().values(), 3));
+
+    assertEquals(5, nodes.size());
+    assertEquals(0, GraphUtil.validateGraph(nodes.values(), 3).size());
+    boolean found = false;
+    for (GraphNode node : nodes.values()) {
+      found = found || GraphTestUtil.hasSequence(node, "ACTGGAT");
+    }
+    assertTrue(found);
+  }
+}
@@ -0,0 +1,219 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.mapred.Pair;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import contrail.ReporterMock;
+import contrail.graph.GraphNode;
+import contrail.graph.GraphTestUtil;
+import contrail.graph.GraphUtil;
+import contrail.graph.NodeReverser;
+import contrail.graph.SimpleGraphBuilder;
+import contrail.sequences.DNAAlphabetFactory;
+import contrail.sequences.Sequence;
+
+public class TestPartitionMergeAvro extends PartitionMergeAvro {
+  private static final int K = 3;
+
+  // Mark the compressible strands by running CompressibleAvro.
+  private Map<String, CompressibleNodeData> markCompressible(
+      Map<String, GraphNode> nodes) throws IOException {
+    HashMap<String, CompressibleNodeData> marked =
+        new HashMap<String, CompressibleNodeData>();
+    for (CompressibleNodeData data :
+         TestCompressibleAvro.markCompressible(nodes.values(), K)) {
+      marked.put(data.getNode().getNodeId().toString(), data);
+    }
+    return marked;
+  }
+
+  // Run the reducer on each partition and return the combined output.
+  private List<CompressibleNodeData> runReducer(
+      Map<String, GraphNode> nodes, List<List<String>> partitions)
+          throws IOException {
+    Map<String, CompressibleNodeData> marked = markCompressible(nodes);
+    JobConf job = new JobConf(PartitionMergeAvro.class);
+    ContrailParameters.getK().addToJobConf(job, new Integer(K));
+    PartitionMergeReducer reducer = new PartitionMergeReducer();
+    reducer.configure(job);
+
+    ReporterMock reporter = new ReporterMock();
+    AvroCollectorMock<CompressibleNodeData> collector =
+        new AvroCollectorMock<CompressibleNodeData>();
+    for (int i = 0; i < partitions.size(); ++i) {
+      List<CompressibleNodeData> input = new ArrayList<CompressibleNodeData>();
+      for (String nodeId : partitions.get(i)) {
+        input.add(marked.get(nodeId));
+      }
+      reducer.reduce(Integer.toString(i), input, collector, reporter);
+    }
+
+    ArrayList<CompressibleNodeData> output =
+        new ArrayList<CompressibleNodeData>();
+    for (CompressibleNodeData data : collector.data) {
+      output.add(CompressUtil.copyCompressibleNode(data));
+    }
+    return output;
+  }
+
+  private Map<String, GraphNode> toGraph(List<CompressibleNodeData> output) {
+    HashMap<String, GraphNode> nodes = new HashMap<String, GraphNode>();
+    for (CompressibleNodeData data : output) {
+      GraphNode node = new GraphNode(data.getNode());
+      nodes.put(node.getNodeId(), node);
+    }
+    return nodes;
+  }
+
+  @Test
+  public void testSinglePartition() throws IOException {
+    SimpleGraphBuilder builder = new SimpleGraphBuilder();
+    builder.addKMersForString("ACTGGATT", K);
+
+    List<List<String>> partitions = new ArrayList<List<String>>();
+    partitions.add(new ArrayList<String>(builder.getAllNodes().keySet()));
+    List<CompressibleNodeData> output =
+        runReducer(builder.getAllNodes(), partitions);
+
+    assertEquals(1, output.size());
+    assertEquals(
+        CompressibleStrands.NONE, output.get(0).getCompressibleStrands());
+    assertTrue(GraphTestUtil.hasSequence(
+        new GraphNode(output.get(0).getNode()), "ACTGGATT"));
+  }
+
+  @Test
+  public void testCrossPartitionLinks() throws IOException {
+    // Split a chain with a branch into two partitions. Only the chains
+    // within a partition should be merged and the compressible strands
+    // should match those computed from the whole graph.
+    SimpleGraphBuilder builder = new SimpleGraphBuilder();
+    builder.addKMersForString("ACTGGATTCA", K);
+    builder.addKMersForString("GGATA", K);
+
+    String[] first = {"ACT", "CTG", "TGG", "GGA"};
+    List<String> firstPartition = new ArrayList<String>();
+    for (String sequence : first) {
+      firstPartition.add(builder.findNodeIdForSequence(sequence));
+    }
+    List<String> secondPartition = new ArrayList<String>();
+    for (String nodeId : builder.getAllNodes().keySet()) {
+      if (!firstPartition.contains(nodeId)) {
+        secondPartition.add(nodeId);
+      }
+    }
+    List<List<String>> partitions = new ArrayList<List<String>>();
+    partitions.add(firstPartition);
+    partitions.add(secondPartition);
+
+    List<CompressibleNodeData> output =
+        runReducer(builder.getAllNodes(), partitions);
+    Map<String, GraphNode> graph = toGraph(output);
+    assertTrue(graph.size() < builder.getAllNodes().size());
+    assertEquals(0, GraphUtil.validateGraph(graph.values(), K).size());
+
+    // The strands should match those CompressibleAvro finds for the merged
+    // graph.
+    Map<String, CompressibleNodeData> expected = markCompressible(graph);
+    for (CompressibleNodeData data : output) {
+      String nodeId = data.getNode().getNodeId().toString();
+      assertEquals(
+          expected.get(nodeId).getCompressibleStrands(),
+          data.getCompressibleStrands());
+    }
+
+    // The chain ACT->CTG->TGG can be merged because all the nodes are in the
+    // first partition, but GGA has edges to nodes in the other partition.
+    boolean found = false;
+    for (GraphNode node : graph.values()) {
+      found = found || GraphTestUtil.hasSequence(node, "ACTGG");
+    }
+    assertTrue(found);
+  }
+
+  @Test
+  public void testMinimizerKey() {
+    // The key for a node shouldn't depend on which strand is stored.
+    JobConf job = new JobConf(PartitionMergeAvro.class);
+    PartitionMergeAvro stage = new PartitionMergeAvro();
+    stage.getParameterDefinitions().get("partition_key").addToJobConf(
+        job, MINIMIZER_KEY);
+    stage.getParameterDefinitions().get("minimizer_length").addToJobConf(
+        job, new Integer(3));
+    PartitionMergeMapper mapper = new PartitionMergeMapper();
+    mapper.configure(job);
+
+    GraphNode node = new GraphNode();
+    node.setNodeId("node");
+    node.setSequence(new Sequence("ACTGGAT", DNAAlphabetFactory.create()));
+    GraphNode reversed = new NodeReverser().reverse(node);
+
+    CompressibleNodeData forward = new CompressibleNodeData();
+    forward.setNode(node.getData());
+    forward.setCompressibleStrands(CompressibleStrands.NONE);
+    String key = mapper.partitionKey(forward);
+
+    CompressibleNodeData reverse = new CompressibleNodeData();
+    reverse.setNode(reversed.getData());
+    reverse.setCompressibleStrands(CompressibleStrands.NONE);
+    assertEquals(key, mapper.partitionKey(reverse));
+
+    AvroCollectorMock<Pair<CharSequence, CompressibleNodeData>> collector =
+        new AvroCollectorMock<Pair<CharSequence, CompressibleNodeData>>();
+    try {
+      mapper.map(forward, collector, new ReporterMock());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    assertEquals(key, collector.data.get(0).key().toString());
+  }
+
+  @Test
+  public void testHairpin() throws IOException {
+    // AAT->ATT is the hairpin X->RC(X). Like CompressibleAvro we don't
+    // consider it compressible.
+    SimpleGraphBuilder builder = new SimpleGraphBuilder();
+    builder.addKMersForString("AATT", K);
+    Map<String, GraphNode> nodes = builder.getAllNodes();
+    assertEquals(1, nodes.size());
+    GraphNode node = nodes.values().iterator().next();
+    assertTrue(node.hasConnectedStrands());
+    assertEquals(
+        CompressibleStrands.NONE,
+        findCompressibleStrands(nodes, node, CompressibleStrands.BOTH));
+
+    // CompressibleAvro merges the connected strands so the reducer gets the
+    // node AATT, which it should output unchanged.
+    List<List<String>> partitions = new ArrayList<List<String>>();
+    partitions.add(new ArrayList<String>(nodes.keySet()));
+    List<CompressibleNodeData> output = runReducer(nodes, partitions);
+    assertEquals(1, output.size());
+    assertEquals(
+        CompressibleStrands.NONE, output.get(0).getCompressibleStrands());
+    assertTrue(GraphTestUtil.hasSequence(
+        new GraphNode(output.get(0).getNode()), "AATT"));
+  }
+}
@@ -4,6 +4,7 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
@@ -22,6 +23,7 @@ import contrail.graph.GraphNodeData;
 import contrail.graph.SimpleGraphBuilder;
 import contrail.sequences.DNAAlphabetFactory;
 import contrail.sequences.DNAStrand;
+import contrail.sequences.DNAUtil;
 import contrail.sequences.Sequence;
 import contrail.util.ListUtil;
 
@@ -194,4 +196,208 @@ public class TestQuickMergeAvro {
       assertTrue(ListUtil.listsAreEqual(expected_reverse_edges, reverse_edges));
     }
   }
+
+  @Test
+  public void testMapSplitsHotMertags() {
+    QuickMergeAvro stage = new QuickMergeAvro();
+    Map<String, ParameterDefinition> definitions =
+        stage.getParameterDefinitions();
+    JobConf job = new JobConf(QuickMergeAvro.QuickMergeMapper.class);
+    definitions.get("hot_tag_threshold").addToJobConf(job, new Integer(2));
+    definitions.get("hot_tag_splits").addToJobConf(job, new Integer(4));
+    definitions.get("minimizer_length").addToJobConf(job, new Integer(3));
+
+    QuickMergeAvro.QuickMergeMapper mapper =
+        new QuickMergeAvro.QuickMergeMapper();
+    mapper.configure(job);
+
+    AvroCollectorMock<Pair<CharSequence, GraphNodeData>> collector_mock =
+        new AvroCollectorMock<Pair<CharSequence, GraphNodeData>>();
+    ReporterMock reporter_mock = new ReporterMock();
+    String[] sequences = {"ACTG", "CTGG", "TGGA", "GGAT", "GATT"};
+    for (String sequence : sequences) {
+      GraphNode node = new GraphNode();
+      node.setNodeId(sequence);
+      node.setSequence(new Sequence(sequence, DNAAlphabetFactory.create()));
+      node.getData().getMertag().setReadTag("read");
+      node.getData().getMertag().setChunk(0);
+      try {
+        mapper.map(node.getData(), collector_mock, reporter_mock);
+      } catch (IOException exception){
+        fail("IOException occured in map: " + exception.getMessage());
+      }
+    }
+
+    // The first two nodes keep the mertag and the rest are split.
+    for (int i = 0; i < sequences.length; ++i) {
+      String key = collector_mock.data.get(i).key().toString();
+      if (i < 2) {
+        assertEquals("read_0", key);
+      } else {
+        assertTrue(key.startsWith("read_0#"));
+      }
+    }
+    assertEquals(3, reporter_mock.getCounterValue(
+        QuickMergeAvro.NUM_SPLIT_NODES.group,
+        QuickMergeAvro.NUM_SPLIT_NODES.tag));
+  }
+
+  @Test
+  public void testReducerWithSpills() {
+    // Merge a chain when only a few nodes fit in memory.
+    String sequence = "CCGTAATGCCTTTCCCTAACAGAGTTTTTCGAACTCGTGT";
+    int K = 7;
+    SimpleGraphBuilder graph = new SimpleGraphBuilder();
+    graph.addKMersForString(sequence, K);
+
+    List<GraphNodeData> data = new ArrayList<GraphNodeData>();
+    for (GraphNode node: graph.getAllNodes().values()) {
+      data.add(node.getData());
+    }
+
+    AvroCollectorMock<GraphNodeData> collector_mock =
+        new AvroCollectorMock<GraphNodeData>();
+    ReporterMock reporter_mock = new ReporterMock();
+    QuickMergeAvro stage = new QuickMergeAvro();
+    Map<String, ParameterDefinition> definitions =
+        stage.getParameterDefinitions();
+    JobConf job = new JobConf(QuickMergeAvro.QuickMergeMapper.class);
+    definitions.get("K").addToJobConf(job, new Integer(K));
+    definitions.get("minimizer_length").addToJobConf(job, new Integer(3));
+    definitions.get("max_nodes_in_memory").addToJobConf(job, new Integer(8));
+
+    QuickMergeAvro.QuickMergeReducer reducer =
+        new QuickMergeAvro.QuickMergeReducer();
+    reducer.configure(job);
+    try {
+      reducer.reduce("key", data, collector_mock, reporter_mock);
+    } catch (IOException exception){
+      fail("IOException occured in reduce: " + exception.getMessage());
+    }
+
+    assertTrue(reporter_mock.getCounterValue(
+        QuickMergeAvro.NUM_SPILLED_NODES.group,
+        QuickMergeAvro.NUM_SPILLED_NODES.tag) > 0);
+
+    // The output should be a valid graph containing every KMer of the
+    // sequence with fewer nodes than the input.
+    Map<String, GraphNode> nodes = new HashMap<String, GraphNode>();
+    for (GraphNodeData output : collector_mock.data) {
+      GraphNode node = new GraphNode(output).clone();
+      nodes.put(node.getNodeId(), node);
+    }
+    assertTrue(nodes.size() < data.size());
+    for (GraphNode node : nodes.values()) {
+      for (DNAStrand strand : DNAStrand.values()) {
+        for (EdgeTerminal terminal :
+             node.getEdgeTerminals(strand, EdgeDirection.OUTGOING)) {
+          assertTrue(nodes.containsKey(terminal.nodeId));
+        }
+      }
+    }
+    for (int i = 0; i + K <= sequence.length(); ++i) {
+      String kmer = sequence.substring(i, i + K);
+      String rc = DNAUtil.reverseComplement(
+          new Sequence(kmer, DNAAlphabetFactory.create())).toString();
+      boolean found = false;
+      for (GraphNode node : nodes.values()) {
+        String nodeSequence = node.getSequence().toString();
+        found = found || nodeSequence.contains(kmer) ||
+            nodeSequence.contains(rc);
+      }
+      assertTrue(found);
+    }
+  }
+
+  /**
+   * Run one pass of QuickMergeAvro on the nodes in memory.
+   */
+  private List<GraphNodeData> runPass(
+      List<GraphNodeData> input, JobConf job, ReporterMock reporter)
+          throws IOException {
+    QuickMergeAvro.QuickMergeMapper mapper =
+        new QuickMergeAvro.QuickMergeMapper();
+    mapper.configure(job);
+    AvroCollectorMock<Pair<CharSequence, GraphNodeData>> mapOutput =
+        new AvroCollectorMock<Pair<CharSequence, GraphNodeData>>();
+    for (GraphNodeData data : input) {
+      mapper.map(data, mapOutput, reporter);
+    }
+
+    HashMap<String, List<GraphNodeData>> groups =
+        new HashMap<String, List<GraphNodeData>>();
+    for (Pair<CharSequence, GraphNodeData> pair : mapOutput.data) {
+      String key = pair.key().toString();
+      if (!groups.containsKey(key)) {
+        groups.put(key, new ArrayList<GraphNodeData>());
+      }
+      groups.get(key).add(pair.value());
+    }
+
+    QuickMergeAvro.QuickMergeReducer reducer =
+        new QuickMergeAvro.QuickMergeReducer();
+    reducer.configure(job);
+    AvroCollectorMock<GraphNodeData> output =
+        new AvroCollectorMock<GraphNodeData>();
+    for (Map.Entry<String, List<GraphNodeData>> entry : groups.entrySet()) {
+      reducer.reduce(entry.getKey(), entry.getValue(), output, reporter);
+    }
+    return output.data;
+  }
+
+  @Test
+  public void testHotTagNeedsTwoPasses() throws IOException {
+    // A chain whose mertag is hot. The first pass splits the mertag so it
+    // can't merge the whole chain; the second pass, run with the options
+    // SkewedQuickMerge uses, merges the fragments.
+    String sequence = "CCGTAATGCCTTTCCCTAACAGAGTTTTTCGAACTCGTGT";
+    int K = 7;
+    SimpleGraphBuilder graph = new SimpleGraphBuilder();
+    graph.addKMersForString(sequence, K);
+
+    List<GraphNodeData> nodes = new ArrayList<GraphNodeData>();
+    for (GraphNode node : graph.getAllNodes().values()) {
+      node.getData().getMertag().setReadTag("read");
+      node.getData().getMertag().setChunk(0);
+      nodes.add(node.getData());
+    }
+
+    SkewedQuickMerge stage = new SkewedQuickMerge();
+    HashMap<String, Object> parameters = new HashMap<String, Object>();
+    parameters.put("K", new Integer(K));
+    parameters.put("hot_tag_threshold", new Integer(4));
+    parameters.put("hot_tag_splits", new Integer(4));
+    parameters.put("minimizer_length", new Integer(3));
+    parameters.put("max_nodes_in_memory", new Integer(100));
+    stage.setParameters(parameters);
+
+    Map<String, ParameterDefinition> definitions =
+        new QuickMergeAvro().getParameterDefinitions();
+    long[] numSplit = new long[2];
+    for (int pass = 0; pass < 2; ++pass) {
+      Map<String, Object> options =
+          stage.getPassOptions("input", "output", pass == 0);
+      JobConf job = new JobConf(QuickMergeAvro.class);
+      for (Map.Entry<String, Object> option : options.entrySet()) {
+        definitions.get(option.getKey()).addToJobConf(
+            job, option.getValue());
+      }
+      ReporterMock reporter = new ReporterMock();
+      nodes = runPass(nodes, job, reporter);
+      numSplit[pass] = reporter.getCounterValue(
+          QuickMergeAvro.NUM_SPLIT_NODES.group,
+          QuickMergeAvro.NUM_SPLIT_NODES.tag);
+      if (pass == 0) {
+        assertTrue(nodes.size() > 1);
+      }
+    }
+    assertTrue(numSplit[0] > 0);
+    assertEquals(0, numSplit[1]);
+
+    assertEquals(1, nodes.size());
+    String merged = new GraphNode(nodes.get(0)).getSequence().toString();
+    String rc = DNAUtil.reverseComplement(
+        new Sequence(sequence, DNAAlphabetFactory.create())).toString();
+    assertTrue(merged.equals(sequence) || merged.equals(rc));
+  }
 }
@@ -0,0 +1,90 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import contrail.graph.GraphNode;
+import contrail.graph.SimpleGraphBuilder;
+import contrail.sequences.DNAUtil;
+
+public class TestQuickMergeLocal extends QuickMergeLocal {
+  private SimpleGraphBuilder buildGraph() {
+    // Two chains which share the node for GAT and a third chain which
+    // isn't connected to them.
+    SimpleGraphBuilder builder = new SimpleGraphBuilder();
+    builder.addKMersForString("ACTGGATT", 3);
+    builder.addKMersForString("GGATA", 3);
+    builder.addKMersForString("CGTTACCG", 3);
+    return builder;
+  }
+
+  private Map<String, GraphNode> copyNodes(Map<String, GraphNode> nodes) {
+    HashMap<String, GraphNode> copy = new HashMap<String, GraphNode>();
+    for (GraphNode node : nodes.values()) {
+      copy.put(node.getNodeId(), node.clone());
+    }
+    return copy;
+  }
+
+  // Return the canonical sequence of each node.
+  private HashSet<String> getSequences(Collection<GraphNode> nodes) {
+    HashSet<String> sequences = new HashSet<String>();
+    for (GraphNode node : nodes) {
+      String forward = node.getSequence().toString();
+      String reverse =
+          DNAUtil.reverseComplement(node.getSequence()).toString();
+      sequences.add(forward.compareTo(reverse) <= 0 ? forward : reverse);
+    }
+    return sequences;
+  }
+
+  @Test
+  public void testFindComponents() {
+    SimpleGraphBuilder builder = buildGraph();
+    List<Map<String, GraphNode>> components =
+        findComponents(builder.getAllNodes());
+    assertEquals(2, components.size());
+
+    int numNodes = 0;
+    for (Map<String, GraphNode> component : components) {
+      numNodes += component.size();
+    }
+    assertEquals(builder.getAllNodes().size(), numNodes);
+  }
+
+  @Test
+  public void testMergeAllChains() {
+    SimpleGraphBuilder builder = buildGraph();
+
+    // Merging the components in parallel should give the same graph as
+    // merging all the nodes in a single thread.
+    Map<String, GraphNode> expected = copyNodes(builder.getAllNodes());
+    QuickMergeUtil.mergeAllChains(expected, 2);
+
+    Collection<GraphNode> merged =
+        mergeAllChains(copyNodes(builder.getAllNodes()), 2, 3);
+
+    assertEquals(expected.size(), merged.size());
+    assertEquals(getSequences(expected.values()), getSequences(merged));
+  }
+}
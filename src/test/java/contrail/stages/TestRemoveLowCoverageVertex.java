@@ -0,0 +1,157 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.mapred.Pair;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import contrail.RemoveNeighborMessage;
+import contrail.ReporterMock;
+import contrail.graph.GraphNode;
+import contrail.graph.GraphNodeData;
+import contrail.graph.GraphUtil;
+import contrail.graph.engine.InMemoryVertexEngine;
+import contrail.sequences.DNAAlphabetFactory;
+import contrail.sequences.DNAStrand;
+import contrail.sequences.Sequence;
+import contrail.stages.GraphCounters.CounterName;
+
+public class TestRemoveLowCoverageVertex {
+  private GraphNode createNode(
+      String nodeId, String sequence, float coverage) {
+    GraphNode node = new GraphNode();
+    node.setNodeId(nodeId);
+    node.setSequence(new Sequence(sequence, DNAAlphabetFactory.create()));
+    node.setCoverage(coverage);
+    return node;
+  }
+
+  private List<GraphNode> createGraph() {
+    // The graph X->Y->Z and T->Y where Y and T have low coverage and an
+    // island I with low coverage.
+    GraphNode x = createNode("x", "ACTGGCCTAAG", 10);
+    GraphNode y = createNode("y", "AGTTC", 1);
+    GraphNode z = createNode("z", "TCGGATACCAG", 10);
+    GraphNode t = createNode("t", "CTAG", 1);
+    GraphNode i = createNode("i", "CTAGG", 1);
+    GraphUtil.addBidirectionalEdge(
+        x, DNAStrand.FORWARD, y, DNAStrand.FORWARD);
+    GraphUtil.addBidirectionalEdge(
+        y, DNAStrand.FORWARD, z, DNAStrand.FORWARD);
+    GraphUtil.addBidirectionalEdge(
+        t, DNAStrand.FORWARD, y, DNAStrand.FORWARD);
+
+    List<GraphNode> nodes = new ArrayList<GraphNode>();
+    for (GraphNode node : new GraphNode[] {x, y, z, t, i}) {
+      nodes.add(node);
+    }
+    return nodes;
+  }
+
+  private JobConf createJob() {
+    JobConf job = new JobConf(RemoveLowCoverageAvro.class);
+    Map<String, ParameterDefinition> definitions =
+        new RemoveLowCoverageAvro().getParameterDefinitions();
+    definitions.get("length_thresh").addToJobConf(job, new Integer(6));
+    definitions.get("low_cov_thresh").addToJobConf(job, new Float(5.0f));
+    definitions.get("min_length").addToJobConf(job, new Integer(0));
+    return job;
+  }
+
+  private HashMap<String, GraphNode> runRemoveLowCoverage(
+      List<GraphNode> nodes, ReporterMock reporter) throws IOException {
+    JobConf job = createJob();
+    RemoveLowCoverageAvro.RemoveLowCoverageAvroMapper mapper =
+        new RemoveLowCoverageAvro.RemoveLowCoverageAvroMapper();
+    mapper.configure(job);
+    AvroCollectorMock<Pair<CharSequence, RemoveNeighborMessage>> mapOutput =
+        new AvroCollectorMock<Pair<CharSequence, RemoveNeighborMessage>>();
+    for (GraphNode node : nodes) {
+      mapper.map(node.clone().getData(), mapOutput, reporter);
+    }
+
+    HashMap<String, List<RemoveNeighborMessage>> groups =
+        new HashMap<String, List<RemoveNeighborMessage>>();
+    for (Pair<CharSequence, RemoveNeighborMessage> pair : mapOutput.data) {
+      String key = pair.key().toString();
+      if (!groups.containsKey(key)) {
+        groups.put(key, new ArrayList<RemoveNeighborMessage>());
+      }
+      groups.get(key).add(pair.value());
+    }
+
+    RemoveLowCoverageAvro.RemoveLowCoverageAvroReducer reducer =
+        new RemoveLowCoverageAvro.RemoveLowCoverageAvroReducer();
+    reducer.configure(job);
+    AvroCollectorMock<GraphNodeData> output =
+        new AvroCollectorMock<GraphNodeData>();
+    for (Map.Entry<String, List<RemoveNeighborMessage>> entry :
+         groups.entrySet()) {
+      reducer.reduce(entry.getKey(), entry.getValue(), output, reporter);
+    }
+
+    HashMap<String, GraphNode> result = new HashMap<String, GraphNode>();
+    for (GraphNodeData data : output.data) {
+      GraphNode node = new GraphNode(data);
+      result.put(node.getNodeId(), node);
+    }
+    return result;
+  }
+
+  @Test
+  public void testMatchesRemoveLowCoverage() throws IOException {
+    ReporterMock reporter = new ReporterMock();
+    HashMap<String, GraphNode> expected =
+        runRemoveLowCoverage(createGraph(), reporter);
+    // Only X and Z are kept.
+    assertEquals(2, expected.size());
+
+    for (int numThreads : new int[] {1, 3}) {
+      HashMap<String, GraphNodeData> nodes =
+          new HashMap<String, GraphNodeData>();
+      for (GraphNode node : createGraph()) {
+        nodes.put(node.getNodeId(), node.getData());
+      }
+      InMemoryVertexEngine<RemoveNeighborMessage> engine =
+          new InMemoryVertexEngine<RemoveNeighborMessage>(
+              new RemoveLowCoverageVertex.Program(), createJob(),
+              numThreads);
+
+      HashMap<String, GraphNode> result = new HashMap<String, GraphNode>();
+      for (GraphNodeData data : engine.run(nodes).values()) {
+        GraphNode node = new GraphNode(data);
+        result.put(node.getNodeId(), node);
+      }
+      assertEquals(expected, result);
+
+      CounterName[] counters = {
+          RemoveLowCoverageAvro.NUM_REMOVED,
+          RemoveLowCoverageAvro.NUM_ISLANDS};
+      for (CounterName counter : counters) {
+        assertEquals(
+            reporter.getCounterValue(counter.group, counter.tag),
+            engine.getCounter(counter.group, counter.tag));
+      }
+    }
+  }
+}
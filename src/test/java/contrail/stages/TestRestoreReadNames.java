@@ -0,0 +1,176 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.mapred.Pair;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import contrail.ReporterMock;
+import contrail.graph.EdgeDirection;
+import contrail.graph.EdgeTerminal;
+import contrail.graph.GraphNode;
+import contrail.graph.GraphNodeData;
+import contrail.graph.R5Tag;
+import contrail.sequences.DNAAlphabetFactory;
+import contrail.sequences.DNAStrand;
+import contrail.sequences.Sequence;
+
+public class TestRestoreReadNames {
+  private GraphNode createNode(String nodeId, String readId, String... tags) {
+    GraphNode node = new GraphNode();
+    node.setNodeId(nodeId);
+    node.setSequence(new Sequence("ACTG", DNAAlphabetFactory.create()));
+    node.addOutgoingEdgeWithTags(
+        DNAStrand.FORWARD, new EdgeTerminal("other", DNAStrand.FORWARD),
+        Arrays.asList(tags), 10);
+    R5Tag r5Tag = new R5Tag();
+    r5Tag.setTag(readId);
+    r5Tag.setOffset(0);
+    r5Tag.setStrand(DNAStrand.FORWARD);
+    node.getData().getR5Tags().add(r5Tag);
+    return node;
+  }
+
+  // Group the values of the pairs by key like the shuffle.
+  private <T> Map<String, List<T>> groupByKey(
+      List<Pair<CharSequence, T>> pairs) {
+    HashMap<String, List<T>> groups = new HashMap<String, List<T>>();
+    for (Pair<CharSequence, T> pair : pairs) {
+      String key = pair.key().toString();
+      if (!groups.containsKey(key)) {
+        groups.put(key, new ArrayList<T>());
+      }
+      groups.get(key).add(pair.value());
+    }
+    return groups;
+  }
+
+  private List<ReadName> runLookup(
+      List<GraphNode> nodes, Map<String, String> dictionary,
+      ReporterMock reporter) throws IOException {
+    JobConf job = new JobConf(LookupReadNames.class);
+    LookupReadNames.LookupMapper mapper = new LookupReadNames.LookupMapper();
+    mapper.configure(job);
+    AvroCollectorMock<Pair<CharSequence, ReadName>> mapOutput =
+        new AvroCollectorMock<Pair<CharSequence, ReadName>>(
+            LookupReadNames.MAP_OUT_SCHEMA);
+    for (GraphNode node : nodes) {
+      mapper.map(node.getData(), mapOutput, reporter);
+    }
+    for (Map.Entry<String, String> entry : dictionary.entrySet()) {
+      Pair<CharSequence, CharSequence> pair =
+          new Pair<CharSequence, CharSequence>(
+              AssignReadIds.DICTIONARY_SCHEMA);
+      pair.set(entry.getKey(), entry.getValue());
+      mapper.map(pair, mapOutput, reporter);
+    }
+
+    LookupReadNames.LookupReducer reducer =
+        new LookupReadNames.LookupReducer();
+    reducer.configure(job);
+    AvroCollectorMock<ReadName> output = new AvroCollectorMock<ReadName>();
+    for (Map.Entry<String, List<ReadName>> group :
+         groupByKey(mapOutput.data).entrySet()) {
+      reducer.reduce(group.getKey(), group.getValue(), output, reporter);
+    }
+    return output.data;
+  }
+
+  private Map<String, GraphNode> runRename(
+      List<GraphNode> nodes, List<ReadName> names, ReporterMock reporter)
+          throws IOException {
+    JobConf job = new JobConf(RenameReadTags.class);
+    RenameReadTags.RenameMapper mapper = new RenameReadTags.RenameMapper();
+    mapper.configure(job);
+    AvroCollectorMock<Pair<CharSequence, Object>> mapOutput =
+        new AvroCollectorMock<Pair<CharSequence, Object>>(
+            RenameReadTags.MAP_OUT_SCHEMA);
+    for (GraphNode node : nodes) {
+      mapper.map(node.getData(), mapOutput, reporter);
+    }
+    for (ReadName name : names) {
+      mapper.map(name, mapOutput, reporter);
+    }
+
+    RenameReadTags.RenameReducer reducer = new RenameReadTags.RenameReducer();
+    reducer.configure(job);
+    AvroCollectorMock<GraphNodeData> output =
+        new AvroCollectorMock<GraphNodeData>();
+    for (Map.Entry<String, List<Object>> group :
+         groupByKey(mapOutput.data).entrySet()) {
+      reducer.reduce(group.getKey(), group.getValue(), output, reporter);
+    }
+
+    HashMap<String, GraphNode> result = new HashMap<String, GraphNode>();
+    for (GraphNodeData data : output.data) {
+      GraphNode node = new GraphNode(data);
+      result.put(node.getNodeId(), node);
+    }
+    return result;
+  }
+
+  @Test
+  public void testRestoreNames() throws IOException {
+    List<GraphNode> nodes = new ArrayList<GraphNode>();
+    nodes.add(createNode("node1", "a", "a", "b"));
+    nodes.add(createNode("node2", "b", "c"));
+
+    // The read c isn't in the dictionary and the read d isn't used.
+    HashMap<String, String> dictionary = new HashMap<String, String>();
+    dictionary.put("a", "read/1");
+    dictionary.put("b", "read/2");
+    dictionary.put("d", "read/3");
+
+    ReporterMock reporter = new ReporterMock();
+    List<ReadName> names = runLookup(nodes, dictionary, reporter);
+    // node1 uses a and b and node2 uses b.
+    assertEquals(3, names.size());
+    assertEquals(1, reporter.getCounterValue(
+        LookupReadNames.NUM_MISSING_NAMES.group,
+        LookupReadNames.NUM_MISSING_NAMES.tag));
+
+    Map<String, GraphNode> result = runRename(nodes, names, reporter);
+    assertEquals(2, result.size());
+
+    String[][] expectedThreads = {{"read/1", "read/2"}, {"c"}};
+    String[] expectedR5Tags = {"read/1", "read/2"};
+    for (int i = 0; i < 2; ++i) {
+      GraphNode node = result.get("node" + (i + 1));
+      HashSet<String> threads = new HashSet<String>();
+      for (EdgeTerminal terminal : node.getEdgeTerminals(
+               DNAStrand.FORWARD, EdgeDirection.OUTGOING)) {
+        for (CharSequence tag :
+             node.getTagsForEdge(DNAStrand.FORWARD, terminal)) {
+          threads.add(tag.toString());
+        }
+      }
+      assertEquals(
+          new HashSet<String>(Arrays.asList(expectedThreads[i])), threads);
+      assertEquals(
+          expectedR5Tags[i],
+          node.getData().getR5Tags().get(0).getTag().toString());
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.avro.mapred.AvroCollector;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.junit.Test;
+
+import contrail.ReporterMock;
+import contrail.graph.GraphNode;
+import contrail.graph.GraphNodeData;
+import contrail.graph.GraphTestUtil;
+import contrail.sequences.KMerReadTag;
+
+public class TestSelectQuickMarkNodes {
+  private List<GraphNode> createNodes() {
+    List<GraphNode> nodes = new ArrayList<GraphNode>();
+    GraphNode compress = GraphTestUtil.createNode("compress", "ACTGG");
+    compress.setMertag(new KMerReadTag(QuickMarkAvro.COMPRESS_TAG, 0));
+    nodes.add(compress);
+    GraphNode other = GraphTestUtil.createNode("other", "CTGGA");
+    other.setMertag(new KMerReadTag("other", "other".hashCode()));
+    nodes.add(other);
+    return nodes;
+  }
+
+  private List<String> getIds(List<GraphNodeData> nodes) {
+    List<String> ids = new ArrayList<String>();
+    for (GraphNodeData data : nodes) {
+      ids.add(data.getNodeId().toString());
+    }
+    return ids;
+  }
+
+  @Test
+  public void testMapper() throws IOException {
+    final AvroCollectorMock<GraphNodeData> compressCollector =
+        new AvroCollectorMock<GraphNodeData>();
+    SelectQuickMarkNodes.SelectMapper mapper =
+        new SelectQuickMarkNodes.SelectMapper() {
+          @Override
+          protected AvroCollector<GraphNodeData> getCompressCollector(
+              Reporter reporter) {
+            return compressCollector;
+          }
+        };
+    mapper.configure(new JobConf(SelectQuickMarkNodes.class));
+    AvroCollectorMock<GraphNodeData> collector =
+        new AvroCollectorMock<GraphNodeData>();
+    for (GraphNode node : createNodes()) {
+      mapper.map(node.getData(), collector, new ReporterMock());
+    }
+
+    // Both sets of nodes are output by a single pass.
+    List<String> expected = new ArrayList<String>();
+    expected.add("compress");
+    assertEquals(expected, getIds(compressCollector.data));
+
+    expected.clear();
+    expected.add("other");
+    assertEquals(expected, getIds(collector.data));
+  }
+}
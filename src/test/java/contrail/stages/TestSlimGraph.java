@@ -0,0 +1,97 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Author: Jeremy Lewi (jeremy@lewi.us)
+package contrail.stages;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import contrail.ReporterMock;
+import contrail.graph.EdgeDirection;
+import contrail.graph.EdgeTerminal;
+import contrail.graph.GraphNode;
+import contrail.graph.GraphNodeData;
+import contrail.graph.GraphTestUtil;
+import contrail.sequences.DNAStrand;
+import contrail.sequences.KMerReadTag;
+
+public class TestSlimGraph {
+  private GraphNode createNode() {
+    GraphNode node = GraphTestUtil.createNode("node", "ACTGG");
+    node.setMertag(new KMerReadTag("read", 3));
+    List<CharSequence> tags = new ArrayList<CharSequence>();
+    for (int i = 0; i < 10; ++i) {
+      tags.add("read" + i);
+    }
+    node.addOutgoingEdgeWithTags(
+        DNAStrand.FORWARD, new EdgeTerminal("right", DNAStrand.FORWARD),
+        tags, 100);
+    node.addOutgoingEdgeWithTags(
+        DNAStrand.REVERSE, new EdgeTerminal("left", DNAStrand.FORWARD),
+        tags.subList(0, 2), 100);
+    node.addR5(new KMerReadTag("read", 0), 0, DNAStrand.FORWARD, 10);
+    return node;
+  }
+
+  @Test
+  public void testMapper() throws IOException {
+    SlimGraph stage = new SlimGraph();
+    Map<String, ParameterDefinition> definitions =
+        stage.getParameterDefinitions();
+    JobConf job = new JobConf(SlimGraph.class);
+    definitions.get("slim_max_read_tags").addToJobConf(job, new Integer(3));
+
+    SlimGraph.SlimMapper mapper = new SlimGraph.SlimMapper();
+    mapper.configure(job);
+    AvroCollectorMock<GraphNodeData> collector =
+        new AvroCollectorMock<GraphNodeData>();
+    GraphNode node = createNode();
+    mapper.map(node.clone().getData(), collector, new ReporterMock());
+
+    assertEquals(1, collector.data.size());
+    GraphNode slim = new GraphNode(collector.data.get(0));
+    assertEquals("", slim.getData().getMertag().getReadTag().toString());
+    assertEquals(0, slim.getData().getR5Tags().size());
+    assertEquals(node.getSequence(), slim.getSequence());
+
+    // The edges are unchanged but only the first 3 tags are kept.
+    for (DNAStrand strand : DNAStrand.values()) {
+      assertEquals(
+          node.getEdgeTerminalsSet(strand, EdgeDirection.OUTGOING),
+          slim.getEdgeTerminalsSet(strand, EdgeDirection.OUTGOING));
+      for (EdgeTerminal terminal :
+           node.getEdgeTerminals(strand, EdgeDirection.OUTGOING)) {
+        List<CharSequence> tags = node.getTagsForEdge(strand, terminal);
+        List<CharSequence> slimTags = slim.getTagsForEdge(strand, terminal);
+        assertEquals(Math.min(3, tags.size()), slimTags.size());
+        for (int i = 0; i < slimTags.size(); ++i) {
+          assertEquals(tags.get(i).toString(), slimTags.get(i).toString());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testKeepR5Tags() {
+    GraphNodeData data = createNode().getData();
+    SlimGraph.slimNode(data, 100, true, data.getMertag());
+    assertEquals(1, data.getR5Tags().size());
+  }
+}
@@ -280,6 +280,38 @@ public class TestValidateGraph extends ValidateGraph {
     return test;
   }
 
+  private ReducerTestCase createLongOverlapTest() {
+    // Create a test case where the overlap is longer than the node.
+    SimpleGraphBuilder builder = new SimpleGraphBuilder();
+    int K = 3;
+    builder.addKMersForString("ACGT", K);
+
+    GraphNode source = builder.getNode(builder.findNodeIdForSequence("ACG"));
+    GraphNode dest = builder.getNode(builder.findNodeIdForSequence("CGT"));
+
+    ReducerTestCase test = new ReducerTestCase();
+    {
+      ValidateMessage message = new ValidateMessage();
+      GraphNode node = dest.clone();
+      message.setNode(node.getData());
+      test.input.add(message);
+    }
+    {
+      ValidateMessage message = new ValidateMessage();
+      ValidateEdge edgeInfo = new ValidateEdge();
+      edgeInfo.setSourceId(source.getNodeId());
+      Sequence sequence = new Sequence("CGTA", DNAAlphabetFactory.create());
+      edgeInfo.setOverlap(sequence.toCompressedSequence());
+      edgeInfo.setStrands(StrandsForEdge.FR);
+      message.setEdgeInfo(edgeInfo);
+      test.input.add(message);
+    }
+
+    test.reducerKey = dest.getNodeId();
+    test.errorCode = GraphErrorCodes.OVERLAP;
+    return test;
+  }
+
   // Asserts that the output of the reducer is correct for this test case.
   private void assertReducerTestCase(
       ReducerTestCase test,
@@ -299,6 +331,7 @@ public class TestValidateGraph extends ValidateGraph {
     testCases.add(createMissingEdgeTest());
     testCases.add(createDuplicateNodeTest());
     testCases.add(createValidGraphTest());
+    testCases.add(createLongOverlapTest());
     ValidateGraphReducer reducer = new ValidateGraphReducer();
 
     JobConf job = new JobConf(ValidateGraphReducer.class);